@@ -65,7 +65,9 @@ public final class AntlrGeneratorAndCompiler {
                 .runAnnotationProcessors(false)
                 .sourceAndTargetLevel(8);
         if (!ANTLR_GENERATOR_VERBOSE_COMPILE) {
-            compileBuilder.withMaxErrors(1).setOptions(
+            // Only recompile the generated files whose content actually
+            // changed when the grammar is edited
+            compileBuilder.incremental().withMaxErrors(1).setOptions(
                     new JavacOptions()
                             .withDebugInfo(JavacOptions.DebugInfo.ALL)
             );
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.antlr.live.execution.impl;
+
+import com.mastfrog.util.path.UnixPath;
+import com.mastfrog.util.strings.Strings;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+import org.nemesis.jfs.JFS;
+import org.nemesis.jfs.JFSCoordinates;
+import org.nemesis.jfs.JFSFileModifications;
+import org.nemesis.jfs.JFSSnapshot;
+import org.nemesis.jfs.javac.CompileResult;
+import org.openide.modules.Places;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Persists the compiled classes for one grammar and invocation runner as a
+ * JFSSnapshot under the IDE's cache directory, tagged with the content hash
+ * of the Java sources they were compiled from, so that the first build after
+ * an IDE restart can restore them instead of running javac, when the
+ * regenerated sources are byte-for-byte what they were. Generation itself
+ * still runs, since an AntlrGenerationResult holds live Tool and Grammar
+ * objects which cannot be restored from bytes.
+ * <p>
+ * Snapshots are saved on a background thread, a few seconds after the last
+ * usable compilation, so a burst of rebuilds while the grammar is being
+ * edited writes one snapshot rather than one per rebuild. Set the system
+ * property <code>antlr.no.class.snapshots</code> to disable them.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class CompiledClassSnapshots {
+
+    private static final Logger LOG = Logger.getLogger(CompiledClassSnapshots.class.getName());
+    private static final boolean DISABLED = Boolean.getBoolean("antlr.no.class.snapshots");
+    private static final int SAVE_DELAY = 5000;
+    private static final RequestProcessor SAVES = new RequestProcessor("antlr-class-snapshots", 1, true);
+    private final String name;
+    private final RequestProcessor.Task saveTask = SAVES.create(this::save, true);
+    private boolean restoreAttempted;
+    private JFS pendingJfs;
+    private CompileResult pendingResult;
+
+    CompiledClassSnapshots(Path grammarFile, Class<?> runnerType) {
+        name = hash(grammarFile + ":" + runnerType.getName()) + ".jfss";
+    }
+
+    /**
+     * On the first build in this session only, restore the compiled classes
+     * saved by a previous session if the sources in the JFS are the ones they
+     * were compiled from. Must be called with the JFS write-locked.
+     *
+     * @param jfs The JFS the build runs against
+     * @return A successful compile result over the restored classes, or null
+     * if nothing was restored and javac must run
+     */
+    synchronized CompileResult restoreOnFirstBuild(JFS jfs) {
+        if (DISABLED || restoreAttempted) {
+            return null;
+        }
+        restoreAttempted = true;
+        Path file = snapshotFile();
+        if (file == null || !Files.exists(file)) {
+            return null;
+        }
+        try {
+            JFSSnapshot snapshot = JFSSnapshot.open(file);
+            JFSFileModifications inputs = inputs(jfs);
+            if (inputs.isEmpty() || !snapshot.isUpToDate(inputs)) {
+                LOG.log(Level.FINE, "Class snapshot {0} is stale", file);
+                return null;
+            }
+            int count = snapshot.restoreInto(jfs);
+            Set<JFSCoordinates> outputs = new HashSet<>();
+            jfs.list(CLASS_OUTPUT, (loc, fo) -> outputs.add(fo.toCoordinates()));
+            LOG.log(Level.FINE, "Restored {0} classes from {1} instead of compiling",
+                    new Object[]{count, file});
+            return CompileResult.precompiled(true, UnixPath.empty(), outputs);
+        } catch (IOException | RuntimeException ex) {
+            // A corrupt or unreadable snapshot just means compiling as usual
+            LOG.log(Level.INFO, "Could not restore class snapshot " + file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Schedule saving the classes a usable compilation produced.
+     *
+     * @param jfs The JFS
+     * @param result The compile result
+     */
+    void saveLater(JFS jfs, CompileResult result) {
+        if (DISABLED || result == null || !result.isUsable()) {
+            return;
+        }
+        synchronized (this) {
+            pendingJfs = jfs;
+            pendingResult = result;
+        }
+        saveTask.schedule(SAVE_DELAY);
+    }
+
+    private void save() {
+        JFS jfs;
+        CompileResult result;
+        synchronized (this) {
+            jfs = pendingJfs;
+            result = pendingResult;
+            pendingJfs = null;
+            pendingResult = null;
+        }
+        Path file = snapshotFile();
+        if (jfs == null || file == null || jfs.isReallyClosed()) {
+            return;
+        }
+        try {
+            jfs.whileReadLocked(() -> {
+                // If the sources were regenerated since, the classes in the
+                // JFS are not the ones they compile to; the next usable
+                // compilation will schedule another save
+                if (!result.areClassesUpToDateWithSources(jfs)) {
+                    return null;
+                }
+                JFSFileModifications inputs = inputs(jfs);
+                if (inputs.isEmpty()) {
+                    return null;
+                }
+                if (Files.exists(file)) {
+                    try {
+                        if (JFSSnapshot.open(file).isUpToDate(inputs)) {
+                            return null;
+                        }
+                    } catch (IOException ex) {
+                        LOG.log(Level.FINE, "Replacing unreadable snapshot " + file, ex);
+                    }
+                }
+                JFSSnapshot saved = JFSSnapshot.save(jfs, file, inputs, CLASS_OUTPUT);
+                LOG.log(Level.FINE, "Saved {0}", saved);
+                return null;
+            });
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.INFO, "Could not save class snapshot " + file, ex);
+        }
+    }
+
+    private static JFSFileModifications inputs(JFS jfs) {
+        return jfs.status(EnumSet.of(SOURCE_PATH, SOURCE_OUTPUT),
+                path -> path.toString().endsWith(".java"));
+    }
+
+    private Path snapshotFile() {
+        try {
+            return Places.getCacheSubdirectory("antlr-class-snapshots").toPath().resolve(name);
+        } catch (RuntimeException ex) {
+            // No cache directory, e.g. in tests
+            LOG.log(Level.FINEST, "No cache dir", ex);
+            return null;
+        }
+    }
+
+    private static String hash(String s) {
+        try {
+            MessageDigest dig = MessageDigest.getInstance("SHA-1");
+            return Strings.toPaddedHex(dig.digest(s.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            return Integer.toHexString(s.hashCode());
+        }
+    }
+}
@@ -57,6 +57,7 @@ final class InvocationEnvironment<T, R> {
     private final AtomicReference<EnvironmentState> state
             = new AtomicReference<>(new EnvironmentState());
     private Supplier<JFS> jfsSupplier;
+    private CompiledClassSnapshots snapshots;
 
     InvocationEnvironment(InvocationRunnerLookupKey<T> key, InvocationRunner<T, R> runner, FileObject file) {
         this.key = notNull("key", key);
@@ -64,6 +65,13 @@ final class InvocationEnvironment<T, R> {
         this.file = notNull("file", file);
     }
 
+    private synchronized CompiledClassSnapshots snapshots(AntlrGenerationResult genResult) {
+        if (snapshots == null) {
+            snapshots = new CompiledClassSnapshots(genResult.originalFilePath, runner.getClass());
+        }
+        return snapshots;
+    }
+
     synchronized void maybeInitializeFrom(AntlrGenerationEvent initialState, FileObject file) {
         if (jfsSupplier == null && initialState.res != null && initialState.res.jfsSupplier != null) {
 
@@ -158,6 +166,7 @@ final class InvocationEnvironment<T, R> {
         JFSCompileBuilder bldr = new JFSCompileBuilder(jfs);
         Obj<JFSCompileBuilder> compileBuilder = Obj.create();
         ClassloaderSupplierConsumer csc = new ClassloaderSupplierConsumer();
+        CompiledClassSnapshots snaps = snapshots(genResult);
         try {
             return jfs.whileLockedWithWithLockDowngrade(() -> {
                 compileResultHolder.set(runAndAnalyze.withCompilerOutputWriter(jfs, genResult, bldr, (Writer writer, JFSCompileBuilder b) -> {
@@ -165,7 +174,16 @@ final class InvocationEnvironment<T, R> {
                     arg.set(runner.configureCompilation(event.tree, genResult, event.extraction, jfs,
                             bldr, genResult.packageName(), csc, singleSource));
                     compileBuilder.set(bldr);
-                    return runAndAnalyze.performCompilation(jfs, singleSource, b, writer, genResult, regenerated);
+                    // After an IDE restart, the regenerated sources are usually
+                    // identical to what was compiled last session
+                    CompileResult restored = snaps.restoreOnFirstBuild(jfs);
+                    if (restored != null) {
+                        writer.write("Restored compiled classes from snapshot\n");
+                        return restored;
+                    }
+                    CompileResult result = runAndAnalyze.performCompilation(jfs, singleSource, b, writer, genResult, regenerated);
+                    snaps.saveLater(jfs, result);
+                    return result;
                 }));
             }, () -> {
                 if (compileResultHolder.isSet()) {
@@ -387,11 +387,14 @@ final class AdhocHighlighterManager {
         Canceller.runInCurrentThread(cancelled -> {
             Document d = ctx.getDocument();
             EmbeddedAntlrParser parser = AdhocLanguageHierarchy.parserFor(mimeType);
+            // Read the version first - the text is a live view of the
+            // document, so may be newer, but never older, than it says
+            long version = DocumentUtilities.getDocumentVersion(d);
             CharSequence text = DocumentUtilities.getText(d);
             try {
-                EmbeddedAntlrParserResult result = parser.parse(text);
+                EmbeddedAntlrParserResult result = parser.parse(text, d, version);
                 AntlrProxies.ParseTreeProxy prox = result.proxy();
-                if (!cancelled.getAsBoolean()) {
+                if (!cancelled.getAsBoolean() && !result.isCancelled()) {
                     if (!prox.isUnparsed()) {
                         Path grammarPath = AdhocMimeTypes.grammarFilePathForMimeType(mimeType);
 
@@ -15,16 +15,24 @@
  */
 package org.nemesis.antlr.live.language;
 
+import com.mastfrog.function.state.Lng;
 import com.mastfrog.function.state.Obj;
 import com.mastfrog.util.strings.Escaper;
 import com.mastfrog.util.strings.Strings;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import org.nemesis.adhoc.mime.types.AdhocMimeTypes;
 import org.nemesis.antlr.common.cancel.Canceller;
@@ -36,11 +44,13 @@ import org.nemesis.antlr.live.parsing.extract.AntlrProxies.ProxyToken;
 import org.nemesis.debug.api.Debug;
 import org.nemesis.misc.utils.ActivityPriority;
 import org.netbeans.api.lexer.Token;
+import org.netbeans.lib.editor.util.swing.DocumentUtilities;
 import org.netbeans.modules.editor.NbEditorUtilities;
 import org.netbeans.spi.lexer.Lexer;
 import org.netbeans.spi.lexer.LexerInput;
 import org.netbeans.spi.lexer.LexerRestartInfo;
 import org.openide.filesystems.FileObject;
+import org.openide.util.RequestProcessor;
 
 /**
  *
@@ -52,6 +62,12 @@ public class AdhocLexerNew implements Lexer<AdhocTokenId> {
     private final LexerRestartInfo<AdhocTokenId> info;
     private final String mimeType;
     private final Supplier<? extends TokensInfo> supp;
+    private static final RequestProcessor FULL_PARSE
+            = new RequestProcessor("adhoc-lexer-full-parse", 2, false);
+    private static final Map<Document, RequestProcessor.Task> PENDING_FULL_PARSES
+            = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final int FULL_PARSE_DELAY = 100;
+    private final LexState restartState;
     private List<ProxyToken> tokens;
     private int cursor;
 
@@ -59,9 +75,9 @@ public class AdhocLexerNew implements Lexer<AdhocTokenId> {
         this.mimeType = mimeType;
         this.info = info;
         this.supp = supp;
-        if (info.state() instanceof Integer) {
-            cursor = (Integer) info.state();
-        }
+        // The input begins at the token after the one the state was
+        // recorded for; null means the lexer's default state
+        restartState = info.state() instanceof LexState ? (LexState) info.state() : null;
     }
 
     List<AdhocTokenId> ids() {
@@ -108,24 +124,30 @@ public class AdhocLexerNew implements Lexer<AdhocTokenId> {
         CharSequence text = in.readText();
         in.backup(count);
         Obj<ParseTreeProxy> res = Obj.create();
+        // Only lex here, from the restart point; the full parse, which
+        // highlighting and reparse listeners need, happens later in the
+        // background, so a keystroke costs a relex of the damaged region
+        // and not a parse of the whole file
+        LexState state = restartState == null ? LexState.INITIAL : restartState;
         Canceller.runInCurrentThread(cancelled -> {
             try {
                 Debug.runObjectThrowing("Lex " + AdhocMimeTypes.loggableMimeType(mimeType) + " "
                         + currentLexedName(), "", () -> {
                             return ActivityPriority.REALTIME.wrapThrowing(() -> {
                                 EmbeddedAntlrParser parser = AdhocLanguageHierarchy.parserFor(mimeType);
-                                EmbeddedAntlrParserResult pres = parser.parse(text);
+                                EmbeddedAntlrParserResult pres = parser.lex(text, state.mode, state.modeStack);
                                 ParseTreeProxy result = pres.proxy();
-                                LOG.log(Level.FINE, "Lexer gets new mime {0} parser "
-                                        + "result tokens hash {1} hier tokens hash {2}",
+                                LOG.log(Level.FINE, "Lexer gets new mime {0} lexer "
+                                        + "result tokens hash {1} hier tokens hash {2} from {3}",
                                         new Object[]{result.loggingInfo(), pres.grammarTokensHash(),
-                                            AdhocLanguageHierarchy.hierarchyInfo(mimeType).grammarTokensHash()});
+                                            AdhocLanguageHierarchy.hierarchyInfo(mimeType).grammarTokensHash(),
+                                            state});
 
                                 AdhocLanguageHierarchy.maybeUpdateTokenInfo(mimeType, pres);
                                 Document doc = AdhocLanguageHierarchy.document(info);
                                 if (doc != null) {
                                     Debug.message("document", doc::toString);
-                                    AdhocReparseListeners.reparsed(mimeType, doc, pres);
+                                    scheduleFullParse(doc);
                                 }
                                 if (result.isUnparsed()) {
                                     Debug.failure("unparsed", parser::toString);
@@ -145,6 +167,65 @@ public class AdhocLexerNew implements Lexer<AdhocTokenId> {
         return proxy = res.get();
     }
 
+    private void scheduleFullParse(Document doc) {
+        // Coalesces the relexes of a burst of typing into one parse
+        PENDING_FULL_PARSES.computeIfAbsent(doc,
+                d -> FULL_PARSE.create(new FullParse(mimeType, d)))
+                .schedule(FULL_PARSE_DELAY);
+    }
+
+    /**
+     * Parses a document after it has been relexed, so highlighters and other
+     * reparse listeners get a result with a parse tree.
+     */
+    private static final class FullParse implements Runnable {
+
+        private final String mimeType;
+        private final Reference<Document> docRef;
+
+        FullParse(String mimeType, Document doc) {
+            this.mimeType = mimeType;
+            // The task is the value in a weak map keyed on the document
+            this.docRef = new WeakReference<>(doc);
+        }
+
+        @Override
+        public void run() {
+            Document doc = docRef.get();
+            if (doc == null) {
+                return;
+            }
+            Obj<String> text = Obj.create();
+            Lng version = Lng.create();
+            doc.render(() -> {
+                try {
+                    text.set(doc.getText(0, doc.getLength()));
+                    version.set(DocumentUtilities.getDocumentVersion(doc));
+                } catch (BadLocationException ex) {
+                    LOG.log(Level.INFO, "Could not read " + doc, ex);
+                }
+            });
+            if (!text.isSet()) {
+                return;
+            }
+            Canceller.runInCurrentThread(cancelled -> {
+                try {
+                    EmbeddedAntlrParserResult pres
+                            = AdhocLanguageHierarchy.parserFor(mimeType).parse(text.get(), doc, version.getAsLong());
+                    if (pres.isCancelled()) {
+                        // Superseded by a parse of newer text, which will
+                        // report its own result
+                        return;
+                    }
+                    AdhocLanguageHierarchy.maybeUpdateTokenInfo(mimeType, pres);
+                    AdhocReparseListeners.reparsed(mimeType, doc, pres);
+                } catch (Exception ex) {
+                    LOG.log(Level.WARNING, "Thrown in embedded parser for " + doc, ex);
+                }
+            });
+        }
+    }
+
     private List<ProxyToken> iterator() {
         if (tokens != null) {
             return tokens;
@@ -278,11 +359,63 @@ public class AdhocLexerNew implements Lexer<AdhocTokenId> {
 
     @Override
     public Object state() {
-        return cursor;
+        // The state after the last token returned, so NetBeans can restart
+        // lexing after any token, and stop relexing once the state at a
+        // token boundary matches what it was before an edit
+        List<ProxyToken> tokenList = tokens;
+        int last = tokenList == null ? -1 : Math.min(cursor, tokenList.size()) - 1;
+        if (last < 0) {
+            return restartState;
+        }
+        return LexState.create(tokenList.get(last).mode(), proxy.modeStackAfter(last));
     }
 
     @Override
     public void release() {
         tokens = null;
     }
+
+    /**
+     * Restartable lexer state - the lexer mode and mode stack after a token.
+     * Null is used for the default state, which is the common case.
+     */
+    static final class LexState {
+
+        static final LexState INITIAL = new LexState(0, new int[0]);
+        final int mode;
+        final int[] modeStack;
+
+        private LexState(int mode, int[] modeStack) {
+            this.mode = mode;
+            this.modeStack = modeStack;
+        }
+
+        static LexState create(int mode, int[] modeStack) {
+            if (mode == INITIAL.mode && modeStack.length == 0) {
+                return null;
+            }
+            return new LexState(mode, modeStack);
+        }
+
+        @Override
+        public String toString() {
+            return "LexState(" + mode + " " + Arrays.toString(modeStack) + ")";
+        }
+
+        @Override
+        public int hashCode() {
+            return 71 * mode + Arrays.hashCode(modeStack);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (!(obj instanceof LexState)) {
+                return false;
+            }
+            LexState other = (LexState) obj;
+            return mode == other.mode && Arrays.equals(modeStack, other.modeStack);
+        }
+    }
 }
@@ -24,11 +24,13 @@ import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.event.ChangeListener;
+import javax.swing.text.Document;
 import org.nemesis.adhoc.mime.types.AdhocMimeTypes;
 import org.nemesis.antlr.live.parsing.EmbeddedAntlrParser;
 import org.nemesis.antlr.live.parsing.EmbeddedAntlrParserResult;
 import org.nemesis.antlr.live.parsing.extract.AntlrProxies;
 import org.nemesis.debug.api.Debug;
+import org.netbeans.lib.editor.util.swing.DocumentUtilities;
 import org.netbeans.modules.parsing.api.Snapshot;
 import org.netbeans.modules.parsing.api.Task;
 import org.netbeans.modules.parsing.spi.ParseException;
@@ -136,7 +138,28 @@ final class AdhocParser extends Parser {
                             + snapshot.getSource().getFileObject();
                 }, () -> {
                     EmbeddedAntlrParser parser = AdhocLanguageHierarchy.parserFor(mimeType);
-                    EmbeddedAntlrParserResult rp = parser.parse(snapshot.getText());
+                    // Pass the document, so a parse of an older version of it
+                    // still running is superseded by this one
+                    Document doc = snapshot.getSource().getDocument(false);
+                    EmbeddedAntlrParserResult rp;
+                    if (doc != null) {
+                        // The snapshot is at most as new as the document, so
+                        // this overstates its version at worst; a newer one
+                        // will have a strictly greater version either way
+                        rp = parser.parse(snapshot.getText(), doc,
+                                DocumentUtilities.getDocumentVersion(doc));
+                    } else {
+                        FileObject fo = snapshot.getSource().getFileObject();
+                        rp = parser.parse(snapshot.getText(), snapshot.getSource(),
+                                fo == null ? 0 : fo.lastModified().getTime());
+                    }
+                    if (rp.isCancelled()) {
+                        // Superseded by a parse of newer text, but the
+                        // infrastructure still wants a result for this snapshot,
+                        // and tasks must never see a truncated one - parse it
+                        // again without a document, which nothing supersedes
+                        rp = parser.parse(snapshot.getText());
+                    }
                     AntlrProxies.ParseTreeProxy res = rp.proxy();
                     if (!res.mimeType().equals(mimeType)) {
                         String msg = "Bad ParseTreeProxy mime type from EmbeddedAntlrParser\n"
@@ -144,6 +167,12 @@ final class AdhocParser extends Parser {
                                 + "From: " + parser;
                         LOG.log(Level.SEVERE, msg, new Exception(msg));
                     }
+                    if (rp.isCancelled()) {
+                        // The parse itself was cancelled; keep whatever
+                        // result we had rather than publish a partial one
+                        LOG.log(Level.FINE, "Parse of {0} cancelled", snapshot);
+                        return;
+                    }
                     AdhocParserResult result = new AdhocParserResult(snapshot, rp, inv);
                     last = result;
                     RESULT_FOR_TASK.put(task, result);
@@ -59,6 +59,42 @@ public abstract class EmbeddedAntlrParser {
 
     public abstract EmbeddedAntlrParserResult parse(CharSequence textToParse) throws Exception;
 
+    /**
+     * Parse some text from a particular document. If a parse of text from an
+     * older version of the same document is still running, it is superseded
+     * - it is cancelled, and returns promptly with a result whose
+     * <code>isCancelled()</code> is true - so a burst of typing does not
+     * leave a parse per keystroke running to completion. Only a call whose
+     * own parse was superseded this way gets a cancelled result.
+     *
+     * @param textToParse The text
+     * @param document The document or other object the text belongs to,
+     * compared by identity; if null, this call behaves like
+     * <code>parse(textToParse)</code> and never supersedes another parse
+     * @param version The version of the document the text was read from,
+     * such as <code>DocumentUtilities.getDocumentVersion()</code>; a call
+     * supersedes a running parse only if its version is strictly greater
+     * @return A result
+     * @throws Exception If something goes wrong
+     */
+    public abstract EmbeddedAntlrParserResult parse(CharSequence textToParse, Object document, long version) throws Exception;
+
+    /**
+     * Lex some text without parsing it, starting the lexer in the passed mode
+     * with the passed mode stack (bottom first) - the state recorded after some
+     * token of an earlier result over the text preceding this text - so editors
+     * can relex from the point of a change without paying for a parse. The
+     * result has tokens but no parse tree, and is not cached or reused by
+     * <code>parse()</code>.
+     *
+     * @param textToLex The text
+     * @param mode The lexer mode to start in
+     * @param modeStack The lexer mode stack to start with
+     * @return A result
+     * @throws Exception If something goes wrong
+     */
+    public abstract EmbeddedAntlrParserResult lex(CharSequence textToLex, int mode, int[] modeStack) throws Exception;
+
     abstract int setRunner(Extraction extraction, GrammarRunResult<EmbeddedParser> runner, EmbeddedParser parser);
 
     /**
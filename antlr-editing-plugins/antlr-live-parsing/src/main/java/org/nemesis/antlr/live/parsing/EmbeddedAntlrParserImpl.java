@@ -17,7 +17,6 @@ package org.nemesis.antlr.live.parsing;
 
 import com.mastfrog.function.TriConsumer;
 import com.mastfrog.function.state.Obj;
-import com.mastfrog.function.throwing.ThrowingFunction;
 import static com.mastfrog.util.preconditions.Checks.notNull;
 import com.mastfrog.util.preconditions.Exceptions;
 import com.mastfrog.util.strings.Escaper;
@@ -27,15 +26,16 @@ import java.nio.file.Path;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.text.Segment;
+import org.nemesis.antlr.common.cancel.Canceller;
 import org.nemesis.antlr.compilation.GrammarRunResult;
 import org.nemesis.antlr.live.RebuildSubscriptions;
 import org.nemesis.antlr.live.parsing.extract.AntlrProxies;
@@ -72,6 +72,9 @@ import org.openide.util.WeakSet;
  * accept, setting a new environment).</li>
  * <li>It keeps the last parse result and text, and if they are the same and the
  * environment is not stale, will reuse them</li>
+ * <li>It coordinates concurrent parses (see PendingParses) - a request for
+ * text already being parsed waits for that result, and newer text for the same
+ * document cancels the parse of the older text</li>
  * </ul>
  * <p>
  * Instanes should be manually disposed when no longer needed, so the
@@ -99,6 +102,8 @@ final class EmbeddedAntlrParserImpl extends EmbeddedAntlrParser implements TriCo
     private final String grammarName;
     private volatile boolean disposed;
     private AtomicReference<LastParseInfo> lastParseInfo;
+    private final ParseResultCache cache = new ParseResultCache();
+    private final PendingParses pending = new PendingParses();
     private final ThreadLocal<Boolean> reentry = ThreadLocal.withInitial(() -> Boolean.FALSE);
     private final String mimeType;
 
@@ -119,6 +124,8 @@ final class EmbeddedAntlrParserImpl extends EmbeddedAntlrParser implements TriCo
                 + ", rev=" + rev.get()
                 + ", env=" + environment.get()
                 + ", last=" + lastParseInfo
+                + ", cache=" + cache
+                + ", pending=" + pending
                 + ", listenerCount=" + listeners.size()
                 + ", listeners=" + listeners
                 + ")";
@@ -245,6 +252,11 @@ final class EmbeddedAntlrParserImpl extends EmbeddedAntlrParser implements TriCo
 
     @Override
     public EmbeddedAntlrParserResult parse(CharSequence textToParse) throws Exception {
+        return parse(textToParse, null, 0);
+    }
+
+    @Override
+    public EmbeddedAntlrParserResult parse(CharSequence textToParse, Object document, long version) throws Exception {
         // First, se if this is a reprise of the last parse and the grammar
         // files have not changed; if so, and the text matches, just return
         // the previous parser result without acquiring any locks.  I can't think
@@ -265,6 +277,15 @@ final class EmbeddedAntlrParserImpl extends EmbeddedAntlrParser implements TriCo
             } else if (last != null && textToParse != null && last.seq != null && LOG.isLoggable(Level.FINEST)) {
                 LOG.log(Level.FINEST, "Text may be changed: {0}", charDiff(textToParse, last.seq));
             }
+            if (textToParse != null) {
+                // Not the last text parsed, but maybe one parsed recently
+                EmbeddedAntlrParserResult cached = cache.get(textToParse, oldInfo.grammarTokensHash, flags());
+                if (cached != null) {
+                    LOG.log(Level.FINEST, "Reuse cached parser result for {0} from {1}",
+                            new Object[]{grammarName, cache});
+                    return cached;
+                }
+            }
         }
         // XXX - this sucks, but lexer / snapshot char sequences explode on
         // contact if touched after exiting the UserTask
@@ -273,7 +294,7 @@ final class EmbeddedAntlrParserImpl extends EmbeddedAntlrParser implements TriCo
         // text is null (in which case, we are being invoked just for the lexer to get
         // the list of token types)
         return Debug.runObjectThrowing(this, logName + "-" + environment.get().grammarTokensHash, () -> {
-            return getOrWaitForParallellResult(toParse, sq -> {
+            return pending.getOrWaitForParallellResult(toParse, document, version, (sq, cancelled) -> {
                 Obj<EmbeddedAntlrParserResult> resHolder = Obj.create();
                 // We need to grab the parser manager lock for our mime type
                 // here, basically to keep everybody else out.
@@ -286,19 +307,37 @@ final class EmbeddedAntlrParserImpl extends EmbeddedAntlrParser implements TriCo
 //                        // lock, so as to avoid a deadlock
 //                        @Override
 //                        public void run(ResultIterator ri) throws Exception {
-                    doReparseText(resHolder, toParse);
+                    doReparseText(resHolder, toParse, cancelled);
 //                        }
 //
 //                    });
                 } else {
-                    doReparseText(resHolder, toParse);
+                    doReparseText(resHolder, toParse, cancelled);
                 }
                 return resHolder.get();
             });
         });
     }
 
-    boolean doReparseText(Obj<EmbeddedAntlrParserResult> resHolder, CharSequence toParse) throws Exception {
+    @Override
+    public EmbeddedAntlrParserResult lex(CharSequence textToLex, int mode, int[] modeStack) throws Exception {
+        LOG.log(Level.FINER, "Lex {0} chars for {1} with parser {2} from mode {3}",
+                new Object[]{textToLex == null ? "null" : textToLex.length(),
+                    grammarName, logName, mode});
+        CharSequence toLex = textToLex == null ? null : convert(textToLex);
+        EmbeddedParsingEnvironment info = environment.get();
+        if (!disposed && checkStaleAndReparseGrammarIfNeeded(info)) {
+            info = environment.get();
+        }
+        EmbeddedParser parser = info.parser;
+        AntlrProxies.ParseTreeProxy res = parser == null
+                ? AntlrProxies.forUnparsed(path, grammarName, toLex)
+                : parser.lex(logName, toLex, mode, modeStack);
+        return new EmbeddedAntlrParserResult(path, res, info.runResult,
+                info.grammarTokensHash, grammarName);
+    }
+
+    boolean doReparseText(Obj<EmbeddedAntlrParserResult> resHolder, CharSequence toParse, BooleanSupplier cancelled) throws Exception {
         EmbeddedParsingEnvironment info = environment.get();
 //                    info.runResult.jfs().whileLockedWithWithLockDowngrade(() -> {
 //
@@ -312,6 +351,7 @@ final class EmbeddedAntlrParserImpl extends EmbeddedAntlrParser implements TriCo
         ReentrantReadWriteLock.ReadLock readLock = parseLock.readLock();
 //        writeLock.lock();
         AntlrProxies.ParseTreeProxy res;
+        int flags;
         boolean wasStale = false;
         try {
             try {
@@ -339,19 +379,35 @@ final class EmbeddedAntlrParserImpl extends EmbeddedAntlrParser implements TriCo
                     resHolder.set(lpi.parserResult);
                     return true;
                 }
+                if (toParse != null) {
+                    // Another thread may have parsed it while we waited
+                    EmbeddedAntlrParserResult cached = cache.get(toParse, info.grammarTokensHash, flags());
+                    if (cached != null) {
+                        resHolder.set(cached);
+                        return true;
+                    }
+                }
             }
             Debug.message("Will parse with", info.parser::toString);
-            res = info.parser.parse(logName, toParse);
+            flags = flags();
+            res = info.parser.parse(logName, toParse, cancelled);
         } finally {
 //            readLock.unlock();
         }
         LOG.log(Level.FINEST, "Parsed to {0} by {1}",
                 new Object[]{res.loggingInfo(), info.parser});
         String tokensHash = info.grammarTokensHash;
+        boolean wasCancelled = cancelled.getAsBoolean() || Canceller.isCancelled();
         EmbeddedAntlrParserResult result = new EmbeddedAntlrParserResult(path, res,
-                info.runResult, tokensHash, grammarName);
-        if (toParse != null) {
+                info.runResult, tokensHash, grammarName, wasCancelled);
+        // Don't reuse or cache the truncated result of a superseded or
+        // cancelled parse
+        if (toParse != null && !wasCancelled) {
             lastParseInfo.set(new LastParseInfo(result, toParse));
+            // Nor placeholders
+            if (!res.isUnparsed()) {
+                cache.put(toParse, tokensHash, flags, result);
+            }
             Trackables.track(AntlrProxies.ParseTreeProxy.class, res, () -> {
                 return res.loggingInfo() + "\t" + tokensHash + "\n" + logName;
             });
@@ -472,6 +528,7 @@ final class EmbeddedAntlrParserImpl extends EmbeddedAntlrParser implements TriCo
                     } finally {
                         current.dispose();
                     }
+                    cache.retainGrammar(extraction.tokensHash());
                     Set<BiConsumer<? super Extraction, ? super GrammarRunResult<?>>> ll = new HashSet<>(listeners);
                     Debug.message("Pass to " + listeners.size() + " listeners", listeners::toString);
                     for (BiConsumer<? super Extraction, ? super GrammarRunResult<?>> l : ll) {
@@ -542,6 +599,11 @@ final class EmbeddedAntlrParserImpl extends EmbeddedAntlrParser implements TriCo
         }
         LOG.log(Level.WARNING, "Dispose embedded parser for " + path + " / " + grammarName, new Exception());
         environment.set(new EmbeddedParsingEnvironment(path, grammarName));
+        cache.clear();
+    }
+
+    private int flags() {
+        return EmbeddedParserFeatures.getInstance(path).currentFlags();
     }
 
     int rev() {
@@ -696,102 +758,6 @@ final class EmbeddedAntlrParserImpl extends EmbeddedAntlrParser implements TriCo
         return false;
     }
 
-    private final Object pendingLock = new Object();
-    private PendingParseInfo ppi;
-
-    EmbeddedAntlrParserResult getOrWaitForParallellResult(CharSequence seq, ThrowingFunction<CharSequence, EmbeddedAntlrParserResult> s) throws Exception {
-        PendingParseInfo p;
-        boolean needParse = false;
-        synchronized (pendingLock) {
-            p = ppi;
-            needParse = p == null;
-            if (needParse) {
-                p = new PendingParseInfo(seq);
-                ppi = p;
-            }
-        }
-        if (needParse) {
-            try {
-                EmbeddedAntlrParserResult res = s.apply(seq);
-                p.set(res);
-                return res;
-            } finally {
-                synchronized (pendingLock) {
-                    if (p == ppi) {
-                        ppi = null;
-                    }
-                }
-                p.release();
-                p = null;
-            }
-        } else {
-            if (p != null) {
-                EmbeddedAntlrParserResult result = p.getIfPresent();
-                if (result != null) {
-                    return result;
-                }
-                // Try not to block the EDT
-                if (!EventQueue.isDispatchThread()) {
-                    result = p.get(seq);
-                    if (result != null) {
-                        return result;
-                    }
-                }
-            }
-        }
-        return s.apply(seq);
-    }
-
-    static final class PendingParseInfo {
-
-        private final CharSequence seq;
-        private final AtomicReference<EmbeddedAntlrParserResult> result = new AtomicReference<>();
-        private final CountDownLatch latch = new CountDownLatch(1);
-
-        PendingParseInfo(CharSequence seq) {
-            this.seq = seq;
-        }
-
-        void release() {
-            latch.countDown();
-        }
-
-        EmbeddedAntlrParserResult getIfPresent() {
-            return result.get();
-        }
-
-        boolean canReuse(CharSequence textToParse) {
-            if (textToParse == null) {
-                return true;
-            }
-            if (seq != null && textToParse != null) {
-                return charSequencesMatchModuloTrailingNewline(seq, textToParse);
-            }
-            return seq != null && Strings.charSequencesEqual(seq, textToParse);
-        }
-
-        void set(EmbeddedAntlrParserResult result) {
-            this.result.set(result);
-            release();
-        }
-
-        EmbeddedAntlrParserResult get(CharSequence seq) {
-            if (canReuse(seq)) {
-                EmbeddedAntlrParserResult res = result.get();
-                if (res != null) {
-                    return res;
-                }
-                try {
-                    latch.await();
-                } catch (InterruptedException ex) {
-                    LOG.log(Level.INFO, "Interrupted waiting for parse", ex);
-                }
-                return result.get();
-            }
-            return null;
-        }
-    }
-
     static final class LastParseInfo {
 
         private final EmbeddedAntlrParserResult parserResult;
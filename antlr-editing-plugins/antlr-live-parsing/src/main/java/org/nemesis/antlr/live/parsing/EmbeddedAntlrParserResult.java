@@ -32,10 +32,17 @@ public final class EmbeddedAntlrParserResult {
     private final GrammarRunResult<?> runResult;
     private final String grammarTokensHash;
     private final String grammarName;
+    private final boolean cancelled;
 
     EmbeddedAntlrParserResult(Path originalFile, ParseTreeProxy proxy, GrammarRunResult<?> runResult, String grammarTokensHash,
             String grammarName) {
+        this(originalFile, proxy, runResult, grammarTokensHash, grammarName, false);
+    }
+
+    EmbeddedAntlrParserResult(Path originalFile, ParseTreeProxy proxy, GrammarRunResult<?> runResult, String grammarTokensHash,
+            String grammarName, boolean cancelled) {
         this.originalFile = originalFile;
+        this.cancelled = cancelled;
         this.proxy = proxy;
         this.runResult = runResult;
         this.grammarTokensHash = grammarTokensHash;
@@ -72,6 +79,19 @@ public final class EmbeddedAntlrParserResult {
         return proxy;
     }
 
+    /**
+     * Determine if the parse was abandoned before completion - usually
+     * because newer text for the same document superseded it. The proxy then
+     * has the tokens lexed so far and possibly no parse tree; since a result
+     * for the newer text is on its way, callers which only update the UI from
+     * results can simply ignore this one.
+     *
+     * @return True if the parse was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
     public boolean isUsable() {
         return runResult != null && runResult.isUsable();
     }
@@ -96,6 +116,7 @@ public final class EmbeddedAntlrParserResult {
                 .append(grammarTokensHash)
                 .append(", ").append(proxy == null ? null : proxy.loggingInfo())
                 .append(", ").append(runResult)
+                .append(cancelled ? ", cancelled" : "")
                 .append(", text='");
 
         return EmbeddedAntlrParserImpl.truncated(
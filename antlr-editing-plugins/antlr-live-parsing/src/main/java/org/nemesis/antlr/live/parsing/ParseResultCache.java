@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.antlr.live.parsing;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.nemesis.antlr.live.parsing.EmbeddedAntlrParserImpl.charSequencesMatchModuloTrailingNewline;
+import org.nemesis.antlr.live.parsing.extract.AntlrProxies.ParseTreeProxy;
+
+/**
+ * A bounded, least-recently-used cache of the parse results of an
+ * EmbeddedAntlrParser, keyed on a hash of the parsed text, the grammar tokens
+ * hash and the parser flags, so alternating between texts - two editors over
+ * different samples of one grammar, undo and redo, the preview and lexer
+ * asking for different snapshots - does not mean reparsing in the isolating
+ * classloader each time. Entries are verified against the stored text on a
+ * hit, so a hash collision is a miss, not a wrong result.
+ * <p>
+ * Eviction is memory-aware: besides the entry count, the total estimated size
+ * of the cached results is bounded, and results are softly referenced so the
+ * collector can reclaim them under memory pressure. Both bounds can be set
+ * with the system properties <code>antlr.live.parse.cache.entries</code> and
+ * <code>antlr.live.parse.cache.bytes</code>.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class ParseResultCache {
+
+    static final int DEFAULT_MAX_ENTRIES
+            = Integer.getInteger("antlr.live.parse.cache.entries", 12);
+    static final long DEFAULT_MAX_BYTES
+            = Long.getLong("antlr.live.parse.cache.bytes", 24L * 1024 * 1024);
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+    private final int maxEntries;
+    private final long maxBytes;
+    private long bytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    ParseResultCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    ParseResultCache(int maxEntries, long maxBytes) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Get a cached result for the passed text.
+     *
+     * @param text Some text, which is hashed
+     * @param grammarTokensHash The tokens hash of the grammar it must have
+     * been parsed with
+     * @param flags The parser flags it must have been parsed with
+     * @return A result or null
+     */
+    EmbeddedAntlrParserResult get(CharSequence text, String grammarTokensHash, int flags) {
+        Key key = new Key(text, grammarTokensHash, flags);
+        EmbeddedAntlrParserResult result = null;
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                result = e.get();
+                if (result == null) {
+                    // Garbage collected
+                    remove(key, e);
+                } else if (!charSequencesMatchModuloTrailingNewline(result.proxy().text(), text)) {
+                    result = null;
+                }
+            }
+        }
+        (result == null ? misses : hits).incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Cache a result.
+     *
+     * @param text The text that was parsed
+     * @param grammarTokensHash The tokens hash of the grammar it was parsed
+     * with
+     * @param flags The flags it was parsed with
+     * @param result The result, whose proxy must be over the same text
+     */
+    void put(CharSequence text, String grammarTokensHash, int flags, EmbeddedAntlrParserResult result) {
+        Key key = new Key(text, grammarTokensHash, flags);
+        long size = estimatedSize(result.proxy());
+        if (size > maxBytes) {
+            return;
+        }
+        synchronized (this) {
+            Entry old = entries.put(key, new Entry(result, size));
+            if (old != null) {
+                bytes -= old.size;
+            }
+            bytes += size;
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+                Map.Entry<Key, Entry> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                it.remove();
+                bytes -= eldest.getValue().size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drop all entries for grammars other than the passed one, which cannot
+     * be hit anymore and would otherwise keep the obsolete grammar's run
+     * result in memory until evicted.
+     *
+     * @param grammarTokensHash The current tokens hash
+     */
+    synchronized void retainGrammar(String grammarTokensHash) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if (!Objects.equals(grammarTokensHash, e.getKey().grammarTokensHash)) {
+                it.remove();
+                bytes -= e.getValue().size;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void remove(Key key, Entry e) {
+        entries.remove(key);
+        bytes -= e.size;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long estimatedBytes() {
+        return bytes;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+
+    double hitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "ParseResultCache(" + size() + " entries, ~" + estimatedBytes()
+                + " bytes, hits " + hits() + ", misses " + misses()
+                + ", evictions " + evictions()
+                + String.format(", hit rate %.1f%%)", hitRate() * 100);
+    }
+
+    /**
+     * A rough estimate of the heap retained by a parse result - the text,
+     * the token columns and the tree elements dominate.
+     */
+    static long estimatedSize(ParseTreeProxy proxy) {
+        CharSequence text = proxy.text();
+        return 256
+                + (text == null ? 0 : 2L * text.length())
+                + 24L * proxy.tokenCount()
+                + 48L * proxy.allTreeElements().size()
+                + 64L * proxy.syntaxErrors().size();
+    }
+
+    /**
+     * A 64-bit polynomial hash of a character sequence, ignoring one trailing
+     * newline, since the document and lexer views of the same text differ by
+     * exactly that (see <code>charSequencesMatchModuloTrailingNewline()</code>).
+     * Strings are copied to a char array in chunks rather than going through
+     * <code>charAt()</code> for each character.
+     */
+    static long hash(CharSequence text) {
+        int length = text.length();
+        if (length > 0 && text.charAt(length - 1) == '\n') {
+            length--;
+        }
+        long result = 0xCBF29CE484222325L;
+        if (text instanceof String) {
+            String s = (String) text;
+            char[] buffer = new char[Math.min(length, 1024)];
+            for (int start = 0; start < length; start += buffer.length) {
+                int end = Math.min(length, start + buffer.length);
+                s.getChars(start, end, buffer, 0);
+                for (int i = 0; i < end - start; i++) {
+                    result = 0x100000001B3L * result + buffer[i];
+                }
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                result = 0x100000001B3L * result + text.charAt(i);
+            }
+        }
+        return result;
+    }
+
+    static final class Key {
+
+        private final long textHash;
+        private final int length;
+        private final String grammarTokensHash;
+        private final int flags;
+
+        Key(CharSequence text, String grammarTokensHash, int flags) {
+            this.textHash = hash(text);
+            int len = text.length();
+            // Must match for text with and without a trailing newline
+            this.length = len > 0 && text.charAt(len - 1) == '\n' ? len - 1 : len;
+            this.grammarTokensHash = grammarTokensHash;
+            this.flags = flags;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (textHash ^ (textHash >>> 32)) * 31
+                    + Objects.hashCode(grammarTokensHash) * 7 + flags;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return textHash == other.textHash && length == other.length
+                    && flags == other.flags
+                    && Objects.equals(grammarTokensHash, other.grammarTokensHash);
+        }
+
+        @Override
+        public String toString() {
+            return "Key(" + Long.toString(textHash, 36) + " " + length
+                    + " " + grammarTokensHash + " " + flags + ")";
+        }
+    }
+
+    private static final class Entry extends SoftReference<EmbeddedAntlrParserResult> {
+
+        private final long size;
+
+        Entry(EmbeddedAntlrParserResult result, long size) {
+            super(result);
+            this.size = size;
+        }
+    }
+}
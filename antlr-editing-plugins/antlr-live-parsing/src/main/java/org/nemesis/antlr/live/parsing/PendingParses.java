@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.antlr.live.parsing;
+
+import com.mastfrog.function.throwing.ThrowingBiFunction;
+import java.awt.EventQueue;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static org.nemesis.antlr.live.parsing.EmbeddedAntlrParserImpl.charSequencesMatchModuloTrailingNewline;
+
+/**
+ * Coordinates the parses an EmbeddedAntlrParser has in flight. A request for
+ * text some other thread is already parsing waits for and shares that
+ * thread's result, rather than parsing the same text again; and a request
+ * for <i>newer</i> text from the same document <i>supersedes</i> the parse
+ * running for that document - the older parse's cancellation supplier starts
+ * returning true, so the generated extractor abandons it within a token or a
+ * prediction step, instead of every keystroke of a burst of typing queueing
+ * up a full parse of text nobody will look at. Documents are compared by
+ * identity, and which text is newer by the document version the caller
+ * passes, not by the order requests arrive in - a task holding a stale
+ * snapshot must not cancel the parse of the text the user is looking at.
+ * Requests with no document never supersede anything, and only a caller
+ * whose own parse was superseded is ever handed a cancelled result.
+ *
+ * @author Tim Boudreau
+ */
+final class PendingParses {
+
+    private static final Logger LOG = Logger.getLogger(PendingParses.class.getName());
+    private static final BooleanSupplier NEVER_CANCELLED = () -> false;
+    private static final Object NO_DOCUMENT = new Object();
+    private final Map<Object, PendingParse> inFlight = new IdentityHashMap<>(4);
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Get the result of parsing some text, sharing the result of a parse of
+     * the same text already underway if there is one.
+     *
+     * @param seq The text
+     * @param document The document it belongs to, or null
+     * @param version The version of the document the text was read from;
+     * only a request with a strictly greater version supersedes a parse of
+     * the same document; ignored if the document is null
+     * @param parser Performs the parse, checking the passed supplier for
+     * cancellation
+     * @return A result, which is only cancelled if this request was itself
+     * superseded
+     * @throws Exception If something goes wrong
+     */
+    EmbeddedAntlrParserResult getOrWaitForParallellResult(CharSequence seq, Object document, long version,
+            ThrowingBiFunction<CharSequence, BooleanSupplier, EmbeddedAntlrParserResult> parser) throws Exception {
+        Object key = document == null ? NO_DOCUMENT : document;
+        PendingParse join = null;
+        PendingParse ours = null;
+        synchronized (inFlight) {
+            for (PendingParse p : inFlight.values()) {
+                if (!p.getAsBoolean() && p.canReuse(seq)) {
+                    join = p;
+                    break;
+                }
+            }
+            if (join == null) {
+                ours = claim(key, document, seq, version);
+            }
+        }
+        if (join != null) {
+            EmbeddedAntlrParserResult result = join.getIfPresent();
+            if (result == null && !EventQueue.isDispatchThread()) {
+                // Try not to block the EDT
+                result = join.await();
+            }
+            if (result != null) {
+                if (!result.isCancelled()) {
+                    shared.incrementAndGet();
+                    return result;
+                }
+                // Newer text superseded the parse we joined after we joined
+                // it - but not this request, whose caller is owed a complete
+                // result, so parse it ourselves
+                synchronized (inFlight) {
+                    ours = claim(key, document, seq, version);
+                }
+            }
+        }
+        if (ours == null) {
+            // A parse of other text with no document, or of text at least as
+            // new from the same document, is running, or we are on the EDT
+            // and the parse we joined is unfinished - parse independently
+            return parser.apply(seq, NEVER_CANCELLED);
+        }
+        try {
+            EmbeddedAntlrParserResult res = parser.apply(seq, ours);
+            ours.set(res);
+            return res;
+        } finally {
+            synchronized (inFlight) {
+                if (inFlight.get(key) == ours) {
+                    inFlight.remove(key);
+                }
+            }
+            ours.release();
+        }
+    }
+
+    private PendingParse claim(Object key, Object document, CharSequence seq, long version) {
+        assert Thread.holdsLock(inFlight);
+        PendingParse old = inFlight.get(key);
+        if (old != null) {
+            if (document == null || version <= old.version) {
+                return null;
+            }
+            old.supersede();
+            superseded.incrementAndGet();
+            LOG.log(Level.FINER, "Superseded parse of {0} chars at version {1} with {2} "
+                    + "at version {3} for {4}",
+                    new Object[]{old.seq == null ? -1 : old.seq.length(), old.version,
+                        seq == null ? -1 : seq.length(), version, document});
+        }
+        PendingParse result = new PendingParse(seq, version);
+        inFlight.put(key, result);
+        return result;
+    }
+
+    long superseded() {
+        return superseded.get();
+    }
+
+    long shared() {
+        return shared.get();
+    }
+
+    int inFlight() {
+        synchronized (inFlight) {
+            return inFlight.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PendingParses(" + inFlight() + " in flight, superseded "
+                + superseded() + ", shared " + shared() + ")";
+    }
+
+    static final class PendingParse implements BooleanSupplier {
+
+        private final CharSequence seq;
+        private final long version;
+        private final AtomicReference<EmbeddedAntlrParserResult> result = new AtomicReference<>();
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean superseded;
+
+        PendingParse(CharSequence seq, long version) {
+            this.seq = seq;
+            this.version = version;
+        }
+
+        /**
+         * Returns true once text from a newer version of the same document
+         * has superseded this parse.
+         *
+         * @return Whether the parse should be abandoned
+         */
+        @Override
+        public boolean getAsBoolean() {
+            return superseded;
+        }
+
+        void supersede() {
+            superseded = true;
+        }
+
+        void release() {
+            latch.countDown();
+        }
+
+        EmbeddedAntlrParserResult getIfPresent() {
+            return result.get();
+        }
+
+        boolean canReuse(CharSequence textToParse) {
+            if (textToParse == null) {
+                return true;
+            }
+            return seq != null && charSequencesMatchModuloTrailingNewline(seq, textToParse);
+        }
+
+        void set(EmbeddedAntlrParserResult result) {
+            this.result.set(result);
+            release();
+        }
+
+        EmbeddedAntlrParserResult await() {
+            EmbeddedAntlrParserResult res = result.get();
+            if (res != null) {
+                return res;
+            }
+            try {
+                latch.await();
+            } catch (InterruptedException ex) {
+                LOG.log(Level.INFO, "Interrupted waiting for parse", ex);
+            }
+            return result.get();
+        }
+    }
+}
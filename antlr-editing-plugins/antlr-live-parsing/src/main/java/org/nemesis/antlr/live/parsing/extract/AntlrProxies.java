@@ -29,6 +29,7 @@ import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
@@ -39,6 +40,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.RandomAccess;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -72,7 +74,7 @@ import static org.nemesis.adhoc.mime.types.AdhocMimeTypes.loggableMimeType;
 public class AntlrProxies {
 
     public static final String ERRONEOUS_TOKEN_NAME = "$ERRONEOUS";
-    private final List<ProxyToken> tokens = new ArrayList<>();
+    private final ProxyTokenColumns tokens = new ProxyTokenColumns(256);
     private final List<ProxyTokenType> tokenTypes = new ArrayList<>(50);
     private final Set<Ambiguity> ambiguities = new HashSet<>(10);
     private ParseTreeElement root = new ParseTreeElement(ParseTreeElementKind.ROOT);
@@ -96,6 +98,9 @@ public class AntlrProxies {
     private String grammarTokensHash = "--tokensHash--";
     private long tokenNamesChecksum;
     private boolean lexerGrammar;
+    private int modeStackChanges;
+    private int[] modeStackTokenIndices;
+    private int[][] modeStacks;
 
     public AntlrProxies(String grammarName, Path grammarPath, CharSequence text) {
         this.grammarName = grammarName;
@@ -130,6 +135,28 @@ public class AntlrProxies {
         }
     }
 
+    /**
+     * Record the lexer's mode stack (bottom first) after the token with the
+     * passed index, when it differs from the stack after the preceding token;
+     * an index of -1 records the stack lexing started with. Together with the
+     * mode stored in each token, this is what is needed to restart lexing
+     * after any token.
+     *
+     * @param tokenIndex The token index
+     * @param modeStack The mode stack, which is not copied
+     */
+    public void onModeStackChange(int tokenIndex, int[] modeStack) {
+        if (modeStackTokenIndices == null) {
+            modeStackTokenIndices = new int[8];
+            modeStacks = new int[8][];
+        } else if (modeStackChanges == modeStackTokenIndices.length) {
+            modeStackTokenIndices = Arrays.copyOf(modeStackTokenIndices, modeStackChanges * 2);
+            modeStacks = Arrays.copyOf(modeStacks, modeStackChanges * 2);
+        }
+        modeStackTokenIndices[modeStackChanges] = tokenIndex;
+        modeStacks[modeStackChanges++] = modeStack;
+    }
+
     public void onThrown(Throwable thrown) {
         // This will be a ProxyException that doesn't hold
         // a reference to any types from the foreign classloader
@@ -158,12 +185,17 @@ public class AntlrProxies {
     public ParseTreeProxy result() {
         String hashString = Base64.getUrlEncoder().encodeToString(hash.digest());
         newHash();
-        return new ParseTreeProxy(tokens, tokenTypes, root, EOF_TYPE,
+        ParseTreeProxy result = new ParseTreeProxy(tokens, tokenTypes, root, EOF_TYPE,
                 treeElements, errors, parserRuleNames, channelNames, hasParseErrors, hashString,
                 grammarName, grammarPath, text, thrown, ruleReferences, ambiguities,
                 lexerRuleNames, presentRules, defaultModeIndex, modeNames,
                 grammarTokensHash, tokenNamesChecksum, presentTokens,
                 lexerGrammar);
+        if (modeStackChanges > 0) {
+            result.modeStackTokenIndices = Arrays.copyOf(modeStackTokenIndices, modeStackChanges);
+            result.modeStacks = Arrays.copyOf(modeStacks, modeStackChanges);
+        }
+        return result;
     }
 
     /**
@@ -225,7 +257,7 @@ public class AntlrProxies {
      */
     public static final class ParseTreeProxy implements Serializable {
 
-        private final List<ProxyToken> tokens;
+        private final ProxyTokenColumns tokens;
         private final List<ProxyTokenType> tokenTypes;
         private final Ambiguity[] ambiguities;
         private final ParseTreeElement root;
@@ -254,6 +286,10 @@ public class AntlrProxies {
         private final long tokenNamesChecksum;
         private final BitSet presentTokens;
         private final boolean lexerGrammar;
+        // Sparse - the indices of tokens after which the lexer's mode stack
+        // changed, and the stack from then on; null if it never changed
+        private int[] modeStackTokenIndices;
+        private int[][] modeStacks;
 
         ParseTreeProxy(List<ProxyToken> tokens, List<ProxyTokenType> tokenTypes,
                 ParseTreeElement root, ProxyTokenType eofType, List<ParseTreeElement> treeElements,
@@ -264,7 +300,7 @@ public class AntlrProxies {
                 BitSet presentRules, int defaultMode, String[] modeNames,
                 String grammarTokensHash, long tokenNamesChecksum, BitSet presentTokens,
                 boolean lexerGrammar) {
-            this.tokens = Collections.unmodifiableList(tokens);
+            this.tokens = ProxyTokenColumns.copyOf(tokens);
             this.grammarTokensHash = grammarTokensHash;
             this.presentTokens = presentTokens;
             this.tokenTypes = tokenTypes;
@@ -295,6 +331,7 @@ public class AntlrProxies {
         }
 
         private static final Ambiguity[] EMPTY_AMBIGUITIES = new Ambiguity[0];
+        private static final int[] EMPTY_MODE_STACK = new int[0];
 
         static Ambiguity[] toArray(Set<Ambiguity> all) {
             if (all.isEmpty()) {
@@ -376,6 +413,30 @@ public class AntlrProxies {
             return mode == defaultMode || mode >= modeNames.length || mode < 0;
         }
 
+        /**
+         * Get the lexer's mode stack (bottom first) after the token at the
+         * passed index; together with the token's mode, this is the state
+         * needed to restart lexing after that token.
+         *
+         * @param tokenIndex A token index
+         * @return A copy of the stack, or a shared empty array if no modes
+         * were pushed
+         */
+        public int[] modeStackAfter(int tokenIndex) {
+            if (modeStackTokenIndices == null) {
+                return EMPTY_MODE_STACK;
+            }
+            int ix = Arrays.binarySearch(modeStackTokenIndices, tokenIndex);
+            if (ix < 0) {
+                ix = -ix - 2;
+                if (ix < 0) {
+                    return EMPTY_MODE_STACK;
+                }
+            }
+            int[] result = modeStacks[ix];
+            return result.length == 0 ? EMPTY_MODE_STACK : result.clone();
+        }
+
         public boolean isErroneousToken(ProxyToken tok) {
             return tok.getType() == tokenTypes.size() - 1;
         }
@@ -652,10 +713,8 @@ java.lang.ArrayIndexOutOfBoundsException: 2441
             if (position < 0) {
                 return null;
             }
-            if (tokens.isEmpty()) {
-                return null;
-            }
-            return tokenAtPosition(position, 0, tokens.size() - 1);
+            int ix = tokens.indexAtPosition(position);
+            return ix < 0 ? null : tokens.get(ix);
         }
 
         /**
@@ -667,71 +726,8 @@ java.lang.ArrayIndexOutOfBoundsException: 2441
          * @return A token or null
          */
         public ProxyToken tokenAtLinePosition(int line, int charPositionInLine) {
-            return tokenAtLinePosition(line, charPositionInLine, 0, tokens.size() - 1);
-        }
-
-        private ProxyToken tokenAtPosition(int position, int start, int end) {
-            // Binary search
-            int middle = start + ((end - start) / 2);
-            ProxyToken first = tokens.get(start);
-            ProxyToken last = tokens.get(end);
-            ProxyToken mid = tokens.get(middle);
-            if (first.contains(position)) {
-                return first;
-            } else if (last.contains(position)) {
-                return last;
-            } else if (mid.contains(position)) {
-                return mid;
-            } else if (first.startsAfter(position)) {
-                return null;
-            } else if (last.endsBefore(position)) {
-                return null;
-            } else if (start == middle || start == end || middle == end) {
-                return null;
-            } else if (mid.startsAfter(position)) {
-                return tokenAtPosition(position, start, middle);
-            } else if (mid.endsBefore(position)) {
-                return tokenAtPosition(position, middle, end);
-            }
-            return null;
-        }
-
-        private ProxyToken tokenAtLinePosition(int line, int charOffset, int start, int end) {
-            // Binary search
-            int middle = start + ((end - start) / 2);
-            ProxyToken first = tokens.get(start);
-            ProxyToken last = tokens.get(end);
-            ProxyToken mid = tokens.get(middle);
-            if (first.contains(line, charOffset)) {
-                return first;
-            } else if (last.contains(line, charOffset)) {
-                return last;
-            } else if (mid.contains(line, charOffset)) {
-                return mid;
-            } else if (first.startsAfter(line, charOffset)) {
-                return null;
-            } else if (last.endsBefore(line, charOffset)) {
-                return null;
-            } else if (start == middle || start == end || middle == end) {
-                return null;
-            } else if (mid.startsAfter(line, charOffset)) {
-                return ParseTreeProxy.this.tokenAtLinePosition(line, charOffset, start, middle);
-            } else if (mid.endsBefore(line, charOffset)) {
-                return ParseTreeProxy.this.tokenAtLinePosition(line, charOffset, middle, end);
-            } else {
-                if (mid.endsBefore(line, charOffset) && last.startsAfter(line, charOffset)) {
-                    if (end - middle == 1) {
-                        return tokens.get(middle + 1);
-                    }
-                    return ParseTreeProxy.this.tokenAtLinePosition(line, charOffset, middle, end);
-                } else if (first.endsBefore(line, charOffset) && mid.startsAfter(line, charOffset)) {
-                    if (middle - start == 1) {
-                        return tokens.get(start + 1);
-                    }
-                    return ParseTreeProxy.this.tokenAtLinePosition(line, charOffset, start, middle);
-                }
-            }
-            return null;
+            int ix = tokens.indexAtLinePosition(line, charPositionInLine);
+            return ix < 0 ? null : tokens.get(ix);
         }
 
         public CharSequence text() {
@@ -935,14 +931,13 @@ java.lang.ArrayIndexOutOfBoundsException: 2441
                 presentTokens.set(type + 1);
             }
         }
-        ProxyToken token = new ProxyToken(type, line,
-                charPositionInLine, channel, tokenIndex, startIndex, stopIndex, trim, mode);
         if (startIndex > stopIndex && type != -1) {
             throw new IllegalArgumentException("Token ends before it starts: '"
                     + text + "' type=" + type + " startIndex=" + startIndex
                     + " stopIndex=" + stopIndex);
         }
-        tokens.add(token);
+        tokens.add(type, line, charPositionInLine, channel, tokenIndex,
+                startIndex, stopIndex, trim, mode);
         if (type != -1) {
             int typeIndex = type + 1; // eof is first
             if (typeIndex >= tokenTypes.size()) {
@@ -1456,16 +1451,24 @@ java.lang.ArrayIndexOutOfBoundsException: 2441
 
         ProxyToken(int type, int line, int charPositionInLine, int channel, int tokenIndex,
                 int startIndex, int stopIndex, int trim, int mode) {
+            this(packTypeCharPositionLengthMode(type, charPositionInLine, startIndex, stopIndex, mode),
+                    pack(startIndex, tokenIndex), pack3(line, channel, trim));
+        }
 
+        ProxyToken(long typeCharPositionLengthMode, long startTokenIndex, long lineChannelTrim) {
+            this.typeCharPositionLengthMode = typeCharPositionLengthMode;
+            this.startTokenIndex = startTokenIndex;
+            this.lineChannelTrim = lineChannelTrim;
+        }
+
+        static long packTypeCharPositionLengthMode(int type, int charPositionInLine,
+                int startIndex, int stopIndex, int mode) {
             int length = type == -1 ? 0 : tokenLength(startIndex, stopIndex);
             if (length > MAX_TOKEN_LENGTH) {
                 throw new IllegalArgumentException("Max token " + MAX_TOKEN_LENGTH
                         + " length exceeded.  Split the tokens.");
             }
-            typeCharPositionLengthMode = pack(type + 1, charPositionInLine,
-                    length, mode);
-            startTokenIndex = pack(startIndex, tokenIndex);
-            lineChannelTrim = pack3(line, channel, trim);
+            return pack(type + 1, charPositionInLine, length, mode);
         }
 
         public int mode() {
@@ -1629,6 +1632,193 @@ java.lang.ArrayIndexOutOfBoundsException: 2441
         }
     }
 
+    /**
+     * The tokens of a parse, stored column-wise as the same three packed longs
+     * a ProxyToken holds, rather than as one object per token - a large sample
+     * file can have hundreds of thousands of tokens, and is reparsed on every
+     * edit. The ProxyTokens returned by <code>get()</code> are flyweights
+     * created on demand; they are equal to, but not the same instance as, the
+     * ones returned by other calls. Unmodifiable once it is part of a
+     * ParseTreeProxy.
+     */
+    public static final class ProxyTokenColumns extends AbstractList<ProxyToken>
+            implements RandomAccess, Serializable {
+
+        static final long serialVersionUID = 1;
+        private long[] typeCharPositionLengthMode;
+        private long[] startTokenIndex;
+        private long[] lineChannelTrim;
+        private int size;
+
+        ProxyTokenColumns(int capacity) {
+            typeCharPositionLengthMode = new long[capacity];
+            startTokenIndex = new long[capacity];
+            lineChannelTrim = new long[capacity];
+        }
+
+        private ProxyTokenColumns(ProxyTokenColumns orig) {
+            size = orig.size;
+            typeCharPositionLengthMode = Arrays.copyOf(orig.typeCharPositionLengthMode, size);
+            startTokenIndex = Arrays.copyOf(orig.startTokenIndex, size);
+            lineChannelTrim = Arrays.copyOf(orig.lineChannelTrim, size);
+        }
+
+        static ProxyTokenColumns copyOf(List<ProxyToken> tokens) {
+            if (tokens instanceof ProxyTokenColumns) {
+                return new ProxyTokenColumns((ProxyTokenColumns) tokens);
+            }
+            ProxyTokenColumns result = new ProxyTokenColumns(tokens.size());
+            for (ProxyToken tok : tokens) {
+                result.append(tok.typeCharPositionLengthMode, tok.startTokenIndex,
+                        tok.lineChannelTrim);
+            }
+            return result;
+        }
+
+        void add(int type, int line, int charPositionInLine, int channel, int tokenIndex,
+                int startIndex, int stopIndex, int trim, int mode) {
+            append(ProxyToken.packTypeCharPositionLengthMode(type, charPositionInLine,
+                    startIndex, stopIndex, mode), pack(startIndex, tokenIndex),
+                    pack3(line, channel, trim));
+        }
+
+        private void append(long typeCharPositionLengthMode, long startTokenIndex, long lineChannelTrim) {
+            if (size == this.startTokenIndex.length) {
+                int newSize = Math.max(16, size + (size / 2));
+                this.typeCharPositionLengthMode = Arrays.copyOf(this.typeCharPositionLengthMode, newSize);
+                this.startTokenIndex = Arrays.copyOf(this.startTokenIndex, newSize);
+                this.lineChannelTrim = Arrays.copyOf(this.lineChannelTrim, newSize);
+            }
+            this.typeCharPositionLengthMode[size] = typeCharPositionLengthMode;
+            this.startTokenIndex[size] = startTokenIndex;
+            this.lineChannelTrim[size++] = lineChannelTrim;
+        }
+
+        @Override
+        public ProxyToken get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(index + " of " + size);
+            }
+            return new ProxyToken(typeCharPositionLengthMode[index],
+                    startTokenIndex[index], lineChannelTrim[index]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        private int startIndex(int ix) {
+            return unpackLeft(startTokenIndex[ix]);
+        }
+
+        private int length(int ix) {
+            return unpackC(typeCharPositionLengthMode[ix]);
+        }
+
+        private int line(int ix) {
+            return unpack3Int(lineChannelTrim[ix]);
+        }
+
+        private int charPositionInLine(int ix) {
+            return unpackB(typeCharPositionLengthMode[ix]);
+        }
+
+        private boolean isEOF(int ix) {
+            return unpackA(typeCharPositionLengthMode[ix]) == 0;
+        }
+
+        /**
+         * Find the index of the token containing a character offset, without
+         * creating any tokens.
+         *
+         * @param position A character offset
+         * @return The index or -1
+         */
+        int indexAtPosition(int position) {
+            // Last token starting at or before the position
+            int lo = 0;
+            int hi = size - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (startIndex(mid) <= position) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (found < 0) {
+                return -1;
+            }
+            // Same test as ProxyToken.contains()
+            int start = startIndex(found);
+            int stop = start + length(found) - 1;
+            if (isEOF(found)) {
+                // EOF will have an end before its start
+                start = Math.min(start, stop);
+                stop = Math.max(start, stop);
+            }
+            return position >= start && position <= stop ? found : -1;
+        }
+
+        /**
+         * Find the index of the token which starts on a line and contains a
+         * character position within it, without creating any tokens.
+         *
+         * @param line A line
+         * @param charOffset A character position in that line
+         * @return The index or -1
+         */
+        int indexAtLinePosition(int line, int charOffset) {
+            int lo = 0;
+            int hi = size - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int midLine = line(mid);
+                if (midLine < line || (midLine == line && charPositionInLine(mid) <= charOffset)) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (found < 0 || line(found) != line) {
+                return -1;
+            }
+            int cp = charPositionInLine(found);
+            return charOffset >= cp && charOffset < cp + length(found) ? found : -1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (o instanceof ProxyTokenColumns) {
+                ProxyTokenColumns other = (ProxyTokenColumns) o;
+                if (other.size != size) {
+                    return false;
+                }
+                for (int i = 0; i < size; i++) {
+                    if (typeCharPositionLengthMode[i] != other.typeCharPositionLengthMode[i]
+                            || startTokenIndex[i] != other.startTokenIndex[i]
+                            || lineChannelTrim[i] != other.lineChannelTrim[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return super.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return super.hashCode();
+        }
+    }
+
     public static final class ParseTreeBuilder {
 
         private ParseTreeElement element;
@@ -18,6 +18,7 @@ package org.nemesis.antlr.live.parsing.extract;
 import ignoreme.placeholder.DummyLanguageLexer;
 import ignoreme.placeholder.DummyLanguageParser; //parser
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -33,7 +34,10 @@ import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Recognizer;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.TokenStream;
 import org.antlr.v4.runtime.atn.ATNConfigSet;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
 import org.antlr.v4.runtime.atn.PredictionMode;
 import org.antlr.v4.runtime.dfa.DFA;
 import org.antlr.v4.runtime.misc.Interval;
@@ -103,8 +107,23 @@ public final class ParserExtractor {
         return extract(1, text, ruleIndex, cancelled);
     }
 
-    @SuppressWarnings("deprecation")
     public static org.nemesis.antlr.live.parsing.extract.AntlrProxies.ParseTreeProxy extract(int flags, CharSequence text, int ruleIndex, BooleanSupplier cancelled) {
+        return extract(flags, text, ruleIndex, false, DummyLanguageLexer.DEFAULT_MODE, null, cancelled);
+    }
+
+    /**
+     * Lex some text without parsing it, starting the lexer in the passed mode
+     * and with the passed mode stack (bottom first) - the state recorded after
+     * some token of an earlier lex of the text preceding this text - so an
+     * editor can relex from the point something changed without running the
+     * parser. The result contains no parse tree.
+     */
+    public static org.nemesis.antlr.live.parsing.extract.AntlrProxies.ParseTreeProxy lex(int flags, CharSequence text, int initialMode, int[] initialModeStack, BooleanSupplier cancelled) {
+        return extract(flags, text, 0, true, initialMode, initialModeStack, cancelled);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static org.nemesis.antlr.live.parsing.extract.AntlrProxies.ParseTreeProxy extract(int flags, CharSequence text, int ruleIndex, boolean lexOnly, int initialMode, int[] initialModeStack, BooleanSupplier cancelled) {
         org.nemesis.antlr.live.parsing.extract.AntlrProxies proxies
                 = new org.nemesis.antlr.live.parsing.extract.AntlrProxies(GRAMMAR_NAME, GRAMMAR_PATH, text);
         proxies.setGrammarTokensHash(GRAMMAR_TOKENS_HASH);
@@ -131,6 +150,18 @@ public final class ParserExtractor {
                 CharSequenceCharStream charStream = new CharSequenceCharStream(text);
                 DummyLanguageLexer lex = new DummyLanguageLexer(charStream);
                 lex.removeErrorListeners();
+                lex._mode = initialMode;
+                if (initialModeStack != null) {
+                    for (int i = 0; i < initialModeStack.length; i++) {
+                        lex._modeStack.push(initialModeStack[i]);
+                    }
+                    if (initialModeStack.length > 0) {
+                        proxies.onModeStackChange(-1, initialModeStack);
+                    }
+                }
+                // Track the mode stack so it is only recorded when it changes
+                int lastStackSize = lex._modeStack.size();
+                int lastStackTop = lastStackSize == 0 ? -1 : lex._modeStack.peek();
                 // Collect all of the tokens
                 ErrL errorListener = new ErrL(proxies, charStream, flags == 2);
                 lex.addErrorListener(errorListener);
@@ -142,6 +173,7 @@ public final class ParserExtractor {
 //                System.out.println("\nUsing parser code for " + GRAMMAR_PATH + "\n"); //parser
                 int prevStop = -1;
                 do {
+                    int modeBefore = lex._mode;
                     tok = lex.nextToken();
                     int type = tok.getType();
                     int start = tok.getStartIndex();
@@ -200,7 +232,7 @@ public final class ParserExtractor {
                         }
                         proxies.onToken(erroneousType, errorBeginLine,
                                 errorCharPosition, 0, tokenIndex++,
-                                prevStop + 1, start - 1, 0, 0);
+                                prevStop + 1, start - 1, 0, modeBefore);
                     }
                     prevStop = stop;
                     errorListener.updateTokenIndex(tokenIndex, type);
@@ -226,18 +258,25 @@ public final class ParserExtractor {
                             tok.getLine(), tok.getCharPositionInLine(),
                             tok.getChannel(), tokenIndex++,
                             start, stop, trim, lex._mode);
+                    int stackSize = lex._modeStack.size();
+                    if (stackSize != lastStackSize || (stackSize > 0 && lex._modeStack.peek() != lastStackTop)) {
+                        proxies.onModeStackChange(tokenIndex - 1, lex._modeStack.toArray());
+                        lastStackSize = stackSize;
+                        lastStackTop = stackSize == 0 ? -1 : lex._modeStack.peek();
+                    }
                     if (type != DummyLanguageLexer.EOF) { //lexerOnly
                         lexerTreeBuilder.addTerminalNode(tokenIndex - 1, 1); //lexerOnly
                     } //lexerOnly
                 } while (tok.getType() != DummyLanguageLexer.EOF);
                 lexerTreeBuilder.build(); //lexerOnly
-                if (!wasCancelled) { // parser
+                if (!wasCancelled && !lexOnly) { // parser
                     lex.reset(); //parser
                     errorListener.updateTokenIndex(0, -1); //parser
                     // Now lex again to run the parser
-                    CommonTokenStream cts = new CommonTokenStream(lex, 0); // parser
+                    CommonTokenStream cts = new CancellableTokenStream(lex, cancelled); // parser
                     errorListener.cts = cts; // parser
                     DummyLanguageParser parser = new DummyLanguageParser(cts); //parser
+                    parser.setInterpreter(new CancellableATNSimulator(parser, cancelled)); //parser
                     parser.getInterpreter().setPredictionMode(predictionModeForFlags(flags)); //parser
                     parser.removeErrorListeners(); //parser
                     parser.addErrorListener(errorListener); //parser
@@ -246,8 +285,21 @@ public final class ParserExtractor {
                     RuleTreeVisitor v = new RuleTreeVisitor(bldr, cancelled); //parser
                     String startRuleMethodName = DummyLanguageParser.ruleNames[ruleIndex].replace('-', '_'); //parser
                     Method method = DummyLanguageParser.class.getMethod(startRuleMethodName); //parser
-                    ParseTree pt = (ParseTree) method.invoke(parser); //parser
-                    pt.accept(v); //parser
+                    ParseTree pt; //parser
+                    try { //parser
+                        pt = (ParseTree) method.invoke(parser); //parser
+                    } catch (InvocationTargetException ex) { //parser
+                        if (!(ex.getCause() instanceof ParseCancelledException)) { //parser
+                            throw ex; //parser
+                        } //parser
+                        // Cancelled mid-parse, most likely because newer text //parser
+                        // superseded this text - return the tokens with no tree, //parser
+                        // as lex() would //parser
+                        pt = null; //parser
+                    } //parser
+                    if (pt != null) { //parser
+                        pt.accept(v); //parser
+                    } //parser
                     bldr.build(); //parser
                 } // parser
             }
@@ -485,6 +537,76 @@ public final class ParserExtractor {
         } //parser
     } //parser
 
+    /**
+     * Thrown from the token stream or the prediction loop to abort a parse
+     * which has been cancelled; no stack trace, since it is thrown routinely
+     * when the user is typing.
+     */
+    private static final class ParseCancelledException extends RuntimeException {
+
+        ParseCancelledException() {
+            super("Cancelled", null, false, false);
+        }
+    }
+
+    /**
+     * A token stream which checks for cancellation every time it pulls a token
+     * from the lexer, so a parse whose text has been superseded stops within
+     * a token of being cancelled rather than running to completion.
+     */
+    private static final class CancellableTokenStream extends CommonTokenStream {
+
+        private final BooleanSupplier cancelled;
+
+        CancellableTokenStream(TokenSource tokenSource, BooleanSupplier cancelled) {
+            super(tokenSource, 0);
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected int fetch(int n) {
+            if (cancelled.getAsBoolean()) {
+                throw new ParseCancelledException();
+            }
+            return super.fetch(n);
+        }
+    }
+
+    /**
+     * The prediction loop can consume a lot of lookahead - and time - without
+     * fetching new tokens, particularly with full-context prediction over
+     * already-buffered tokens, so check for cancellation on each prediction
+     * and each step of it too.
+     */
+    private static final class CancellableATNSimulator extends ParserATNSimulator { //parser
+
+        private final BooleanSupplier cancelled; //parser
+
+        CancellableATNSimulator(Parser parser, BooleanSupplier cancelled) { //parser
+            super(parser, parser.getATN(), parser.getInterpreter().decisionToDFA, //parser
+                    parser.getInterpreter().getSharedContextCache()); //parser
+            this.cancelled = cancelled; //parser
+        } //parser
+
+        private void checkCancelled() { //parser
+            if (cancelled.getAsBoolean()) { //parser
+                throw new ParseCancelledException(); //parser
+            } //parser
+        } //parser
+
+        @Override //parser
+        public int adaptivePredict(TokenStream input, int decision, ParserRuleContext outerContext) { //parser
+            checkCancelled(); //parser
+            return super.adaptivePredict(input, decision, outerContext); //parser
+        } //parser
+
+        @Override //parser
+        protected ATNConfigSet computeReachSet(ATNConfigSet closure, int t, boolean fullCtx) { //parser
+            checkCancelled(); //parser
+            return super.computeReachSet(closure, t, fullCtx); //parser
+        } //parser
+    } //parser
+
     public static final class CharSequenceCharStream implements CharStream {
 
         private final CharSequence data;
@@ -42,6 +42,11 @@ public final class DeadEmbeddedParser implements EmbeddedParser {
         return AntlrProxies.forUnparsed(grammarPath, grammarName, body);
     }
 
+    @Override
+    public AntlrProxies.ParseTreeProxy lex(String logName, CharSequence body, int mode, int[] modeStack) throws Exception {
+        return AntlrProxies.forUnparsed(grammarPath, grammarName, body);
+    }
+
     @Override
     public void onDiscard() {
         // do nothing
@@ -15,6 +15,7 @@
  */
 package org.nemesis.antlr.live.parsing.impl;
 
+import java.util.function.BooleanSupplier;
 import org.nemesis.antlr.live.parsing.extract.AntlrProxies;
 
 /**
@@ -27,10 +28,40 @@ public interface EmbeddedParser {
         return parse(logName, body, 0);
     }
 
+    /**
+     * Parse some text, aborting as soon as the passed supplier returns true -
+     * in which case the result contains the tokens lexed so far but no parse
+     * tree, and should not be reused.
+     *
+     * @param logName A name for logging
+     * @param body The text
+     * @param cancelled Checked throughout the lex and parse, in addition to
+     * any Canceller for the current thread
+     * @return A proxy
+     * @throws Exception If something goes wrong
+     */
+    default AntlrProxies.ParseTreeProxy parse(String logName, CharSequence body, BooleanSupplier cancelled) throws Exception {
+        return parse(logName, body);
+    }
+
     AntlrProxies.ParseTreeProxy parse(String logName, CharSequence body, int ruleNo) throws Exception;
 
     AntlrProxies.ParseTreeProxy parse(String logName, CharSequence body, String ruleName) throws Exception;
 
+    /**
+     * Lex some text without parsing it, starting in the passed lexer mode with
+     * the passed mode stack (bottom first), as recorded after some token of an
+     * earlier lex of the text preceding it.
+     *
+     * @param logName A name for logging
+     * @param body The text
+     * @param mode The lexer mode to start in
+     * @param modeStack The mode stack to start with
+     * @return A proxy with tokens but no parse tree
+     * @throws Exception If something goes wrong
+     */
+    AntlrProxies.ParseTreeProxy lex(String logName, CharSequence body, int mode, int[] modeStack) throws Exception;
+
     void onDiscard();
 
     void clean();
@@ -26,10 +26,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import static java.lang.invoke.MethodType.methodType;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.nio.file.Path;
 import java.util.Map;
 import java.util.function.BooleanSupplier;
@@ -117,6 +120,7 @@ public class ProxiesInvocationRunner extends InvocationRunner<EmbeddedParser, Ge
             .loadingFromParent(AntlrProxies.ProxyException.class)
             .loadingFromParent(AntlrProxies.ProxySyntaxError.class)
             .loadingFromParent(AntlrProxies.ProxyToken.class)
+            .loadingFromParent(AntlrProxies.ProxyTokenColumns.class)
             .loadingFromParent(AntlrProxies.ProxyTokenType.class)
             .loadingFromParent(AntlrProxies.Ambiguity.class)
             .loadingFromParent(AntlrProxies.TokenAssociated.class)
@@ -500,6 +504,7 @@ public class ProxiesInvocationRunner extends InvocationRunner<EmbeddedParser, Ge
 
         private ClassLoader ldr;
         private volatile boolean discarded;
+        private volatile ExtractorHandles handles;
 
         EnvRef(PreservedInvocationEnvironment referent, ClassLoader ldr) {
             super(referent, Utilities.activeReferenceQueue());
@@ -515,12 +520,35 @@ public class ProxiesInvocationRunner extends InvocationRunner<EmbeddedParser, Ge
                     + " discarded " + discarded + ")";
         }
 
+        /**
+         * Get the entry points of the generated extractor class, looking them
+         * up the first time this is called; must be called with the context
+         * classloader set to this reference's classloader.
+         */
+        ExtractorHandles handles(String typeName) throws ClassNotFoundException,
+                NoSuchMethodException, IllegalAccessException {
+            ExtractorHandles result = handles;
+            if (result == null) {
+                if (discarded) {
+                    throw new ClassNotFoundException(typeName + " in discarded " + this);
+                }
+                try {
+                    result = new ExtractorHandles(cachedClass(typeName));
+                } catch (ClassNotFoundException cnfe) {
+                    throw new ClassNotFoundException(Thread.currentThread().getContextClassLoader().toString(), cnfe);
+                }
+                handles = result;
+            }
+            return result;
+        }
+
         @Override
         public void run() {
             if (discarded) {
                 return;
             }
             discarded = true;
+            handles = null;
             LOG.log(Level.FINEST, "Discard a classloader {0}", ldr);
             try {
                 if (ldr instanceof AutoCloseable) {
@@ -591,9 +619,14 @@ public class ProxiesInvocationRunner extends InvocationRunner<EmbeddedParser, Ge
 
         @Override
         public ParseTreeProxy parse(String logName, CharSequence body) throws Exception {
+            return parse(logName, body, (BooleanSupplier) null);
+        }
+
+        @Override
+        public ParseTreeProxy parse(String logName, CharSequence body, BooleanSupplier cancelled) throws Exception {
             LOG.log(Level.FINER, "Initiating parse in {0}", logName);
             try {
-                ParseTreeProxy result = doClRun(body);
+                ParseTreeProxy result = doClRun(body, cancelled);
                 Runnable of = onFirst;
                 if (of != null) {
                     // After the first success, the classloader will contain all
@@ -637,17 +670,21 @@ public class ProxiesInvocationRunner extends InvocationRunner<EmbeddedParser, Ge
             }
         }
 
-        private static final Class<?>[] INT_CS_BS = new Class<?>[]{int.class, CharSequence.class, BooleanSupplier.class};
-
-        ParseTreeProxy doClRun(CharSequence body) throws Exception {
+        ParseTreeProxy doClRun(CharSequence body, BooleanSupplier cancelled) throws Exception {
             Canceller canceller = Canceller.getOrCreate();
+            BooleanSupplier cancel = cancelled == null ? canceller
+                    : () -> cancelled.getAsBoolean() || canceller.getAsBoolean();
             int flags = EmbeddedParserFeatures.getInstance(grammarPath).currentFlags();
             return clRun(() -> {
-                return reflectively(typeName, INT_CS_BS, flags, body, canceller);
+                MethodHandle extract = ref.handles(typeName).extract;
+                try {
+                    return (ParseTreeProxy) extract.invokeExact(flags, body, cancel);
+                } catch (Throwable thrown) {
+                    throw new InvocationTargetException(thrown);
+                }
             });
         }
 
-        private static final Class<?>[] INT_CS_INT_BS = new Class<?>[]{int.class, CharSequence.class, int.class, BooleanSupplier.class};
         @Override
         public AntlrProxies.ParseTreeProxy parse(String logName, CharSequence body, int ruleNo) throws Exception {
             Canceller canceller = Canceller.getOrCreate();
@@ -655,8 +692,12 @@ public class ProxiesInvocationRunner extends InvocationRunner<EmbeddedParser, Ge
             // the starting parser rule not be the first one
             int flags = EmbeddedParserFeatures.getInstance(grammarPath).currentFlags();
             return clRun(() -> {
-                return reflectively(typeName, INT_CS_INT_BS,
-                        body, ruleNo, canceller);
+                MethodHandle extract = ref.handles(typeName).extractRuleIndex;
+                try {
+                    return (ParseTreeProxy) extract.invokeExact(flags, body, ruleNo, (BooleanSupplier) canceller);
+                } catch (Throwable thrown) {
+                    throw new InvocationTargetException(thrown);
+                }
             });
         }
 
@@ -667,23 +708,27 @@ public class ProxiesInvocationRunner extends InvocationRunner<EmbeddedParser, Ge
             // the starting parser rule not be the first one
             int flags = EmbeddedParserFeatures.getInstance(grammarPath).currentFlags();
             return clRun(() -> {
-                return reflectively(typeName, new Class<?>[]{int.class, CharSequence.class, String.class, BooleanSupplier.class}, flags, body, ruleName, canceller);
+                MethodHandle extract = ref.handles(typeName).extractRuleName();
+                try {
+                    return (ParseTreeProxy) extract.invokeExact(flags, body, ruleName, (BooleanSupplier) canceller);
+                } catch (Throwable thrown) {
+                    throw new InvocationTargetException(thrown);
+                }
             });
         }
 
-        private static AntlrProxies.ParseTreeProxy reflectively(String cl,
-                Class<?>[] params, Object... args)
-                throws ClassNotFoundException, NoSuchMethodException,
-                IllegalAccessException, IllegalArgumentException,
-                InvocationTargetException {
-            try {
-                assert params.length == args.length;
-                Class<?> c = cachedClass(cl);
-                Method m = c.getMethod("extract", params);
-                return (AntlrProxies.ParseTreeProxy) m.invoke(null, args);
-            } catch (ClassNotFoundException cnfe) {
-                throw new ClassNotFoundException(Thread.currentThread().getContextClassLoader().toString(), cnfe);
-            }
+        @Override
+        public AntlrProxies.ParseTreeProxy lex(String logName, CharSequence body, int mode, int[] modeStack) throws Exception {
+            Canceller canceller = Canceller.getOrCreate();
+            int flags = EmbeddedParserFeatures.getInstance(grammarPath).currentFlags();
+            return clRun(() -> {
+                MethodHandle lex = ref.handles(typeName).lex;
+                try {
+                    return (ParseTreeProxy) lex.invokeExact(flags, body, mode, modeStack, (BooleanSupplier) canceller);
+                } catch (Throwable thrown) {
+                    throw new InvocationTargetException(thrown);
+                }
+            });
         }
 
         @Override
@@ -692,6 +737,52 @@ public class ProxiesInvocationRunner extends InvocationRunner<EmbeddedParser, Ge
         }
     }
 
+    /**
+     * The static <code>extract</code> and <code>lex</code> methods of a
+     * generated ParserExtractor,
+     * looked up once per classloader, so parsing does not pay for reflective
+     * method lookup, argument boxing and varargs arrays on every call.
+     */
+    static final class ExtractorHandles {
+
+        private static final MethodType FLAGS_TEXT
+                = methodType(ParseTreeProxy.class, int.class, CharSequence.class, BooleanSupplier.class);
+        private static final MethodType FLAGS_TEXT_RULE_INDEX
+                = methodType(ParseTreeProxy.class, int.class, CharSequence.class, int.class, BooleanSupplier.class);
+        private static final MethodType FLAGS_TEXT_RULE_NAME
+                = methodType(ParseTreeProxy.class, int.class, CharSequence.class, String.class, BooleanSupplier.class);
+        private static final MethodType FLAGS_TEXT_MODE_STACK
+                = methodType(ParseTreeProxy.class, int.class, CharSequence.class, int.class, int[].class, BooleanSupplier.class);
+        final MethodHandle extract;
+        final MethodHandle extractRuleIndex;
+        final MethodHandle lex;
+        // Absent for lexer grammars
+        private final MethodHandle extractRuleName;
+        private final String typeName;
+
+        ExtractorHandles(Class<?> type) throws NoSuchMethodException, IllegalAccessException {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            typeName = type.getName();
+            extract = lookup.findStatic(type, "extract", FLAGS_TEXT);
+            extractRuleIndex = lookup.findStatic(type, "extract", FLAGS_TEXT_RULE_INDEX);
+            lex = lookup.findStatic(type, "lex", FLAGS_TEXT_MODE_STACK);
+            MethodHandle byName;
+            try {
+                byName = lookup.findStatic(type, "extract", FLAGS_TEXT_RULE_NAME);
+            } catch (NoSuchMethodException ex) {
+                byName = null;
+            }
+            extractRuleName = byName;
+        }
+
+        MethodHandle extractRuleName() throws NoSuchMethodException {
+            if (extractRuleName == null) {
+                throw new NoSuchMethodException("extract" + FLAGS_TEXT_RULE_NAME + " in " + typeName);
+            }
+            return extractRuleName;
+        }
+    }
+
     static final Map<String, Map<ClassLoader, Class<?>>> typeForNameAndLoader
             = CollectionUtils.concurrentSupplierMap(() -> MapFactories.WEAK_KEYS_AND_VALUES.createMap(16, true));
 
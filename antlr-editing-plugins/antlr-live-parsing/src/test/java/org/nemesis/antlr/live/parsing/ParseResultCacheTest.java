@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.antlr.live.parsing;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.nemesis.antlr.live.parsing.extract.AntlrProxies;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ParseResultCacheTest {
+
+    private static final Path GRAMMAR = Paths.get("/tmp/Cache.g4");
+
+    @Test
+    public void testAlternatingTextsAreCached() {
+        ParseResultCache cache = new ParseResultCache(4, Long.MAX_VALUE);
+        EmbeddedAntlrParserResult a = result("first text", "h1");
+        EmbeddedAntlrParserResult b = result("second text", "h1");
+        cache.put("first text", "h1", 1, a);
+        cache.put("second text", "h1", 1, b);
+        for (int i = 0; i < 3; i++) {
+            assertSame(a, cache.get("first text", "h1", 1));
+            assertSame(b, cache.get(new StringBuilder("second text"), "h1", 1));
+        }
+        // Document and lexer text differ by a trailing newline
+        assertSame(a, cache.get("first text\n", "h1", 1));
+        // Different grammar or flags
+        assertNull(cache.get("first text", "h2", 1));
+        assertNull(cache.get("first text", "h1", 2));
+        assertNull(cache.get("first texT", "h1", 1));
+        assertEquals(7, cache.hits());
+        assertEquals(3, cache.misses());
+        assertEquals(0.7, cache.hitRate(), 0.0001);
+
+        cache.put("other grammar", "h2", 1, result("other grammar", "h2"));
+        assertEquals(3, cache.size());
+        cache.retainGrammar("h1");
+        assertEquals(2, cache.size());
+        assertNull(cache.get("other grammar", "h2", 1));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        ParseResultCache cache = new ParseResultCache(3, Long.MAX_VALUE);
+        for (int i = 0; i < 3; i++) {
+            cache.put("text " + i, "h", 1, result("text " + i, "h"));
+        }
+        // Touch the eldest so it is not the one evicted
+        cache.get("text 0", "h", 1);
+        cache.put("text 3", "h", 1, result("text 3", "h"));
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.evictions());
+        assertNull(cache.get("text 1", "h", 1));
+        assertNotNull(cache.get("text 0", "h", 1));
+        assertNotNull(cache.get("text 3", "h", 1));
+    }
+
+    @Test
+    public void testEvictsBySize() {
+        EmbeddedAntlrParserResult small = result("small", "h");
+        long smallSize = ParseResultCache.estimatedSize(small.proxy());
+        ParseResultCache cache = new ParseResultCache(100, smallSize * 2);
+        cache.put("small", "h", 1, small);
+        EmbeddedAntlrParserResult small2 = result("small2", "h");
+        cache.put("small2", "h", 1, small2);
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.evictions());
+        assertNull(cache.get("small", "h", 1));
+        assertSame(small2, cache.get("small2", "h", 1));
+        StringBuilder huge = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            huge.append("huge ");
+        }
+        // Larger than the whole cache - not cached, nothing evicted
+        cache.put(huge, "h", 1, result(huge.toString(), "h"));
+        assertNull(cache.get(huge, "h", 1));
+        assertSame(small2, cache.get("small2", "h", 1));
+        assertTrue(cache.estimatedBytes() <= smallSize * 2);
+    }
+
+    @Test
+    public void testHash() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        String s = sb.toString();
+        assertEquals(ParseResultCache.hash(s), ParseResultCache.hash(sb));
+        assertEquals(ParseResultCache.hash(s), ParseResultCache.hash(s + "\n"));
+        assertNotEquals(ParseResultCache.hash(s), ParseResultCache.hash(s + "x"));
+        assertNotEquals(ParseResultCache.hash("ab"), ParseResultCache.hash("ba"));
+        assertEquals(new ParseResultCache.Key(s, "h", 1), new ParseResultCache.Key(sb.append('\n'), "h", 1));
+    }
+
+    private static EmbeddedAntlrParserResult result(String text, String tokensHash) {
+        return new EmbeddedAntlrParserResult(GRAMMAR, AntlrProxies.forUnparsed(GRAMMAR, "Cache", text),
+                null, tokensHash, "Cache");
+    }
+}
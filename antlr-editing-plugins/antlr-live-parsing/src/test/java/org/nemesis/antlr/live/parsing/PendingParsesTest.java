@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.antlr.live.parsing;
+
+import com.mastfrog.function.throwing.ThrowingBiFunction;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.nemesis.antlr.live.parsing.extract.AntlrProxies;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class PendingParsesTest {
+
+    private static final Path GRAMMAR = Paths.get("/tmp/Pending.g4");
+
+    @Test
+    public void testNewerTextSupersedesParseForSameDocument() throws Throwable {
+        PendingParses pending = new PendingParses();
+        Object doc = new Object();
+        SlowParser parser = new SlowParser();
+        Background first = new Background(pending, "first text", doc, 1, parser);
+        assertTrue(parser.started.await(10, TimeUnit.SECONDS));
+
+        EmbeddedAntlrParserResult second = pending.getOrWaitForParallellResult("second text", doc, 2, parser);
+        EmbeddedAntlrParserResult firstResult = first.await();
+        assertTrue(firstResult.isCancelled(), "First parse should have been cancelled");
+        assertFalse(second.isCancelled(), "Superseding parse was cancelled");
+        assertEquals("second text", second.proxy().text().toString());
+        // The first parse should have noticed it was superseded as soon as
+        // the second started, not run for the full five seconds
+        assertTrue(parser.supersededAfterMillis.get() < 1000,
+                "Superseded parse ran for " + parser.supersededAfterMillis.get() + "ms");
+        assertEquals(1, pending.superseded());
+        assertEquals(0, pending.inFlight());
+    }
+
+    @Test
+    public void testDifferentDocumentsDoNotSupersedeEachOther() throws Throwable {
+        PendingParses pending = new PendingParses();
+        SlowParser parser = new SlowParser();
+        parser.runFor = 300;
+        Background first = new Background(pending, "first text", new Object(), 1, parser);
+        assertTrue(parser.started.await(10, TimeUnit.SECONDS));
+        EmbeddedAntlrParserResult second = pending.getOrWaitForParallellResult("second text", new Object(), 2, parser);
+        assertFalse(first.await().isCancelled());
+        assertFalse(second.isCancelled());
+        // Nor does text with no document
+        assertFalse(pending.getOrWaitForParallellResult("third text", null, 0, parser).isCancelled());
+        assertEquals(0, pending.superseded());
+    }
+
+    @Test
+    public void testConcurrentRequestsForSameTextShareOneParse() throws Throwable {
+        PendingParses pending = new PendingParses();
+        SlowParser parser = new SlowParser();
+        parser.runFor = 300;
+        Object doc = new Object();
+        Background first = new Background(pending, "same text", doc, 1, parser);
+        assertTrue(parser.started.await(10, TimeUnit.SECONDS));
+        // Lexer and document text differ by a trailing newline
+        EmbeddedAntlrParserResult second = pending.getOrWaitForParallellResult("same text\n", null, 0, parser);
+        assertSame(first.await(), second);
+        assertEquals(1, parser.parses.get());
+        assertEquals(1, pending.shared());
+        assertEquals(0, pending.superseded());
+    }
+
+    @Test
+    public void testOlderVersionDoesNotSupersedeNewer() throws Throwable {
+        PendingParses pending = new PendingParses();
+        Object doc = new Object();
+        SlowParser parser = new SlowParser();
+        parser.runFor = 300;
+        Background first = new Background(pending, "newer text", doc, 5, parser);
+        assertTrue(parser.started.await(10, TimeUnit.SECONDS));
+        // A stale snapshot arriving later, or one of the same version, must
+        // not cancel the parse of the newer text
+        EmbeddedAntlrParserResult stale = pending.getOrWaitForParallellResult("stale text", doc, 4, parser);
+        EmbeddedAntlrParserResult same = pending.getOrWaitForParallellResult("other text", doc, 5, parser);
+        assertFalse(stale.isCancelled());
+        assertFalse(same.isCancelled());
+        assertFalse(first.await().isCancelled(), "Newer text was superseded by older");
+        assertEquals("stale text", stale.proxy().text().toString());
+        assertEquals(0, pending.superseded());
+        assertEquals(0, pending.inFlight());
+    }
+
+    @Test
+    public void testJoinerOfSupersededParseGetsCompleteResult() throws Throwable {
+        PendingParses pending = new PendingParses();
+        Object doc = new Object();
+        SlowParser parser = new SlowParser();
+        Background first = new Background(pending, "first text", doc, 1, parser);
+        assertTrue(parser.started.await(10, TimeUnit.SECONDS));
+        // A caller with no document joins the parse of the same text...
+        Background joiner = new Background(pending, "first text", null, 0, parser);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (joiner.thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // ...which newer text for the document then supersedes
+        EmbeddedAntlrParserResult second = pending.getOrWaitForParallellResult("second text", doc, 2, parser);
+        assertTrue(first.await().isCancelled());
+        assertFalse(second.isCancelled());
+        EmbeddedAntlrParserResult joined = joiner.await();
+        assertFalse(joined.isCancelled(), "Caller that was not superseded got a cancelled result");
+        assertEquals("first text", joined.proxy().text().toString());
+        assertEquals(3, parser.parses.get());
+        assertEquals(0, pending.shared());
+    }
+
+    static final class SlowParser implements ThrowingBiFunction<CharSequence, BooleanSupplier, EmbeddedAntlrParserResult> {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger parses = new AtomicInteger();
+        final AtomicLong supersededAfterMillis = new AtomicLong(-1);
+        volatile long runFor = 5000;
+
+        @Override
+        public EmbeddedAntlrParserResult apply(CharSequence text, BooleanSupplier cancelled) throws Exception {
+            parses.incrementAndGet();
+            boolean first = started.getCount() > 0;
+            started.countDown();
+            // Only the first parse is slow, so the test need not wait on the
+            // others
+            long start = System.currentTimeMillis();
+            long end = start + (first ? runFor : 0);
+            while (System.currentTimeMillis() < end) {
+                if (cancelled.getAsBoolean()) {
+                    break;
+                }
+                Thread.sleep(1);
+            }
+            boolean wasCancelled = cancelled.getAsBoolean();
+            if (wasCancelled) {
+                supersededAfterMillis.set(System.currentTimeMillis() - start);
+            }
+            return new EmbeddedAntlrParserResult(GRAMMAR, AntlrProxies.forUnparsed(GRAMMAR, "Pending", text),
+                    null, "h", "Pending", wasCancelled);
+        }
+    }
+
+    static final class Background implements Runnable {
+
+        private final PendingParses pending;
+        private final CharSequence text;
+        private final Object doc;
+        private final long version;
+        private final SlowParser parser;
+        private final AtomicReference<EmbeddedAntlrParserResult> result = new AtomicReference<>();
+        private final AtomicReference<Throwable> thrown = new AtomicReference<>();
+        private final Thread thread;
+
+        Background(PendingParses pending, CharSequence text, Object doc, long version, SlowParser parser) {
+            this.pending = pending;
+            this.text = text;
+            this.doc = doc;
+            this.version = version;
+            this.parser = parser;
+            thread = new Thread(this, "background-parse");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                result.set(pending.getOrWaitForParallellResult(text, doc, version, parser));
+            } catch (Throwable ex) {
+                thrown.set(ex);
+            }
+        }
+
+        EmbeddedAntlrParserResult await() throws Throwable {
+            thread.join(10000);
+            if (thrown.get() != null) {
+                throw thrown.get();
+            }
+            return result.get();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016-2020 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.antlr.live.parsing.extract;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Paths;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import org.junit.jupiter.api.Test;
+import org.nemesis.antlr.live.parsing.extract.AntlrProxies.ParseTreeProxy;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ModeStackTest {
+
+    private static final int[] NONE = new int[0];
+
+    @Test
+    public void testModeStackAfterToken() throws Exception {
+        // a ( b ( c ) ) d
+        String text = "a(b(c))d";
+        AntlrProxies proxies = new AntlrProxies("Modes", Paths.get("/tmp/Modes.g4"), text);
+        proxies.addTokenType(0, "x", "X", null);
+        for (int i = 0; i < text.length(); i++) {
+            proxies.onToken(0, 1, i, 0, i, i, i, 0, 0);
+        }
+        proxies.onToken(-1, 1, text.length(), 0, text.length(), text.length(), text.length() - 1, 0, 0);
+        proxies.onModeStackChange(1, new int[]{0});
+        proxies.onModeStackChange(3, new int[]{0, 1});
+        proxies.onModeStackChange(5, new int[]{0});
+        proxies.onModeStackChange(6, NONE);
+        ParseTreeProxy prox = proxies.result();
+        assertModeStacks(prox);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oout = new ObjectOutputStream(out)) {
+            oout.writeObject(prox);
+        }
+        assertModeStacks(ParseTreeProxy.load(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    public void testInitialModeStack() {
+        AntlrProxies proxies = new AntlrProxies("Modes", Paths.get("/tmp/Modes.g4"), "b))");
+        proxies.addTokenType(0, "x", "X", null);
+        proxies.onModeStackChange(-1, new int[]{0, 1});
+        proxies.onToken(0, 1, 0, 0, 0, 0, 0, 0, 1);
+        proxies.onToken(0, 1, 1, 0, 1, 1, 1, 0, 1);
+        proxies.onModeStackChange(1, new int[]{0});
+        proxies.onToken(0, 1, 2, 0, 2, 2, 2, 0, 0);
+        proxies.onModeStackChange(2, NONE);
+        ParseTreeProxy prox = proxies.result();
+        assertArrayEquals(new int[]{0, 1}, prox.modeStackAfter(-1));
+        assertArrayEquals(new int[]{0, 1}, prox.modeStackAfter(0));
+        assertArrayEquals(new int[]{0}, prox.modeStackAfter(1));
+        assertArrayEquals(NONE, prox.modeStackAfter(2));
+    }
+
+    @Test
+    public void testNoModeStack() {
+        ParseTreeProxy prox = AntlrProxies.forUnparsed(Paths.get("/tmp/Modes.g4"), "Modes", "abc");
+        assertArrayEquals(NONE, prox.modeStackAfter(0));
+        assertArrayEquals(NONE, prox.modeStackAfter(1));
+    }
+
+    private static void assertModeStacks(ParseTreeProxy prox) {
+        int[][] expected = {NONE, {0}, {0}, {0, 1}, {0, 1}, {0}, NONE, NONE, NONE};
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], prox.modeStackAfter(i), "Wrong stack after " + i);
+        }
+        // Returned arrays are copies
+        prox.modeStackAfter(3)[0] = 23;
+        assertArrayEquals(new int[]{0, 1}, prox.modeStackAfter(3));
+    }
+}
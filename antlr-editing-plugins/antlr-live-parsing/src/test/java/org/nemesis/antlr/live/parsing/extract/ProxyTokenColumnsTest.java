@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016-2020 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.antlr.live.parsing.extract;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.nemesis.antlr.live.parsing.extract.AntlrProxies.ParseTreeProxy;
+import org.nemesis.antlr.live.parsing.extract.AntlrProxies.ProxyToken;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ProxyTokenColumnsTest {
+
+    private static final int WORD = 0;
+    private static final int WS = 1;
+    private final List<ProxyToken> expected = new ArrayList<>();
+
+    @Test
+    public void testColumnsMatchTokens() throws Exception {
+        ParseTreeProxy prox = proxy(2000);
+        List<ProxyToken> tokens = prox.tokens();
+        assertEquals(expected.size(), tokens.size());
+        assertEquals(expected, tokens);
+        assertEquals(tokens, expected);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), tokens.get(i));
+            assertEquals(i, tokens.get(i).getTokenIndex());
+        }
+        assertThrows(UnsupportedOperationException.class, () -> tokens.add(expected.get(0)));
+        assertThrows(IndexOutOfBoundsException.class, () -> tokens.get(tokens.size()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oout = new ObjectOutputStream(out)) {
+            oout.writeObject(prox);
+        }
+        ParseTreeProxy loaded = ParseTreeProxy.load(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(expected, loaded.tokens());
+    }
+
+    @Test
+    public void testTokenAtPosition() {
+        ParseTreeProxy prox = proxy(2000);
+        int length = prox.text().length();
+        for (int pos = -1; pos <= length + 1; pos++) {
+            ProxyToken exp = null;
+            for (ProxyToken tok : expected) {
+                if (!tok.isEOF() && tok.contains(pos)) {
+                    exp = tok;
+                    break;
+                }
+            }
+            assertEquals(exp, prox.tokenAtPosition(pos), "Wrong token at " + pos);
+        }
+        for (ProxyToken tok : expected) {
+            if (tok.isEOF()) {
+                continue;
+            }
+            for (int i = 0; i < tok.length(); i++) {
+                assertEquals(tok, prox.tokenAtLinePosition(tok.getLine(), tok.getCharPositionInLine() + i));
+            }
+        }
+        assertNull(prox.tokenAtLinePosition(-1, 0));
+        assertNull(prox.tokenAtLinePosition(expected.get(expected.size() - 1).getLine() + 1, 0));
+    }
+
+    private ParseTreeProxy proxy(int count) {
+        Random rnd = new Random(1312);
+        StringBuilder text = new StringBuilder();
+        List<int[]> spans = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int start = text.length();
+            if (i % 2 == 0) {
+                int len = 1 + rnd.nextInt(8);
+                for (int j = 0; j < len; j++) {
+                    text.append((char) ('a' + rnd.nextInt(26)));
+                }
+                spans.add(new int[]{WORD, start, text.length() - 1});
+            } else {
+                text.append(rnd.nextInt(5) == 0 ? "\n" : " ");
+                spans.add(new int[]{WS, start, start});
+            }
+        }
+        AntlrProxies proxies = new AntlrProxies("Words", Paths.get("/tmp/Words.g4"), text);
+        proxies.addTokenType(WORD, "word", "WORD", null);
+        proxies.addTokenType(WS, "ws", "WS", null);
+        int line = 1;
+        int lineStart = 0;
+        for (int i = 0; i < spans.size(); i++) {
+            int[] span = spans.get(i);
+            int cpos = span[1] - lineStart;
+            proxies.onToken(span[0], line, cpos, span[0] == WS ? 1 : 0, i, span[1], span[2], 0, 0);
+            expected.add(new ProxyToken(span[0], line, cpos, span[0] == WS ? 1 : 0, i, span[1], span[2], 0, 0));
+            if (text.charAt(span[1]) == '\n') {
+                line++;
+                lineStart = span[1] + 1;
+            }
+        }
+        proxies.onToken(-1, line, text.length() - lineStart, 0, spans.size(), text.length(), text.length() - 1, 0, 0);
+        expected.add(new ProxyToken(-1, line, text.length() - lineStart, 0, spans.size(), text.length(), text.length() - 1, 0, 0));
+        return proxies.result();
+    }
+}
@@ -1250,10 +1250,14 @@ public final class PreviewPanel extends JPanel implements ChangeListener,
             if (reparseState.wasRefreshed(stateAtDocumentModification)) {
 //                return;
             }
-            CharSequence seq = DocumentUtilities.getText(editorPane.getDocument(),
-                    0, editorPane.getDocument().getLength());
+            Document doc = editorPane.getDocument();
+            long version = DocumentUtilities.getDocumentVersion(doc);
+            CharSequence seq = DocumentUtilities.getText(doc, 0, doc.getLength());
             EmbeddedAntlrParser parser = AdhocLanguageHierarchy.parserFor(mimeType);
-            EmbeddedAntlrParserResult result = parser.parse(seq);
+            EmbeddedAntlrParserResult result = parser.parse(seq, doc, version);
+            if (result.isCancelled()) {
+                return;
+            }
             this.accept(editorPane.getDocument(), result);
             syntaxTreeList.repaint(300);
             rulesList.repaint(300);
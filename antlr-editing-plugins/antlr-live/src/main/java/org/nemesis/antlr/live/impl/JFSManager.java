@@ -137,9 +137,12 @@ final class JFSManager {
 
     JFS createJFS() {
         try {
+            // One JFS is shared by every grammar in the project, and is read
+            // from parser and rebuild threads while others write to it
             return JFS
                     .builder()
                     .withCharset(UTF_8)
+                    .concurrent()
                     .build();
         } catch (IOException ex) {
             // only actually thrown if we use the mapped file
@@ -76,6 +76,10 @@ public final class Metrics {
         registered.put(name, result);
     }
 
+    public static void unregister(String name) {
+        registered.remove(name);
+    }
+
     public static int poll(BiConsumer<? super String, ? super Object> consumer) {
         return poll(null, consumer);
     }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.antlr.spi.language;
+
+import com.mastfrog.function.throwing.ThrowingSupplier;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.nemesis.extraction.Extraction;
+import org.nemesis.extraction.ExtractionCache;
+import org.nemesis.extraction.Extractor;
+import org.nemesis.source.api.GrammarSource;
+import org.openide.filesystems.FileObject;
+import org.openide.modules.Places;
+
+/**
+ * Consulted by NbAntlrUtils.extractionFor(FileObject) for files which are not
+ * open in the editor, so that unmodified files need not be reparsed across
+ * IDE sessions. Entries are keyed on the file's URL and a digest of its bytes,
+ * which is far cheaper to compute than the tokens hash (which would require
+ * lexing the file), and the hash of the extractor registered for the file's
+ * mime type and the document root type of the cached extraction.
+ *
+ * @author Tim Boudreau
+ */
+final class DiskExtractionCache {
+
+    private static final Logger LOG = Logger.getLogger( DiskExtractionCache.class.getName() );
+    private static final long MAX_BYTES = Long.getLong( "antlr.extraction.disk.cache.bytes", 64L * 1024 * 1024 );
+    private static final Map<String, String> EXTRACTOR_HASHES = new ConcurrentHashMap<>();
+    private static ExtractionCache cache;
+    private static boolean failed;
+
+    private DiskExtractionCache() {
+        throw new AssertionError();
+    }
+
+    static boolean enabled() {
+        return NbAntlrUtils.extractionCachingEnabled()
+                && !Boolean.getBoolean( "antlr.extraction.disk.cache.disabled" );
+    }
+
+    private static synchronized ExtractionCache cache() {
+        if ( cache == null && !failed ) {
+            try {
+                cache = new ExtractionCache( Places.getCacheSubdirectory( "antlr-extractions" ).toPath(), MAX_BYTES );
+            } catch ( IOException ex ) {
+                LOG.log( Level.INFO, "Could not create extraction cache", ex );
+                failed = true;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Get a compacted extraction of a file, from the cache or by parsing it
+     * and caching the result. The extraction returned is a private copy which
+     * nothing else holds - it is deserialized from the cache, or from the
+     * bytes written to it - so callers need not copy it again.
+     *
+     * @param fo A file
+     * @param parse Parses the file
+     * @return An extraction
+     * @throws Exception If parsing fails
+     * @see Extraction#compactCopy()
+     */
+    static Extraction compactExtraction( FileObject fo, ThrowingSupplier<Extraction> parse ) throws Exception {
+        ExtractionCache c = enabled() ? cache() : null;
+        if ( c == null ) {
+            return compactCopy( parse.get() );
+        }
+        String key = fo.toURL().toString();
+        String mimeType = fo.getMIMEType();
+        // Compute the hash before parsing, so a change to the file while it
+        // is being parsed cannot result in caching it under the new content
+        String hash = contentHash( fo );
+        try {
+            Extraction result = c.getCompacted( key, hash, type -> extractorsHash( mimeType, type ),
+                                                GrammarSource.find( fo, mimeType ) );
+            if ( result != null ) {
+                LOG.log( Level.FINEST, "Using cached extraction for {0}", fo.getPath() );
+                return result;
+            }
+        } catch ( RuntimeException ex ) {
+            LOG.log( Level.FINE, "Failed reading cached extraction of " + fo.getPath(), ex );
+        }
+        Extraction result = parse.get();
+        if ( result != null && !result.isPlaceholder() && !result.isDisposed() ) {
+            EXTRACTOR_HASHES.put( hashKey( result.mimeType(), result.documentRootType() ), result.creationHash() );
+            // Serializes once, for both the cache and the copy
+            Extraction compacted = c.putCompacted( key, hash, result );
+            if ( compacted != null ) {
+                return compacted;
+            }
+        }
+        return compactCopy( result );
+    }
+
+    private static Extraction compactCopy( Extraction result ) throws IOException {
+        // The parser result and symbol index may already hold the original
+        return result == null || result.isPlaceholder() ? result : result.compactCopy();
+    }
+
+    private static String hashKey( String mimeType, Class<?> type ) {
+        return mimeType + ':' + type.getName();
+    }
+
+    private static String extractorsHash( String mimeType, Class<? extends ParserRuleContext> type ) {
+        // Generated parsers use Extractor.forTypes() with the mime type and
+        // entry point type, so this is the hash a fresh parse would produce
+        return EXTRACTOR_HASHES.computeIfAbsent( hashKey( mimeType, type ),
+                                                 k -> Extractor.forTypes( mimeType, type ).extractorsHash() );
+    }
+
+    private static String contentHash( FileObject fo ) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( fo.asBytes() );
+            ByteBuffer buf = ByteBuffer.wrap( digest );
+            StringBuilder sb = new StringBuilder( 32 );
+            while ( buf.remaining() >= Long.BYTES ) {
+                sb.append( Long.toString( buf.getLong(), 36 ) );
+            }
+            while ( buf.hasRemaining() ) {
+                sb.append( Integer.toString( buf.get() & 0xFF, 36 ) );
+            }
+            return sb.toString();
+        } catch ( NoSuchAlgorithmException ex ) {
+            throw new AssertionError( ex );
+        }
+    }
+}
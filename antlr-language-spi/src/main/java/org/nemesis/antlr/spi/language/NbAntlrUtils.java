@@ -419,7 +419,10 @@ public final class NbAntlrUtils {
             }
             Extraction result = foCache.get( fo );
             if ( result == null || result.isSourceProbablyModifiedSinceCreation() ) {
-                result = NbAntlrUtils.parseImmediately( fo );
+                // Long-lived - share names with other cached extractions;
+                // the parser result and symbol index may already hold the
+                // original, so cache a compacted copy of it
+                result = DiskExtractionCache.compactExtraction( fo, () -> NbAntlrUtils.parseImmediately( fo ) );
                 if ( result != null && !result.isPlaceholder() ) {
                     foCache.put( fo, result );
                 }
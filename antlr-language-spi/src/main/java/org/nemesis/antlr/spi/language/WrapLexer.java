@@ -22,19 +22,24 @@ import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonToken;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.TokenFactory;
+import org.nemesis.extraction.HashedTokens;
+import org.nemesis.extraction.TokenHasher;
 
 /**
  * Wraps a lexer and implements TokenSource and allows for replaying the tokens
- * via the iterator.
+ * via the iterator. Tokens are hashed as they are lexed, while the input
+ * stream is still positioned just past them, so the extractor can get the
+ * tokens hash without fetching the text of every token.
  *
  * @author Tim Boudreau
  */
-final class WrapLexer<L extends org.antlr.v4.runtime.Lexer> implements IterableTokenSource {
+final class WrapLexer<L extends org.antlr.v4.runtime.Lexer> implements IterableTokenSource, HashedTokens {
 
     private final L delegate;
     private boolean eofEncountered;
     private boolean invoked;
     private final List<CommonToken> tokens = new ArrayList<>(512);
+    private TokenHasher hasher = new TokenHasher(512);
 
     WrapLexer(L delegate) {
         this.delegate = delegate;
@@ -73,10 +78,31 @@ final class WrapLexer<L extends org.antlr.v4.runtime.Lexer> implements IterableT
             tokens.add(result instanceof CommonToken
                     ? (CommonToken) result
                     : new CommonToken(result));
+            hasher.add(result);
         }
         return result;
     }
 
+    @Override
+    public String tokensHash() {
+        if (!invoked) {
+            spin();
+        }
+        return hasher.hash();
+    }
+
+    @Override
+    public long tokenHash(Token token) {
+        // Token indices are assigned by the token stream the parser pulls
+        // tokens through, which sees the same sequence we do
+        int index = token.getTokenIndex();
+        if (index >= 0 && index < tokens.size() && index < hasher.size()
+                && tokens.get(index) == token) {
+            return hasher.tokenHash(index);
+        }
+        return TokenHasher.hashOf(token);
+    }
+
     @Override
     public int getLine() {
         return delegate.getLine();
@@ -110,6 +136,7 @@ final class WrapLexer<L extends org.antlr.v4.runtime.Lexer> implements IterableT
     @Override
     public void dispose() {
         tokens.clear();
+        hasher = new TokenHasher(16);
     }
 
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.antlr.spi.language.impl;
+
+import java.util.Optional;
+import org.nemesis.extraction.attribution.IndexedSourceWatcher;
+import org.nemesis.source.api.GrammarSource;
+import org.openide.filesystems.FileChangeAdapter;
+import org.openide.filesystems.FileChangeListener;
+import org.openide.filesystems.FileEvent;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileRenameEvent;
+import org.openide.filesystems.FileUtil;
+import org.openide.util.lookup.ServiceProvider;
+
+/**
+ * Removes files from the SymbolIndex when they are deleted or renamed.
+ *
+ * @author Tim Boudreau
+ */
+@ServiceProvider( service = IndexedSourceWatcher.class )
+public final class FileObjectIndexedSourceWatcher implements IndexedSourceWatcher {
+
+    @Override
+    public Runnable watch( GrammarSource<?> src, Runnable onDeleted ) {
+        Optional<FileObject> fo = src.lookup( FileObject.class );
+        if ( !fo.isPresent() ) {
+            return null;
+        }
+        // The index holds the returned watch, and with it the listener
+        return new Watch( fo.get(), onDeleted );
+    }
+
+    private static final class Watch extends FileChangeAdapter implements Runnable {
+
+        private final FileObject file;
+        private final Runnable onDeleted;
+        private final FileChangeListener weak;
+
+        Watch( FileObject file, Runnable onDeleted ) {
+            this.file = file;
+            this.onDeleted = onDeleted;
+            weak = FileUtil.weakFileChangeListener( this, file );
+            file.addFileChangeListener( weak );
+        }
+
+        @Override
+        public void run() {
+            file.removeFileChangeListener( weak );
+        }
+
+        @Override
+        public void fileDeleted( FileEvent fe ) {
+            onDeleted.run();
+        }
+
+        @Override
+        public void fileRenamed( FileRenameEvent fe ) {
+            onDeleted.run();
+        }
+    }
+}
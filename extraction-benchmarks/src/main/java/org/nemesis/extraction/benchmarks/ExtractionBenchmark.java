@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import org.nemesis.antlr.ANTLRv4Lexer;
+import org.nemesis.antlr.ANTLRv4Parser;
+import org.nemesis.antlr.ANTLRv4Parser.GrammarFileContext;
+import static org.nemesis.antlr.common.AntlrConstants.ANTLR_MIME_TYPE;
+import org.nemesis.antlr.file.impl.AntlrExtractor;
+import org.nemesis.extraction.Extraction;
+import org.nemesis.extraction.Extractor;
+import org.nemesis.extraction.ExtractorBuilder;
+import org.nemesis.source.api.GrammarSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction of generated grammars of increasing size with the full set of
+ * Antlr grammar extraction strategies, walking the parse tree separately for
+ * each strategy versus once for all of them.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ExtractionBenchmark {
+
+    @Param({"50", "500", "2000"})
+    public int rules;
+
+    @Param({"SEPARATE", "FUSED"})
+    public Walk walk;
+
+    private Extractor<GrammarFileContext> extractor;
+    private GrammarFileContext tree;
+    private List<Token> tokens;
+
+    public enum Walk {
+        SEPARATE,
+        FUSED
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String text = SampleGrammar.generate("Bench", rules);
+        ANTLRv4Lexer lex = new ANTLRv4Lexer(CharStreams.fromString(text));
+        lex.removeErrorListeners();
+        tokens = new ArrayList<>();
+        for (Token t = lex.nextToken(); t.getType() != Token.EOF; t = lex.nextToken()) {
+            CommonToken ct = new CommonToken(t);
+            ct.setTokenIndex(tokens.size());
+            tokens.add(ct);
+        }
+        lex.reset();
+        ANTLRv4Parser parser = new ANTLRv4Parser(new CommonTokenStream(lex));
+        parser.removeErrorListeners();
+        tree = parser.grammarFile();
+        if (parser.getNumberOfSyntaxErrors() > 0) {
+            throw new IllegalStateException(parser.getNumberOfSyntaxErrors()
+                    + " syntax errors in generated grammar:\n" + text);
+        }
+        ExtractorBuilder<GrammarFileContext> bldr = Extractor.builder(GrammarFileContext.class, ANTLR_MIME_TYPE)
+                .fusingTreeWalks(walk == Walk.FUSED);
+        AntlrExtractor.populateBuilder(bldr);
+        extractor = bldr.build();
+    }
+
+    @Benchmark
+    public Extraction extract() {
+        return extractor.extract(tree, GrammarSource.none(), tokens);
+    }
+}
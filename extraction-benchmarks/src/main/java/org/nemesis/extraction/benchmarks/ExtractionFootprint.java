@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import org.nemesis.antlr.ANTLRv4Lexer;
+import org.nemesis.antlr.ANTLRv4Parser;
+import org.nemesis.antlr.ANTLRv4Parser.GrammarFileContext;
+import static org.nemesis.antlr.common.AntlrConstants.ANTLR_MIME_TYPE;
+import org.nemesis.antlr.file.impl.AntlrExtractor;
+import org.nemesis.extraction.Extraction;
+import org.nemesis.extraction.Extractor;
+import org.nemesis.extraction.ExtractorBuilder;
+import org.nemesis.source.api.GrammarSource;
+import org.openjdk.jol.info.GraphLayout;
+
+/**
+ * Reports the retained heap size of the extractions of a set of grammar
+ * files and of their <code>Extraction.compactCopy()</code>s, per file and for
+ * all of them together (where names shared between files are counted once).
+ * Not a JMH benchmark; after building with <code>-Pbenchmarks</code>, run
+ * <pre>
+ * java -cp extraction-benchmarks/target/benchmarks.jar \
+ *     org.nemesis.extraction.benchmarks.ExtractionFootprint [dir]
+ * </pre>
+ * The directory defaults to <code>ANTLRTestProjects</code>; build and target
+ * directories are skipped.
+ *
+ * @author Tim Boudreau
+ */
+public final class ExtractionFootprint {
+
+    private ExtractionFootprint() {
+        throw new AssertionError();
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "ANTLRTestProjects");
+        List<Path> files;
+        try (Stream<Path> all = Files.walk(dir)) {
+            files = all.filter(p -> p.getFileName().toString().endsWith(".g4"))
+                    .filter(p -> !p.toString().contains("/build/") && !p.toString().contains("/target/"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        if (files.isEmpty()) {
+            System.err.println("No .g4 files under " + dir.toAbsolutePath());
+            System.exit(1);
+        }
+        ExtractorBuilder<GrammarFileContext> bldr = Extractor.builder(GrammarFileContext.class, ANTLR_MIME_TYPE);
+        AntlrExtractor.populateBuilder(bldr);
+        Extractor<GrammarFileContext> extractor = bldr.build();
+        // Objects reachable from every extraction which are not part of its
+        // footprint
+        GraphLayout shared = GraphLayout.parseInstance(extractor, GrammarSource.none());
+
+        List<Extraction> extractions = new ArrayList<>(files.size());
+        long[] before = new long[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            Extraction ext = extract(extractor, files.get(i));
+            extractions.add(ext);
+            before[i] = size(ext, shared);
+        }
+        long totalBefore = size(extractions.toArray(), shared);
+        for (int i = 0; i < extractions.size(); i++) {
+            extractions.set(i, extractions.get(i).compactCopy());
+        }
+        long totalAfter = size(extractions.toArray(), shared);
+
+        Path base = dir.toAbsolutePath();
+        System.out.println(String.format("%-60s %12s %12s %7s", "File", "Before", "After", "Saved"));
+        for (int i = 0; i < files.size(); i++) {
+            long after = size(extractions.get(i), shared);
+            System.out.println(String.format("%-60s %12d %12d %6.1f%%",
+                    base.relativize(files.get(i).toAbsolutePath()), before[i], after,
+                    percent(before[i], after)));
+        }
+        System.out.println(String.format("%-60s %12d %12d %6.1f%%",
+                "All " + files.size() + " files", totalBefore, totalAfter,
+                percent(totalBefore, totalAfter)));
+    }
+
+    private static long size(Object root, GraphLayout shared) {
+        return GraphLayout.parseInstance(root).subtract(shared).totalSize();
+    }
+
+    private static double percent(long before, long after) {
+        return before == 0 ? 0 : 100D * (before - after) / before;
+    }
+
+    private static Extraction extract(Extractor<GrammarFileContext> extractor, Path file) throws IOException {
+        ANTLRv4Lexer lex = new ANTLRv4Lexer(CharStreams.fromPath(file));
+        lex.removeErrorListeners();
+        List<Token> tokens = new ArrayList<>();
+        for (Token t = lex.nextToken(); t.getType() != Token.EOF; t = lex.nextToken()) {
+            CommonToken ct = new CommonToken(t);
+            ct.setTokenIndex(tokens.size());
+            tokens.add(ct);
+        }
+        lex.reset();
+        ANTLRv4Parser parser = new ANTLRv4Parser(new CommonTokenStream(lex));
+        parser.removeErrorListeners();
+        return extractor.extract(parser.grammarFile(), GrammarSource.none(), tokens);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import static java.lang.invoke.MethodType.methodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-call dispatch overhead of calling the static <code>extract</code>
+ * method of a generated parser extractor the way the live parsing
+ * environment used to - looking the method up and invoking it reflectively
+ * on every parse - versus through a method handle looked up once. The
+ * target does no work, so this measures only the dispatch; run with
+ * <code>-prof gc</code> to see the boxing and varargs allocation.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvocationDispatchBenchmark {
+
+    private static final Class<?>[] INT_CS_BS = new Class<?>[]{int.class, CharSequence.class, BooleanSupplier.class};
+    private final CharSequence text = "grammar Foo; foo : 'x';";
+    private final BooleanSupplier cancelled = () -> false;
+    private int flags;
+    private Class<?> type;
+    private MethodHandle handle;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        type = Class.forName(GeneratedExtractor.class.getName());
+        handle = MethodHandles.publicLookup().findStatic(type, "extract",
+                methodType(Result.class, int.class, CharSequence.class, BooleanSupplier.class));
+    }
+
+    @Benchmark
+    public Result reflective() throws Exception {
+        Method m = type.getMethod("extract", INT_CS_BS);
+        return (Result) m.invoke(null, ++flags, text, cancelled);
+    }
+
+    @Benchmark
+    public Result methodHandle() throws Throwable {
+        return (Result) handle.invokeExact(++flags, text, cancelled);
+    }
+
+    public static final class Result {
+
+        final int flags;
+        final int length;
+
+        Result(int flags, int length) {
+            this.flags = flags;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Stand-in for a generated ParserExtractor.
+     */
+    public static final class GeneratedExtractor {
+
+        public static Result extract(int flags, CharSequence text, BooleanSupplier cancelled) {
+            return new Result(flags, cancelled.getAsBoolean() ? 0 : text.length());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction.benchmarks;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.nemesis.antlr.live.parsing.extract.AntlrProxies;
+import org.nemesis.antlr.live.parsing.extract.AntlrProxies.ParseTreeProxy;
+import org.nemesis.antlr.live.parsing.extract.AntlrProxies.ProxyToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the ParseTreeProxy for a large sample file the way the generated
+ * extractor does on every reparse, and looking up tokens by position in it.
+ * Run with <code>-prof gc</code> to see allocation and GC counts per
+ * reparse.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseTreeProxyBenchmark {
+
+    private static final Path GRAMMAR = Paths.get("/tmp/Words.g4");
+
+    @Param({"50000"})
+    public int tokens;
+
+    private StringBuilder text;
+    private int[] starts;
+    private int[] lines;
+    private int[] columns;
+    private ParseTreeProxy proxy;
+    private int[] positions;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random rnd = new Random(1312);
+        text = new StringBuilder(tokens * 5);
+        starts = new int[tokens + 1];
+        lines = new int[tokens + 1];
+        columns = new int[tokens + 1];
+        int line = 1;
+        int lineStart = 0;
+        for (int i = 0; i < tokens; i++) {
+            starts[i] = text.length();
+            lines[i] = line;
+            columns[i] = text.length() - lineStart;
+            if (i % 2 == 0) {
+                int len = 1 + rnd.nextInt(8);
+                for (int j = 0; j < len; j++) {
+                    text.append((char) ('a' + rnd.nextInt(26)));
+                }
+            } else if (rnd.nextInt(8) == 0) {
+                text.append('\n');
+                line++;
+                lineStart = text.length();
+            } else {
+                text.append(' ');
+            }
+        }
+        starts[tokens] = text.length();
+        lines[tokens] = line;
+        columns[tokens] = text.length() - lineStart;
+        proxy = build();
+        positions = new int[1024];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = rnd.nextInt(text.length());
+        }
+    }
+
+    @Benchmark
+    public ParseTreeProxy build() {
+        AntlrProxies proxies = new AntlrProxies("Words", GRAMMAR, text);
+        proxies.addTokenType(0, "word", "WORD", null);
+        proxies.addTokenType(1, "ws", "WS", null);
+        for (int i = 0; i < tokens; i++) {
+            int type = i % 2;
+            proxies.onToken(type, lines[i], columns[i], type, i, starts[i],
+                    starts[i + 1] - 1, 0, 0);
+        }
+        proxies.onToken(-1, lines[tokens], columns[tokens], 0, tokens,
+                starts[tokens], starts[tokens] - 1, 0, 0);
+        return proxies.result();
+    }
+
+    @Benchmark
+    public ProxyToken tokenAtPosition() {
+        int pos = positions[cursor++ & (positions.length - 1)];
+        return proxy.tokenAtPosition(pos);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction.benchmarks;
+
+/**
+ * Generates combined Antlr grammars of a given number of parser rules, each
+ * with labeled alternatives, ebnfs, actions and references to other rules and
+ * tokens, so that every kind of thing the Antlr extractor looks for is present
+ * in proportion to the size of the grammar.
+ *
+ * @author Tim Boudreau
+ */
+final class SampleGrammar {
+
+    private static final int KEYWORDS = 10;
+
+    private SampleGrammar() {
+        throw new AssertionError();
+    }
+
+    static String generate(String name, int parserRules) {
+        StringBuilder sb = new StringBuilder(parserRules * 320);
+        sb.append("grammar ").append(name).append(";\n\n");
+        sb.append("@header {\npackage com.foo.bench;\n}\n\n");
+        sb.append("compilationUnit : (");
+        for (int i = 0; i < Math.min(parserRules, 8); i++) {
+            if (i > 0) {
+                sb.append(" | ");
+            }
+            sb.append("rule").append(i);
+        }
+        sb.append(")+ EOF;\n\n");
+        for (int i = 0; i < parserRules; i++) {
+            sb.append("/** Generated rule ").append(i).append(". */\n");
+            sb.append("rule").append(i).append('\n');
+            sb.append("    : KW").append(i % KEYWORDS).append(" name=ID (COMMA rule")
+                    .append((i + 1) % parserRules).append(")* # Rule").append(i).append("First\n");
+            sb.append("    | LPAREN (rule").append((i * 7 + 3) % parserRules)
+                    .append(" | NUMBER)+? RPAREN { System.out.println(\"rule")
+                    .append(i).append("\"); } # Rule").append(i).append("Second\n");
+            sb.append("    | (STRING | ID)* SEMI # Rule").append(i).append("Third\n");
+            sb.append("    ;\n\n");
+        }
+        for (int i = 0; i < KEYWORDS; i++) {
+            sb.append("KW").append(i).append(" : 'kw").append(i).append("';\n");
+        }
+        sb.append("COMMA : ',';\n");
+        sb.append("SEMI : ';';\n");
+        sb.append("LPAREN : '(';\n");
+        sb.append("RPAREN : ')';\n");
+        sb.append("NUMBER : Digit+;\n");
+        sb.append("STRING : '\"' (~[\"\\\\] | '\\\\' .)* '\"';\n");
+        sb.append("ID : [a-zA-Z_] IdChar*;\n");
+        sb.append("LINE_COMMENT : '//' ~[\\r\\n]* -> channel(HIDDEN);\n");
+        sb.append("WS : [ \\t\\r\\n]+ -> skip;\n");
+        sb.append("fragment Digit : [0-9];\n");
+        sb.append("fragment IdChar : [a-zA-Z0-9_];\n");
+        return sb.toString();
+    }
+}
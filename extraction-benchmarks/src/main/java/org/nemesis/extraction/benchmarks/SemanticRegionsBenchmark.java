@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.nemesis.data.SemanticRegion;
+import org.nemesis.data.SemanticRegions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Positional queries against semantic regions of various shapes - flat,
+ * shallowly nested like blocks in typical source, and a single deep chain -
+ * through the flyweight-returning API and the allocation-free ones. Run with
+ * <code>-prof gc</code> to see allocation rates.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SemanticRegionsBenchmark {
+
+    @Param({"100000"})
+    public int regions;
+
+    @Param({"FLAT", "BLOCKS", "DEEP"})
+    public Shape shape;
+
+    private SemanticRegions<String> regs;
+    private SemanticRegions<String>.Cursor cursor;
+    private final List<String> keys = new ArrayList<>();
+    private int[] positions;
+    private int cursorPosition;
+
+    public enum Shape {
+        FLAT,
+        BLOCKS,
+        DEEP
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SemanticRegions.SemanticRegionsBuilder<String> bldr = SemanticRegions.builder(String.class, regions);
+        int length;
+        switch (shape) {
+            case FLAT:
+                for (int i = 0; i < regions; i++) {
+                    bldr.add("r" + i, i * 10, i * 10 + 8);
+                }
+                length = regions * 10;
+                break;
+            case BLOCKS:
+                List<int[]> bounds = new ArrayList<>(regions);
+                length = 0;
+                while (bounds.size() < regions) {
+                    length = blocks(bounds, length, regions, 0) + 2;
+                }
+                for (int i = 0; i < bounds.size(); i++) {
+                    bldr.add("r" + i, bounds.get(i)[0], bounds.get(i)[1]);
+                }
+                break;
+            case DEEP:
+                length = regions * 4;
+                for (int i = 0; i < regions; i++) {
+                    bldr.add("r" + i, i * 2, length - (i * 2));
+                }
+                break;
+            default:
+                throw new AssertionError(shape);
+        }
+        regs = bldr.build();
+        cursor = regs.cursor();
+        Random rnd = new Random(12345);
+        positions = new int[4096];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = rnd.nextInt(length);
+        }
+        // Build any index before measuring
+        regs.indexAt(0);
+    }
+
+    // Nested blocks with a fan-out of eight, like methods in classes in
+    // files, with a few characters between siblings; regions are collected
+    // in preorder, which is the order they must be added in
+    private static int blocks(List<int[]> into, int start, int max, int depth) {
+        int[] region = new int[]{start, 0};
+        into.add(region);
+        int pos = start + 2;
+        for (int i = 0; i < 8 && depth < 6 && into.size() < max; i++) {
+            pos = blocks(into, pos, max, depth + 1) + 2;
+        }
+        return region[1] = pos;
+    }
+
+    private int nextPosition() {
+        return positions[cursorPosition++ & (positions.length - 1)];
+    }
+
+    @Benchmark
+    public SemanticRegion<String> at() {
+        return regs.at(nextPosition());
+    }
+
+    @Benchmark
+    public int indexAt() {
+        return regs.indexAt(nextPosition());
+    }
+
+    @Benchmark
+    public int cursorDepth() {
+        cursor.moveTo(nextPosition());
+        return cursor.depth();
+    }
+
+    @Benchmark
+    public int keysAtPoint() {
+        keys.clear();
+        regs.keysAtPoint(nextPosition(), keys);
+        return keys.size();
+    }
+}
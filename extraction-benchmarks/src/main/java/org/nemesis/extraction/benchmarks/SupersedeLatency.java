@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.atn.ATNConfigSet;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.nemesis.antlr.ANTLRv4Lexer;
+import org.nemesis.antlr.ANTLRv4Parser;
+
+/**
+ * Simulates bursts of typing in a sample file, each keystroke requesting a
+ * parse of the new text on a small pool of parse threads, and reports
+ * percentiles of the latency from the last keystroke of a burst to the
+ * result for its text - once with every parse running to completion, as the
+ * live parser used to, and once with each keystroke superseding (cancelling)
+ * the parse of the previous text, checking for cancellation in the token
+ * stream and prediction loop the way the generated ParserExtractor does.
+ * The Antlr grammar parser over a generated grammar stands in for a parser
+ * generated from the user's grammar. Not a JMH benchmark; after building with
+ * <code>-Pbenchmarks</code>, run
+ * <pre>
+ * java -cp extraction-benchmarks/target/benchmarks.jar \
+ *     org.nemesis.extraction.benchmarks.SupersedeLatency [rules] [bursts] [keystrokes] [intervalMillis] [threads]
+ * </pre>
+ *
+ * @author Tim Boudreau
+ */
+public final class SupersedeLatency {
+
+    private SupersedeLatency() {
+        throw new AssertionError();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rules = intArg(args, 0, 400);
+        int bursts = intArg(args, 1, 50);
+        int keystrokes = intArg(args, 2, 8);
+        int interval = intArg(args, 3, 15);
+        int threads = intArg(args, 4, 2);
+        String text = SampleGrammar.generate("Latency", rules);
+        long parseNanos = warmUp(text);
+        System.out.println(String.format("%d chars, one parse %.1fms; %d bursts of %d keystrokes %dms apart on %d threads",
+                text.length(), parseNanos / 1_000_000D, bursts, keystrokes, interval, threads));
+        System.out.println(String.format("%-18s %8s %8s %8s %8s %8s %10s",
+                "", "p50", "p90", "p99", "max", "mean", "abandoned"));
+        for (boolean supersede : new boolean[]{false, true}) {
+            run(text, supersede, bursts, keystrokes, interval, threads);
+        }
+    }
+
+    private static void run(String text, boolean supersede, int bursts, int keystrokes,
+            int interval, int threads) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long[] latencies = new long[bursts];
+        int abandoned = 0;
+        try {
+            for (int b = 0; b < bursts; b++) {
+                List<Future<?>> futures = new ArrayList<>(keystrokes);
+                List<ParseJob> jobs = new ArrayList<>(keystrokes);
+                ParseJob previous = null;
+                long lastKeystroke = 0;
+                for (int k = 0; k < keystrokes; k++) {
+                    if (k > 0) {
+                        Thread.sleep(interval);
+                    }
+                    ParseJob job = new ParseJob(text + "\n// burst " + b + " keystroke " + k + "\n");
+                    if (supersede && previous != null) {
+                        previous.cancelled = true;
+                    }
+                    lastKeystroke = System.nanoTime();
+                    futures.add(pool.submit(job));
+                    jobs.add(job);
+                    previous = job;
+                }
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+                latencies[b] = previous.finished - lastKeystroke;
+                for (ParseJob job : jobs) {
+                    if (job.wasAbandoned) {
+                        abandoned++;
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        Arrays.sort(latencies);
+        long total = 0;
+        for (long l : latencies) {
+            total += l;
+        }
+        System.out.println(String.format("%-18s %8.1f %8.1f %8.1f %8.1f %8.1f %10d",
+                supersede ? "supersede" : "run to completion",
+                millis(percentile(latencies, 50)), millis(percentile(latencies, 90)),
+                millis(percentile(latencies, 99)), millis(latencies[latencies.length - 1]),
+                millis(total / latencies.length), abandoned));
+    }
+
+    private static long warmUp(String text) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 20; i++) {
+            long start = System.nanoTime();
+            new ParseJob(text).run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static long percentile(long[] sorted, int pct) {
+        int ix = (int) Math.ceil(pct / 100D * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, ix))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000D;
+    }
+
+    private static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    static final class ParseJob implements Runnable, BooleanSupplier {
+
+        private final String text;
+        volatile boolean cancelled;
+        volatile boolean wasAbandoned;
+        volatile long finished;
+
+        ParseJob(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public boolean getAsBoolean() {
+            return cancelled;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!cancelled) {
+                    ANTLRv4Lexer lex = new ANTLRv4Lexer(CharStreams.fromString(text));
+                    lex.removeErrorListeners();
+                    ANTLRv4Parser parser = new ANTLRv4Parser(new CancellableTokenStream(lex, this));
+                    parser.setInterpreter(new CancellableATNSimulator(parser, this));
+                    parser.removeErrorListeners();
+                    parser.grammarFile();
+                } else {
+                    wasAbandoned = true;
+                }
+            } catch (Cancelled ex) {
+                wasAbandoned = true;
+            } finally {
+                finished = System.nanoTime();
+            }
+        }
+    }
+
+    static final class Cancelled extends RuntimeException {
+
+        Cancelled() {
+            super("Cancelled", null, false, false);
+        }
+    }
+
+    static final class CancellableTokenStream extends CommonTokenStream {
+
+        private final BooleanSupplier cancelled;
+
+        CancellableTokenStream(TokenSource tokenSource, BooleanSupplier cancelled) {
+            super(tokenSource);
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected int fetch(int n) {
+            if (cancelled.getAsBoolean()) {
+                throw new Cancelled();
+            }
+            return super.fetch(n);
+        }
+    }
+
+    static final class CancellableATNSimulator extends ParserATNSimulator {
+
+        private final BooleanSupplier cancelled;
+
+        CancellableATNSimulator(Parser parser, BooleanSupplier cancelled) {
+            super(parser, parser.getATN(), parser.getInterpreter().decisionToDFA,
+                    parser.getInterpreter().getSharedContextCache());
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public int adaptivePredict(TokenStream input, int decision, ParserRuleContext outerContext) {
+            if (cancelled.getAsBoolean()) {
+                throw new Cancelled();
+            }
+            return super.adaptivePredict(input, decision, outerContext);
+        }
+
+        @Override
+        protected ATNConfigSet computeReachSet(ATNConfigSet closure, int t, boolean fullCtx) {
+            if (cancelled.getAsBoolean()) {
+                throw new Cancelled();
+            }
+            return super.computeReachSet(closure, t, fullCtx);
+        }
+    }
+}
@@ -43,7 +43,7 @@ import java.util.function.Function;
 import java.util.function.Predicate;
 import org.nemesis.data.SemanticRegions.SemanticRegionImpl;
 import org.nemesis.data.impl.ArrayUtil;
-import org.nemesis.data.impl.SizedArrayValueSupplier;
+import org.nemesis.data.impl.NestingIndex;
 
 /**
  * A collection of nestable semantic regions, which have some (optional) data
@@ -103,6 +103,8 @@ public final class SemanticRegions<T> implements Iterable<SemanticRegion<T>>, Se
     private int size;
     private boolean hasNesting = false;
     private int firstUnsortedEndsEntry = -1;
+    // Built on demand for nested regions, and discarded on modification
+    private transient volatile NestingIndex nestingIndex;
 
     public SemanticRegions<T> flatten(Function<List<? extends T>, T> coalescer) {
         if (!hasNesting) {
@@ -723,7 +725,7 @@ public final class SemanticRegions<T> implements Iterable<SemanticRegion<T>>, Se
         }
 
         List<SemanticRegion<T>> result = null;
-        int startPoint = indexAndDepthAt(start)[0];
+        int startPoint = indexAt(start);
         if (startPoint < 0) {
             IntRange<? extends IntRange> bounds = bounds();
             RangePositionRelation startRelation = bounds.relationTo(start);
@@ -762,7 +764,7 @@ public final class SemanticRegions<T> implements Iterable<SemanticRegion<T>>, Se
                     }
             }
         } else if (startPoint > 0) {
-            // indexAndDepthAt gets us the deepest index,
+            // indexAt gets us the deepest index,
             // so we need to back up to the first element containing the
             // start position
             while (startPoint > 0) {
@@ -1005,29 +1007,118 @@ public final class SemanticRegions<T> implements Iterable<SemanticRegion<T>>, Se
         return result;
     }
 
+    /**
+     * Add the keys of all regions containing the passed position to the
+     * passed collection, outermost first.
+     *
+     * @param pos A position
+     * @param into A collection
+     */
     public void keysAtPoint(int pos, Collection<? super T> into) {
-        SemanticRegion<T> reg = at(pos);
-        if (reg != null) {
-            SemanticRegion<T> outer = reg.outermost();
-            if (outer != null) {
-                reg = outer;
+        int ix = indexAt(pos);
+        if (ix < 0) {
+            return;
+        }
+        NestingIndex nesting = nesting();
+        int depth = nesting == null ? 0 : nesting.depth(ix);
+        if (depth == 0) {
+            into.add(keys == null ? null : keys[ix]);
+            return;
+        }
+        if (into instanceof List<?>) {
+            // Walk outward from the innermost region, inserting each key in
+            // front of those of the regions it contains
+            @SuppressWarnings("unchecked")
+            List<? super T> list = (List<? super T>) into;
+            int at = list.size();
+            for (int curr = ix; curr >= 0; curr = nesting.parent(curr)) {
+                list.add(at, keys == null ? null : keys[curr]);
             }
-            reg.keysAtPoint(pos, into);
+            return;
+        }
+        // Order may matter to other collections too, so find each ancestor
+        // outermost first; depths are small, so re-walking the chain for
+        // each level beats allocating somewhere to store it
+        for (int level = 0; level <= depth; level++) {
+            int curr = ix;
+            for (int up = depth - level; up > 0; up--) {
+                curr = nesting.parent(curr);
+            }
+            into.add(keys == null ? null : keys[curr]);
         }
     }
 
-    int indexAtPoint(int pos) {
+    private NestingIndex nesting() {
         if (!hasNesting) {
-            return ArrayUtil.rangeBinarySearch(pos, starts, new MES(), size);
+            return null;
         }
-        if (firstUnsortedEndsEntry > 0) {
-            int lastSortedEnd = ends[firstUnsortedEndsEntry - 1];
-            if (lastSortedEnd > pos) {
-                return ArrayUtil.rangeBinarySearch(pos, 0, lastSortedEnd - 1, starts, new MES(), size);
-            }
+        NestingIndex result = nestingIndex;
+        if (result == null) {
+            // Benign race - at worst two threads build identical indices
+            nestingIndex = result = NestingIndex.create(starts, ends, size);
+        }
+        return result;
+    }
+
+    /**
+     * Get the index of the <i>innermost</i> region containing the passed
+     * position, without creating any objects. For regions which have
+     * nesting, the first such query builds an index of the nesting
+     * structure, after which queries take logarithmic time regardless of how
+     * deeply regions are nested.
+     *
+     * @param pos A position
+     * @return The index of a region, usable with <code>forIndex()</code>,
+     * <code>startAt()</code>, <code>endAt()</code> and <code>keyAt()</code>,
+     * or -1 if no region contains the position
+     */
+    public int indexAt(int pos) {
+        if (!hasNesting) {
+            int ix = NestingIndex.lastStartAtOrBefore(pos, starts, size);
+            return ix >= 0 && ends[ix] > pos ? ix : -1;
+        }
+        return nesting().innermostContaining(pos, starts, ends, size);
+    }
+
+    /**
+     * Get the nesting depth of the region at the passed index, 0 being
+     * outermost.
+     *
+     * @param index An index
+     * @return The depth
+     */
+    public int depthAt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index + " of " + size);
         }
-        int[] id = indexAndDepthAt(pos);
-        return id[0];
+        NestingIndex nesting = nesting();
+        return nesting == null ? 0 : nesting.depth(index);
+    }
+
+    /**
+     * Get the index of the immediate parent of the region at the passed
+     * index.
+     *
+     * @param index An index
+     * @return The index of the parent, or -1 if it is outermost
+     */
+    public int parentIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index + " of " + size);
+        }
+        NestingIndex nesting = nesting();
+        return nesting == null ? -1 : nesting.parent(index);
+    }
+
+    /**
+     * Create a cursor which can be repositioned repeatedly to find the
+     * regions at a position without creating any objects; useful for code
+     * that runs on every caret movement or repaint.
+     *
+     * @return A cursor
+     */
+    public Cursor cursor() {
+        return new Cursor();
     }
 
     boolean checkInvariants() {
@@ -1109,6 +1200,7 @@ public final class SemanticRegions<T> implements Iterable<SemanticRegion<T>>, Se
         }
         size++;
         hasNesting |= start <= lastStart || end <= lastEnd;
+        nestingIndex = null;
         assert checkInvariants();
     }
 
@@ -1122,19 +1214,16 @@ public final class SemanticRegions<T> implements Iterable<SemanticRegion<T>>, Se
      */
     @Override
     public SemanticRegion<T> at(int pos) {
-        int[] id = indexAndDepthAt(pos);
-        if (id[0] == -1) {
+        int ix = indexAt(pos);
+        if (ix == -1) {
             return null;
         }
-        return new SemanticRegionImpl(id[0], id[1]);
+        return new SemanticRegionImpl(ix, depthAt(ix));
     }
 
     int[] indexAndDepthAt(int pos) {
-        if (!hasNesting) {
-            int ix = ArrayUtil.rangeBinarySearch(pos, starts, new MES(), size);
-            return new int[]{ix, ix == 0 ? 0 : -1};
-        }
-        return ArrayUtil.nestingBinarySearch(pos, starts, ends, size, hasNesting, firstUnsortedEndsEntry);
+        int ix = indexAt(pos);
+        return ix < 0 ? new int[]{-1, -1} : new int[]{ix, depthAt(ix)};
     }
 
     private void grow(int targetArrayLength) {
@@ -1531,48 +1620,26 @@ public final class SemanticRegions<T> implements Iterable<SemanticRegion<T>>, Se
 
         @Override
         public SemanticRegionImpl parent() {
-            if (depth == 0) {
+            if (depth == 0 || !hasNesting) {
                 return null;
             }
-            int targetIndex = -1;
-            for (int i = index - 1; i >= 0; i--) {
-                if (starts[i] <= start() && ends[i] >= end()) {
-                    targetIndex = i;
-                    break;
-                }
-            }
+            int targetIndex = nesting().parent(index);
             return targetIndex == -1 ? null : new SemanticRegionImpl(targetIndex, -1);
         }
 
         @Override
         public SemanticRegionImpl outermost() {
-            if (depth == 0) {
+            if (depth == 0 || !hasNesting) {
                 return null;
             }
-            int targetIndex = -1;
-            for (int i = index - 1; i >= 0; i--) {
-                if (starts[i] <= start() && ends[i] >= end()) {
-                    targetIndex = i;
-                }
-            }
-            return targetIndex == -1 ? null : new SemanticRegionImpl(targetIndex, -1);
+            int targetIndex = nesting().outermost(index);
+            return targetIndex == index ? null : new SemanticRegionImpl(targetIndex, 0);
         }
 
         @Override
         public int nestingDepth() {
             if (depth == -1) {
-                if (index == 0) {
-                    return 0;
-                }
-                int start = index - 1;
-                int computedDepth = 0;
-                while (start >= 0) {
-                    if (ends[start] >= end()) {
-                        computedDepth++;
-                    }
-                    start--;
-                }
-                return depth = computedDepth;
+                return depth = depthAt(index);
             }
             return depth;
         }
@@ -1650,16 +1717,111 @@ public final class SemanticRegions<T> implements Iterable<SemanticRegion<T>>, Se
         }
     }
 
-    private final class MES implements SizedArrayValueSupplier {
+    /**
+     * A reusable pointer to the innermost region at a position, which can be
+     * walked outward through that region's parents, for callers which query
+     * positions at high frequency and should not create a SemanticRegion for
+     * each query. Not thread-safe.
+     */
+    public final class Cursor {
+
+        private int index = -1;
+        private int depth = -1;
+
+        Cursor() {
+            // do nothing
+        }
+
+        /**
+         * Move to the innermost region containing a position.
+         *
+         * @param pos A position
+         * @return true if a region contains the position
+         */
+        public boolean moveTo(int pos) {
+            index = indexAt(pos);
+            depth = index < 0 ? -1 : depthAt(index);
+            return index >= 0;
+        }
+
+        /**
+         * Move to the parent of the current region.
+         *
+         * @return true if there was a parent to move to; if false, the
+         * cursor is not moved
+         */
+        public boolean toParent() {
+            if (index < 0) {
+                return false;
+            }
+            int parent = parentIndex(index);
+            if (parent < 0) {
+                return false;
+            }
+            index = parent;
+            depth--;
+            return true;
+        }
 
-        @Override
-        public int get(int index) {
-            return ends[index];
+        /**
+         * Determine if the last call to <code>moveTo()</code> found a region.
+         *
+         * @return true if the cursor is positioned on a region
+         */
+        public boolean isPositioned() {
+            return index >= 0;
+        }
+
+        /**
+         * Get the index of the current region.
+         *
+         * @return The index, or -1 if not positioned
+         */
+        public int index() {
+            return index;
+        }
+
+        /**
+         * Get the nesting depth of the current region.
+         *
+         * @return The depth, or -1 if not positioned
+         */
+        public int depth() {
+            return depth;
+        }
+
+        public int start() {
+            return starts[checkPositioned()];
+        }
+
+        public int end() {
+            return ends[checkPositioned()];
+        }
+
+        public T key() {
+            return keys == null ? null : keys[checkPositioned()];
+        }
+
+        /**
+         * Get the current region as a SemanticRegion.
+         *
+         * @return A region, or null if not positioned
+         */
+        public SemanticRegion<T> region() {
+            return index < 0 ? null : new SemanticRegionImpl(index, depth);
+        }
+
+        private int checkPositioned() {
+            if (index < 0) {
+                throw new IllegalStateException("Cursor not positioned");
+            }
+            return index;
         }
 
         @Override
-        public int size() {
-            return size;
+        public String toString() {
+            return index < 0 ? "Cursor(-)" : "Cursor(" + start() + ":" + end()
+                    + "@" + index + "^" + depth + ")";
         }
     }
 
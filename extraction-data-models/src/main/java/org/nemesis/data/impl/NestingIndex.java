@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.data.impl;
+
+import java.util.Arrays;
+
+/**
+ * Containment index over a start/end array pair with the ordering constraints
+ * of SemanticRegions (starts sorted, containers before the things they
+ * contain, no straddling), which records the parent and nesting depth of each
+ * entry, plus a skip pointer to some further ancestor, chosen so that the
+ * innermost ancestor of an entry that contains a position can be found in
+ * O(log depth) steps, without allocating, however deeply regions are nested.
+ * <p>
+ * Every region containing a position is an ancestor-or-self of the last
+ * region starting at or before it, and ends can only grow moving outward, so
+ * finding the innermost region containing a position is a binary search on the
+ * starts followed by a search up one ancestor chain for the first end past the
+ * position. Non-API.
+ *
+ * @author Tim Boudreau
+ */
+public final class NestingIndex {
+
+    private final int[] parents;
+    private final int[] depths;
+    private final int[] jumps;
+
+    private NestingIndex(int[] parents, int[] depths, int[] jumps) {
+        this.parents = parents;
+        this.depths = depths;
+        this.jumps = jumps;
+    }
+
+    /**
+     * Build an index; linear in the number of entries.
+     *
+     * @param starts The start offsets
+     * @param ends The end offsets
+     * @param size The number of entries in use
+     * @return An index
+     */
+    public static NestingIndex create(int[] starts, int[] ends, int size) {
+        int[] parents = new int[size];
+        int[] depths = new int[size];
+        int[] jumps = new int[size];
+        int[] stack = new int[Math.max(4, Math.min(size, 32))];
+        int top = -1;
+        for (int i = 0; i < size; i++) {
+            while (top >= 0 && ends[stack[top]] <= starts[i]) {
+                top--;
+            }
+            if (top < 0) {
+                parents[i] = -1;
+                depths[i] = 0;
+                jumps[i] = i;
+            } else {
+                int p = stack[top];
+                parents[i] = p;
+                depths[i] = depths[p] + 1;
+                // Skew-binary jump pointers: jump twice as far whenever the
+                // parent's two jumps cover equal distances
+                int pj = jumps[p];
+                int pjj = jumps[pj];
+                jumps[i] = depths[p] - depths[pj] == depths[pj] - depths[pjj] ? pjj : p;
+            }
+            if (++top == stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top] = i;
+        }
+        return new NestingIndex(parents, depths, jumps);
+    }
+
+    /**
+     * Get the index of the last entry whose start is less than or equal to the
+     * passed position, preferring the last of several equal starts.
+     *
+     * @param pos A position
+     * @param starts The start offsets, sorted
+     * @param size The number of entries in use
+     * @return An index or -1
+     */
+    public static int lastStartAtOrBefore(int pos, int[] starts, int size) {
+        int lo = 0;
+        int hi = size - 1;
+        int result = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= pos) {
+                result = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the innermost entry which contains the passed position.
+     *
+     * @param pos A position
+     * @param starts The start offsets this index was created over
+     * @param ends The end offsets this index was created over
+     * @param size The number of entries in use
+     * @return An index or -1
+     */
+    public int innermostContaining(int pos, int[] starts, int[] ends, int size) {
+        int result = lastStartAtOrBefore(pos, starts, size);
+        if (result < 0) {
+            return -1;
+        }
+        return ancestorContaining(result, pos, ends);
+    }
+
+    /**
+     * Find the innermost of an entry and its ancestors whose end is after the
+     * passed position (which must not be before the start of the entry).
+     *
+     * @param index An entry
+     * @param pos A position
+     * @param ends The end offsets this index was created over
+     * @return An index or -1
+     */
+    public int ancestorContaining(int index, int pos, int[] ends) {
+        int result = index;
+        while (ends[result] <= pos) {
+            int jump = jumps[result];
+            if (jump != result && ends[jump] <= pos) {
+                // Everything between here and there ends before the jump
+                // target does, so cannot contain the position either
+                result = jump;
+            } else {
+                result = parents[result];
+                if (result < 0) {
+                    return -1;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the parent of an entry.
+     *
+     * @param index An entry
+     * @return The index of its parent, or -1
+     */
+    public int parent(int index) {
+        return parents[index];
+    }
+
+    /**
+     * Get the number of ancestors of an entry.
+     *
+     * @param index An entry
+     * @return The depth
+     */
+    public int depth(int index) {
+        return depths[index];
+    }
+
+    /**
+     * Get the outermost ancestor of an entry.
+     *
+     * @param index An entry
+     * @return The index of the outermost ancestor, or the passed index if it
+     * has no parent
+     */
+    public int outermost(int index) {
+        int result = index;
+        while (parents[result] >= 0) {
+            // Jump pointers always point to an ancestor, and those of roots
+            // point to themselves
+            result = jumps[result];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.data.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A VM-wide, weakly held string table used to share one instance of each
+ * name between the extractions of many files - rule names, token names and
+ * the like recur across the grammars in a project. Strings are held only as
+ * long as something else references them; unlike <code>String.intern()</code>
+ * nothing is retained permanently. The table is striped to keep contention
+ * down when many extractions are compacted at once. Non-API.
+ *
+ * @author Tim Boudreau
+ */
+public final class SymbolTable {
+
+    private static final int STRIPES = 16;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Map<String, WeakReference<String>>[] TABLES = new Map[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            TABLES[i] = new WeakHashMap<>(256);
+        }
+    }
+
+    private SymbolTable() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Get the shared instance of a string equal to the passed one, making
+     * the passed one the shared instance if there is none.
+     *
+     * @param s A string or null
+     * @return A string equal to the passed one, or null
+     */
+    public static String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        int h = s.hashCode();
+        Map<String, WeakReference<String>> table = TABLES[(h ^ (h >>> 16)) & (STRIPES - 1)];
+        synchronized (table) {
+            WeakReference<String> ref = table.get(s);
+            String result = ref == null ? null : ref.get();
+            if (result == null) {
+                table.put(s, new WeakReference<>(s));
+                result = s;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.data.named;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.IntConsumer;
+
+/**
+ * Index over the sorted name array of a NamedSemanticRegions, for the kinds
+ * of lookup done by code completion, navigation and hints which suggest
+ * alternatives for unknown names. Supports:
+ * <ul>
+ * <li>Case-sensitive and case-insensitive prefix lookup in O(log n + k), by
+ * binary search of the name array and of a case-insensitively sorted
+ * permutation of it</li>
+ * <li>Camel-case lookup, where each upper-case-initiated chunk of the pattern
+ * must prefix successive words of a name (so <code>paRuSp</code> and
+ * <code>PRS</code> both match <code>parserRuleSpec</code>), narrowed by a
+ * binary search of names sorted by their initials</li>
+ * <li>Edit-distance lookup, either of all names within some distance or the
+ * nearest <i>n</i>, using a BK-tree so that most names are never compared
+ * to the query</li>
+ * </ul>
+ * All results are reported as indices into the name array. Instances are
+ * immutable once built, and are written along with the NamedSemanticRegions
+ * they belong to if they had been built at the time it was serialized.
+ *
+ * @author Tim Boudreau
+ */
+public final class NameIndex {
+
+    private static final Comparator<String> IGNORE_CASE = String.CASE_INSENSITIVE_ORDER;
+    private final String[] names;
+    private final int size;
+    // Indices into names, sorted case-insensitively
+    private final int[] byFoldedName;
+    // Lower-cased first characters of each word of each name
+    private final String[] initials;
+    // Indices into names, sorted by initials
+    private final int[] byInitials;
+    // BK-tree; the root is index zero, children are linked lists
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final int[] edgeDistance;
+
+    private NameIndex(String[] names, int size, int[] byFoldedName, String[] initials,
+            int[] byInitials, int[] firstChild, int[] nextSibling, int[] edgeDistance) {
+        this.names = names;
+        this.size = size;
+        this.byFoldedName = byFoldedName;
+        this.initials = initials;
+        this.byInitials = byInitials;
+        this.firstChild = firstChild;
+        this.nextSibling = nextSibling;
+        this.edgeDistance = edgeDistance;
+    }
+
+    /**
+     * Build an index over the first <code>size</code> elements of a sorted
+     * array of unique names.
+     *
+     * @param names The names
+     * @param size The number of names in use
+     * @return An index
+     */
+    static NameIndex create(String[] names, int size) {
+        String[] initials = new String[size];
+        for (int i = 0; i < size; i++) {
+            initials[i] = initialsOf(names[i]);
+        }
+        int[] byFoldedName = sortedIndices(size, (a, b) -> {
+            int result = IGNORE_CASE.compare(names[a], names[b]);
+            return result == 0 ? Integer.compare(a, b) : result;
+        });
+        int[] byInitials = sortedIndices(size, (a, b) -> {
+            int result = initials[a].compareTo(initials[b]);
+            return result == 0 ? Integer.compare(a, b) : result;
+        });
+        int[] firstChild = new int[size];
+        int[] nextSibling = new int[size];
+        int[] edgeDistance = new int[size];
+        Arrays.fill(firstChild, -1);
+        Arrays.fill(nextSibling, -1);
+        Distance dist = new Distance();
+        for (int i = 1; i < size; i++) {
+            int node = 0;
+            for (;;) {
+                int d = dist.compute(names[i], names[node]);
+                int child = firstChild[node];
+                while (child >= 0 && edgeDistance[child] != d) {
+                    child = nextSibling[child];
+                }
+                if (child < 0) {
+                    edgeDistance[i] = d;
+                    nextSibling[i] = firstChild[node];
+                    firstChild[node] = i;
+                    break;
+                }
+                node = child;
+            }
+        }
+        return new NameIndex(names, size, byFoldedName, initials, byInitials,
+                firstChild, nextSibling, edgeDistance);
+    }
+
+    private static int[] sortedIndices(int size, Comparator<Integer> comp) {
+        Integer[] boxed = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            boxed[i] = i;
+        }
+        Arrays.sort(boxed, comp);
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = boxed[i];
+        }
+        return result;
+    }
+
+    void write(ObjectOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeInt(byFoldedName[i]);
+            out.writeInt(byInitials[i]);
+            out.writeInt(firstChild[i]);
+            out.writeInt(nextSibling[i]);
+            out.writeInt(edgeDistance[i]);
+        }
+    }
+
+    static NameIndex read(ObjectInput in, String[] names) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > names.length) {
+            throw new IOException("Bad name index size " + size + " for " + names.length + " names");
+        }
+        int[] byFoldedName = new int[size];
+        int[] byInitials = new int[size];
+        int[] firstChild = new int[size];
+        int[] nextSibling = new int[size];
+        int[] edgeDistance = new int[size];
+        String[] initials = new String[size];
+        for (int i = 0; i < size; i++) {
+            byFoldedName[i] = in.readInt();
+            byInitials[i] = in.readInt();
+            firstChild[i] = in.readInt();
+            nextSibling[i] = in.readInt();
+            edgeDistance[i] = in.readInt();
+            initials[i] = initialsOf(names[i]);
+        }
+        return new NameIndex(names, size, byFoldedName, initials, byInitials,
+                firstChild, nextSibling, edgeDistance);
+    }
+
+    /**
+     * Get the number of names indexed.
+     *
+     * @return The size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find all names starting with a prefix.
+     *
+     * @param prefix A prefix
+     * @param ignoreCase Whether to match regardless of case
+     * @param c Called with the index of each matching name, in sorted order
+     * @return The number of matches
+     */
+    public int prefixMatches(String prefix, boolean ignoreCase, IntConsumer c) {
+        int count = 0;
+        if (ignoreCase) {
+            int lo = lowerBound(byFoldedName, prefix, IGNORE_CASE);
+            for (int i = lo; i < size; i++) {
+                String name = names[byFoldedName[i]];
+                if (!name.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                    break;
+                }
+                c.accept(byFoldedName[i]);
+                count++;
+            }
+        } else {
+            int lo = lowerBound(null, prefix, Comparator.naturalOrder());
+            for (int i = lo; i < size && names[i].startsWith(prefix); i++) {
+                c.accept(i);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int lowerBound(int[] permutation, String key, Comparator<String> comp) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            String name = names[permutation == null ? mid : permutation[mid]];
+            if (comp.compare(name, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Find all names matching a camel-case pattern: the pattern is split
+     * into chunks before each upper case character and after each
+     * underscore, hyphen, dot or dollar sign, and each chunk must
+     * case-insensitively prefix the corresponding word of a name, starting
+     * with the first; the name may have more words than the pattern has
+     * chunks.
+     *
+     * @param pattern A pattern
+     * @param c Called with the index of each matching name
+     * @return The number of matches
+     */
+    public int camelCaseMatches(String pattern, IntConsumer c) {
+        StringBuilder patternInitials = new StringBuilder(8);
+        for (int i = 0; i < pattern.length(); i++) {
+            if (isChunkStart(pattern, i)) {
+                patternInitials.append(Character.toLowerCase(pattern.charAt(i)));
+            }
+        }
+        if (patternInitials.length() == 0) {
+            return 0;
+        }
+        String key = patternInitials.toString();
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (initials[byInitials[mid]].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int count = 0;
+        for (int i = lo; i < size && initials[byInitials[i]].startsWith(key); i++) {
+            if (chunksMatch(pattern, names[byInitials[i]])) {
+                c.accept(byInitials[i]);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean chunksMatch(String pattern, String name) {
+        int p = firstChunkStart(pattern);
+        int w = firstWordStart(name);
+        while (p >= 0) {
+            if (w < 0) {
+                return false;
+            }
+            int pEnd = nextChunkStart(pattern, p);
+            int chunkLength = (pEnd < 0 ? pattern.length() : pEnd) - p;
+            while (chunkLength > 0 && isSeparator(pattern.charAt(p + chunkLength - 1))) {
+                chunkLength--;
+            }
+            if (!name.regionMatches(true, w, pattern, p, chunkLength)) {
+                return false;
+            }
+            p = pEnd;
+            w = nextWordStart(name, w);
+        }
+        return true;
+    }
+
+    /**
+     * Find all names whose edit distance to the passed string is no greater
+     * than the passed maximum.
+     *
+     * @param name A string
+     * @param maxDistance The maximum number of single-character insertions,
+     * deletions and substitutions
+     * @param c Called with the index of each matching name
+     * @return The number of matches
+     */
+    public int withinDistance(String name, int maxDistance, IntConsumer c) {
+        if (size == 0) {
+            return 0;
+        }
+        int count = 0;
+        Distance dist = new Distance();
+        int[] stack = new int[Math.min(size, 64)];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            int d = dist.compute(name, names[node]);
+            if (d <= maxDistance) {
+                c.accept(node);
+                count++;
+            }
+            for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+                if (Math.abs(edgeDistance[child] - d) <= maxDistance) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[top++] = child;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Find the names with the smallest edit distance to the passed string,
+     * nearest first, with ties broken by sort order.
+     *
+     * @param name A string
+     * @param count The maximum number of results
+     * @return An array of indices
+     */
+    public int[] nearest(String name, int count) {
+        count = Math.min(count, size);
+        if (count <= 0) {
+            return new int[0];
+        }
+        int[] best = new int[count];
+        int[] bestDistances = new int[count];
+        int found = 0;
+        int radius = Integer.MAX_VALUE;
+        Distance dist = new Distance();
+        int[] stack = new int[Math.min(size, 64)];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            int d = dist.compute(name, names[node]);
+            if (found < count || d < bestDistances[found - 1]
+                    || (d == bestDistances[found - 1] && node < best[found - 1])) {
+                int at = found < count ? found++ : found - 1;
+                while (at > 0 && (bestDistances[at - 1] > d
+                        || (bestDistances[at - 1] == d && best[at - 1] > node))) {
+                    best[at] = best[at - 1];
+                    bestDistances[at] = bestDistances[at - 1];
+                    at--;
+                }
+                best[at] = node;
+                bestDistances[at] = d;
+                if (found == count) {
+                    radius = bestDistances[count - 1];
+                }
+            }
+            for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+                if (radius == Integer.MAX_VALUE || Math.abs(edgeDistance[child] - d) <= radius) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[top++] = child;
+                }
+            }
+        }
+        return best;
+    }
+
+    static String initialsOf(String name) {
+        StringBuilder sb = new StringBuilder(4);
+        for (int w = firstWordStart(name); w >= 0; w = nextWordStart(name, w)) {
+            sb.append(Character.toLowerCase(name.charAt(w)));
+        }
+        return sb.toString();
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '_' || c == '-' || c == '.' || c == '$';
+    }
+
+    private static int firstWordStart(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (!isSeparator(name.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int nextWordStart(String name, int from) {
+        for (int i = from + 1; i < name.length(); i++) {
+            if (isWordStart(name, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWordStart(String name, int i) {
+        char c = name.charAt(i);
+        if (isSeparator(c)) {
+            return false;
+        }
+        char prev = name.charAt(i - 1);
+        if (isSeparator(prev)) {
+            return true;
+        }
+        if (Character.isUpperCase(c)) {
+            if (Character.isLowerCase(prev) || Character.isDigit(prev)) {
+                return true;
+            }
+            // The P in XMLParser
+            return Character.isUpperCase(prev) && i + 1 < name.length()
+                    && Character.isLowerCase(name.charAt(i + 1));
+        }
+        return false;
+    }
+
+    private static int firstChunkStart(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if (isChunkStart(pattern, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int nextChunkStart(String pattern, int from) {
+        for (int i = from + 1; i < pattern.length(); i++) {
+            if (isChunkStart(pattern, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isChunkStart(String pattern, int i) {
+        char c = pattern.charAt(i);
+        if (isSeparator(c)) {
+            return false;
+        }
+        return i == 0 || Character.isUpperCase(c) || isSeparator(pattern.charAt(i - 1));
+    }
+
+    /**
+     * Levenshtein distance, reusing its row buffers across comparisons.
+     */
+    private static final class Distance {
+
+        private int[] prev = new int[16];
+        private int[] curr = new int[16];
+
+        int compute(String a, String b) {
+            int m = a.length();
+            int n = b.length();
+            if (m == 0 || n == 0) {
+                return Math.max(m, n);
+            }
+            if (prev.length <= m) {
+                prev = new int[m + 1];
+                curr = new int[m + 1];
+            }
+            for (int i = 0; i <= m; i++) {
+                prev[i] = i;
+            }
+            for (int j = 1; j <= n; j++) {
+                char bc = b.charAt(j - 1);
+                curr[0] = j;
+                for (int i = 1; i <= m; i++) {
+                    int cost = a.charAt(i - 1) == bc ? 0 : 1;
+                    curr[i] = Math.min(Math.min(curr[i - 1] + 1, prev[i] + 1), prev[i - 1] + cost);
+                }
+                int[] swap = prev;
+                prev = curr;
+                curr = swap;
+            }
+            return prev[m];
+        }
+    }
+}
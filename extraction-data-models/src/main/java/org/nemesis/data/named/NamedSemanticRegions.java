@@ -19,7 +19,6 @@ import com.mastfrog.abstractions.list.IndexedResolvable;
 import com.mastfrog.bits.collections.BitSetSet;
 import com.mastfrog.util.collections.CollectionUtils;
 import static com.mastfrog.util.collections.CollectionUtils.setOf;
-import static com.mastfrog.util.strings.LevenshteinDistance.sortByDistance;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
@@ -51,6 +50,7 @@ import org.nemesis.data.impl.ArrayUtil.Bias;
 import static org.nemesis.data.impl.ArrayUtil.endSupplierHashCode;
 import org.nemesis.data.impl.MutableEndSupplier;
 import org.nemesis.data.impl.SizedArrayValueSupplier;
+import org.nemesis.data.impl.SymbolTable;
 
 /**
  * Maps pairs of start/end offsets to a set of strings. Use with care: in
@@ -76,9 +76,15 @@ public class NamedSemanticRegions<K extends Enum<K>> implements Iterable<NamedSe
     private int size;
     private transient IndexImpl index;
     private transient EnumSet<K> presentKinds;
+    private transient volatile NameIndex nameIndex;
+    // Shared boxed name indices for reference sets, so that every reference
+    // to the same name does not get its own Integer - with one box per name,
+    // the key array costs 4 bytes per reference with compressed oops, the
+    // same as an int[] would, without a parallel positional index
+    private transient Integer[] boxedIndices;
 
     @SuppressWarnings("unchecked")
-    private <X extends Enum<X>> void finishReadExternal(ObjectInput in, Class<X> kindType, int sz) throws IOException, ClassNotFoundException {
+    private <X extends Enum<X>> void finishReadExternal(ObjectInput in, Class<X> kindType, int sz, int version) throws IOException, ClassNotFoundException {
         X[] allKinds = kindType.getEnumConstants();
         X[] kinds = ArrayUtil.ofType(allKinds, sz);
         int[] starts = new int[sz];
@@ -94,6 +100,9 @@ public class NamedSemanticRegions<K extends Enum<K>> implements Iterable<NamedSe
             kinds[i] = allKinds[in.readByte()];
         }
         SizedArrayValueSupplier ends = (SizedArrayValueSupplier) in.readObject();
+        if (version > 1 && in.readBoolean()) {
+            nameIndex = NameIndex.read(in, names);
+        }
         try {
             Field f = NamedSemanticRegions.class.getDeclaredField("starts");
             f.setAccessible(true);
@@ -127,7 +136,7 @@ public class NamedSemanticRegions<K extends Enum<K>> implements Iterable<NamedSe
 
     @Override
     public void writeExternal(ObjectOutput out) throws IOException {
-        out.writeInt(1); // version
+        out.writeInt(2); // version
         out.writeInt(size);
         out.writeUTF(kinds.getClass().getComponentType().getName());
         SerializationContext ctx = SerializationContext.currentSerializationContext();
@@ -142,13 +151,20 @@ public class NamedSemanticRegions<K extends Enum<K>> implements Iterable<NamedSe
             out.writeByte(kinds[i].ordinal());
         }
         out.writeObject(ends);
+        // Write the name index if something has already needed it, so it
+        // need not be rebuilt when loaded from cache
+        NameIndex idx = nameIndex;
+        out.writeBoolean(idx != null);
+        if (idx != null) {
+            idx.write(out);
+        }
     }
 
     @Override
     @SuppressWarnings({"unchecked", "rawtypes"})
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         int v = in.readInt();
-        if (v != 1) {
+        if (v != 1 && v != 2) {
             throw new IOException("Unsupported version " + v);
         }
         int sz = in.readInt();
@@ -156,7 +172,7 @@ public class NamedSemanticRegions<K extends Enum<K>> implements Iterable<NamedSe
         String type = in.readUTF();
         Class<?> enumType = Class.forName(type);
         assert enumType.isEnum();
-        finishReadExternal(in, (Class) enumType, sz);
+        finishReadExternal(in, (Class) enumType, sz, v);
     }
 
     @SuppressWarnings({"unchecked", "rawtypes"})
@@ -263,11 +279,17 @@ public class NamedSemanticRegions<K extends Enum<K>> implements Iterable<NamedSe
                 }
             }
         }
+        NamedSemanticRegions<K> result;
         if (newEnds != null) {
-            return new NamedSemanticRegions<>(names, newStarts, newEnds, newKinds, size-skippedItems);
+            result = new NamedSemanticRegions<>(names, newStarts, newEnds, newKinds, size-skippedItems);
         } else {
-            return new NamedSemanticRegions<>(names, newStarts, newKinds, size-skippedItems);
+            result = new NamedSemanticRegions<>(names, newStarts, newKinds, size-skippedItems);
         }
+        if (skippedItems == 0) {
+            // Same names, so the same index
+            result.nameIndex = nameIndex;
+        }
+        return result;
     }
 
     /**
@@ -306,11 +328,74 @@ public class NamedSemanticRegions<K extends Enum<K>> implements Iterable<NamedSe
             }
             return size;
         }
-        return ArrayUtil.prefixBinarySearch(nameArray(), prefix, ix -> {
+        return nameIndex().prefixMatches(prefix, false, ix -> {
+            c.accept(new IndexNamedSemanticRegionImpl(ix));
+        });
+    }
+
+    /**
+     * Call the passed consumer for each element whose name starts with the
+     * passed prefix, ignoring case.
+     *
+     * @param prefix A prefix
+     * @param c A consumer
+     * @return The number of times the passed consumer was invoked
+     */
+    public int matchingPrefixIgnoreCase(String prefix, Consumer<? super NamedSemanticRegion<K>> c) {
+        return nameIndex().prefixMatches(prefix, true, ix -> {
             c.accept(new IndexNamedSemanticRegionImpl(ix));
         });
     }
 
+    /**
+     * Call the passed consumer for each element whose name matches the passed
+     * camel-case pattern, as in IDE "go to symbol" dialogs - so
+     * <code>paRuSp</code> or <code>PRS</code> will match
+     * <code>parserRuleSpec</code>, and <code>lex_ch</code> will match
+     * <code>LEXER_CHAR_SET</code>.
+     *
+     * @param pattern A pattern
+     * @param c A consumer
+     * @return The number of times the passed consumer was invoked
+     */
+    public int matchingCamelCase(String pattern, Consumer<? super NamedSemanticRegion<K>> c) {
+        return nameIndex().camelCaseMatches(pattern, ix -> {
+            c.accept(new IndexNamedSemanticRegionImpl(ix));
+        });
+    }
+
+    /**
+     * Call the passed consumer for each element whose name is within the
+     * passed edit distance of the passed string.
+     *
+     * @param name A string
+     * @param maxDistance The maximum levenshtein distance
+     * @param c A consumer
+     * @return The number of times the passed consumer was invoked
+     */
+    public int withinDistance(String name, int maxDistance, Consumer<? super NamedSemanticRegion<K>> c) {
+        return nameIndex().withinDistance(name, maxDistance, ix -> {
+            c.accept(new IndexNamedSemanticRegionImpl(ix));
+        });
+    }
+
+    /**
+     * Get the index used for name lookups, building it if it has not been
+     * built or deserialized along with this instance already. The index is
+     * immutable, and is shared by any instances created by
+     * <code>shiftedBy()</code> which have the same names.
+     *
+     * @return The name index
+     */
+    public NameIndex nameIndex() {
+        NameIndex result = nameIndex;
+        if (result == null) {
+            // Racing threads may both build it; harmless
+            nameIndex = result = NameIndex.create(names, size);
+        }
+        return result;
+    }
+
     /**
      * Call the passed consumer for each element whose name ends with the passed
      * suffix.
@@ -720,6 +805,38 @@ public class NamedSemanticRegions<K extends Enum<K>> implements Iterable<NamedSe
         return result < 0 ? -1 : result;
     }
 
+    private Integer boxedIndex(int ix) {
+        Integer[] boxes = boxedIndices;
+        if (boxes == null) {
+            boxes = boxedIndices = new Integer[names.length];
+        }
+        Integer result = boxes[ix];
+        if (result == null) {
+            result = boxes[ix] = ix;
+        }
+        return result;
+    }
+
+    /**
+     * Reduce the memory footprint of this instance, for long-lived ones such
+     * as those in cached extractions: names are replaced with the instances
+     * shared through a VM-wide weak symbol table, so the many files which use
+     * the same names share one copy of each, and indexes which can be rebuilt
+     * on demand are discarded. Should be called before the instance is made
+     * visible to other threads.
+     *
+     * @return this
+     */
+    public NamedSemanticRegions<K> compact() {
+        for (int i = 0; i < size; i++) {
+            names[i] = SymbolTable.intern(names[i]);
+        }
+        index = null;
+        nameIndex = null;
+        boxedIndices = null;
+        return this;
+    }
+
     private int internalIndexOf(String name) {
         int result = Arrays.binarySearch(names, 0, size, name);
         if (result < 0) {
@@ -990,7 +1107,7 @@ public class NamedSemanticRegions<K extends Enum<K>> implements Iterable<NamedSe
         @Override
         public void addReference(String name, int start, int end) {
             int ix = internalIndexOf(name);
-            bldr.add(ix, start, end);
+            bldr.add(boxedIndex(ix), start, end);
         }
 
         @Override
@@ -1846,20 +1963,11 @@ public class NamedSemanticRegions<K extends Enum<K>> implements Iterable<NamedSe
      * @return A list of strings
      */
     public List<String> topSimilarNames(String name, int count) {
-        return sortByDistanceTop(count, name, new ArrayList<>(this.allNames()));
-    }
-
-    /**
-     * Get the top <code>count</code> names sorted by their string distance to
-     * the passed string.
-     *
-     * @param count The maximum number of results to return
-     * @param to The word to compare them to
-     * @param l A list of strings
-     * @return A sorted sublist of the passed list, which may be empty
-     */
-    private static List<String> sortByDistanceTop(int count, String to, List<String> l) {
-        sortByDistance(to, l);
-        return l.subList(0, Math.min(count, l.size()));
+        int[] nearest = nameIndex().nearest(name, count);
+        List<String> result = new ArrayList<>(nearest.length);
+        for (int ix : nearest) {
+            result.add(names[ix]);
+        }
+        return result;
     }
 }
@@ -26,6 +26,7 @@ import org.nemesis.data.impl.ArrayUtil;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -1018,6 +1019,69 @@ public class SemanticRegionsTest {
         sanityCheckRegions(reg);
     }
 
+    @Test
+    public void testIndexAtAndCursorOnDeeplyNestedRegions() {
+        // A chain of 500 nested regions, each but the innermost containing
+        // a leaf region before and after its nested child
+        SemanticRegions<String> reg = new SemanticRegions<>(String.class);
+        int depth = 500;
+        for (int i = 0; i < depth; i++) {
+            int start = i * 10;
+            int end = (depth * 20) - (i * 10);
+            reg.add("n" + i, start, end);
+            if (i < depth - 1) {
+                reg.add("pre" + i, start + 1, start + 5);
+            }
+        }
+        for (int i = depth - 2; i >= 0; i--) {
+            // Regions must be added in start order, so trailing leaves
+            // go last, innermost first
+            int end = (depth * 20) - (i * 10);
+            reg.add("post" + i, end - 5, end - 1);
+        }
+        SemanticRegions.Cursor cursor = reg.cursor();
+        for (int pos = -1; pos <= depth * 20; pos++) {
+            int expected = -1;
+            for (int i = 0; i < reg.size(); i++) {
+                if (reg.startAt(i) <= pos && reg.endAt(i) > pos) {
+                    expected = i;
+                }
+            }
+            assertEquals("Wrong index at " + pos, expected, reg.indexAt(pos));
+            assertEquals(expected >= 0, cursor.moveTo(pos));
+            if (expected < 0) {
+                assertNull(reg.at(pos));
+                continue;
+            }
+            SemanticRegion<String> sem = reg.at(pos);
+            assertEquals(sem.key(), cursor.key());
+            assertEquals(sem.nestingDepth(), cursor.depth());
+            List<String> keys = new ArrayList<>();
+            reg.keysAtPoint(pos, keys);
+            assertEquals(cursor.depth() + 1, keys.size());
+            assertEquals(cursor.key(), keys.get(keys.size() - 1));
+            int walked = 0;
+            while (cursor.toParent()) {
+                walked++;
+                assertEquals(keys.get(keys.size() - 1 - walked), cursor.key());
+                assertTrue(cursor.start() <= pos && cursor.end() > pos);
+            }
+            assertEquals(0, cursor.depth());
+            assertEquals("n0", cursor.key());
+            if (pos % 97 == 0) {
+                // Keys are appended after existing contents, and collections
+                // other than lists get them in the same order
+                List<String> appended = new LinkedList<>(Arrays.asList("first"));
+                reg.keysAtPoint(pos, appended);
+                assertEquals("first", appended.get(0));
+                assertEquals(keys, appended.subList(1, appended.size()));
+                Set<String> ordered = new LinkedHashSet<>();
+                reg.keysAtPoint(pos, ordered);
+                assertEquals(keys, new ArrayList<>(ordered));
+            }
+        }
+    }
+
     @Test
     public void testSingleLayerNesting() {
         SemanticRegions<String> reg = new SemanticRegions<>(String.class);
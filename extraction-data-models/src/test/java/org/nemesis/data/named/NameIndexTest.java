@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.data.named;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class NameIndexTest {
+
+    private static final String[] RULES = {"parserRuleSpec", "parserRuleDefinition",
+        "lexerRuleSpec", "LEXER_CHAR_SET", "XMLParser", "grammarSpec", "grammarType",
+        "ruleBlock", "ruleAltList", "labeledAlt", "block", "Block", "BLOCK_COMMENT",
+        "tokenSpec", "tokensSpec", "channelsSpec", "idList", "id", "ID", "Id"};
+
+    @Test
+    public void testPrefixMatches() {
+        NameIndex idx = index(RULES);
+        String[] names = sorted(RULES);
+        for (String prefix : new String[]{"", "p", "parserRule", "rule", "b", "B", "BLOCK", "i", "I", "tokens", "zz", "~"}) {
+            assertEquals(prefix, bruteForcePrefix(names, prefix, false), collect(idx, prefix, false));
+            assertEquals(prefix, bruteForcePrefix(names, prefix, true), collect(idx, prefix, true));
+        }
+        assertEquals(Arrays.asList("Block", "block", "BLOCK_COMMENT"), namesOf(names, collect(idx, "bl", true)));
+    }
+
+    @Test
+    public void testCamelCaseMatches() {
+        NameIndex idx = index(RULES);
+        String[] names = sorted(RULES);
+        assertEquals(setOf("parserRuleSpec"), camel(idx, names, "paRuSp"));
+        assertEquals(setOf("parserRuleSpec"), camel(idx, names, "PRS"));
+        assertEquals(setOf("parserRuleSpec", "parserRuleDefinition"), camel(idx, names, "pR"));
+        assertEquals(setOf("LEXER_CHAR_SET"), camel(idx, names, "lex_ch"));
+        assertEquals(setOf("LEXER_CHAR_SET"), camel(idx, names, "LCS"));
+        assertEquals(setOf("XMLParser"), camel(idx, names, "XP"));
+        assertEquals(setOf("XMLParser"), camel(idx, names, "xmlPar"));
+        assertEquals(setOf("ruleBlock", "ruleAltList"), camel(idx, names, "rule"));
+        assertEquals(setOf("ruleAltList"), camel(idx, names, "rAL"));
+        assertEquals(setOf(), camel(idx, names, "rBL"));
+        assertEquals(setOf(), camel(idx, names, "qq"));
+    }
+
+    @Test
+    public void testDistanceQueriesMatchBruteForce() {
+        Random rnd = new Random(61);
+        TreeSet<String> set = new TreeSet<>();
+        while (set.size() < 1500) {
+            set.add(randomName(rnd));
+        }
+        String[] names = set.toArray(new String[set.size()]);
+        NameIndex idx = NameIndex.create(names, names.length);
+        for (int i = 0; i < 40; i++) {
+            String query = i % 2 == 0 ? names[rnd.nextInt(names.length)] + "x" : randomName(rnd);
+            for (int max = 0; max < 4; max++) {
+                List<Integer> expected = new ArrayList<>();
+                for (int j = 0; j < names.length; j++) {
+                    if (levenshtein(query, names[j]) <= max) {
+                        expected.add(j);
+                    }
+                }
+                List<Integer> got = new ArrayList<>();
+                assertEquals(expected.size(), idx.withinDistance(query, max, got::add));
+                got.sort(null);
+                assertEquals(query + " " + max, expected, got);
+            }
+            Integer[] all = new Integer[names.length];
+            for (int j = 0; j < all.length; j++) {
+                all[j] = j;
+            }
+            Arrays.sort(all, (a, b) -> {
+                int result = Integer.compare(levenshtein(query, names[a]), levenshtein(query, names[b]));
+                return result == 0 ? Integer.compare(a, b) : result;
+            });
+            int[] nearest = idx.nearest(query, 7);
+            assertEquals(7, nearest.length);
+            for (int j = 0; j < nearest.length; j++) {
+                assertEquals(query + " at " + j, (int) all[j], nearest[j]);
+            }
+        }
+        assertEquals(0, NameIndex.create(new String[0], 0).nearest("foo", 3).length);
+    }
+
+    @Test
+    public void testRegionsUseAndSerializeIndex() throws Exception {
+        NamedSemanticRegionsBuilder<TestRuleTypes> bldr = NamedSemanticRegions.builder(TestRuleTypes.class);
+        int pos = 0;
+        for (String name : RULES) {
+            bldr.add(name, TestRuleTypes.PARSER, pos, pos + name.length() + 3);
+            pos += name.length() + 5;
+        }
+        NamedSemanticRegions<TestRuleTypes> regions = bldr.build();
+        assertEquals("ruleBlock", regions.topSimilarNames("rulBlock", 3).get(0));
+        List<String> found = new ArrayList<>();
+        regions.matchingCamelCase("gS", r -> found.add(r.name()));
+        assertEquals(Arrays.asList("grammarSpec"), found);
+        found.clear();
+        regions.matchingPrefixIgnoreCase("id", r -> found.add(r.name()));
+        assertEquals(Arrays.asList("ID", "Id", "id", "idList"), found);
+        found.clear();
+        regions.withinDistance("tokenSSpec", 1, r -> found.add(r.name()));
+        found.sort(null);
+        assertEquals(Arrays.asList("tokenSpec", "tokensSpec"), found);
+
+        NameIndex idx = regions.nameIndex();
+        assertSame(idx, regions.nameIndex());
+        assertSame(idx, regions.shiftedBy(10, 0).nameIndex());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(regions);
+        }
+        NamedSemanticRegions<?> read;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            read = (NamedSemanticRegions<?>) in.readObject();
+        }
+        assertNotNull(read);
+        assertEquals(regions.topSimilarNames("lexerSpec", 5), read.topSimilarNames("lexerSpec", 5));
+        found.clear();
+        read.matchingCamelCase("PRS", r -> found.add(r.name()));
+        assertEquals(Arrays.asList("parserRuleSpec"), found);
+    }
+
+    private static NameIndex index(String... names) {
+        String[] sorted = sorted(names);
+        return NameIndex.create(sorted, sorted.length);
+    }
+
+    private static String[] sorted(String... names) {
+        String[] result = names.clone();
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static List<Integer> collect(NameIndex idx, String prefix, boolean ignoreCase) {
+        List<Integer> result = new ArrayList<>();
+        int count = idx.prefixMatches(prefix, ignoreCase, result::add);
+        assertEquals(result.size(), count);
+        if (ignoreCase) {
+            result.sort(null);
+        }
+        return result;
+    }
+
+    private static List<Integer> bruteForcePrefix(String[] names, String prefix, boolean ignoreCase) {
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].regionMatches(ignoreCase, 0, prefix, 0, prefix.length())) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    private static List<String> namesOf(String[] names, List<Integer> indices) {
+        List<String> result = new ArrayList<>();
+        for (int ix : indices) {
+            result.add(names[ix]);
+        }
+        result.sort(String.CASE_INSENSITIVE_ORDER.thenComparing(String::compareTo));
+        return result;
+    }
+
+    private static TreeSet<String> camel(NameIndex idx, String[] names, String pattern) {
+        TreeSet<String> result = new TreeSet<>();
+        int count = idx.camelCaseMatches(pattern, ix -> result.add(names[ix]));
+        assertEquals(result.size(), count);
+        return result;
+    }
+
+    private static TreeSet<String> setOf(String... strings) {
+        return new TreeSet<>(Arrays.asList(strings));
+    }
+
+    private static String randomName(Random rnd) {
+        StringBuilder sb = new StringBuilder();
+        int len = 3 + rnd.nextInt(9);
+        for (int i = 0; i < len; i++) {
+            sb.append((char) ('a' + rnd.nextInt(6)));
+        }
+        return sb.toString();
+    }
+
+    private static int levenshtein(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            d[i][0] = i;
+        }
+        for (int j = 0; j <= b.length(); j++) {
+            d[0][j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import com.mastfrog.graph.StringGraph;
+import com.mastfrog.util.collections.IntSet;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.function.Consumer;
+import org.nemesis.data.SemanticRegions;
+import org.nemesis.data.named.ContentsChecksums;
+import org.nemesis.data.named.NamedRegionReferenceSets;
+import org.nemesis.data.named.NamedSemanticRegion;
+import org.nemesis.data.named.NamedSemanticRegions;
+import org.nemesis.extraction.key.NameReferenceSetKey;
+import org.nemesis.extraction.key.NamedRegionKey;
+
+/**
+ * A NameInfoStore which records what is added to it, so names can be
+ * extracted on a background thread and the results added to an extraction's
+ * store later, on the thread that owns the extraction, in the same order as
+ * they would have been had the extraction been done there.
+ *
+ * @author Tim Boudreau
+ */
+final class DeferredNameInfoStore implements NameInfoStore, Consumer<Extraction> {
+
+    private final List<Consumer<NameInfoStore>> calls = new ArrayList<>(12);
+
+    @Override
+    public void accept(Extraction extraction) {
+        for (Consumer<NameInfoStore> c : calls) {
+            c.accept(extraction.store);
+        }
+    }
+
+    @Override
+    public <T extends Enum<T>> void addNamedRegions(String scopingDelimiter, NamedRegionKey<T> key, NamedSemanticRegions<T> regions) {
+        calls.add(store -> store.addNamedRegions(scopingDelimiter, key, regions));
+    }
+
+    @Override
+    public <T extends Enum<T>> void addReferences(NameReferenceSetKey<T> key, NamedRegionReferenceSets<T> regions) {
+        calls.add(store -> store.addReferences(key, regions));
+    }
+
+    @Override
+    public <T extends Enum<T>> void addReferenceGraph(NameReferenceSetKey<T> refSetKey, StringGraph stringGraph) {
+        calls.add(store -> store.addReferenceGraph(refSetKey, stringGraph));
+    }
+
+    @Override
+    public <T extends Enum<T>> void addUnknownReferences(NameReferenceSetKey<T> refSetKey, SemanticRegions<UnknownNameReference<T>> build) {
+        calls.add(store -> store.addUnknownReferences(refSetKey, build));
+    }
+
+    @Override
+    public <T extends Enum<T>> void addDuplicateNamedRegions(NamedRegionKey<T> key, String name, Iterable<? extends NamedSemanticRegion<T>> duplicates) {
+        calls.add(store -> store.addDuplicateNamedRegions(key, name, duplicates));
+    }
+
+    @Override
+    public <T extends Enum<T>> void addNameAndBoundsKeyPair(NameAndBoundsPair<T> pair) {
+        calls.add(store -> store.addNameAndBoundsKeyPair(pair));
+    }
+
+    @Override
+    public <T extends Enum<T>> void addChecksums(NamedRegionKey<T> key, ContentsChecksums<NamedSemanticRegion<T>> checksums) {
+        calls.add(store -> store.addChecksums(key, checksums));
+    }
+
+    @Override
+    public <T extends Enum<T>> void noteRuleIdMapping(Class<T> enumType, EnumMap<T, IntSet> ruleIdsForKeys) {
+        calls.add(store -> store.noteRuleIdMapping(enumType, ruleIdsForKeys));
+    }
+
+    @Override
+    public <T extends Enum<T>> void addNamesLog(NamedRegionKey<T> key, NamesLog<T> log) {
+        calls.add(store -> store.addNamesLog(key, log));
+    }
+}
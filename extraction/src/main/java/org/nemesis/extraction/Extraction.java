@@ -19,10 +19,14 @@ import com.mastfrog.antlr.utils.RulesMapping;
 import com.mastfrog.bits.Bits;
 import com.mastfrog.function.state.Int;
 import com.mastfrog.graph.IntGraph;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -91,7 +95,7 @@ public final class Extraction implements Externalizable {
     private final Map<SingletonKey<?>, SingletonEncounters<?>> singles = new HashMap<>(4);
     private volatile transient Map<NameReferenceSetKey<?>, Map<UnknownNameReferenceResolver<?, ?, ?, ?>, Attributions<?, ?, ?, ?>>> resolutionCache;
     private volatile transient Map<Set<ExtractionKey<?>>, Set<String>> keysCache;
-    private transient Map<Extractor<?>, Map<GrammarSource<?>, TSR<Extraction>>> cachedExtractions;
+    volatile transient ImportResolutions imports;
     private final Set<NameAndBoundsPair<?>> nameAndBoundsKeyRelationships = new HashSet<>();
     private final Map<ExtractionKey<?>, String> scopingDelimiters = new HashMap<>(3);
     private String extractorsHash;
@@ -103,6 +107,10 @@ public final class Extraction implements Externalizable {
     private final List<RuleIdMapping<?>> ruleIdMappings = new ArrayList<>(3);
     private long lastModified;
     private final long created = System.currentTimeMillis();
+    // Not serialized - an extraction read from disk cannot be the basis of an
+    // incremental re-extraction, since the tree it came from is long gone
+    transient TopLevelSubtrees subtrees;
+    private transient Map<NamedRegionKey<?>, NamesLog<?>> namesLogs;
 
     Extraction(String extractorsHash, GrammarSource<?> source, String tokensHash,
             Class<? extends ParserRuleContext> documentRootType, String mimeType) {
@@ -323,10 +331,13 @@ public final class Extraction implements Externalizable {
             keysCache.clear();
             keysCache = null;
         }
-        if (cachedExtractions != null) {
-            cachedExtractions.clear();
-            cachedExtractions = null;
+        ImportResolutions imps = imports;
+        if (imps != null) {
+            imps.clear();
+            imports = null;
         }
+        subtrees = null;
+        namesLogs = null;
         source = GrammarSource.none();
     }
 
@@ -386,6 +397,17 @@ public final class Extraction implements Externalizable {
     public Extraction() {
     }
 
+    /**
+     * Attach a source to a deserialized extraction, treating it as having
+     * been extracted from that source as it is now.
+     *
+     * @param source The source
+     */
+    void attachSource(GrammarSource<?> source) {
+        this.source = source;
+        this.lastModified = lastModifiedOf(source);
+    }
+
     /**
      * Get the source from whence this data was parsed.
      *
@@ -537,6 +559,97 @@ public final class Extraction implements Externalizable {
         return NamedSemanticRegions.combine(collections, true);
     }
 
+    /**
+     * Create a reduced-footprint copy of this extraction, for extractions held
+     * in caches for files which are not being edited: names are shared with
+     * other extractions through a VM-wide weak symbol table, and cached
+     * attributions, indexes and the record of the parse tree's shape, all of
+     * which can be recomputed, are omitted - so a compacted extraction cannot
+     * be the basis of an incremental re-extraction. This extraction, which
+     * parser results and the symbol index may already hold, is not modified;
+     * the copy is made by a serialization round-trip, so it shares no mutable
+     * state with it.
+     *
+     * @return A new extraction with the same contents
+     * @throws IOException If the extraction cannot be serialized
+     */
+    public Extraction compactCopy() throws IOException {
+        return copyFrom(serialized()).compact();
+    }
+
+    /**
+     * Serialize this extraction as <code>writeExternal()</code> does.
+     *
+     * @return The bytes
+     * @throws IOException If something cannot be serialized
+     */
+    byte[] serialized() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            writeExternal(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Create a copy of this extraction from bytes <code>serialized()</code>
+     * produced from it, carrying over the state which is not serialized.
+     *
+     * @param serialized The serialized form of this extraction
+     * @return A new extraction
+     * @throws IOException If the bytes cannot be read
+     */
+    Extraction copyFrom(byte[] serialized) throws IOException {
+        Extraction result = new Extraction();
+        try (ObjectInputStream in = new ExtractionCache.LoaderObjectInputStream(
+                new ByteArrayInputStream(serialized))) {
+            result.readExternal(in);
+        } catch (ClassNotFoundException ex) {
+            throw new IOException(ex);
+        }
+        result.attachSource(source);
+        // Up-to-dateness is relative to when this was parsed, not copied
+        result.lastModified = lastModified;
+        // Not serialized, and not modified once extraction completes
+        result.checksums.putAll(checksums);
+        result.duplicates.putAll(duplicates);
+        result.scopingDelimiters.putAll(scopingDelimiters);
+        result.nameAndBoundsKeyRelationships.addAll(nameAndBoundsKeyRelationships);
+        result.availableRuleIds.addAll(availableRuleIds);
+        result.ruleIdMappings.addAll(ruleIdMappings);
+        return result;
+    }
+
+    /**
+     * Compact this extraction in place; only called on a copy no other
+     * thread has seen, such as one just deserialized.
+     *
+     * @return this
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Extraction compact() {
+        for (NamedSemanticRegions<?> n : nameds.values()) {
+            n.compact();
+        }
+        for (Map.Entry<NameReferenceSetKey<?>, SemanticRegions<UnknownNameReference<?>>> e : unknowns.entrySet()) {
+            SemanticRegions.SemanticRegionsBuilder<UnknownNameReference> bldr
+                    = SemanticRegions.builder(UnknownNameReference.class, e.getValue().size());
+            for (SemanticRegion<UnknownNameReference<?>> reg : e.getValue()) {
+                UnknownNameReference<?> ref = reg.key();
+                bldr.add(ref instanceof UnknownNameReferenceImpl<?>
+                        ? ((UnknownNameReferenceImpl<?>) ref).interned() : ref,
+                        reg.start(), reg.end());
+            }
+            e.setValue((SemanticRegions) bldr.build());
+        }
+        resolutionCache = null;
+        keysCache = null;
+        attributionCache = null;
+        subtrees = null;
+        namesLogs = null;
+        return this;
+    }
+
     /**
      * Resolve the {@link Extraction} associated with an import name. Note that
      * extractions are cached, keyed by extractor and source, so multiple
@@ -548,7 +661,7 @@ public final class Extraction implements Externalizable {
      * @return An extraction which is presumably not this one, or an empty
      * extraction if none was found
      */
-    public synchronized Extraction resolveExtraction(Extractor<?> extractor, String importName, Function<GrammarSource<?>, Extraction> runExtraction) {
+    public Extraction resolveExtraction(Extractor<?> extractor, String importName, Function<GrammarSource<?>, Extraction> runExtraction) {
         if (this.source != null && this.source.name().equals(importName)) {
             return this;
         }
@@ -562,47 +675,35 @@ public final class Extraction implements Externalizable {
     /**
      * Resolve the {@link Extraction} associated with another source. Note that
      * extractions are cached, keyed by extractor and source, so multiple
-     * resolutions of the same name do not run separate parses.
+     * resolutions of the same name do not run separate parses. Concurrent
+     * requests for the same source share a single run of the passed function,
+     * while requests for different sources run in parallel; a thread
+     * interrupted while waiting for another thread's extraction of the same
+     * source gets an empty extraction.
      *
      * @param extractor The extractor to use
-     * @param importName The name of the import (language dependent)
+     * @param src The source to resolve
      * @param runExtraction A function which will run extraction for this source
      * @return An extraction which is presumably not this one
      */
-    public synchronized Extraction resolveExtraction(Extractor<?> extractor, GrammarSource<?> src, Function<GrammarSource<?>, Extraction> runExtraction) {
+    public Extraction resolveExtraction(Extractor<?> extractor, GrammarSource<?> src, Function<GrammarSource<?>, Extraction> runExtraction) {
         if (src.equals(source)) {
             return this;
         }
-        if (cachedExtractions != null) {
-            Map<GrammarSource<?>, TSR<Extraction>> forSource = cachedExtractions.get(extractor);
-            if (forSource != null) {
-                TSR<Extraction> cached = forSource.get(src);
-                if (cached != null) {
-                    Extraction ext = cached.get();
-                    if (ext != null) {
-                        return ext;
-                    }
+        return importResolutions().resolve(extractor, src, runExtraction);
+    }
+
+    private ImportResolutions importResolutions() {
+        ImportResolutions result = imports;
+        if (result == null) {
+            synchronized (this) {
+                result = imports;
+                if (result == null) {
+                    imports = result = new ImportResolutions();
                 }
             }
         }
-        Extraction nue = runExtraction.apply(src);
-        if (cachedExtractions == null) {
-            cachedExtractions = new HashMap<>();
-        }
-        Map<GrammarSource<?>, TSR<Extraction>> forSource = cachedExtractions.get(extractor);
-        if (forSource == null) {
-            forSource = new HashMap<>();
-            cachedExtractions.put(extractor, forSource);
-        }
-        TSR<Extraction> ref = forSource.get(src);
-        if (ref != null) {
-            ref.dispose();
-        }
-        forSource.put(src, TSR.create(nue));
-        // Share one map between the tree of extractions created by
-        // attributing sources
-        nue.cachedExtractions = cachedExtractions;
-        return nue;
+        return result;
     }
 
     @Override
@@ -732,8 +833,8 @@ public final class Extraction implements Externalizable {
             SerializationContext.withSerializationContext(ctx, () -> {
                 out.writeInt(2);
                 out.writeObject(ctx);
-                out.writeObject(tokensHash);
-                out.writeObject(mimeType);
+                out.writeUTF(tokensHash);
+                out.writeUTF(mimeType);
                 out.writeObject(documentRootType);
                 out.writeUTF(extractorsHash);
                 out.writeObject(regions);
@@ -1155,8 +1256,30 @@ public final class Extraction implements Externalizable {
              */
             ruleIdsForKeys.values().forEach(availableRuleIds::addAll);
         }
+
+        @Override
+        public <T extends Enum<T>> void addNamesLog(NamedRegionKey<T> key, NamesLog<T> log) {
+            if (namesLogs == null) {
+                namesLogs = new HashMap<>(3);
+            }
+            namesLogs.put(key, log);
+        }
     };
 
+    /**
+     * Get the log of what a names strategy found, if this extraction was
+     * created in this VM and has not been compacted.
+     *
+     * @param <T> The key type
+     * @param key The key the strategy's log is stored under
+     * @return A log or null
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Enum<T>> NamesLog<T> namesLog(NamedRegionKey<T> key) {
+        Map<NamedRegionKey<?>, NamesLog<?>> logs = namesLogs;
+        return logs == null ? null : (NamesLog<T>) logs.get(key);
+    }
+
     /**
      * Used by generic code completion - find all extraction key values that map
      * named regions for the passed parser rule id.
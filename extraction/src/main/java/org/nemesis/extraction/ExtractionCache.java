@@ -0,0 +1,419 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.nemesis.source.api.GrammarSource;
+import org.openide.util.Lookup;
+
+/**
+ * A disk-backed cache of extractions, so that files which have not changed
+ * since they were last extracted - such as grammars imported by the one being
+ * edited - do not need to be re-parsed when a project is opened. Each entry
+ * is a single file, holding a small header which identifies the source file,
+ * a hash of its content, the hash of the extractor which produced the
+ * extraction and the document root type it was created for, followed by the
+ * serialized extraction (which uses a shared string table for names across
+ * all of its named regions). Entries are memory-mapped when read, and only
+ * the header is examined unless it matches what the caller asked for.
+ * <p>
+ * The total size of the cache is bounded; when it is exceeded, the least
+ * recently used entries are deleted. Recency is persisted using file
+ * modification times, so it survives restarts.
+ *
+ * @author Tim Boudreau
+ */
+public final class ExtractionCache {
+
+    private static final int MAGIC = 0x45585443;
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".extraction";
+    private static final Logger LOG = Logger.getLogger(ExtractionCache.class.getName());
+    private final Path dir;
+    private final long maxBytes;
+    // File name to size, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75F, true);
+    private long totalBytes;
+
+    /**
+     * Create a cache in the passed directory, which is created if it does
+     * not exist.
+     *
+     * @param dir A directory which this cache may use exclusively
+     * @param maxBytes The maximum number of bytes to store
+     * @throws IOException If the directory cannot be created or listed
+     */
+    public ExtractionCache(Path dir, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Bad max bytes " + maxBytes);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> str = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path p : str) {
+                existing.add(p);
+            }
+        }
+        existing.sort((a, b) -> lastModified(a).compareTo(lastModified(b)));
+        for (Path p : existing) {
+            long size = Files.size(p);
+            entries.put(p.getFileName().toString(), size);
+            totalBytes += size;
+        }
+    }
+
+    private static FileTime lastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p);
+        } catch (IOException ex) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Get the total size of all entries, in bytes.
+     *
+     * @return The size
+     */
+    public synchronized long size() {
+        return totalBytes;
+    }
+
+    /**
+     * Look up a cached extraction.
+     *
+     * @param fileKey A string which uniquely identifies the source file, such
+     * as its path
+     * @param contentHash A hash of the current content of the file, such as
+     * its tokens hash
+     * @param extractorsHash The hash of the extractor which would be used to
+     * extract the file if no cached extraction is available
+     * @param source The source, which will be attached to the extraction
+     * returned
+     * @return An extraction, or null if none is cached for these arguments
+     */
+    public Extraction get(String fileKey, String contentHash, String extractorsHash, GrammarSource<?> source) {
+        return get(fileKey, contentHash, type -> extractorsHash, source);
+    }
+
+    /**
+     * Look up a cached extraction, for use when the extractor that would be
+     * used is not known until the document root type the cached extraction
+     * was created with is known.
+     *
+     * @param fileKey A string which uniquely identifies the source file, such
+     * as its path
+     * @param contentHash A hash of the current content of the file, such as
+     * its tokens hash
+     * @param extractorsHash Computes the hash of the extractor which would be
+     * used to extract the file for a given document root type
+     * @param source The source, which will be attached to the extraction
+     * returned
+     * @return An extraction, or null if none is cached for these arguments
+     */
+    public Extraction get(String fileKey, String contentHash,
+            Function<Class<? extends ParserRuleContext>, String> extractorsHash, GrammarSource<?> source) {
+        String name = fileName(fileKey);
+        Path file = dir.resolve(name);
+        synchronized (this) {
+            if (entries.get(name) == null) {
+                return null;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(buf));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || !fileKey.equals(in.readUTF())
+                    || !contentHash.equals(in.readUTF())) {
+                return null;
+            }
+            String storedExtractorsHash = in.readUTF();
+            Class<?> rootType = Class.forName(in.readUTF(), false, classLoader());
+            if (!ParserRuleContext.class.isAssignableFrom(rootType)
+                    || !storedExtractorsHash.equals(extractorsHash.apply(rootType.asSubclass(ParserRuleContext.class)))) {
+                return null;
+            }
+            int length = in.readInt();
+            if (length != buf.remaining()) {
+                LOG.log(Level.FINE, "Truncated cache entry {0}", file);
+                remove(fileKey);
+                return null;
+            }
+            Extraction result = new Extraction();
+            try (ObjectInputStream oin = new LoaderObjectInputStream(in)) {
+                result.readExternal(oin);
+            }
+            result.attachSource(source);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return result;
+        } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+            LOG.log(Level.INFO, "Bad cache entry " + file + " for " + fileKey, ex);
+            remove(fileKey);
+            return null;
+        }
+    }
+
+    /**
+     * Store an extraction in the cache, replacing any existing entry for the
+     * same file.
+     *
+     * @param fileKey A string which uniquely identifies the source file, such
+     * as its path
+     * @param contentHash A hash of the content of the file the extraction was
+     * created from
+     * @param extraction The extraction
+     * @return true if the extraction was stored
+     */
+    public boolean put(String fileKey, String contentHash, Extraction extraction) {
+        if (extraction.isPlaceholder() || "-".equals(extraction.creationHash())) {
+            return false;
+        }
+        try {
+            return write(fileKey, contentHash, extraction, extraction.serialized());
+        } catch (IOException ex) {
+            LOG.log(Level.INFO, "Could not cache extraction of " + fileKey, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Store an extraction in the cache, as <code>put()</code> does, and
+     * return a compacted copy of it read back from the bytes stored, for
+     * callers which keep a compacted copy in memory - so the extraction is
+     * serialized once rather than once to store it and again to copy it.
+     *
+     * @param fileKey A string which uniquely identifies the source file, such
+     * as its path
+     * @param contentHash A hash of the content of the file the extraction was
+     * created from
+     * @param extraction The extraction
+     * @return A compacted copy, or null if the extraction could not be
+     * stored
+     * @see Extraction#compactCopy()
+     */
+    public Extraction putCompacted(String fileKey, String contentHash, Extraction extraction) {
+        if (extraction.isPlaceholder() || "-".equals(extraction.creationHash())) {
+            return null;
+        }
+        try {
+            byte[] payload = extraction.serialized();
+            if (!write(fileKey, contentHash, extraction, payload)) {
+                return null;
+            }
+            return extraction.copyFrom(payload).compact();
+        } catch (IOException ex) {
+            LOG.log(Level.INFO, "Could not cache extraction of " + fileKey, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Look up a cached extraction, as <code>get()</code> does, compacting it
+     * before returning it. Each call deserializes a new instance, so this
+     * costs no second copy.
+     *
+     * @param fileKey A string which uniquely identifies the source file
+     * @param contentHash A hash of the current content of the file
+     * @param extractorsHash Computes the hash of the extractor which would be
+     * used to extract the file for a given document root type
+     * @param source The source, which will be attached to the extraction
+     * returned
+     * @return A compacted extraction, or null if none is cached for these
+     * arguments
+     * @see Extraction#compactCopy()
+     */
+    public Extraction getCompacted(String fileKey, String contentHash,
+            Function<Class<? extends ParserRuleContext>, String> extractorsHash, GrammarSource<?> source) {
+        Extraction result = get(fileKey, contentHash, extractorsHash, source);
+        return result == null ? null : result.compact();
+    }
+
+    private boolean write(String fileKey, String contentHash, Extraction extraction, byte[] payload) {
+        String name = fileName(fileKey);
+        Path file = dir.resolve(name);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 256);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(fileKey);
+                out.writeUTF(contentHash);
+                out.writeUTF(extraction.creationHash());
+                out.writeUTF(extraction.documentRootType().getName());
+                out.writeInt(payload.length);
+                out.write(payload);
+            }
+            Path temp = Files.createTempFile(dir, "tmp-", ".part");
+            try {
+                Files.write(temp, bytes.toByteArray());
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            synchronized (this) {
+                Long old = entries.put(name, (long) bytes.size());
+                totalBytes += bytes.size() - (old == null ? 0 : old);
+            }
+            evict();
+            return true;
+        } catch (IOException ex) {
+            LOG.log(Level.INFO, "Could not cache extraction of " + fileKey, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Remove any cached extraction for a file.
+     *
+     * @param fileKey The file key
+     */
+    public void remove(String fileKey) {
+        String name = fileName(fileKey);
+        synchronized (this) {
+            Long old = entries.remove(name);
+            if (old != null) {
+                totalBytes -= old;
+            }
+        }
+        try {
+            Files.deleteIfExists(dir.resolve(name));
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Could not delete " + name, ex);
+        }
+    }
+
+    private void evict() {
+        List<String> toDelete = new ArrayList<>(3);
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator(); it.hasNext() && totalBytes > maxBytes;) {
+                Map.Entry<String, Long> e = it.next();
+                totalBytes -= e.getValue();
+                toDelete.add(e.getKey());
+                it.remove();
+            }
+        }
+        for (String name : toDelete) {
+            try {
+                Files.deleteIfExists(dir.resolve(name));
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Could not evict " + name, ex);
+            }
+        }
+    }
+
+    private static String fileName(String fileKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(fileKey.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2 + SUFFIX.length());
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static ClassLoader classLoader() {
+        ClassLoader ldr = Lookup.getDefault().lookup(ClassLoader.class);
+        if (ldr == null) {
+            ldr = Thread.currentThread().getContextClassLoader();
+        }
+        return ldr == null ? ExtractionCache.class.getClassLoader() : ldr;
+    }
+
+    /**
+     * Extractions reference key types from whatever module defined the
+     * language, which the class loader of this module cannot see.
+     */
+    static final class LoaderObjectInputStream extends ObjectInputStream {
+
+        private final ClassLoader loader;
+
+        LoaderObjectInputStream(InputStream in) throws IOException {
+            super(in);
+            loader = classLoader();
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, loader);
+            } catch (ClassNotFoundException ex) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buf.remaining());
+            buf.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
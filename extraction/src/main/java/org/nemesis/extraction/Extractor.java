@@ -17,17 +17,18 @@ package org.nemesis.extraction;
 
 import com.mastfrog.antlr.utils.RulesMapping;
 import com.mastfrog.function.state.Bool;
+import com.mastfrog.function.state.Obj;
 import com.mastfrog.util.preconditions.Exceptions;
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.emptySet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -42,6 +43,7 @@ import org.nemesis.data.SemanticRegion;
 import org.nemesis.data.SemanticRegions;
 import org.nemesis.data.named.ContentsChecksums;
 import static org.nemesis.extraction.ExtractionRegistration.BASE_PATH;
+import org.nemesis.extraction.attribution.SymbolIndex;
 import org.nemesis.extraction.key.SingletonKey;
 import org.nemesis.source.api.GrammarSource;
 import org.openide.util.lookup.Lookups;
@@ -80,16 +82,55 @@ public final class Extractor<T extends ParserRuleContext> {
     private static final Logger LOG = Logger.getLogger(Extractor.class.getName());
     private final String mimeType;
     private final Function<Supplier<Extraction>, Extraction> wrapExecution;
+    private final boolean fusedWalk;
+    // Which strategies' visitors see which rule types, for the first (regions,
+    // names, singletons) and second (references) passes of a fused walk
+    private final FusedTreeWalk.DispatchTable firstPassDispatch = new FusedTreeWalk.DispatchTable();
+    private final FusedTreeWalk.DispatchTable referencePassDispatch = new FusedTreeWalk.DispatchTable();
+    static final boolean DEFAULT_FUSED_WALK = Boolean.getBoolean("extraction.fused");
+    private final boolean parallel;
+    static final boolean DEFAULT_PARALLEL = Boolean.getBoolean("extraction.parallel");
+    // Strategies whose results from unchanged top-level subtrees can be
+    // carried over by reextract(), and the dispatch tables for walking them
+    private final List<RegionExtractionStrategies<?>> incrementalRegions;
+    private final List<SingletonExtractionStrategies<?>> incrementalSingles;
+    private final List<NamesAndReferencesExtractionStrategy<?>> incrementalNames;
+    private final FusedTreeWalk.DispatchTable incrementalDispatch = new FusedTreeWalk.DispatchTable();
+    private final FusedTreeWalk.DispatchTable incrementalReferenceDispatch = new FusedTreeWalk.DispatchTable();
+    private final boolean reusePrevious;
+    static final boolean DEFAULT_REUSE_PREVIOUS = Boolean.getBoolean("extraction.incremental");
 
     Extractor(Class<T> documentRootType,
             Set<NamesAndReferencesExtractionStrategy<?>> nameExtractors, Set<RegionExtractionStrategies<?>> regionsInfo2,
-            Map<SingletonKey<?>, SingletonExtractionStrategies<?>> singles, String mimeType, Function<Supplier<Extraction>, Extraction> wrapExecution) {
+            Map<SingletonKey<?>, SingletonExtractionStrategies<?>> singles, String mimeType, Function<Supplier<Extraction>, Extraction> wrapExecution,
+            boolean fusedWalk, boolean parallel, boolean reusePrevious) {
         this.documentRootType = documentRootType;
         this.nameExtractors = nameExtractors;
         this.regionsInfo = regionsInfo2;
         this.singles = singles;
         this.mimeType = mimeType;
         this.wrapExecution = wrapExecution;
+        this.fusedWalk = fusedWalk;
+        this.parallel = parallel;
+        this.reusePrevious = reusePrevious;
+        incrementalRegions = new ArrayList<>(regionsInfo2.size());
+        for (RegionExtractionStrategies<?> r : regionsInfo2) {
+            if (r.isIncremental(documentRootType)) {
+                incrementalRegions.add(r);
+            }
+        }
+        incrementalSingles = new ArrayList<>(singles.size());
+        for (SingletonExtractionStrategies<?> s : singles.values()) {
+            if (s.isIncremental(documentRootType)) {
+                incrementalSingles.add(s);
+            }
+        }
+        incrementalNames = new ArrayList<>(nameExtractors.size());
+        for (NamesAndReferencesExtractionStrategy<?> n : nameExtractors) {
+            if (n.isIncremental(documentRootType)) {
+                incrementalNames.add(n);
+            }
+        }
     }
 
     public String mimeType() {
@@ -155,7 +196,7 @@ public final class Extractor<T extends ParserRuleContext> {
     }
 
     public static <T extends ParserRuleContext> Extractor<T> empty(Class<T> type, String mimeType) {
-        return new Extractor<>(type, emptySet(), emptySet(), emptyMap(), mimeType, null);
+        return new Extractor<>(type, emptySet(), emptySet(), emptyMap(), mimeType, null, false, false, false);
     }
 
     public boolean isEmpty() {
@@ -228,15 +269,74 @@ public final class Extractor<T extends ParserRuleContext> {
      * extractor's builder.
      */
     public Extraction extract(T ruleNode, GrammarSource<?> source, BooleanSupplier cancelled, Iterable<? extends Token> tokens) {
+        return wrap(() -> doExtract(ruleNode, source, cancelled, tokens));
+    }
+
+    /**
+     * Re-run extraction after an edit to the document a previous extraction
+     * was created from, reusing what was extracted from those children of the
+     * root node which lie entirely outside the edit and whose tokens are
+     * unchanged, shifted by the size of the edit, and walking only the
+     * remaining children. Region, singleton and name strategies whose results
+     * can only come from within one top-level subtree are re-extracted this
+     * way; others - token-based regions, regions with checksums and any
+     * strategy which can match the root node - are re-extracted in full.
+     * Strategies are assumed to depend only on the node they are applied to,
+     * its descendants and its ancestors.
+     * <p>
+     * Name strategies which cannot match the root node keep a log of the
+     * names and references they found; those from unchanged children are
+     * replayed, shifted, rather than walked again, and references are
+     * resolved afresh against the new set of names.
+     * <p>
+     * The <code>extract()</code> methods do this automatically, inferring the
+     * edit, when the source was extracted before and the extractor was built
+     * with <code>reusingPreviousExtractions(true)</code>. That is off by
+     * default, since nothing verifies that a registered strategy honors the
+     * assumption above, and one which does not would silently produce stale
+     * extractions.
+     * <p>
+     * If the previous extraction was not created by this extractor from a
+     * parse tree in this VM (e.g. it was deserialized), this is equivalent to
+     * a full extraction.
+     *
+     * @param previous The extraction of the document before the edit
+     * @param edit The edit
+     * @param ruleNode The root node of the parse tree of the edited document
+     * @param tokens The tokens of the edited document
+     * @return A new extraction
+     */
+    public Extraction reextract(Extraction previous, SourceEdit edit, T ruleNode, Iterable<? extends Token> tokens) {
+        return reextract(previous, edit, ruleNode, previous.source(), FALSE, tokens);
+    }
+
+    /**
+     * Re-run extraction after an edit to the document a previous extraction
+     * was created from, reusing what can be reused from it.
+     *
+     * @param previous The extraction of the document before the edit
+     * @param edit The edit
+     * @param ruleNode The root node of the parse tree of the edited document
+     * @param source The source of the edited document
+     * @param cancelled A cancellation check which will halt extraction
+     * @param tokens The tokens of the edited document
+     * @return A new extraction
+     * @see #reextract(Extraction, SourceEdit, ParserRuleContext, Iterable)
+     */
+    public Extraction reextract(Extraction previous, SourceEdit edit, T ruleNode, GrammarSource<?> source, BooleanSupplier cancelled, Iterable<? extends Token> tokens) {
+        return wrap(() -> doReextract(previous, edit, ruleNode, source, cancelled, tokens));
+    }
+
+    private Extraction wrap(Supplier<Extraction> extraction) {
         if (wrapExecution == null) {
-            return doExtract(ruleNode, source, cancelled, tokens);
+            return extraction.get();
         } else {
             Bool called = Bool.create();
             try {
                 return wrapExecution.apply(() -> {
                     called.set();
                     try {
-                        return doExtract(ruleNode, source, cancelled, tokens);
+                        return extraction.get();
                     } catch (Exception ex) {
                         Exceptions.printStackTrace(ex);
                         return Extraction.empty(mimeType);
@@ -250,68 +350,344 @@ public final class Extractor<T extends ParserRuleContext> {
     }
 
     private Extraction doExtract(T ruleNode, GrammarSource<?> source, BooleanSupplier cancelled, Iterable<? extends Token> tokens) {
-        String tkHash = hashTokens(tokens);
+        if (reusePrevious) {
+            Extraction previous = RecentExtractions.get(mimeType, source);
+            if (previous != null && previous.subtrees != null) {
+                return doReextract(previous, null, ruleNode, source, cancelled, tokens);
+            }
+        }
+        TopLevelSubtrees subtrees = TopLevelSubtrees.of(ruleNode);
+        String tkHash = hashTokens(tokens, subtrees);
+        Extraction extraction = new Extraction(extractorsHash(), source, tkHash, documentRootType, mimeType);
+        extraction.subtrees = subtrees;
+        long then = System.currentTimeMillis();
+        run(ruleNode, extraction, tokens, cancelled);
+        long elapsed = System.currentTimeMillis() - then;
+        LOG.log(Level.FINEST, "Extraction of {0} took {1}ms", new Object[]{source.id(), elapsed});
+        completed(extraction, source, cancelled);
+        return extraction;
+    }
+
+    private void run(T ruleNode, Extraction extraction, Iterable<? extends Token> tokens, BooleanSupplier cancelled) {
+        if (parallel && regionsInfo.size() + nameExtractors.size() + singles.size() > 1) {
+            runParallel(ruleNode, extraction, tokens, cancelled);
+        } else if (fusedWalk) {
+            runFused(ruleNode, extraction, tokens, cancelled);
+        } else {
+            runSeparately(ruleNode, extraction, tokens, cancelled);
+        }
+    }
+
+    private Extraction doReextract(Extraction previous, SourceEdit edit, T ruleNode, GrammarSource<?> source, BooleanSupplier cancelled, Iterable<? extends Token> tokens) {
+        TopLevelSubtrees subtrees = TopLevelSubtrees.of(ruleNode);
+        String tkHash = hashTokens(tokens, subtrees);
         Extraction extraction = new Extraction(extractorsHash(), source, tkHash, documentRootType, mimeType);
+        extraction.subtrees = subtrees;
         long then = System.currentTimeMillis();
+        TopLevelSubtrees.Reuse reuse = null;
+        if (canReuse(previous)) {
+            // If the edit is not known, it is inferred from which subtrees match
+            reuse = edit == null ? subtrees.reuseFrom(previous.subtrees)
+                    : subtrees.reuseFrom(previous.subtrees, edit);
+        }
+        if (reuse == null || reuse.isEmpty()) {
+            run(ruleNode, extraction, tokens, cancelled);
+        } else {
+            runIncrementally(previous, reuse, ruleNode, extraction, tokens, cancelled);
+        }
+        long elapsed = System.currentTimeMillis() - then;
+        LOG.log(Level.FINEST, "Re-extraction of {0} for {1} with {2} took {3}ms",
+                new Object[]{source.id(), edit == null ? "inferred edit" : edit, reuse, elapsed});
+        completed(extraction, source, cancelled);
+        return extraction;
+    }
+
+    /**
+     * Determine if a previous extraction can be the basis of a re-extraction
+     * - it must have been created, by an extractor with the same strategies,
+     * from a parse tree in this VM, and have usable logs for each incremental
+     * name strategy; and there must be something to reuse.
+     */
+    private boolean canReuse(Extraction previous) {
+        if (previous.subtrees == null || !extractorsHash().equals(previous.creationHash())
+                || (incrementalRegions.isEmpty() && incrementalSingles.isEmpty() && incrementalNames.isEmpty())) {
+            return false;
+        }
+        for (NamesAndReferencesExtractionStrategy<?> n : incrementalNames) {
+            NamesLog<?> log = previous.namesLog(n.logKey());
+            if (log == null || !log.isReusable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void completed(Extraction extraction, GrammarSource<?> source, BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean()) {
+            // Partial - never index it or use it as the basis of a re-extraction
+            return;
+        }
+        // Keep the symbol index current with every file we parse, so
+        // attribution can find names in other files without parsing them
+        if (!nameExtractors.isEmpty()) {
+            SymbolIndex.forMimeType(mimeType).update(extraction);
+        }
+        if (reusePrevious) {
+            RecentExtractions.put(mimeType, source, extraction);
+        }
+    }
+
+    /**
+     * Walks only the damaged children of the root for those strategies which
+     * support it, merging the results with those reused from the previous
+     * extraction, and runs all other strategies over the whole tree. As with
+     * a fused walk, references are found in a second walk, once the complete
+     * set of names is known.
+     */
+    private void runIncrementally(Extraction previous, TopLevelSubtrees.Reuse reuse, T ruleNode, Extraction extraction, Iterable<? extends Token> tokens, BooleanSupplier cancelled) {
+        FusedTreeWalk.Participant[] participants = new FusedTreeWalk.Participant[incrementalRegions.size()
+                + incrementalSingles.size() + incrementalNames.size()];
+        int ix = 0;
+        List<RegionsPass<?>> regionPasses = new ArrayList<>(incrementalRegions.size());
+        for (RegionExtractionStrategies<?> r : incrementalRegions) {
+            RegionsPass<?> pass = new RegionsPass<>(r, cancelled);
+            regionPasses.add(pass);
+            participants[ix++] = pass.visitor;
+        }
+        List<SinglesPass<?>> singlePasses = new ArrayList<>(incrementalSingles.size());
+        for (SingletonExtractionStrategies<?> s : incrementalSingles) {
+            SinglesPass<?> pass = new SinglesPass<>(s, cancelled);
+            singlePasses.add(pass);
+            participants[ix++] = pass.visitor;
+        }
+        ToIntFunction<? super ParserRuleContext> idConverter = RulesMapping.ruleIdMapper(mimeType);
+        List<NamesPass<?>> namePasses = new ArrayList<>(incrementalNames.size());
+        for (NamesAndReferencesExtractionStrategy<?> n : incrementalNames) {
+            NamesPass<?> pass = new NamesPass<>(n, cancelled, idConverter);
+            namePasses.add(pass);
+            participants[ix++] = pass.names;
+        }
+        new FusedTreeWalk(incrementalDispatch, cancelled, participants).walkDamaged(ruleNode, reuse);
+        if (cancelled.getAsBoolean()) {
+            LOG.log(Level.FINEST, "Incremental extraction cancelled in {0}", this);
+            return;
+        }
+        for (RegionsPass<?> pass : regionPasses) {
+            pass.applyReusing(extraction, previous, reuse);
+        }
+        for (SinglesPass<?> pass : singlePasses) {
+            pass.finishReusing(extraction, previous, reuse);
+        }
+        if (!namePasses.isEmpty()) {
+            FusedTreeWalk.Participant[] referenceParticipants = new FusedTreeWalk.Participant[namePasses.size()];
+            for (int i = 0; i < referenceParticipants.length; i++) {
+                referenceParticipants[i] = namePasses.get(i).concludeNamesReusing(extraction.store, previous, reuse);
+            }
+            new FusedTreeWalk(incrementalReferenceDispatch, cancelled, referenceParticipants).walkDamaged(ruleNode, reuse);
+            if (cancelled.getAsBoolean()) {
+                LOG.log(Level.FINEST, "Incremental extraction cancelled in reference pass of {0}", this);
+                return;
+            }
+            for (NamesPass<?> pass : namePasses) {
+                pass.concludeReferences(extraction.store);
+            }
+        }
         for (RegionExtractionStrategies<?> r : regionsInfo) {
             if (cancelled.getAsBoolean()) {
                 LOG.log(Level.FINEST, "Extraction cancelled at {0}", r);
-                return extraction;
+                return;
+            }
+            if (!incrementalRegions.contains(r)) {
+                runRegions2(r, ruleNode, extraction, tokens, cancelled);
+            }
+        }
+        for (NamesAndReferencesExtractionStrategy<?> n : nameExtractors) {
+            if (cancelled.getAsBoolean()) {
+                LOG.log(Level.FINEST, "Extraction cancelled at {0}", n);
+                return;
+            }
+            if (!incrementalNames.contains(n)) {
+                runNames(ruleNode, n, extraction, cancelled);
+            }
+        }
+        for (SingletonExtractionStrategies<?> s : singles.values()) {
+            if (cancelled.getAsBoolean()) {
+                LOG.log(Level.FINEST, "Extraction cancelled at {0}", s);
+                return;
+            }
+            if (!incrementalSingles.contains(s)) {
+                runSingles(s, ruleNode, extraction, cancelled);
+            }
+        }
+    }
+
+    private void runSeparately(T ruleNode, Extraction extraction, Iterable<? extends Token> tokens, BooleanSupplier cancelled) {
+        for (RegionExtractionStrategies<?> r : regionsInfo) {
+            if (cancelled.getAsBoolean()) {
+                LOG.log(Level.FINEST, "Extraction cancelled at {0}", r);
+                return;
             }
             runRegions2(r, ruleNode, extraction, tokens, cancelled);
         }
         for (NamesAndReferencesExtractionStrategy<?> n : nameExtractors) {
             if (cancelled.getAsBoolean()) {
                 LOG.log(Level.FINEST, "Extraction cancelled at {0}", n);
-                return extraction;
+                return;
             }
             runNames(ruleNode, n, extraction, cancelled);
         }
         for (Map.Entry<SingletonKey<?>, SingletonExtractionStrategies<?>> e : singles.entrySet()) {
             if (cancelled.getAsBoolean()) {
                 LOG.log(Level.FINEST, "Extraction cancelled at {0}", e);
-                return extraction;
+                return;
             }
             runSingles(e.getValue(), ruleNode, extraction, cancelled);
         }
-        long elapsed = System.currentTimeMillis() - then;
-        LOG.log(Level.FINEST, "Extraction of {0} took {1}ms", new Object[]{source.id(), elapsed});
-        return extraction;
     }
 
-    private String hashTokens(Iterable<? extends Token> tokens) {
-        try {
-            byte[] ttype = new byte[Integer.BYTES];
-            ByteBuffer buf = ByteBuffer.wrap(ttype);
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            for (Token t : tokens) {
-                if (t.getChannel() == 0) {
-                    buf.rewind();
-                    buf.putInt(t.getType());
-                    buf.flip();
-                    digest.update(ttype);
-                    buf.rewind();
-                    buf.putInt(t.getText().hashCode());
-                    buf.flip();
-                    digest.update(ttype);
-                }
+    /**
+     * Runs each strategy as a separate task in the fork-join pool; the
+     * parse tree is not modified by extraction, so strategies can walk it
+     * concurrently. Results are collected privately by each task, and added
+     * to the extraction on the calling thread, in the same order as they
+     * would be by runSeparately(). If an execution wrapper was supplied, it
+     * wraps each task on whatever thread it runs on, so any thread-local
+     * state it sets up is visible to the strategies.
+     */
+    private void runParallel(T ruleNode, Extraction extraction, Iterable<? extends Token> tokens, BooleanSupplier cancelled) {
+        List<ForkJoinTask<Consumer<Extraction>>> tasks = new ArrayList<>(regionsInfo.size() + nameExtractors.size() + singles.size());
+        for (RegionExtractionStrategies<?> r : regionsInfo) {
+            tasks.add(fork(extraction, cancelled, () -> {
+                RegionsPass<?> pass = new RegionsPass<>(r, cancelled);
+                ruleNode.accept(pass.visitor);
+                pass.complete(tokens, cancelled);
+                return pass::apply;
+            }));
+        }
+        ToIntFunction<? super ParserRuleContext> idConverter = RulesMapping.ruleIdMapper(mimeType);
+        for (NamesAndReferencesExtractionStrategy<?> n : nameExtractors) {
+            tasks.add(fork(extraction, cancelled, () -> {
+                DeferredNameInfoStore store = new DeferredNameInfoStore();
+                n.invoke(ruleNode, store, cancelled, idConverter);
+                return store;
+            }));
+        }
+        for (Map.Entry<SingletonKey<?>, SingletonExtractionStrategies<?>> e : singles.entrySet()) {
+            tasks.add(fork(extraction, cancelled, () -> singlesTask(e.getValue(), ruleNode, cancelled)));
+        }
+        List<Consumer<Extraction>> results = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<Consumer<Extraction>> task : tasks) {
+            results.add(task.join());
+        }
+        if (cancelled.getAsBoolean()) {
+            LOG.log(Level.FINEST, "Parallel extraction cancelled in {0}", this);
+            return;
+        }
+        for (Consumer<Extraction> result : results) {
+            if (result != null) {
+                result.accept(extraction);
             }
-//            return Base64.getUrlEncoder().encodeToString(digest.digest());
-            return fastString(digest.digest());
-        } catch (NoSuchAlgorithmException ex) {
-            throw new AssertionError(ex);
         }
     }
 
-    private String fastString(byte[] bytes) {
-        assert bytes.length % 4 == 0 : "Must be divisible by 4";
-        ByteBuffer buf = ByteBuffer.wrap(bytes);
-        StringBuilder sb = new StringBuilder(bytes.length * 3);
-        IntBuffer ib = buf.asIntBuffer();
-        while (ib.remaining() > 0) {
-            sb.append(Integer.toString(ib.get(), 36));
+    private <K> Consumer<Extraction> singlesTask(SingletonExtractionStrategies<K> single, T ruleNode, BooleanSupplier cancelled) {
+        SingletonEncounters<K> encounters = single.extract(ruleNode, cancelled);
+        return ext -> ext.addSingleton(single.key, encounters);
+    }
+
+    private ForkJoinTask<Consumer<Extraction>> fork(Extraction extraction, BooleanSupplier cancelled, Supplier<Consumer<Extraction>> work) {
+        return ForkJoinPool.commonPool().submit(() -> {
+            if (cancelled.getAsBoolean()) {
+                return null;
+            }
+            if (wrapExecution == null) {
+                return work.get();
+            }
+            Obj<Consumer<Extraction>> result = Obj.create();
+            wrapExecution.apply(() -> {
+                result.set(work.get());
+                return extraction;
+            });
+            return result.get();
+        });
+    }
+
+    /**
+     * Runs every strategy in two walks of the tree instead of one or two per
+     * strategy: the first feeds all region, name and singleton visitors; the
+     * second, which needs the complete set of names from the first, all
+     * reference visitors.
+     */
+    private void runFused(T ruleNode, Extraction extraction, Iterable<? extends Token> tokens, BooleanSupplier cancelled) {
+        FusedTreeWalk.Participant[] participants = new FusedTreeWalk.Participant[regionsInfo.size() + nameExtractors.size() + singles.size()];
+        int ix = 0;
+        List<RegionsPass<?>> regionPasses = new ArrayList<>(regionsInfo.size());
+        for (RegionExtractionStrategies<?> r : regionsInfo) {
+            RegionsPass<?> pass = new RegionsPass<>(r, cancelled);
+            regionPasses.add(pass);
+            participants[ix++] = pass.visitor;
+        }
+        ToIntFunction<? super ParserRuleContext> idConverter = RulesMapping.ruleIdMapper(mimeType);
+        List<NamesPass<?>> namePasses = new ArrayList<>(nameExtractors.size());
+        for (NamesAndReferencesExtractionStrategy<?> n : nameExtractors) {
+            NamesPass<?> pass = new NamesPass<>(n, cancelled, idConverter);
+            namePasses.add(pass);
+            participants[ix++] = pass.names;
+        }
+        List<SinglesPass<?>> singlePasses = new ArrayList<>(singles.size());
+        for (Map.Entry<SingletonKey<?>, SingletonExtractionStrategies<?>> e : singles.entrySet()) {
+            SinglesPass<?> pass = new SinglesPass<>(e.getValue(), cancelled);
+            singlePasses.add(pass);
+            participants[ix++] = pass.visitor;
+        }
+        ruleNode.accept(new FusedTreeWalk(firstPassDispatch, cancelled, participants));
+        if (cancelled.getAsBoolean()) {
+            LOG.log(Level.FINEST, "Extraction cancelled in first pass of {0}", this);
+            return;
+        }
+        for (RegionsPass<?> pass : regionPasses) {
+            pass.finish(extraction, tokens, cancelled);
+        }
+        if (!namePasses.isEmpty()) {
+            FusedTreeWalk.Participant[] referenceParticipants = new FusedTreeWalk.Participant[namePasses.size()];
+            for (int i = 0; i < referenceParticipants.length; i++) {
+                referenceParticipants[i] = namePasses.get(i).concludeNames(extraction.store);
+            }
+            ruleNode.accept(new FusedTreeWalk(referencePassDispatch, cancelled, referenceParticipants));
+            if (cancelled.getAsBoolean()) {
+                LOG.log(Level.FINEST, "Extraction cancelled in reference pass of {0}", this);
+                return;
+            }
+            for (NamesPass<?> pass : namePasses) {
+                pass.concludeReferences(extraction.store);
+            }
+        }
+        for (SinglesPass<?> pass : singlePasses) {
+            pass.finish(extraction);
         }
-        return sb.toString();
+    }
+
+    private String hashTokens(Iterable<? extends Token> tokens, TopLevelSubtrees subtrees) {
+        if (tokens instanceof HashedTokens) {
+            // Hashed as it was lexed; only the per-subtree hashes, which
+            // depend on the parse tree, remain to be computed
+            HashedTokens hashed = (HashedTokens) tokens;
+            if (subtrees.size() > 0) {
+                for (Token t : tokens) {
+                    if (t.getChannel() == 0) {
+                        subtrees.hash(t, hashed.tokenHash(t));
+                    }
+                }
+            }
+            return hashed.tokensHash();
+        }
+        TokenHasher hasher = new TokenHasher();
+        for (Token t : tokens) {
+            if (t.getChannel() == 0) {
+                subtrees.hash(t, hasher.add(t));
+            }
+        }
+        return hasher.hash();
     }
 
     private <K> void runSingles(SingletonExtractionStrategies<K> single, T ruleNode, Extraction extraction, BooleanSupplier cancelled) {
@@ -327,27 +703,150 @@ public final class Extractor<T extends ParserRuleContext> {
     }
 
     private <K> void runRegions2(RegionExtractionStrategies<K> info, T ruleNode, Extraction extraction, Iterable<? extends Token> tokens, BooleanSupplier cancelled) {
-        SemanticRegions.SemanticRegionsBuilder<K> bldr = SemanticRegions.builder(info.key.type());
-        RegionExtractionStrategies.V v = info.createVisitor((k, bounds) -> {
-            if (bounds != null && bounds[0] > bounds[1]) {
-                // Antlr will do this in some cases for a missing token
+        RegionsPass<K> pass = new RegionsPass<>(info, cancelled);
+        ruleNode.accept(pass.visitor);
+        pass.finish(extraction, tokens, cancelled);
+    }
+
+    static final class RegionsPass<K> {
+
+        private final RegionExtractionStrategies<K> info;
+        private final SemanticRegions.SemanticRegionsBuilder<K> bldr;
+        final RegionExtractionStrategies.V<K> visitor;
+        private SemanticRegions<K> regions;
+        private ContentsChecksums<SemanticRegion<K>> checksums;
+
+        RegionsPass(RegionExtractionStrategies<K> info, BooleanSupplier cancelled) {
+            this.info = info;
+            bldr = SemanticRegions.builder(info.key.type());
+            visitor = info.createVisitor((k, bounds) -> {
+                if (bounds != null && bounds[0] > bounds[1]) {
+                    // Antlr will do this in some cases for a missing token
+                    return false;
+                }
+                if (bounds != null && !(bounds[0] == 0 && bounds[1] == 0) && (bounds[0] != bounds[1] /* empty file */)) {
+                    int before = bldr.size();
+                    bldr.add(k, bounds[0], bounds[1]);
+                    return before != bldr.size();
+                }
                 return false;
+            }, cancelled);
+        }
+
+        void finish(Extraction extraction, Iterable<? extends Token> tokens, BooleanSupplier cancelled) {
+            complete(tokens, cancelled);
+            apply(extraction);
+        }
+
+        void complete(Iterable<? extends Token> tokens, BooleanSupplier cancelled) {
+            RegionsCombiner<K> combiner = new RegionsCombiner<>(bldr.build());
+            info.runTokenExtrationStrategies(combiner, tokens, cancelled);
+            regions = combiner.get();
+            checksums = info.retrieveChecksums(visitor, regions);
+        }
+
+        void apply(Extraction extraction) {
+            extraction.add(info.key, regions);
+            if (!checksums.isEmpty()) {
+                extraction.add(info.key, checksums);
             }
-            if (bounds != null && !(bounds[0] == 0 && bounds[1] == 0) && (bounds[0] != bounds[1] /* empty file */)) {
-                int before = bldr.size();
-                bldr.add(k, bounds[0], bounds[1]);
-                return before != bldr.size();
+        }
+
+        /**
+         * Add the regions found in a walk of only the damaged subtrees of a
+         * document, merged in order with those carried over from the previous
+         * extraction; only used for strategies which have neither token
+         * extractors nor checksums.
+         */
+        void applyReusing(Extraction extraction, Extraction previous, TopLevelSubtrees.Reuse reuse) {
+            SemanticRegions<K> found = bldr.build();
+            SemanticRegions<K> old = previous.regions(info.key);
+            SemanticRegions.SemanticRegionsBuilder<K> merged
+                    = SemanticRegions.builder(info.key.type(), old.size() + found.size());
+            int cursor = 0;
+            int foundCount = found.size();
+            for (SemanticRegion<K> reg : old) {
+                int shift = reuse.shiftFor(reg.start(), reg.end());
+                if (shift == TopLevelSubtrees.Reuse.NOT_REUSED) {
+                    continue;
+                }
+                int start = reg.start() + shift;
+                // Reused and new regions come from disjoint subtrees, so
+                // interleaving them by start offset preserves tree order
+                for (; cursor < foundCount && found.forIndex(cursor).start() < start; cursor++) {
+                    SemanticRegion<K> f = found.forIndex(cursor);
+                    merged.add(f.key(), f.start(), f.end());
+                }
+                merged.add(reg.key(), start, reg.end() + shift);
             }
-            return false;
-        }, cancelled);
-        ruleNode.accept(v);
-        RegionsCombiner<K> combiner = new RegionsCombiner<>(bldr.build());
-        info.runTokenExtrationStrategies(combiner, tokens, cancelled);
-        SemanticRegions<K> regions = combiner.get();
-        extraction.add(info.key, regions);
-        ContentsChecksums<SemanticRegion<K>> checksums = info.retrieveChecksums(v, regions);
-        if (!checksums.isEmpty()) {
-            extraction.add(info.key, checksums);
+            for (; cursor < foundCount; cursor++) {
+                SemanticRegion<K> f = found.forIndex(cursor);
+                merged.add(f.key(), f.start(), f.end());
+            }
+            extraction.add(info.key, merged.build());
+        }
+    }
+
+    static final class NamesPass<L extends Enum<L>> {
+
+        private final NamesAndReferencesExtractionStrategy<L> strategy;
+        final NamesAndReferencesExtractionStrategy<L>.RuleNameAndBoundsVisitor names;
+        private NamesAndReferencesExtractionStrategy<L>.ReferenceExtractorVisitor references;
+
+        NamesPass(NamesAndReferencesExtractionStrategy<L> strategy, BooleanSupplier cancelled, ToIntFunction<? super ParserRuleContext> idConverter) {
+            this.strategy = strategy;
+            names = strategy.createNamesVisitor(cancelled, idConverter);
+        }
+
+        FusedTreeWalk.Participant concludeNames(NameInfoStore store) {
+            return references = strategy.concludeNames(names, store);
+        }
+
+        FusedTreeWalk.Participant concludeNamesReusing(NameInfoStore store, Extraction previous, TopLevelSubtrees.Reuse reuse) {
+            return references = strategy.concludeNames(names, store, previous.namesLog(strategy.logKey()), reuse);
+        }
+
+        void concludeReferences(NameInfoStore store) {
+            strategy.concludeReferences(names, references, store);
+        }
+    }
+
+    static final class SinglesPass<K> {
+
+        private final SingletonExtractionStrategies<K> strategies;
+        final SingletonExtractionStrategies.SingleVisitor<K> visitor;
+
+        SinglesPass(SingletonExtractionStrategies<K> strategies, BooleanSupplier cancelled) {
+            this.strategies = strategies;
+            visitor = strategies.createVisitor(cancelled);
+        }
+
+        void finish(Extraction extraction) {
+            extraction.addSingleton(strategies.key, visitor.encounters());
+        }
+
+        void finishReusing(Extraction extraction, Extraction previous, TopLevelSubtrees.Reuse reuse) {
+            SingletonEncounters<K> found = visitor.encounters();
+            SingletonEncounters<K> merged = new SingletonEncounters<>();
+            int cursor = 0;
+            int foundCount = found.size();
+            for (SingletonEncounters.SingletonEncounter<K> enc : previous.singletons(strategies.key)) {
+                int shift = reuse.shiftFor(enc.start(), enc.end());
+                if (shift == TopLevelSubtrees.Reuse.NOT_REUSED) {
+                    continue;
+                }
+                int start = enc.start() + shift;
+                for (; cursor < foundCount && found.forIndex(cursor).start() < start; cursor++) {
+                    SingletonEncounters.SingletonEncounter<K> f = found.forIndex(cursor);
+                    merged.add(f.get(), f.start(), f.end(), f.in());
+                }
+                merged.add(enc.get(), start, enc.end() + shift, enc.in());
+            }
+            for (; cursor < foundCount; cursor++) {
+                SingletonEncounters.SingletonEncounter<K> f = found.forIndex(cursor);
+                merged.add(f.get(), f.start(), f.end(), f.in());
+            }
+            extraction.addSingleton(strategies.key, merged);
         }
     }
 
@@ -38,6 +38,9 @@ public class ExtractorBuilder<T extends ParserRuleContext> {
     private final Map<SingletonKey<?>, SingletonExtractionStrategies<?>> singles = new HashMap<>();
     private final String mimeType;
     private Function<Supplier<Extraction>, Extraction> wrapExecution;
+    private boolean fusedWalk = Extractor.DEFAULT_FUSED_WALK;
+    private boolean parallel = Extractor.DEFAULT_PARALLEL;
+    private boolean reusePrevious = Extractor.DEFAULT_REUSE_PREVIOUS;
 
     ExtractorBuilder(Class<T> entryPoint, String mimeType) {
         this.documentRootType = entryPoint;
@@ -45,7 +48,77 @@ public class ExtractorBuilder<T extends ParserRuleContext> {
     }
 
     public Extractor<T> build() {
-        return new Extractor<>(documentRootType, nameExtractors, regionsInfo2, singles, mimeType, wrapExecution);
+        return new Extractor<>(documentRootType, nameExtractors, regionsInfo2, singles, mimeType, wrapExecution, fusedWalk, parallel, reusePrevious);
+    }
+
+    /**
+     * By default, each region, name and singleton extraction strategy walks
+     * the parse tree separately (name strategies with references walk it
+     * twice). With a fused walk, the visitors for all of them are combined
+     * and driven from one walk of the tree (plus one more for all references),
+     * visiting each node only with those strategies that care about its rule
+     * type. The resulting extraction is the same either way, but an
+     * extractor with many keys walks a large tree far fewer times.
+     * Strategies must not depend on the order in which different keys'
+     * strategies see a node.
+     * <p>
+     * The default can be set for all extractors with the system property
+     * <code>extraction.fused</code>.
+     *
+     * @param fused Whether or not to use a single fused walk
+     * @return this
+     */
+    public ExtractorBuilder<T> fusingTreeWalks(boolean fused) {
+        this.fusedWalk = fused;
+        return this;
+    }
+
+    /**
+     * Run each region, name and singleton extraction strategy as a separate
+     * task in the common fork-join pool, rather than one after another on the
+     * calling thread. Results are added to the extraction on the calling
+     * thread, in the same order either way. Extraction strategies must be
+     * safe to run concurrently - they must not modify the parse tree or
+     * share mutable state. An execution wrapper (see
+     * {@link #wrappingExtractionWith(java.util.function.Function)}) is run
+     * around each task on the thread that runs it, so thread-local state it
+     * sets up is per-task. Parallel extraction takes precedence over
+     * {@link #fusingTreeWalks(boolean)}, since each task walks the tree for
+     * its own strategy.
+     * <p>
+     * The default can be set for all extractors with the system property
+     * <code>extraction.parallel</code>.
+     *
+     * @param parallel Whether or not to extract in parallel
+     * @return this
+     */
+    public ExtractorBuilder<T> extractingInParallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    /**
+     * When extracting a source which was extracted before (as identified by
+     * its id), walk only those children of the root of the parse tree which
+     * differ from the last extraction of it, and reuse what was extracted
+     * from the rest, as
+     * {@link Extractor#reextract(Extraction, SourceEdit, ParserRuleContext, Iterable) reextract()}
+     * does. The edit is inferred by comparing the children of the root. The
+     * last extraction of each source is only weakly referenced; extractions
+     * which have been disposed, compacted or deserialized cannot be reused.
+     * <p>
+     * This is only correct if every strategy depends on nothing but the node
+     * it is applied to, its ancestors and its descendants. The default can be
+     * set for all extractors with the system property
+     * <code>extraction.incremental</code>, and is false.
+     *
+     * @param reuse Whether or not to reuse the previous extraction of a
+     * source
+     * @return this
+     */
+    public ExtractorBuilder<T> reusingPreviousExtractions(boolean reuse) {
+        this.reusePrevious = reuse;
+        return this;
     }
 
     /**
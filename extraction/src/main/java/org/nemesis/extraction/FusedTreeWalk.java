@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.AbstractParseTreeVisitor;
+import org.antlr.v4.runtime.tree.RuleNode;
+
+/**
+ * Walks a parse tree once, feeding every node to whichever of a set of
+ * participants (the visitors of the individual extraction strategies) care
+ * about that node's type, so an extractor with dozens of keys does not walk
+ * the same tree dozens of times.
+ * <p>
+ * Which participants see which rule types is computed once per rule class
+ * and kept in a {@link DispatchTable} owned by the extractor; a participant
+ * with any ancestor-qualified strategy sees every node, since it has to
+ * track when it is activated.
+ *
+ * @author Tim Boudreau
+ */
+final class FusedTreeWalk extends AbstractParseTreeVisitor<Void> {
+
+    private final Participant[] participants;
+    private final DispatchTable table;
+    private final BooleanSupplier cancelled;
+
+    FusedTreeWalk(DispatchTable table, BooleanSupplier cancelled, Participant... participants) {
+        this.table = table;
+        this.cancelled = cancelled;
+        this.participants = participants;
+    }
+
+    @Override
+    public Void visitChildren(RuleNode node) {
+        if (cancelled.getAsBoolean()) {
+            return null;
+        }
+        int[] targets = table.targets(node.getClass(), participants);
+        if (targets.length == 0) {
+            super.visitChildren(node);
+            return null;
+        }
+        Object[] states = new Object[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            states[i] = participants[targets[i]].enter(node);
+        }
+        super.visitChildren(node);
+        for (int i = targets.length - 1; i >= 0; i--) {
+            participants[targets[i]].exit(node, states[i]);
+        }
+        return null;
+    }
+
+    /**
+     * Walk only those children of the root which the passed reuse plan says
+     * are damaged; the root itself is still entered and exited, so
+     * ancestor-qualified participants are activated as they would be in a
+     * full walk.
+     *
+     * @param root The root of the tree
+     * @param reuse The plan
+     */
+    void walkDamaged(ParserRuleContext root, TopLevelSubtrees.Reuse reuse) {
+        int[] targets = table.targets(root.getClass(), participants);
+        Object[] states = new Object[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            states[i] = participants[targets[i]].enter(root);
+        }
+        for (int i = 0; i < root.getChildCount() && !cancelled.getAsBoolean(); i++) {
+            if (reuse.isDamaged(i)) {
+                root.getChild(i).accept(this);
+            }
+        }
+        for (int i = targets.length - 1; i >= 0; i--) {
+            participants[targets[i]].exit(root, states[i]);
+        }
+    }
+
+    /**
+     * A visitor which can be driven by a fused walk rather than walking the
+     * tree itself.
+     */
+    interface Participant {
+
+        /**
+         * Determine if this participant needs to see nodes of the passed
+         * type; the answer must depend only on the strategies the participant
+         * was created for, not on any state.
+         *
+         * @param ruleType A rule node type
+         * @return true if nodes of that type must be passed to enter/exit
+         */
+        boolean visits(Class<?> ruleType);
+
+        /**
+         * Called before the children of a node are visited.
+         *
+         * @param node The node
+         * @return Any state that needs to be passed back to exit, or null
+         */
+        Object enter(RuleNode node);
+
+        /**
+         * Called after the children of a node are visited.
+         *
+         * @param node The node
+         * @param state Whatever enter returned for the same node
+         */
+        void exit(RuleNode node, Object state);
+    }
+
+    /**
+     * Maps rule node classes to the indices of participants interested in
+     * them. Participants are created anew for each extraction, but in a fixed
+     * order for a given extractor, so the table can be shared across
+     * extractions and threads.
+     */
+    static final class DispatchTable {
+
+        private static final int[] NONE = new int[0];
+        private final Map<Class<?>, int[]> targets = new ConcurrentHashMap<>();
+
+        int[] targets(Class<?> type, Participant[] participants) {
+            int[] result = targets.get(type);
+            if (result == null) {
+                result = compute(type, participants);
+                targets.put(type, result);
+            }
+            return result;
+        }
+
+        private static int[] compute(Class<?> type, Participant[] participants) {
+            int[] result = new int[participants.length];
+            int count = 0;
+            for (int i = 0; i < participants.length; i++) {
+                if (participants[i].visits(type)) {
+                    result[count++] = i;
+                }
+            }
+            return count == 0 ? NONE : Arrays.copyOf(result, count);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import org.antlr.v4.runtime.Token;
+
+/**
+ * May be implemented by the token sequence passed to an extractor, if it has
+ * already hashed its tokens using a {@link TokenHasher} as they were lexed, so
+ * the extractor does not need to examine the text of every token again.
+ *
+ * @author Tim Boudreau
+ */
+public interface HashedTokens {
+
+    /**
+     * Get the hash of the entire token sequence, as computed by
+     * <code>TokenHasher.hash()</code>; this will be the tokens hash of the
+     * resulting extraction.
+     *
+     * @return A hash
+     */
+    String tokensHash();
+
+    /**
+     * Get the hash of a single token from this sequence, as computed by
+     * <code>TokenHasher.hashOf()</code>.
+     *
+     * @param token A token from this sequence
+     * @return A hash
+     */
+    long tokenHash(Token token);
+}
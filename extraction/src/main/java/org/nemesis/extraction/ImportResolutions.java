@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import org.nemesis.source.api.GrammarSource;
+
+/**
+ * The extractions of imported sources resolved from an extraction, shared
+ * between that extraction and every extraction resolved through it, keyed by
+ * extractor and source. Each source is extracted at most once at a time:
+ * the first thread to ask for a source runs the extraction, and threads
+ * which ask for the same source while it is running wait for that result,
+ * while requests for different sources run in parallel.
+ * <p>
+ * Cancellation is per-caller: a waiting thread which is interrupted stops
+ * waiting and gets an empty result (with its interrupt status preserved);
+ * if the extraction itself is cancelled or fails, the thread that ran it
+ * gets the exception, and threads that were waiting for it retry, one of
+ * them running the extraction again.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class ImportResolutions {
+
+    private final Map<Extractor<?>, Map<GrammarSource<?>, Resolution>> resolutions
+            = new ConcurrentHashMap<>();
+
+    Extraction resolve(Extractor<?> extractor, GrammarSource<?> src,
+            Function<GrammarSource<?>, Extraction> runExtraction) {
+        Map<GrammarSource<?>, Resolution> forSource
+                = resolutions.computeIfAbsent(extractor, x -> new ConcurrentHashMap<>());
+        for (;;) {
+            Resolution existing = forSource.get(src);
+            if (existing != null) {
+                Extraction result;
+                try {
+                    result = existing.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return new Extraction();
+                }
+                if (result != null) {
+                    return result;
+                }
+                // Failed, cancelled or garbage collected - try again
+                forSource.remove(src, existing);
+                continue;
+            }
+            Resolution mine = new Resolution();
+            if (forSource.putIfAbsent(src, mine) != null) {
+                continue;
+            }
+            Extraction result;
+            try {
+                result = runExtraction.apply(src);
+            } catch (RuntimeException | Error ex) {
+                forSource.remove(src, mine);
+                mine.fail(ex);
+                throw ex;
+            }
+            if (result == null) {
+                forSource.remove(src, mine);
+                mine.fail(new CancellationException("No extraction for " + src));
+                return null;
+            }
+            // Share one set of resolutions between the tree of extractions
+            // created by attributing sources
+            result.imports = this;
+            mine.complete(result);
+            return result;
+        }
+    }
+
+    void clear() {
+        resolutions.clear();
+    }
+
+    private static final class Resolution {
+
+        private final CompletableFuture<TSR<Extraction>> future = new CompletableFuture<>();
+
+        Extraction await() throws InterruptedException {
+            TSR<Extraction> ref;
+            try {
+                ref = future.get();
+            } catch (ExecutionException | CancellationException ex) {
+                return null;
+            }
+            Extraction result = ref.get();
+            return result == null || result.isDisposed() ? null : result;
+        }
+
+        void complete(Extraction ext) {
+            future.complete(TSR.create(ext));
+        }
+
+        void fail(Throwable th) {
+            future.completeExceptionally(th);
+        }
+    }
+}
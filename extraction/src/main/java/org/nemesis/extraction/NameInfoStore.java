@@ -48,4 +48,6 @@ interface NameInfoStore {
     <T extends Enum<T>> void addChecksums(NamedRegionKey<T> key, ContentsChecksums<NamedSemanticRegion<T>> checksums);
 
     <T extends Enum<T>> void noteRuleIdMapping(Class<T> enumType, EnumMap<T, IntSet> ruleIdsForKeys);
+
+    <T extends Enum<T>> void addNamesLog(NamedRegionKey<T> key, NamesLog<T> log);
 }
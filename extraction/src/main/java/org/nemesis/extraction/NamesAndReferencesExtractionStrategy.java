@@ -15,8 +15,10 @@
  */
 package org.nemesis.extraction;
 
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.function.BooleanSupplier;
 import java.util.logging.Logger;
@@ -40,6 +42,9 @@ import java.util.EnumMap;
 import java.util.function.ToIntFunction;
 import java.util.logging.Level;
 import org.nemesis.data.named.ContentsChecksums;
+import org.nemesis.extraction.NamesLog.NameEntry;
+import org.nemesis.extraction.NamesLog.ReferenceEntry;
+import org.nemesis.extraction.key.NameReferenceSetKey;
 
 /**
  *
@@ -94,10 +99,75 @@ class NamesAndReferencesExtractionStrategy<T extends Enum<T>> implements Hashabl
         return sb.append('>').toString();
     }
 
+    /**
+     * Determine if the names and references found in one top-level subtree of
+     * a document can be replayed by a re-extraction - that is, no name or
+     * reference extractor can match the root node itself.
+     *
+     * @param documentRootType The type of the root node
+     * @return true if the results of this strategy can be re-extracted
+     * incrementally
+     */
+    boolean isIncremental(Class<?> documentRootType) {
+        for (NameExtractionStrategy<?, T> e : nameExtractors) {
+            if (e.type.isAssignableFrom(documentRootType)) {
+                return false;
+            }
+        }
+        for (ReferenceExtractorPair<?> p : referenceExtractors) {
+            for (ReferenceExtractionStrategy<?, ?> r : p.referenceExtractors) {
+                if (r.ruleType.isAssignableFrom(documentRootType)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The key the log of what this strategy found is stored under in an
+     * extraction; strategies are recreated with each extractor, so the log
+     * cannot be keyed to the strategy itself.
+     *
+     * @return A key
+     */
+    NamedRegionKey<T> logKey() {
+        return ruleRegionKey != null ? ruleRegionKey : namePositionKey;
+    }
+
     void invoke(ParserRuleContext ctx, NameInfoStore store, BooleanSupplier cancelled, ToIntFunction<? super ParserRuleContext> ruleIdMapper) {
-        ContentsChecksums.Builder sumBuilder = summer != null ? ContentsChecksums.builder() : null;
-        RuleNameAndBoundsVisitor v = new RuleNameAndBoundsVisitor(cancelled, sumBuilder, summer, ruleIdMapper);
+        RuleNameAndBoundsVisitor v = createNamesVisitor(cancelled, ruleIdMapper);
         ctx.accept(v);
+        ReferenceExtractorVisitor v1 = concludeNames(v, store);
+        ctx.accept(v1);
+        concludeReferences(v, v1, store);
+    }
+
+    RuleNameAndBoundsVisitor createNamesVisitor(BooleanSupplier cancelled, ToIntFunction<? super ParserRuleContext> ruleIdMapper) {
+        ContentsChecksums.Builder sumBuilder = summer != null ? ContentsChecksums.builder() : null;
+        return new RuleNameAndBoundsVisitor(cancelled, sumBuilder, summer, ruleIdMapper);
+    }
+
+    /**
+     * Store the names and bounds collected by a names visitor, and create
+     * the visitor for the second pass over the tree, which needs the complete
+     * set of names to resolve references against.
+     */
+    ReferenceExtractorVisitor concludeNames(RuleNameAndBoundsVisitor v, NameInfoStore store) {
+        return concludeNames(v, store, null, null);
+    }
+
+    /**
+     * Store the names found by a names visitor which walked only the damaged
+     * subtrees of a document, merged with those a previous extraction found
+     * in the unchanged ones, and create a reference visitor which will do the
+     * same for references.
+     */
+    ReferenceExtractorVisitor concludeNames(RuleNameAndBoundsVisitor v, NameInfoStore store, NamesLog<T> previous, TopLevelSubtrees.Reuse reuse) {
+        if (previous != null) {
+            v.entries = NamesLog.merge(previous.names, reuse, v.entries);
+        }
+        v.replay();
         NamedSemanticRegions<T> names = v.namesBuilder == null ? null : v.namesBuilder.build();
         NamedSemanticRegions<T> ruleBounds = v.ruleBoundsBuilder.build();
         if (namePositionKey != null) {
@@ -115,18 +185,20 @@ class NamesAndReferencesExtractionStrategy<T extends Enum<T>> implements Hashabl
             v.ruleBoundsBuilder.retrieveDuplicates((name, duplicates) -> {
                 store.addDuplicateNamedRegions(ruleRegionKey, name, duplicates);
             });
-            if (sumBuilder != null) {
-                store.addChecksums(ruleRegionKey, sumBuilder.build(ruleBounds));
+            if (v.sums != null) {
+                store.addChecksums(ruleRegionKey, v.sums.build(ruleBounds));
             }
         }
+        return new ReferenceExtractorVisitor(ruleBounds, previous == null ? null : previous.references, reuse);
+    }
 
-        ReferenceExtractorVisitor v1 = new ReferenceExtractorVisitor(ruleBounds);
-        ctx.accept(v1);
+    void concludeReferences(RuleNameAndBoundsVisitor v, ReferenceExtractorVisitor v1, NameInfoStore store) {
         v1.conclude(store);
         if (ruleRegionKey != null && this.namePositionKey != null) {
             store.addNameAndBoundsKeyPair(new NameAndBoundsPair<>(ruleRegionKey, namePositionKey));
         }
         store.noteRuleIdMapping(keyType, v.ruleIdsForKinds);
+        store.addNamesLog(logKey(), new NamesLog<>(v.entries, v1.entries, !v.unanchored && !v1.unanchored));
     }
 
     @Override
@@ -148,7 +220,7 @@ class NamesAndReferencesExtractionStrategy<T extends Enum<T>> implements Hashabl
         }
     }
 
-    class ReferenceExtractorVisitor extends AbstractParseTreeVisitor<Void> {
+    class ReferenceExtractorVisitor extends AbstractParseTreeVisitor<Void> implements FusedTreeWalk.Participant {
 
         int[] lengths;
         int[][] activations;
@@ -160,9 +232,15 @@ class NamesAndReferencesExtractionStrategy<T extends Enum<T>> implements Hashabl
         NamedRegionReferenceSetsBuilder<T>[] refs;
         private final BitSet[][] references;
         private final BitSet[][] reverseReferences;
+        private final List<ReferenceEntry<T>> previousEntries;
+        private final TopLevelSubtrees.Reuse reuse;
+        private List<ReferenceEntry<T>> entries = new ArrayList<>();
+        private boolean unanchored;
 
         @SuppressWarnings("unchecked")
-        ReferenceExtractorVisitor(NamedSemanticRegions<T> regions) {
+        ReferenceExtractorVisitor(NamedSemanticRegions<T> regions, List<ReferenceEntry<T>> previousEntries, TopLevelSubtrees.Reuse reuse) {
+            this.previousEntries = previousEntries;
+            this.reuse = reuse;
             activations = new int[referenceExtractors.length][];
             lengths = new int[referenceExtractors.length];
             references = new BitSet[referenceExtractors.length][regions.size()];
@@ -190,6 +268,12 @@ class NamesAndReferencesExtractionStrategy<T extends Enum<T>> implements Hashabl
 
         @SuppressWarnings("unchecked")
         void conclude(NameInfoStore store) {
+            if (previousEntries != null) {
+                entries = NamesLog.merge(previousEntries, reuse, entries);
+            }
+            for (ReferenceEntry<T> e : entries) {
+                resolve(e);
+            }
             for (int i = 0; i < referenceExtractors.length; i++) {
                 ReferenceExtractorPair r = referenceExtractors[i];
                 store.addReferences(r.refSetKey, refs[i].build());
@@ -208,16 +292,88 @@ class NamesAndReferencesExtractionStrategy<T extends Enum<T>> implements Hashabl
             return doRunOne(ext, ext.ruleType.cast(nd));
         }
 
-        @Override
+        private int indexOf(NameReferenceSetKey<?> set) {
+            for (int i = 0; i < referenceExtractors.length; i++) {
+                if (referenceExtractors[i].refSetKey.equals(set)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
         @SuppressWarnings("unchecked")
+        private void resolve(ReferenceEntry<T> e) {
+            int i = indexOf(e.set);
+            if (i < 0) {
+                return;
+            }
+            if (regions.contains(e.name)) {
+                refs[i].addReference(e.name, e.start, e.end);
+                NamedSemanticRegion<T> containedBy = regions.index().regionAt(e.start);
+                int referencedIndex = regions.indexOf(e.name);
+                if (containedBy != null && referencedIndex != -1) {
+                    assert containedBy.contains(e.start) : "Index returned bogus result for position " + e.start + ": " + containedBy + " from " + regions.index() + "; code:\n" + regions.toCode();
+                    int referenceIndex = containedBy.index();
+                    references[i][referencedIndex].set(referenceIndex);
+                    reverseReferences[i][referenceIndex].set(referencedIndex);
+                }
+            } else if (e.kind != null) {
+                unknown.add(new UnknownNameReferenceImpl(e.kind, e.start, e.end, e.name, unknownCount++), e.start, e.end);
+            } else {
+                unknown.add(new UnknownNameReferenceImpl(regions.kindType(), e.start, e.end, e.name, unknownCount++), e.start, e.end);
+            }
+        }
+
+        @Override
         public Void visitChildren(RuleNode node) {
-            boolean[][] activeScratch = new boolean[referenceExtractors.length][];
+            Object state = enter(node);
+            super.visitChildren(node);
+            exit(node, state);
+            return null;
+        }
+
+        @Override
+        public boolean visits(Class<?> ruleType) {
+            for (int i = 0; i < lengths.length; i++) {
+                for (int j = 0; j < lengths[i]; j++) {
+                    ReferenceExtractionStrategy<?, ?> info = infos[i][j];
+                    if (info.ancestorQualifier != null || info.ruleType.isAssignableFrom(ruleType)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void exit(RuleNode node, Object state) {
+            if (state != null) {
+                boolean[][] activeScratch = (boolean[][]) state;
+                for (int i = 0; i < lengths.length; i++) {
+                    for (int j = 0; j < lengths[i]; j++) {
+                        if (activeScratch[i] != null && activeScratch[i][j]) {
+                            activations[i][j]--;
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object enter(RuleNode node) {
+            boolean[][] activeScratch = null;
             for (int i = 0; i < lengths.length; i++) {
-                activeScratch[i] = new boolean[lengths[i]];
                 for (int j = 0; j < lengths[i]; j++) {
                     ReferenceExtractionStrategy<?, ?> info = infos[i][j];
                     if (info.ancestorQualifier != null) {
                         if (info.ancestorQualifier.test(node)) {
+                            if (activeScratch == null) {
+                                activeScratch = new boolean[lengths.length][];
+                            }
+                            if (activeScratch[i] == null) {
+                                activeScratch[i] = new boolean[lengths[i]];
+                            }
                             activeScratch[i][j] = true;
                             activations[i][j]++;
                         }
@@ -225,41 +381,22 @@ class NamesAndReferencesExtractionStrategy<T extends Enum<T>> implements Hashabl
                     if (activations[i][j] > 0 && info.ruleType.isInstance(node)) {
                         NameAndOffsets referenceOffsets = runOne(info, node);
                         if (referenceOffsets != null) {
-                            if (regions.contains(referenceOffsets.name)) {
-                                refs[i].addReference(referenceOffsets.name, referenceOffsets.start, referenceOffsets.end);
-                                NamedSemanticRegion<T> containedBy = regions.index().regionAt(referenceOffsets.start);
-                                int referencedIndex = regions.indexOf(referenceOffsets.name);
-                                if (containedBy != null && referencedIndex != -1) {
-                                    assert containedBy.contains(referenceOffsets.start) : "Index returned bogus result for position " + referenceOffsets.start + ": " + containedBy + " from " + regions.index() + "; code:\n" + regions.toCode();
-                                    int referenceIndex = containedBy.index();
-                                    references[i][referencedIndex].set(referenceIndex);
-                                    reverseReferences[i][referenceIndex].set(referencedIndex);
-                                }
-                            } else {
-                                T kind = referenceOffsets instanceof NamedRegionData<?> && ((NamedRegionData<?>) referenceOffsets).kind != null ? (T) ((NamedRegionData<?>) referenceOffsets).kind : null;
-                                if (kind != null) {
-                                    unknown.add(new UnknownNameReferenceImpl(kind, referenceOffsets.start, referenceOffsets.end, referenceOffsets.name, unknownCount++), referenceOffsets.start, referenceOffsets.end);
-                                } else {
-                                    unknown.add(new UnknownNameReferenceImpl(regions.kindType(), referenceOffsets.start, referenceOffsets.end, referenceOffsets.name, unknownCount++), referenceOffsets.start, referenceOffsets.end);
-                                }
-                            }
+                            // Resolved once all of the references are known, since
+                            // a re-extraction merges them with ones from unchanged subtrees
+                            T kind = referenceOffsets instanceof NamedRegionData<?> && ((NamedRegionData<?>) referenceOffsets).kind != null ? (T) ((NamedRegionData<?>) referenceOffsets).kind : null;
+                            int anchor = NamesLog.anchorOf(node);
+                            unanchored |= anchor < 0;
+                            entries.add(new ReferenceEntry<>(anchor, referenceExtractors[i].refSetKey,
+                                    referenceOffsets.name, kind, referenceOffsets.start, referenceOffsets.end));
                         }
                     }
                 }
             }
-            super.visitChildren(node);
-            for (int i = 0; i < lengths.length; i++) {
-                for (int j = 0; j < lengths[i]; j++) {
-                    if (activeScratch[i][j]) {
-                        activations[i][j]--;
-                    }
-                }
-            }
-            return null;
+            return activeScratch;
         }
     }
 
-    class RuleNameAndBoundsVisitor extends AbstractParseTreeVisitor<Void> {
+    class RuleNameAndBoundsVisitor extends AbstractParseTreeVisitor<Void> implements FusedTreeWalk.Participant {
 
         // This is all old-school, array-based, 1990s programming for a reason
         // - this code runs thousands of times, potentially every time a key
@@ -274,6 +411,10 @@ class NamesAndReferencesExtractionStrategy<T extends Enum<T>> implements Hashabl
         private final SummingFunction summer;
         private final ToIntFunction<? super ParserRuleContext> ruleIdMapper;
         private final EnumMap<T, IntSet> ruleIdsForKinds = new EnumMap<>(keyType);
+        // Applied to the builders only once the walk is complete, since a
+        // re-extraction merges them with those from unchanged subtrees
+        private List<NameEntry<T>> entries = new ArrayList<>();
+        private boolean unanchored;
 
         @SuppressWarnings("unchecked")
         RuleNameAndBoundsVisitor(BooleanSupplier cancelled, ContentsChecksums.Builder sums, SummingFunction summer, ToIntFunction<? super ParserRuleContext> ruleIdMapper) {
@@ -303,58 +444,86 @@ class NamesAndReferencesExtractionStrategy<T extends Enum<T>> implements Hashabl
             if (cancelled.getAsBoolean()) {
                 return null;
             }
-            if (node instanceof ParserRuleContext) {
-                try {
-                    // Try not to wreak complete havoc with the rest of
-                    // extraction
-                    onVisit((ParserRuleContext) node);
-                } catch (Exception ex) {
-                    LOG.log(Level.SEVERE, "Exception visiting "
-                            + node.getText()
-                            + " (" + node.getClass().getSimpleName() + ")", ex);
+            Object state = enter(node);
+            super.visitChildren(node);
+            exit(node, state);
+            return null;
+        }
+
+        @Override
+        public boolean visits(Class<?> ruleType) {
+            if (!ParserRuleContext.class.isAssignableFrom(ruleType)) {
+                return false;
+            }
+            for (NameExtractionStrategy<?, T> e : nameExtractors) {
+                if (e.ancestorQualifier != null || e.type.isAssignableFrom(ruleType)) {
+                    return true;
                 }
-            } else {
-                super.visitChildren(node);
             }
-            return null;
+            return false;
         }
 
-        private void onVisit(ParserRuleContext node) {
-            boolean[] activationScratch = new boolean[nameExtractors.length];
+        @Override
+        public Object enter(RuleNode node) {
+            if (!(node instanceof ParserRuleContext)) {
+                return null;
+            }
+            ParserRuleContext rule = (ParserRuleContext) node;
+            boolean[] activationScratch = null;
             for (int i = 0; i < nameExtractors.length; i++) {
                 if (nameExtractors[i].ancestorQualifier != null) {
-                    if (nameExtractors[i].ancestorQualifier.test(node)) {
+                    if (nameExtractors[i].ancestorQualifier.test(rule)) {
+                        if (activationScratch == null) {
+                            activationScratch = new boolean[nameExtractors.length];
+                        }
                         activationScratch[i] = true;
                         activations[i]++;
                     }
                 }
             }
+            String[] foundNames = null;
             try {
-                String[] foundNames = scopingDelimiter == null ? null : new String[nameExtractors.length];
-                boolean anyFoundNames = false;
                 for (int i = 0; i < nameExtractors.length; i++) {
                     if (activations[i] > 0) {
-                        String[] nm = runOne(node, nameExtractors[i], i);
-                        if (nm != null && scopingDelimiter != null && foundNames[i] == null) {
-                            foundNames[i] = nm[0];
-                            if (scopingDelimiter != null) {
+                        String[] nm = runOne(rule, nameExtractors[i], i);
+                        if (nm != null && scopingDelimiter != null) {
+                            if (foundNames == null) {
+                                foundNames = new String[nameExtractors.length];
+                            }
+                            if (foundNames[i] == null) {
+                                foundNames[i] = nm[0];
                                 nameStacks[i].push(nm[1]);
-                                anyFoundNames = true;
                             }
                         }
                     }
                 }
-                super.visitChildren(node);
-                if (anyFoundNames) {
-                    for (int i = 0; i < nameExtractors.length; i++) {
-                        if (foundNames[i] != null) {
-                            String popped = nameStacks[i].pop();
-                        }
+            } catch (Exception ex) {
+                // Try not to wreak complete havoc with the rest of
+                // extraction
+                LOG.log(Level.SEVERE, "Exception visiting "
+                        + node.getText()
+                        + " (" + node.getClass().getSimpleName() + ")", ex);
+            }
+            return activationScratch == null && foundNames == null
+                    ? null : new NameVisitState(activationScratch, foundNames);
+        }
+
+        @Override
+        public void exit(RuleNode node, Object state) {
+            if (state == null) {
+                return;
+            }
+            NameVisitState st = (NameVisitState) state;
+            if (st.foundNames != null) {
+                for (int i = 0; i < st.foundNames.length; i++) {
+                    if (st.foundNames[i] != null) {
+                        nameStacks[i].pop();
                     }
                 }
-            } finally {
-                for (int i = 0; i < activationScratch.length; i++) {
-                    if (activationScratch[i]) {
+            }
+            if (st.activated != null) {
+                for (int i = 0; i < st.activated.length; i++) {
+                    if (st.activated[i]) {
                         activations[i]--;
                     }
                 }
@@ -368,72 +537,84 @@ class NamesAndReferencesExtractionStrategy<T extends Enum<T>> implements Hashabl
             return null;
         }
 
-        private <R extends ParserRuleContext> void mapKindToRuleId(R ruleNode, NamedRegionData<T> nm) {
-            int ruleId = ruleNode.getRuleIndex();  //ruleIdMapper.applyAsInt(ruleNode);
-//            System.out.println("RuleIDMapper gets " + ruleId + " real ruleId "
-//                    + ruleNode.getRuleIndex() + " for " + nm.name + " " + nm.kind
-//                    + " " + nm.start + ":" + nm.end + " for "
-//                    + ruleNode.getClass().getSimpleName());
+        private void mapKindToRuleId(int ruleId, T kind) {
             if (ruleId >= 0) {
-                IntSet set = ruleIdsForKinds.get(nm.kind);
+                IntSet set = ruleIdsForKinds.get(kind);
                 if (set == null) {
                     set = IntSet.create(40);
-                    ruleIdsForKinds.put(nm.kind, set);
+                    ruleIdsForKinds.put(kind, set);
                 }
-//                System.out.println("  add to set for " + nm.kind + " " + set);
                 set.add(ruleId);
             }
         }
 
+        /**
+         * Add the names found, in the order they were found, to the builders.
+         */
+        void replay() {
+            for (NameEntry<T> e : entries) {
+                if (e.kind != null) {
+                    mapKindToRuleId(e.ruleId, e.kind);
+                }
+                boolean added = false;
+                if (namesBuilder != null) {
+                    // XXX, the names extractor actually needs to return the name AND the offsets of the name
+                    // use the same code we use for finding the reference
+                    added = namesBuilder.add(e.name, e.kind, e.start, e.end);
+                }
+                if ((added || namesBuilder == null) && ruleBoundsBuilder != null && e.hasBounds()) {
+                    if (ruleBoundsBuilder.add(e.name, e.kind, e.boundsStart, e.boundsEnd) && sums != null) {
+                        sums.add(e.sum);
+                    }
+                }
+            }
+        }
+
         private <R extends ParserRuleContext> String[] doRunOne(R node, NameExtractionStrategy<R, T> e, int nameExtractorIndex) {
             String[] result = new String[2];
-            int count = e.find(node, (NamedRegionData<T> nm, TerminalNode tn) -> {
+            int anchor = NamesLog.anchorOf(node);
+            e.find(node, (NamedRegionData<T> nm, TerminalNode tn) -> {
                 // If we are iterating TerminalNodes, tn will be non-null; otherwise
                 // it will be null and we are doing single extraction - this is so we can,
                 // for example, in an ANTLR grammar for ANTLR, create token names and
                 // references from an import tokens statement where there is no rule
                 // definition, but we should not point the definition position for all
                 // of the names to the same spot
-                boolean added = false;
-                if (nm != null) {
-                    if (nm.kind != null) {
-                        mapKindToRuleId(node, nm);
-                    }
-                    String name = nm.name(nameStacks == null ? null : nameStacks[nameExtractorIndex], scopingDelimiter);
-                    result[0] = name;
-                    result[1] = nm.name();
-                    if (namesBuilder != null) {
-                        // XXX, the names extractor actually needs to return the name AND the offsets of the name
-                        // use the same code we use for finding the reference
-                        added = namesBuilder.add(name, nm.kind, nm.start, nm.end);
-                    }
-                    if ((added || namesBuilder == null) && ruleBoundsBuilder != null) {
-                        if (tn == null) {
-                            added = ruleBoundsBuilder.add(name, nm.kind, node.start.getStartIndex(), node.stop.getStopIndex() + 1);
-                            if (added) {
-                                sum(node);
-                            }
-                            return added;
-                        } else {
-                            Token tok = tn.getSymbol();
-                            added = ruleBoundsBuilder.add(name, nm.kind, tok.getStartIndex(), tok.getStopIndex() + 1);
-                            if (added) {
-                                sum(node);
-                            }
-                            return added;
-                        }
+                if (nm == null) {
+                    return false;
+                }
+                String name = nm.name(nameStacks == null ? null : nameStacks[nameExtractorIndex], scopingDelimiter);
+                result[0] = name;
+                result[1] = nm.name();
+                int boundsStart = -1;
+                int boundsEnd = -1;
+                if (tn == null) {
+                    if (node.start != null && node.stop != null) {
+                        boundsStart = node.start.getStartIndex();
+                        boundsEnd = node.stop.getStopIndex() + 1;
                     }
+                } else {
+                    Token tok = tn.getSymbol();
+                    boundsStart = tok.getStartIndex();
+                    boundsEnd = tok.getStopIndex() + 1;
                 }
-                return added;
+                unanchored |= anchor < 0;
+                entries.add(new NameEntry<>(anchor, name, nm.kind, nm.start, nm.end, boundsStart, boundsEnd,
+                        node.getRuleIndex(), summer == null ? 0 : summer.sum(node)));
+                return true;
             });
             return result;
         }
+    }
 
-        private void sum(ParserRuleContext ctx) {
-            if (summer == null) {
-                return;
-            }
-            this.sums.add(summer.sum(ctx));
+    static final class NameVisitState {
+
+        final boolean[] activated;
+        final String[] foundNames;
+
+        NameVisitState(boolean[] activated, String[] foundNames) {
+            this.activated = activated;
+            this.foundNames = foundNames;
         }
     }
 }
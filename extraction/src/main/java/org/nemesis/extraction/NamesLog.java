@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.RuleNode;
+import org.nemesis.extraction.key.NameReferenceSetKey;
+
+/**
+ * What the visitors of one names-and-references strategy found in a walk of
+ * a parse tree, in the order they found it, each entry anchored to the start
+ * of the rule node it came from. Kept, unserialized, with the extraction, so
+ * that a re-extraction can replay the entries from unchanged top-level
+ * subtrees, shifted, rather than walking those subtrees again. Names are
+ * replayed into fresh builders, so duplicates are resolved exactly as in a
+ * full walk; references are resolved afresh against the new set of names,
+ * since an edit elsewhere may have added or removed the name one refers to.
+ *
+ * @author Tim Boudreau
+ */
+final class NamesLog<T extends Enum<T>> {
+
+    final List<NameEntry<T>> names;
+    final List<ReferenceEntry<T>> references;
+    private final boolean reusable;
+
+    NamesLog(List<NameEntry<T>> names, List<ReferenceEntry<T>> references, boolean reusable) {
+        this.names = names;
+        this.references = references;
+        this.reusable = reusable;
+    }
+
+    /**
+     * Determine if every entry could be anchored to a rule node with valid
+     * bounds; if not, entries from an unchanged subtree could be lost, and
+     * the log cannot be used.
+     *
+     * @return Whether or not a re-extraction can replay this log
+     */
+    boolean isReusable() {
+        return reusable;
+    }
+
+    /**
+     * Get the offset entries found at the passed node are anchored to, or -1
+     * if the node has no usable bounds.
+     *
+     * @param node A node
+     * @return An offset or -1
+     */
+    static int anchorOf(RuleNode node) {
+        if (node instanceof ParserRuleContext) {
+            Token start = ((ParserRuleContext) node).getStart();
+            Token stop = ((ParserRuleContext) node).getStop();
+            if (start != null && stop != null && start.getStartIndex() >= 0
+                    && stop.getStopIndex() >= start.getStartIndex()) {
+                return start.getStartIndex();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Merge the entries from those subtrees of a previous walk which a reuse
+     * plan says are unchanged, shifted, with those found walking the damaged
+     * subtrees of the new tree, in the order a full walk would have found
+     * them.
+     *
+     * @param <E> The entry type
+     * @param previous The entries of the previous walk
+     * @param reuse The reuse plan
+     * @param found The entries found in the damaged subtrees
+     * @return A list of entries
+     */
+    static <E extends Entry<E>> List<E> merge(List<E> previous, TopLevelSubtrees.Reuse reuse, List<E> found) {
+        List<E> result = new ArrayList<>(previous.size() + found.size());
+        int cursor = 0;
+        int foundCount = found.size();
+        for (E e : previous) {
+            int shift = reuse.shiftFor(e.anchor, e.anchor);
+            if (shift == TopLevelSubtrees.Reuse.NOT_REUSED) {
+                continue;
+            }
+            int anchor = e.anchor + shift;
+            // Reused and new entries come from disjoint subtrees, so
+            // interleaving them by anchor preserves the order of a full walk
+            for (; cursor < foundCount && found.get(cursor).anchor < anchor; cursor++) {
+                result.add(found.get(cursor));
+            }
+            result.add(shift == 0 ? e : e.shiftedBy(shift));
+        }
+        for (; cursor < foundCount; cursor++) {
+            result.add(found.get(cursor));
+        }
+        return result;
+    }
+
+    abstract static class Entry<E extends Entry<E>> {
+
+        final int anchor;
+
+        Entry(int anchor) {
+            this.anchor = anchor;
+        }
+
+        abstract E shiftedBy(int shift);
+    }
+
+    /**
+     * A name found by a name extractor, with the bounds of the rule or token
+     * it was found in, or -1 bounds if those could not be computed.
+     */
+    static final class NameEntry<T extends Enum<T>> extends Entry<NameEntry<T>> {
+
+        final String name;
+        final T kind;
+        final int start;
+        final int end;
+        final int boundsStart;
+        final int boundsEnd;
+        final int ruleId;
+        final long sum;
+
+        NameEntry(int anchor, String name, T kind, int start, int end, int boundsStart, int boundsEnd, int ruleId, long sum) {
+            super(anchor);
+            this.name = name;
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+            this.boundsStart = boundsStart;
+            this.boundsEnd = boundsEnd;
+            this.ruleId = ruleId;
+            this.sum = sum;
+        }
+
+        boolean hasBounds() {
+            return boundsStart >= 0;
+        }
+
+        @Override
+        NameEntry<T> shiftedBy(int shift) {
+            return new NameEntry<>(anchor + shift, name, kind, start + shift, end + shift,
+                    hasBounds() ? boundsStart + shift : boundsStart,
+                    hasBounds() ? boundsEnd + shift : boundsEnd, ruleId, sum);
+        }
+
+        @Override
+        public String toString() {
+            return name + ":" + kind + "@" + start + "-" + end + " in " + boundsStart + "-" + boundsEnd;
+        }
+    }
+
+    /**
+     * The name and offsets of a reference found by one of the reference
+     * extractors for a reference set, not yet resolved against the names.
+     */
+    static final class ReferenceEntry<T extends Enum<T>> extends Entry<ReferenceEntry<T>> {
+
+        final NameReferenceSetKey<?> set;
+        final String name;
+        final T kind;
+        final int start;
+        final int end;
+
+        ReferenceEntry(int anchor, NameReferenceSetKey<?> set, String name, T kind, int start, int end) {
+            super(anchor);
+            this.set = set;
+            this.name = name;
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        ReferenceEntry<T> shiftedBy(int shift) {
+            return new ReferenceEntry<>(anchor + shift, set, name, kind, start + shift, end + shift);
+        }
+
+        @Override
+        public String toString() {
+            return set + ":" + name + "@" + start + "-" + end;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.nemesis.source.api.GrammarSource;
+
+/**
+ * The most recent extraction of each of a bounded number of sources, weakly
+ * referenced, so that when a source is parsed and extracted again after an
+ * edit, <code>Extractor.extract()</code> can reuse what was extracted from
+ * the parts of it the edit did not touch, without the parser plumbing having
+ * to keep and pass along the previous extraction. Extractors are created
+ * anew for each parse, so this cannot live in the extractor. An extraction
+ * is only reused if its subtrees match the new parse exactly, so a stale or
+ * unrelated entry costs nothing but the comparison.
+ *
+ * @author Tim Boudreau
+ */
+final class RecentExtractions {
+
+    private static final int MAX_SOURCES = Math.max(1, Integer.getInteger("extraction.recent.max.sources", 64));
+    // eldest first; guarded by the class
+    private static final LinkedHashMap<String, Reference<Extraction>> RECENT
+            = new LinkedHashMap<>(16, 0.75F, true);
+
+    private RecentExtractions() {
+        throw new AssertionError();
+    }
+
+    static Extraction get(String mimeType, GrammarSource<?> source) {
+        String key = key(mimeType, source);
+        if (key == null) {
+            return null;
+        }
+        synchronized (RecentExtractions.class) {
+            Reference<Extraction> ref = RECENT.get(key);
+            Extraction result = ref == null ? null : ref.get();
+            if (ref != null && result == null) {
+                RECENT.remove(key);
+            }
+            return result;
+        }
+    }
+
+    static void put(String mimeType, GrammarSource<?> source, Extraction extraction) {
+        String key = key(mimeType, source);
+        if (key == null) {
+            return;
+        }
+        synchronized (RecentExtractions.class) {
+            RECENT.put(key, new WeakReference<>(extraction));
+            if (RECENT.size() > MAX_SOURCES) {
+                Iterator<Map.Entry<String, Reference<Extraction>>> it = RECENT.entrySet().iterator();
+                while (RECENT.size() > MAX_SOURCES && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static String key(String mimeType, GrammarSource<?> source) {
+        if (source == null || source == GrammarSource.none()) {
+            // No identity to match a later extraction against
+            return null;
+        }
+        return mimeType + ':' + source.id();
+    }
+}
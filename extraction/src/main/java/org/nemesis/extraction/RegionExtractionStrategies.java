@@ -136,7 +136,28 @@ final class RegionExtractionStrategies<RegionKeyType> implements Hashable {
         return result != null && !result.isEmpty();
     }
 
-    V createVisitor(BiPredicate<RegionKeyType, int[]> c, BooleanSupplier cancelled) {
+    /**
+     * Determine if regions extracted by these strategies from one top-level
+     * subtree of a document can be reused after an edit to another - which is
+     * the case unless they scan tokens, compute checksums, or can extract a
+     * region from the root node itself.
+     *
+     * @param documentRootType The type of the document root
+     * @return true if incremental re-extraction is possible
+     */
+    boolean isIncremental(Class<?> documentRootType) {
+        if (summer != null || (tokenExtractors != null && !tokenExtractors.isEmpty())) {
+            return false;
+        }
+        for (RegionExtractionStrategy<?, ?, ?> e : extractors) {
+            if (e.ruleType.isAssignableFrom(documentRootType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    V<RegionKeyType> createVisitor(BiPredicate<RegionKeyType, int[]> c, BooleanSupplier cancelled) {
         return new V<>(key.type(), c, extractors, cancelled, summer);
     }
 
@@ -148,7 +169,7 @@ final class RegionExtractionStrategies<RegionKeyType> implements Hashable {
         return result;
     }
 
-    static class V<RegionKeyType> extends AbstractParseTreeVisitor<Void> {
+    static class V<RegionKeyType> extends AbstractParseTreeVisitor<Void> implements FusedTreeWalk.Participant {
 
         private final BiPredicate<RegionKeyType, int[]> consumer;
         private final RegionExtractionStrategy<?, ?, ?>[] extractors;
@@ -180,17 +201,38 @@ final class RegionExtractionStrategies<RegionKeyType> implements Hashable {
         }
 
         @Override
-        @SuppressWarnings("unchecked")
         public Void visitChildren(RuleNode node) {
             if (cancelled.getAsBoolean()) {
                 return null;
             }
-            boolean[] scratch = new boolean[extractors.length];
-            for (int i = 0; i < scratch.length; i++) {
+            Object state = enter(node);
+            super.visitChildren(node);
+            exit(node, state);
+            return null;
+        }
+
+        @Override
+        public boolean visits(Class<?> ruleType) {
+            for (RegionExtractionStrategy<?, ?, ?> e : extractors) {
+                if (e.ancestorQualifier != null || e.ruleType.isAssignableFrom(ruleType)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object enter(RuleNode node) {
+            boolean[] scratch = null;
+            for (int i = 0; i < extractors.length; i++) {
                 RegionExtractionStrategy<RegionKeyType, ?, ?> e = (RegionExtractionStrategy<RegionKeyType, ?, ?>) extractors[i];
                 if (e.ancestorQualifier != null) {
                     if (e.ancestorQualifier.test(node)) {
                         activatedCount[i]++;
+                        if (scratch == null) {
+                            scratch = new boolean[extractors.length];
+                        }
                         scratch[i] = true;
                     }
                 }
@@ -198,13 +240,19 @@ final class RegionExtractionStrategies<RegionKeyType> implements Hashable {
                     runOne(node, e, i);
                 }
             }
-            super.visitChildren(node);
-            for (int i = 0; i < scratch.length; i++) {
-                if (scratch[i]) {
-                    activatedCount[i]--;
+            return scratch;
+        }
+
+        @Override
+        public void exit(RuleNode node, Object state) {
+            if (state != null) {
+                boolean[] scratch = (boolean[]) state;
+                for (int i = 0; i < scratch.length; i++) {
+                    if (scratch[i]) {
+                        activatedCount[i]--;
+                    }
                 }
             }
-            return null;
         }
 
         private <RuleType extends RuleNode, TType> void runOne(RuleNode node, RegionExtractionStrategy<RegionKeyType, RuleType, TType> e, int index) {
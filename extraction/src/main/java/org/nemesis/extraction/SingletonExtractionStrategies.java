@@ -73,12 +73,33 @@ final class SingletonExtractionStrategies<KeyType> implements Hashable {
     }
 
     public SingletonEncounters<KeyType> extract(ParserRuleContext node, BooleanSupplier cancelled) {
-        SingleVisitor<KeyType> v = new SingleVisitor<>(infos, cancelled);
+        SingleVisitor<KeyType> v = createVisitor(cancelled);
         node.accept(v);
-        return v.encounters;
+        return v.encounters();
     }
 
-    static final class SingleVisitor<KeyType> extends AbstractParseTreeVisitor<Void> {
+    /**
+     * Determine if encounters from one top-level subtree of a document can be
+     * reused after an edit to another, which is the case unless one of these
+     * strategies can match the root node itself.
+     *
+     * @param documentRootType The type of the document root
+     * @return true if incremental re-extraction is possible
+     */
+    boolean isIncremental(Class<?> documentRootType) {
+        for (SingletonExtractionStrategy<KeyType, ?> info : infos) {
+            if (info.ruleType.isAssignableFrom(documentRootType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    SingleVisitor<KeyType> createVisitor(BooleanSupplier cancelled) {
+        return new SingleVisitor<>(infos, cancelled);
+    }
+
+    static final class SingleVisitor<KeyType> extends AbstractParseTreeVisitor<Void> implements FusedTreeWalk.Participant {
 
         private final SingletonExtractionStrategy<KeyType, ?>[] infos;
         private final int[] activations;
@@ -98,57 +119,62 @@ final class SingletonExtractionStrategies<KeyType> implements Hashable {
             }
         }
 
+        SingletonEncounters<KeyType> encounters() {
+            return encounters;
+        }
+
         @Override
         public Void visitChildren(RuleNode node) {
             if (cancelled.getAsBoolean()) {
                 return null;
             }
-            if (node instanceof ParserRuleContext) {
-                visitRule((ParserRuleContext) node);
-            } else {
-                super.visitChildren(node);
-            }
+            Object state = enter(node);
+            super.visitChildren(node);
+            exit(node, state);
             return null;
         }
 
-        private <R extends ParserRuleContext> void runOne(SingletonExtractionStrategy<KeyType, R> extractor, ParserRuleContext ctx) {
-            if (extractor.ruleType.isInstance(ctx)) {
-                doRunOne(extractor, extractor.ruleType.cast(ctx));
+        @Override
+        public boolean visits(Class<?> ruleType) {
+            if (!ParserRuleContext.class.isAssignableFrom(ruleType)) {
+                return false;
             }
-        }
-
-        private <R extends ParserRuleContext> void doRunOne(SingletonExtractionStrategy<KeyType, R> extractor, R ctx) {
-            if (extractor.extractor != null) {
-                KeyType found = extractor.extractor.apply(ctx);
-                if (found != null) {
-                    encounters.add(found, ctx.start.getStartIndex(), ctx.stop.getStopIndex() + 1, extractor.ruleType);
+            for (SingletonExtractionStrategy<KeyType, ?> info : infos) {
+                if (info.ancestorQualifier != null || info.ruleType.isAssignableFrom(ruleType)) {
+                    return true;
                 }
-            } else if (extractor.consumer != null) {
-                extractor.consumer.accept(ctx, (keyType, start, end) -> {
-                    if (keyType != null) {
-                        encounters.add(keyType, notNull("start", start), notNull("end", end), extractor.ruleType);
-                    }
-                });
             }
+            return false;
         }
 
-        private void visitRule(ParserRuleContext rule) {
-            boolean[] scratch = new boolean[infos.length];
-            boolean anyActivated = false;
+        @Override
+        public Object enter(RuleNode node) {
+            if (!(node instanceof ParserRuleContext)) {
+                return null;
+            }
+            ParserRuleContext rule = (ParserRuleContext) node;
+            boolean[] scratch = null;
             for (int i = 0; i < infos.length; i++) {
                 if (infos[i].ancestorQualifier != null) {
                     if (infos[i].ancestorQualifier.test(rule)) {
                         activations[i]++;
+                        if (scratch == null) {
+                            scratch = new boolean[infos.length];
+                        }
                         scratch[i] = true;
-                        anyActivated = true;
                     }
                 }
                 if (activations[i] > 0) {
                     runOne(infos[i], rule);
                 }
             }
-            super.visitChildren(rule);
-            if (anyActivated) {
+            return scratch;
+        }
+
+        @Override
+        public void exit(RuleNode node, Object state) {
+            if (state != null) {
+                boolean[] scratch = (boolean[]) state;
                 for (int i = 0; i < infos.length; i++) {
                     if (scratch[i]) {
                         activations[i]--;
@@ -156,6 +182,27 @@ final class SingletonExtractionStrategies<KeyType> implements Hashable {
                 }
             }
         }
+
+        private <R extends ParserRuleContext> void runOne(SingletonExtractionStrategy<KeyType, R> extractor, ParserRuleContext ctx) {
+            if (extractor.ruleType.isInstance(ctx)) {
+                doRunOne(extractor, extractor.ruleType.cast(ctx));
+            }
+        }
+
+        private <R extends ParserRuleContext> void doRunOne(SingletonExtractionStrategy<KeyType, R> extractor, R ctx) {
+            if (extractor.extractor != null) {
+                KeyType found = extractor.extractor.apply(ctx);
+                if (found != null) {
+                    encounters.add(found, ctx.start.getStartIndex(), ctx.stop.getStopIndex() + 1, extractor.ruleType);
+                }
+            } else if (extractor.consumer != null) {
+                extractor.consumer.accept(ctx, (keyType, start, end) -> {
+                    if (keyType != null) {
+                        encounters.add(keyType, notNull("start", start), notNull("end", end), extractor.ruleType);
+                    }
+                });
+            }
+        }
     }
 
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+/**
+ * Describes a single change to a document's text, in terms of the character
+ * offsets of the text before the change, for use with
+ * {@link Extractor#reextract Extractor.reextract()}.
+ *
+ * @author Tim Boudreau
+ */
+public final class SourceEdit {
+
+    private final int start;
+    private final int removed;
+    private final int inserted;
+
+    private SourceEdit(int start, int removed, int inserted) {
+        if (start < 0 || removed < 0 || inserted < 0) {
+            throw new IllegalArgumentException("Bad edit: " + start + ", removed " + removed
+                    + ", inserted " + inserted);
+        }
+        this.start = start;
+        this.removed = removed;
+        this.inserted = inserted;
+    }
+
+    public static SourceEdit insertion(int at, int length) {
+        return new SourceEdit(at, 0, length);
+    }
+
+    public static SourceEdit deletion(int at, int length) {
+        return new SourceEdit(at, length, 0);
+    }
+
+    public static SourceEdit replacement(int at, int removed, int inserted) {
+        return new SourceEdit(at, removed, inserted);
+    }
+
+    /**
+     * The offset at which the change begins.
+     *
+     * @return An offset
+     */
+    public int start() {
+        return start;
+    }
+
+    /**
+     * The number of characters removed at the start offset.
+     *
+     * @return A count of characters
+     */
+    public int removed() {
+        return removed;
+    }
+
+    /**
+     * The number of characters inserted at the start offset.
+     *
+     * @return A count of characters
+     */
+    public int inserted() {
+        return inserted;
+    }
+
+    /**
+     * The amount by which offsets after the changed text move.
+     *
+     * @return The difference between inserted and removed characters
+     */
+    public int delta() {
+        return inserted - removed;
+    }
+
+    @Override
+    public String toString() {
+        return "SourceEdit(" + start + " -" + removed + " +" + inserted + ")";
+    }
+
+    @Override
+    public int hashCode() {
+        return (start * 71) + (removed * 7_919) + inserted;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (!(o instanceof SourceEdit)) {
+            return false;
+        }
+        SourceEdit other = (SourceEdit) o;
+        return start == other.start && removed == other.removed
+                && inserted == other.inserted;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.util.Arrays;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CodePointCharStream;
+import org.antlr.v4.runtime.Token;
+
+/**
+ * Computes the tokens hash of an extraction incrementally, one token at a
+ * time, using a non-cryptographic 128-bit hash of the type and characters of
+ * each default-channel token. Where possible, characters are read directly
+ * from the token's input stream rather than by calling
+ * <code>Token.getText()</code>, which creates a string for every token; that
+ * is possible when a token is hashed immediately after the lexer emits it, so
+ * a token source which hashes tokens as it lexes them can implement
+ * {@link HashedTokens} and save the extractor a pass over the token text.
+ * <p>
+ * Tokens whose text was replaced by the lexer are hashed by the characters
+ * they span in the input if hashed during lexing, and by their replaced text
+ * otherwise, so the hash of such a token sequence depends on which way it was
+ * computed - which can cause an unnecessary reparse, but never a missed one.
+ *
+ * @author Tim Boudreau
+ */
+public final class TokenHasher {
+
+    private static final long SEED_1 = 0xcbf29ce484222325L;
+    private static final long SEED_2 = 0x9e3779b97f4a7c15L;
+    private static final long PRIME = 0x100000001b3L;
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private long h1 = SEED_1;
+    private long h2 = SEED_2;
+    private int hashedCount;
+    private long[] tokenHashes;
+    private int size;
+
+    /**
+     * Create a hasher which does not record the hashes of individual tokens.
+     */
+    public TokenHasher() {
+        // do nothing
+    }
+
+    /**
+     * Create a hasher which records the hash of each token passed to it, by
+     * the order it was passed in, for retrieval with <code>tokenHash()</code>.
+     *
+     * @param expectedTokens The expected number of tokens
+     */
+    public TokenHasher(int expectedTokens) {
+        tokenHashes = new long[Math.max(16, expectedTokens)];
+    }
+
+    /**
+     * Add a token to the hash. Tokens on channels other than the default one
+     * do not affect the hash, but are recorded so that token indices line up.
+     *
+     * @param token A token
+     * @return The hash of the individual token, or zero if it is not on the
+     * default channel
+     */
+    public long add(Token token) {
+        long result = 0;
+        if (token.getChannel() == Token.DEFAULT_CHANNEL) {
+            result = hashOf(token);
+            h1 = (h1 ^ result) * PRIME;
+            h2 = Long.rotateLeft(h2 ^ (result * C1), 31) * C2 + 0x52dce729;
+            hashedCount++;
+        }
+        if (tokenHashes != null) {
+            if (size == tokenHashes.length) {
+                tokenHashes = Arrays.copyOf(tokenHashes, size * 2);
+            }
+            tokenHashes[size++] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get the hash recorded for the nth token passed to <code>add()</code>,
+     * if this hasher records per-token hashes.
+     *
+     * @param index The index
+     * @return The hash of that token, as returned by <code>add()</code>
+     * @throws IndexOutOfBoundsException if no such token was recorded
+     */
+    public long tokenHash(int index) {
+        if (tokenHashes == null || index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("No hash recorded for " + index
+                    + " of " + size);
+        }
+        return tokenHashes[index];
+    }
+
+    /**
+     * Get the number of tokens recorded for retrieval by index.
+     *
+     * @return The number of tokens
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the hash of all tokens added so far.
+     *
+     * @return A string representation of the hash
+     */
+    public String hash() {
+        long a = fmix(h1 ^ hashedCount);
+        long b = fmix(h2 + a);
+        return new StringBuilder(28).append(Long.toString(a, 36))
+                .append(Long.toString(b, 36)).toString();
+    }
+
+    /**
+     * Compute the hash of a single token, reading its characters from its
+     * input stream if the stream is positioned immediately after it and will
+     * not be disturbed by doing so, and from its text otherwise.
+     *
+     * @param token A token
+     * @return A hash
+     */
+    public static long hashOf(Token token) {
+        long h = (SEED_1 ^ token.getType()) * PRIME;
+        if (token.getType() == Token.EOF) {
+            return fmix(h);
+        }
+        CharStream in = token.getInputStream();
+        int start = token.getStartIndex();
+        int stop = token.getStopIndex();
+        int length = stop - start + 1;
+        if (in instanceof CodePointCharStream && start >= 0 && length >= 0
+                && in.index() == stop + 1) {
+            // Negative lookahead on a code point stream is a plain array read
+            for (int i = -length; i < 0; i++) {
+                h = (h ^ in.LA(i)) * PRIME;
+            }
+            return fmix(h ^ length);
+        }
+        String text = token.getText();
+        int count = 0;
+        if (text != null) {
+            for (int i = 0; i < text.length(); count++) {
+                int cp = text.codePointAt(i);
+                h = (h ^ cp) * PRIME;
+                i += Character.charCount(cp);
+            }
+        }
+        return fmix(h ^ count);
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.util.Arrays;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * The character bounds of each child of a document's root node, with a hash
+ * of the default-channel tokens in each, computed in the same pass over the
+ * tokens that computes an extraction's tokens hash. Token positions are hashed
+ * relative to the start of their subtree, so a subtree whose hash and length
+ * are unchanged after an edit elsewhere in the document can have whatever was
+ * extracted from it reused, shifted by the size of the edit.
+ *
+ * @author Tim Boudreau
+ */
+final class TopLevelSubtrees {
+
+    private static final long UNHASHED = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] firstTokens;
+    private final int[] lastTokens;
+    private final long[] hashes;
+    private int cursor;
+
+    private TopLevelSubtrees(int size) {
+        starts = new int[size];
+        ends = new int[size];
+        firstTokens = new int[size];
+        lastTokens = new int[size];
+        hashes = new long[size];
+        Arrays.fill(hashes, UNHASHED);
+    }
+
+    static TopLevelSubtrees of(ParserRuleContext root) {
+        int count = root.getChildCount();
+        TopLevelSubtrees result = new TopLevelSubtrees(count);
+        int lastToken = -1;
+        for (int i = 0; i < count; i++) {
+            ParseTree child = root.getChild(i);
+            Token first;
+            Token last;
+            if (child instanceof ParserRuleContext) {
+                first = ((ParserRuleContext) child).getStart();
+                last = ((ParserRuleContext) child).getStop();
+            } else if (child instanceof TerminalNode) {
+                first = last = ((TerminalNode) child).getSymbol();
+            } else {
+                first = last = null;
+            }
+            if (first == null || last == null || last.getTokenIndex() < first.getTokenIndex()
+                    || first.getTokenIndex() <= lastToken || first.getStartIndex() < 0
+                    || last.getStopIndex() < first.getStartIndex()) {
+                // Empty or error-recovered rule, or synthesized tokens - never reusable
+                result.firstTokens[i] = Integer.MAX_VALUE;
+                result.lastTokens[i] = -1;
+                result.starts[i] = result.ends[i] = -1;
+                continue;
+            }
+            result.firstTokens[i] = first.getTokenIndex();
+            result.lastTokens[i] = lastToken = last.getTokenIndex();
+            result.starts[i] = first.getStartIndex();
+            result.ends[i] = last.getStopIndex() + 1;
+        }
+        return result;
+    }
+
+    int size() {
+        return starts.length;
+    }
+
+    private boolean isValid(int index) {
+        return starts[index] >= 0 && hashes[index] != UNHASHED;
+    }
+
+    /**
+     * Hash one default-channel token; tokens must be passed in order.
+     *
+     * @param token A token
+     * @param tokenHash The hash of the token's type and text
+     */
+    void hash(Token token, long tokenHash) {
+        int index = token.getTokenIndex();
+        // Entries for invalid subtrees have a last token of -1 and are skipped
+        while (cursor < starts.length && lastTokens[cursor] < index) {
+            cursor++;
+        }
+        if (cursor < starts.length && firstTokens[cursor] <= index) {
+            long h = hashes[cursor];
+            h = (h ^ tokenHash) * PRIME;
+            h = (h ^ (token.getStartIndex() - starts[cursor])) * PRIME;
+            hashes[cursor] = h;
+        }
+    }
+
+    private int indexOfStart(int start) {
+        int ix = Arrays.binarySearch(starts, start);
+        if (ix >= 0) {
+            return ix;
+        }
+        // Invalid entries have a start of -1, so the array may not be sorted;
+        // fall back to a linear search if the binary search is confused
+        for (int i = 0; i < starts.length; i++) {
+            if (starts[i] == start) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Determine which subtrees of a new parse, which this instance describes,
+     * are unchanged from the parse the passed instance describes, given the
+     * edit that transformed one document into the other.
+     *
+     * @param previous The subtrees of the previous parse
+     * @param edit The edit
+     * @return A reuse plan
+     */
+    Reuse reuseFrom(TopLevelSubtrees previous, SourceEdit edit) {
+        boolean[] damaged = new boolean[starts.length];
+        int[] oldShifts = new int[previous.starts.length];
+        Arrays.fill(oldShifts, Reuse.NOT_REUSED);
+        int reused = 0;
+        int editEnd = edit.start() + edit.inserted();
+        for (int i = 0; i < starts.length; i++) {
+            if (!isValid(i)) {
+                damaged[i] = true;
+                continue;
+            }
+            int shift;
+            if (ends[i] <= edit.start()) {
+                shift = 0;
+            } else if (starts[i] >= editEnd) {
+                shift = edit.delta();
+            } else {
+                damaged[i] = true;
+                continue;
+            }
+            int old = previous.indexOfStart(starts[i] - shift);
+            if (old < 0 || !previous.isValid(old) || previous.ends[old] != ends[i] - shift
+                    || previous.hashes[old] != hashes[i] || oldShifts[old] != Reuse.NOT_REUSED) {
+                damaged[i] = true;
+                continue;
+            }
+            oldShifts[old] = shift;
+            reused++;
+        }
+        return new Reuse(previous.starts, previous.ends, oldShifts, damaged, reused);
+    }
+
+    /**
+     * Determine which subtrees of a new parse are unchanged from the parse
+     * the passed instance describes when the edit is not known, by matching
+     * the longest run of identical subtrees at the start of the document, and
+     * the longest run at the end which are identical but for a common shift;
+     * whatever lies between is treated as damaged.
+     *
+     * @param previous The subtrees of the previous parse
+     * @return A reuse plan
+     */
+    Reuse reuseFrom(TopLevelSubtrees previous) {
+        boolean[] damaged = new boolean[starts.length];
+        Arrays.fill(damaged, true);
+        int[] oldShifts = new int[previous.starts.length];
+        Arrays.fill(oldShifts, Reuse.NOT_REUSED);
+        int reused = 0;
+        int head = 0;
+        for (int max = Math.min(starts.length, previous.starts.length); head < max; head++) {
+            if (!isValid(head) && !previous.isValid(head)) {
+                // Both unusable, e.g. an error node - walked either way
+                continue;
+            } else if (!matches(head, previous, head, 0)) {
+                break;
+            }
+            damaged[head] = false;
+            oldShifts[head] = 0;
+            reused++;
+        }
+        int shift = Reuse.NOT_REUSED;
+        for (int ix = starts.length - 1, old = previous.starts.length - 1; ix >= head && old >= head; ix--, old--) {
+            if (!isValid(ix) && !previous.isValid(old)) {
+                // e.g. the trailing EOF
+                continue;
+            }
+            if (shift == Reuse.NOT_REUSED) {
+                shift = starts[ix] - previous.starts[old];
+            }
+            if (!matches(ix, previous, old, shift)) {
+                break;
+            }
+            damaged[ix] = false;
+            oldShifts[old] = shift;
+            reused++;
+        }
+        return new Reuse(previous.starts, previous.ends, oldShifts, damaged, reused);
+    }
+
+    private boolean matches(int index, TopLevelSubtrees previous, int oldIndex, int shift) {
+        return isValid(index) && previous.isValid(oldIndex)
+                && starts[index] == previous.starts[oldIndex] + shift
+                && ends[index] == previous.ends[oldIndex] + shift
+                && hashes[index] == previous.hashes[oldIndex];
+    }
+
+    /**
+     * Which children of the new root need to be walked, and which ranges of
+     * the old document can be carried over, and with what offset.
+     */
+    static final class Reuse {
+
+        static final int NOT_REUSED = Integer.MIN_VALUE;
+        // Bounds and shifts of only the reused old subtrees, in order
+        private final int[] oldStarts;
+        private final int[] oldEnds;
+        private final int[] shifts;
+        private final boolean[] damaged;
+        private final int total;
+
+        Reuse(int[] allOldStarts, int[] allOldEnds, int[] allOldShifts, boolean[] damaged, int reused) {
+            oldStarts = new int[reused];
+            oldEnds = new int[reused];
+            shifts = new int[reused];
+            for (int i = 0, cursor = 0; i < allOldShifts.length && cursor < reused; i++) {
+                if (allOldShifts[i] != NOT_REUSED) {
+                    oldStarts[cursor] = allOldStarts[i];
+                    oldEnds[cursor] = allOldEnds[i];
+                    shifts[cursor++] = allOldShifts[i];
+                }
+            }
+            this.damaged = damaged;
+            this.total = allOldShifts.length;
+        }
+
+        boolean isEmpty() {
+            return shifts.length == 0;
+        }
+
+        boolean isDamaged(int childIndex) {
+            return damaged[childIndex];
+        }
+
+        /**
+         * Get the amount by which an item with the passed bounds in the old
+         * document must be shifted to be reused in the new one, or
+         * NOT_REUSED if it is not entirely within an unchanged subtree.
+         *
+         * @param start The start offset in the old document
+         * @param end The end offset in the old document
+         * @return An offset or NOT_REUSED
+         */
+        int shiftFor(int start, int end) {
+            int lo = 0;
+            int hi = oldStarts.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (start < oldStarts[mid]) {
+                    hi = mid - 1;
+                } else if (start >= oldEnds[mid]) {
+                    lo = mid + 1;
+                } else {
+                    return end <= oldEnds[mid] ? shifts[mid] : NOT_REUSED;
+                }
+            }
+            return NOT_REUSED;
+        }
+
+        @Override
+        public String toString() {
+            return "Reuse(" + shifts.length + " of " + total + " subtrees)";
+        }
+    }
+}
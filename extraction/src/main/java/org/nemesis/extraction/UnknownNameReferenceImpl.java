@@ -17,6 +17,7 @@ package org.nemesis.extraction;
 
 import static com.mastfrog.util.preconditions.Checks.notNull;
 import java.util.Objects;
+import org.nemesis.data.impl.SymbolTable;
 
 /**
  *
@@ -49,6 +50,26 @@ final class UnknownNameReferenceImpl<T extends Enum<T>> implements UnknownNameRe
         this.type = notNull("expectedKind", expectedKind).getDeclaringClass();
     }
 
+    private UnknownNameReferenceImpl(UnknownNameReferenceImpl<T> orig, String name) {
+        this.type = orig.type;
+        this.expectedKind = orig.expectedKind;
+        this.start = orig.start;
+        this.end = orig.end;
+        this.name = name;
+        this.index = orig.index;
+    }
+
+    /**
+     * Get an instance whose name is the shared instance from the symbol
+     * table.
+     *
+     * @return this or an equivalent instance
+     */
+    UnknownNameReferenceImpl<T> interned() {
+        String shared = SymbolTable.intern(name);
+        return shared == name ? this : new UnknownNameReferenceImpl<>(this, shared);
+    }
+
     @Override
     public Class<T> kindType() {
         return type;
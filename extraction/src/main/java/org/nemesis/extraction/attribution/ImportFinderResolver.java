@@ -15,15 +15,27 @@
  */
 package org.nemesis.extraction.attribution;
 
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.nemesis.data.SemanticRegion;
+import org.nemesis.data.SemanticRegions;
+import org.nemesis.data.named.NamedSemanticRegion;
+import org.nemesis.data.named.NamedSemanticRegions;
 import org.nemesis.extraction.Extraction;
 import org.nemesis.extraction.Extractors;
+import org.nemesis.extraction.ResolutionConsumer;
 import org.nemesis.extraction.UnknownNameReference;
 import org.nemesis.extraction.key.NamedRegionKey;
 import org.nemesis.source.api.GrammarSource;
 
 /**
+ * Resolves unknown names against the imports an ImportFinder finds, consulting
+ * the SymbolIndex first, so that imports the index knows do not declare a name
+ * are never parsed, and ones whose extraction is still in memory are not
+ * parsed again.
  *
  * @author Tim Boudreau
  */
@@ -56,6 +68,66 @@ final class ImportFinderResolver<K extends Enum<K>> implements SimpleRegisterabl
         return null;
     }
 
+    @Override
+    public <X> X resolve(Extraction extraction, UnknownNameReference<K> ref, ResolutionConsumer<GrammarSource<?>, NamedSemanticRegions<K>, NamedSemanticRegion<K>, K, X> c) throws IOException {
+        SymbolIndex index = SymbolIndex.forMimeType(extraction.mimeType());
+        String name = ref.name();
+        for (GrammarSource<?> src : importsThatCouldContain(extraction, ref)) {
+            X result = resolveIn(index, src, extraction, ref, name, null, c);
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public <X> Map<UnknownNameReference<K>, X> resolveAll(Extraction extraction, SemanticRegions<UnknownNameReference<K>> refs, ResolutionConsumer<GrammarSource<?>, NamedSemanticRegions<K>, NamedSemanticRegion<K>, K, X> c) throws IOException {
+        SymbolIndex index = SymbolIndex.forMimeType(extraction.mimeType());
+        Map<GrammarSource<?>, Extraction> resolved = new HashMap<>();
+        Map<UnknownNameReference<K>, X> result = new HashMap<>();
+        for (SemanticRegion<UnknownNameReference<K>> reg : refs) {
+            UnknownNameReference<K> ref = reg.key();
+            String name = ref.name();
+            for (GrammarSource<?> src : importsThatCouldContain(extraction, ref)) {
+                X x = resolveIn(index, src, extraction, ref, name, resolved, c);
+                if (x != null) {
+                    result.put(ref, x);
+                }
+            }
+        }
+        return result;
+    }
+
+    private <X> X resolveIn(SymbolIndex index, GrammarSource<?> src, Extraction extraction,
+            UnknownNameReference<K> ref, String name, Map<GrammarSource<?>, Extraction> resolved,
+            ResolutionConsumer<GrammarSource<?>, NamedSemanticRegions<K>, NamedSemanticRegion<K>, K, X> c) {
+        NamedSemanticRegions<K> indexed = index.namedRegions(src, key);
+        if (indexed != null && !indexed.contains(name)) {
+            return null;
+        }
+        Extraction ext = resolved == null ? null : resolved.get(src);
+        if (ext == null) {
+            ext = index.extraction(src);
+            if (ext == null) {
+                ext = resolveImport(src, extraction);
+                if (ext == null) {
+                    // Don't try again for every remaining reference
+                    ext = Extraction.empty(extraction.mimeType());
+                }
+            }
+            if (resolved != null) {
+                resolved.put(src, ext);
+            }
+        }
+        NamedSemanticRegions<K> names = ext.namedRegions(key);
+        NamedSemanticRegion<K> decl = names.regionFor(name);
+        if (decl != null) {
+            return c.resolved(key, ref, ext.source(), names, decl, ext);
+        }
+        return null;
+    }
+
     @Override
     public Class<K> type() {
         return key.type();
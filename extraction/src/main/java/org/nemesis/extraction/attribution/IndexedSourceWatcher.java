@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction.attribution;
+
+import org.nemesis.source.api.GrammarSource;
+
+/**
+ * Lets the SymbolIndex find out when a source it has indexed is deleted, so
+ * its names stop being offered. Implementations are found in the default
+ * lookup; the first to return non-null from <code>watch()</code> is used.
+ *
+ * @author Tim Boudreau
+ */
+public interface IndexedSourceWatcher {
+
+    /**
+     * Start watching a source for deletion.
+     *
+     * @param src A source which has just been indexed
+     * @param onDeleted To run if the source is deleted or renamed
+     * @return Something which stops watching, or null if this watcher cannot
+     * watch the source
+     */
+    Runnable watch(GrammarSource<?> src, Runnable onDeleted);
+}
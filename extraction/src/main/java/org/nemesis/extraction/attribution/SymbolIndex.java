@@ -0,0 +1,437 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction.attribution;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.nemesis.data.named.NamedSemanticRegion;
+import org.nemesis.data.named.NamedSemanticRegions;
+import org.nemesis.extraction.Extraction;
+import org.nemesis.extraction.key.NamedRegionKey;
+import org.nemesis.source.api.GrammarSource;
+import org.openide.util.Lookup;
+
+/**
+ * Index of the names extracted for every NamedRegionKey from every source of
+ * one mime type that has been extracted in this VM, which maps names to the
+ * sources, kinds and offsets they are declared with, so that unknown name
+ * references can be attributed without parsing every imported source to find
+ * out which one declares a name.
+ * <p>
+ * The index is updated by the Extractor whenever it completes an extraction,
+ * so it follows edits to open documents and any other parse that happens; the
+ * data for a source is considered current only while the source's
+ * <code>lastModified()</code> is what it was when that source was indexed.
+ * The index holds the (immutable) NamedSemanticRegions of each source and a
+ * soft reference to its extraction; sources are identified by their
+ * <code>id()</code>, so no reference to a source or its document is retained.
+ * </p>
+ * <p>
+ * Only sources backed by a file on disk are indexed - others (documents with
+ * no file, snapshots, character streams) have ids based on object identity,
+ * which would never be seen again. The number of sources is bounded (by the
+ * system property <code>symbol.index.max.sources</code>, 2000 by default);
+ * past that, the least recently indexed source is dropped. Sources are
+ * removed when an {@link IndexedSourceWatcher} in the default lookup reports
+ * that they were deleted.
+ * </p>
+ * Reads are lock-free; updates are serialized.
+ *
+ * @author Tim Boudreau
+ */
+public final class SymbolIndex {
+
+    private static final Logger LOG = Logger.getLogger(SymbolIndex.class.getName());
+    private static final Map<String, SymbolIndex> INDICES = new ConcurrentHashMap<>();
+    private static final String[] NO_IDS = new String[0];
+    private final String mimeType;
+    private final int maxSources;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // ids in the order they were last indexed, eldest first; guarded by this
+    private final LinkedHashMap<String, Boolean> indexOrder = new LinkedHashMap<>(16, 0.75F, true);
+    // key -> name -> ids of sources which declare it
+    private final Map<NamedRegionKey<?>, Map<String, String[]>> postings = new ConcurrentHashMap<>();
+
+    private SymbolIndex(String mimeType) {
+        this.mimeType = mimeType;
+        this.maxSources = Math.max(1, Integer.getInteger("symbol.index.max.sources", 2000));
+    }
+
+    /**
+     * Get the index for a mime type.
+     *
+     * @param mimeType A mime type
+     * @return An index
+     */
+    public static SymbolIndex forMimeType(String mimeType) {
+        return INDICES.computeIfAbsent(mimeType, SymbolIndex::new);
+    }
+
+    public String mimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Update the index with the names in an extraction, replacing anything
+     * previously indexed for its source. Placeholder extractions, ones with
+     * no source, and ones whose source is not a file on disk are ignored.
+     *
+     * @param ext An extraction
+     */
+    public void update(Extraction ext) {
+        GrammarSource<?> src = ext.source();
+        if (src == null || src == GrammarSource.none() || ext.isPlaceholder()
+                || ext.isDisposed() || !isFileBacked(src)) {
+            return;
+        }
+        String id = src.id();
+        long lastModified = lastModified(src);
+        List<Runnable> stopWatching = new ArrayList<>(2);
+        synchronized (this) {
+            Entry old = entries.get(id);
+            indexOrder.put(id, Boolean.TRUE);
+            if (old != null && Objects.equals(old.tokensHash, ext.tokensHash())
+                    && old.names.keySet().equals(ext.regionKeys())) {
+                // Same content - just refresh the timestamp and extraction
+                entries.put(id, new Entry(id, src.name(), lastModified,
+                        ext.tokensHash(), old.names, ext, old.stopWatching));
+                return;
+            }
+            Map<NamedRegionKey<?>, NamedSemanticRegions<?>> names = new HashMap<>();
+            for (NamedRegionKey<?> key : ext.regionKeys()) {
+                names.put(key, ext.namedRegions(key));
+            }
+            Runnable watch = old == null ? watch(src, id) : old.stopWatching;
+            entries.put(id, new Entry(id, src.name(), lastModified,
+                    ext.tokensHash(), names, ext, watch));
+            if (old != null) {
+                unpost(old);
+            }
+            post(id, names);
+            for (Iterator<String> it = indexOrder.keySet().iterator(); indexOrder.size() > maxSources;) {
+                String eldest = it.next();
+                it.remove();
+                Entry evicted = entries.remove(eldest);
+                if (evicted != null) {
+                    unpost(evicted);
+                    stopWatching.add(evicted.stopWatching);
+                }
+            }
+        }
+        stopWatching(stopWatching);
+    }
+
+    /**
+     * Remove a source from the index, e.g. because it was deleted.
+     *
+     * @param src A source
+     */
+    public void remove(GrammarSource<?> src) {
+        remove(src.id());
+    }
+
+    private void remove(String id) {
+        Entry old;
+        synchronized (this) {
+            indexOrder.remove(id);
+            old = entries.remove(id);
+            if (old != null) {
+                unpost(old);
+            }
+        }
+        if (old != null) {
+            stopWatching(Collections.singletonList(old.stopWatching));
+        }
+    }
+
+    static boolean isFileBacked(GrammarSource<?> src) {
+        return src.lookup(Path.class).isPresent() || src.lookup(File.class).isPresent();
+    }
+
+    private Runnable watch(GrammarSource<?> src, String id) {
+        // Called once per source, when it is first indexed
+        for (IndexedSourceWatcher watcher : Lookup.getDefault().lookupAll(IndexedSourceWatcher.class)) {
+            Runnable result = watcher.watch(src, () -> {
+                LOG.log(Level.FINE, "Remove deleted {0} from {1}", new Object[]{id, this});
+                remove(id);
+            });
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private static void stopWatching(List<Runnable> stoppers) {
+        for (Runnable r : stoppers) {
+            if (r != null) {
+                r.run();
+            }
+        }
+    }
+
+    private void post(String id, Map<NamedRegionKey<?>, NamedSemanticRegions<?>> names) {
+        for (Map.Entry<NamedRegionKey<?>, NamedSemanticRegions<?>> e : names.entrySet()) {
+            Map<String, String[]> forKey = postings.computeIfAbsent(e.getKey(), k -> new ConcurrentHashMap<>());
+            for (NamedSemanticRegion<?> region : e.getValue()) {
+                forKey.compute(region.name(), (name, ids) -> {
+                    if (ids == null) {
+                        return new String[]{id};
+                    }
+                    String[] result = Arrays.copyOf(ids, ids.length + 1);
+                    result[ids.length] = id;
+                    return result;
+                });
+            }
+        }
+    }
+
+    private void unpost(Entry entry) {
+        for (Map.Entry<NamedRegionKey<?>, NamedSemanticRegions<?>> e : entry.names.entrySet()) {
+            Map<String, String[]> forKey = postings.get(e.getKey());
+            if (forKey == null) {
+                continue;
+            }
+            for (NamedSemanticRegion<?> region : e.getValue()) {
+                forKey.computeIfPresent(region.name(), (name, ids) -> {
+                    for (int i = 0; i < ids.length; i++) {
+                        if (ids[i].equals(entry.id)) {
+                            if (ids.length == 1) {
+                                return null;
+                            }
+                            String[] result = new String[ids.length - 1];
+                            System.arraycopy(ids, 0, result, 0, i);
+                            System.arraycopy(ids, i + 1, result, i, ids.length - (i + 1));
+                            return result;
+                        }
+                    }
+                    return ids;
+                });
+            }
+        }
+    }
+
+    private static long lastModified(GrammarSource<?> src) {
+        try {
+            return src.lastModified();
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    private Entry currentEntry(GrammarSource<?> src) {
+        Entry e = entries.get(src.id());
+        if (e == null) {
+            return null;
+        }
+        long lm = lastModified(src);
+        return lm < 0 || lm != e.lastModified ? null : e;
+    }
+
+    /**
+     * Determine whether the index has current data for a source.
+     *
+     * @param src A source
+     * @return true if it does
+     */
+    public boolean isIndexed(GrammarSource<?> src) {
+        return currentEntry(src) != null;
+    }
+
+    /**
+     * Get the names for a key in a source, if the index has current data for
+     * that source.
+     *
+     * @param <K> The key type
+     * @param src A source
+     * @param key A key
+     * @return The regions, or null if the source is not indexed or has
+     * changed since it was
+     */
+    @SuppressWarnings("unchecked")
+    public <K extends Enum<K>> NamedSemanticRegions<K> namedRegions(GrammarSource<?> src, NamedRegionKey<K> key) {
+        Entry e = currentEntry(src);
+        if (e == null) {
+            return null;
+        }
+        NamedSemanticRegions<K> result = (NamedSemanticRegions<K>) e.names.get(key);
+        return result == null ? NamedSemanticRegions.empty() : result;
+    }
+
+    /**
+     * Get the extraction last indexed for a source, if it is current and has
+     * not been garbage collected.
+     *
+     * @param src A source
+     * @return An extraction or null
+     */
+    public Extraction extraction(GrammarSource<?> src) {
+        Entry e = currentEntry(src);
+        if (e == null) {
+            return null;
+        }
+        Extraction result = e.extraction.get();
+        return result == null || result.isDisposed() ? null : result;
+    }
+
+    /**
+     * Find all indexed declarations of a name, regardless of whether their
+     * sources have changed since they were indexed.
+     *
+     * @param <K> The key type
+     * @param key The key
+     * @param name The name
+     * @return A list of symbols
+     */
+    @SuppressWarnings("unchecked")
+    public <K extends Enum<K>> List<Symbol<K>> find(NamedRegionKey<K> key, String name) {
+        Map<String, String[]> forKey = postings.get(key);
+        String[] ids = forKey == null ? NO_IDS : forKey.getOrDefault(name, NO_IDS);
+        if (ids.length == 0) {
+            return Collections.emptyList();
+        }
+        List<Symbol<K>> result = new ArrayList<>(ids.length);
+        for (String id : ids) {
+            Entry e = entries.get(id);
+            if (e != null) {
+                NamedSemanticRegions<K> regions = (NamedSemanticRegions<K>) e.names.get(key);
+                NamedSemanticRegion<K> region = regions == null ? null : regions.regionFor(name);
+                if (region != null) {
+                    result.add(new Symbol<>(key, name, region.kind(), id, e.name,
+                            region.start(), region.end()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of sources indexed.
+     *
+     * @return A count
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SymbolIndex(" + mimeType + ", " + entries.size() + " sources)";
+    }
+
+    private static final class Entry {
+
+        private final String id;
+        private final String name;
+        private final long lastModified;
+        private final String tokensHash;
+        private final Map<NamedRegionKey<?>, NamedSemanticRegions<?>> names;
+        private final Reference<Extraction> extraction;
+        private final Runnable stopWatching;
+
+        Entry(String id, String name, long lastModified, String tokensHash,
+                Map<NamedRegionKey<?>, NamedSemanticRegions<?>> names, Extraction extraction,
+                Runnable stopWatching) {
+            this.id = id;
+            this.name = name;
+            this.lastModified = lastModified;
+            this.tokensHash = tokensHash;
+            this.names = names;
+            this.extraction = new SoftReference<>(extraction);
+            this.stopWatching = stopWatching;
+        }
+    }
+
+    /**
+     * A declaration of a name in some source.
+     *
+     * @param <K> The key type
+     */
+    public static final class Symbol<K extends Enum<K>> {
+
+        private final NamedRegionKey<K> key;
+        private final String name;
+        private final K kind;
+        private final String sourceId;
+        private final String sourceName;
+        private final int start;
+        private final int end;
+
+        Symbol(NamedRegionKey<K> key, String name, K kind, String sourceId,
+                String sourceName, int start, int end) {
+            this.key = key;
+            this.name = name;
+            this.kind = kind;
+            this.sourceId = sourceId;
+            this.sourceName = sourceName;
+            this.start = start;
+            this.end = end;
+        }
+
+        public NamedRegionKey<K> key() {
+            return key;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public K kind() {
+            return kind;
+        }
+
+        /**
+         * The <code>id()</code> of the source the symbol is declared in.
+         *
+         * @return An id
+         */
+        public String sourceId() {
+            return sourceId;
+        }
+
+        public String sourceName() {
+            return sourceName;
+        }
+
+        public int start() {
+            return start;
+        }
+
+        public int end() {
+            return end;
+        }
+
+        @Override
+        public String toString() {
+            return name + ":" + kind + "@" + start + ":" + end + " in " + sourceName;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.util.Iterator;
+import org.nemesis.data.SemanticRegion;
+import org.nemesis.data.named.NamedSemanticRegion;
+import org.nemesis.data.named.NamedSemanticRegions;
+import org.nemesis.extraction.FusedTreeWalkTest.Kinds;
+import static org.nemesis.extraction.FusedTreeWalkTest.NAMES;
+import static org.nemesis.extraction.FusedTreeWalkTest.REFS;
+import static org.nemesis.extraction.FusedTreeWalkTest.describe;
+import static org.nemesis.extraction.FusedTreeWalkTest.extractor;
+import org.nemesis.extraction.FusedTreeWalkTest.TreeBuilder;
+import org.nemesis.source.api.GrammarSource;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class CompactExtractionTest {
+
+    @Test
+    public void testCompactPreservesContentsAndSharesNames() throws Exception {
+        Extraction a = extract();
+        Extraction b = extract();
+        assertNotSame(a.namedRegions(NAMES).regionFor("r3").name(),
+                b.namedRegions(NAMES).regionFor("r3").name());
+        String expected = describe(a);
+        NamedSemanticRegions<Kinds> aNames = a.namedRegions(NAMES);
+        Extraction ac = a.compactCopy();
+        Extraction bc = b.compactCopy();
+        assertNotSame(a, ac);
+        assertEquals(expected, describe(ac));
+        assertEquals(expected, describe(bc));
+        // The originals, which other threads may be using, are untouched
+        assertSame(aNames, a.namedRegions(NAMES));
+        assertEquals(expected, describe(a));
+        assertEquals(a.tokensHash(), ac.tokensHash());
+        assertEquals(a.creationHash(), ac.creationHash());
+
+        for (NamedSemanticRegion<Kinds> reg : ac.namedRegions(NAMES)) {
+            assertSame(reg.name(), bc.namedRegions(NAMES).regionFor(reg.name()).name());
+        }
+        Iterator<SemanticRegion<UnknownNameReference<Kinds>>> bUnknowns = bc.unknowns(REFS).iterator();
+        for (SemanticRegion<UnknownNameReference<Kinds>> unk : ac.unknowns(REFS)) {
+            assertSame(unk.key().name(), bUnknowns.next().key().name());
+        }
+        // Lookups rebuild what was discarded
+        assertEquals(3, ac.namedRegions(NAMES).indexOf("r3"));
+        assertEquals(1, ac.namedRegions(NAMES).matchingPrefix("r3", reg -> {
+        }));
+    }
+
+    private static Extraction extract() {
+        TreeBuilder tb = new TreeBuilder();
+        return extractor(false).extract(tb.build(5), GrammarSource.none(), tb.tokens);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.nio.file.Path;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.nemesis.extraction.FusedTreeWalkTest.describe;
+import static org.nemesis.extraction.FusedTreeWalkTest.extractor;
+import org.nemesis.extraction.FusedTreeWalkTest.Root;
+import org.nemesis.extraction.FusedTreeWalkTest.TreeBuilder;
+import org.nemesis.source.api.GrammarSource;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ExtractionCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Extraction ext = extraction(20);
+        ExtractionCache cache = new ExtractionCache(dir, 1024 * 1024);
+        assertNull(cache.get("a.g4", "x", ext.creationHash(), GrammarSource.none()));
+        assertTrue(cache.put("a.g4", "x", ext));
+        assertTrue(cache.size() > 0);
+
+        Extraction read = cache.get("a.g4", "x", ext.creationHash(), GrammarSource.none());
+        assertNotNull(read);
+        assertEquals(describe(ext), describe(read));
+        assertEquals(ext.creationHash(), read.creationHash());
+        assertTrue(ext.isSameTokensHash(read));
+        assertEquals(ext.documentRootType(), read.documentRootType());
+
+        assertNull(cache.get("a.g4", "y", ext.creationHash(), GrammarSource.none()), "Content changed");
+        assertNull(cache.get("a.g4", "x", "somethingElse", GrammarSource.none()), "Extractor changed");
+        assertNull(cache.get("b.g4", "x", ext.creationHash(), GrammarSource.none()), "Wrong file");
+
+        ExtractionCache reopened = new ExtractionCache(dir, 1024 * 1024);
+        assertEquals(cache.size(), reopened.size());
+        assertNotNull(reopened.get("a.g4", "x", type -> {
+            assertEquals(Root.class, type);
+            return ext.creationHash();
+        }, GrammarSource.none()));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+        Extraction ext = extraction(10);
+        ExtractionCache probe = new ExtractionCache(dir.resolve("probe"), Long.MAX_VALUE);
+        probe.put("probe", "x", ext);
+        long entrySize = probe.size();
+
+        ExtractionCache cache = new ExtractionCache(dir.resolve("lru"), entrySize * 2 + entrySize / 2);
+        cache.put("a", "x", ext);
+        cache.put("b", "x", ext);
+        assertNotNull(cache.get("a", "x", ext.creationHash(), GrammarSource.none()));
+        cache.put("c", "x", ext);
+        assertNull(cache.get("b", "x", ext.creationHash(), GrammarSource.none()), "b should have been evicted");
+        assertNotNull(cache.get("a", "x", ext.creationHash(), GrammarSource.none()));
+        assertNotNull(cache.get("c", "x", ext.creationHash(), GrammarSource.none()));
+        assertTrue(cache.size() <= entrySize * 2 + entrySize / 2, () -> "Size " + cache.size());
+    }
+
+    @Test
+    public void testCompactedCopiesComeFromCachedBytes() throws Exception {
+        Extraction ext = extraction(15);
+        ExtractionCache cache = new ExtractionCache(dir, 1024 * 1024);
+        Extraction stored = cache.putCompacted("a.g4", "x", ext);
+        assertNotNull(stored);
+        assertNotSame(ext, stored);
+        assertEquals(describe(ext), describe(stored));
+        assertEquals(ext.creationHash(), stored.creationHash());
+        assertNull(stored.subtrees, "Compacted copy should not be reusable for re-extraction");
+        assertNotNull(ext.subtrees, "Original should not have been modified");
+
+        Extraction read = cache.getCompacted("a.g4", "x", type -> ext.creationHash(), GrammarSource.none());
+        assertNotNull(read);
+        assertNotSame(stored, read);
+        assertEquals(describe(ext), describe(read));
+        assertNull(cache.getCompacted("a.g4", "y", type -> ext.creationHash(), GrammarSource.none()));
+    }
+
+    private static Extraction extraction(int defs) {
+        TreeBuilder tb = new TreeBuilder();
+        return extractor(false).extract(tb.build(defs), GrammarSource.none(), tb.tokens);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+import org.nemesis.data.SemanticRegion;
+import org.nemesis.data.named.NamedRegionReferenceSet;
+import org.nemesis.data.named.NamedSemanticRegion;
+import org.nemesis.data.named.NamedSemanticRegionReference;
+import org.nemesis.extraction.SingletonEncounters.SingletonEncounter;
+import org.nemesis.extraction.key.NameReferenceSetKey;
+import org.nemesis.extraction.key.NamedRegionKey;
+import org.nemesis.extraction.key.RegionsKey;
+import org.nemesis.extraction.key.SingletonKey;
+import org.nemesis.source.api.GrammarSource;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class FusedTreeWalkTest {
+
+    static final NamedRegionKey<Kinds> NAMES = NamedRegionKey.create("names", Kinds.class);
+    static final NamedRegionKey<Kinds> BOUNDS = NamedRegionKey.create("bounds", Kinds.class);
+    static final NameReferenceSetKey<Kinds> REFS = NAMES.createReferenceKey("refs");
+    static final RegionsKey<String> BLOCKS = RegionsKey.create(String.class, "blocks");
+    static final RegionsKey<String> NESTED_REFS = RegionsKey.create(String.class, "nestedRefs");
+    static final SingletonKey<String> FIRST = SingletonKey.create(String.class, "first");
+
+    @Test
+    public void testFusedWalkProducesSameExtraction() {
+        TreeBuilder tb = new TreeBuilder();
+        Root root = tb.build(25);
+        Extraction separate = extractor(false).extract(root, GrammarSource.none(), tb.tokens);
+        Extraction fused = extractor(true).extract(root, GrammarSource.none(), tb.tokens);
+        String expected = describe(separate);
+        assertTrue(expected.contains("r24@"), expected);
+        assertTrue(expected.matches("(?s).*unknown: \\d.*"), expected);
+        assertEquals(expected, describe(fused));
+        assertEquals(separate.creationHash(), fused.creationHash());
+    }
+
+    @Test
+    public void testCancelledFusedWalkStops() {
+        TreeBuilder tb = new TreeBuilder();
+        Root root = tb.build(5);
+        Extraction fused = extractor(true).extract(root, GrammarSource.none(), () -> true, tb.tokens);
+        assertTrue(fused.regionsKeys().isEmpty(), fused::toString);
+    }
+
+    static Extractor<Root> extractor(boolean fused) {
+        return builder().fusingTreeWalks(fused).build();
+    }
+
+    static ExtractorBuilder<Root> builder() {
+        return Extractor.builder(Root.class, "text/x-fused-walk-test")
+                .extractNamedRegionsKeyedTo(Kinds.class)
+                .recordingNamePositionUnder(NAMES)
+                .recordingRulePositionUnder(BOUNDS)
+                .whereRuleIs(Def.class)
+                .derivingNameWith(def -> NamedRegionData.create(def.name.getText(), Kinds.RULE,
+                def.name.getStartIndex(), def.name.getStopIndex() + 1))
+                .collectingReferencesUnder(REFS)
+                .whereReferenceContainingRuleIs(Ref.class)
+                .derivingReferenceOffsetsFromTokenWith(ref -> ref.target)
+                .finishReferenceCollector()
+                .finishNamedRegions()
+                .extractingRegionsUnder(BLOCKS)
+                .whenRuleType(Block.class)
+                .extractingBoundsFromRuleUsingKey("block")
+                .finishRegionExtractor()
+                .extractingRegionsUnder(NESTED_REFS)
+                .whenRuleType(Ref.class)
+                .whenAncestorRuleOf(Block.class)
+                .extractingBoundsFromRuleAndKeyWith(ref -> ref.target.getText())
+                .finishRegionExtractor()
+                .extractingSingletonUnder(FIRST)
+                .using(Def.class)
+                .extractingObjectWith(def -> def.name.getText())
+                .finishObjectExtraction();
+    }
+
+    static String describe(Extraction ext) {
+        StringBuilder sb = new StringBuilder();
+        for (RegionsKey<String> key : Arrays.asList(BLOCKS, NESTED_REFS)) {
+            sb.append(key).append(':');
+            for (SemanticRegion<String> reg : ext.regions(key)) {
+                sb.append(' ').append(reg.key()).append('@').append(reg.start()).append('-').append(reg.end());
+            }
+            sb.append('\n');
+        }
+        for (NamedRegionKey<Kinds> key : Arrays.asList(NAMES, BOUNDS)) {
+            sb.append(key).append(':');
+            for (NamedSemanticRegion<Kinds> reg : ext.namedRegions(key)) {
+                sb.append(' ').append(reg.name()).append('@').append(reg.start()).append('-').append(reg.end());
+            }
+            sb.append('\n');
+        }
+        sb.append("refs:");
+        for (NamedRegionReferenceSet<Kinds> set : ext.references(REFS)) {
+            for (NamedSemanticRegionReference<Kinds> ref : set) {
+                sb.append(' ').append(ref.name()).append('@').append(ref.start()).append('-').append(ref.end());
+            }
+        }
+        sb.append("\nunknown:");
+        for (SemanticRegion<UnknownNameReference<Kinds>> unk : ext.unknowns(REFS)) {
+            sb.append(' ').append(unk.start()).append('-').append(unk.end());
+        }
+        sb.append("\ngraph:");
+        for (NamedSemanticRegion<Kinds> reg : ext.namedRegions(NAMES)) {
+            sb.append(' ').append(reg.name()).append("->")
+                    .append(new TreeSet<>(ext.referenceGraph(REFS).children(reg.name())));
+        }
+        sb.append("\nfirst:");
+        for (SingletonEncounter<String> enc : ext.singletons(FIRST)) {
+            sb.append(' ').append(enc.get()).append('@').append(enc.start()).append('-').append(enc.end());
+        }
+        return sb.toString();
+    }
+
+    enum Kinds {
+        RULE
+    }
+
+    /**
+     * Builds a tree for text along the lines of
+     * <code>r0 { r1 missing0 } r1 { r2 missing1 } ...</code>.
+     */
+    static final class TreeBuilder {
+
+        final List<Token> tokens = new ArrayList<>();
+        private int pos;
+        private int renamed = -1;
+        private String newName;
+
+        TreeBuilder renaming(int index, String name) {
+            renamed = index;
+            newName = name;
+            return this;
+        }
+
+        Root build(int defs) {
+            Root root = new Root();
+            for (int i = 0; i < defs; i++) {
+                Def def = new Def(root);
+                root.addChild(def);
+                def.name = token(i == renamed ? newName : "r" + i);
+                def.start = def.name;
+                def.addChild(new TerminalNodeImpl(def.name));
+                Block block = new Block(def);
+                def.addChild(block);
+                block.start = token("{");
+                block.addChild(new TerminalNodeImpl(block.start));
+                ref(block, "r" + ((i + 1) % defs));
+                ref(block, "missing" + i);
+                block.stop = token("}");
+                block.addChild(new TerminalNodeImpl(block.stop));
+                def.stop = block.stop;
+            }
+            root.start = tokens.get(0);
+            root.stop = tokens.get(tokens.size() - 1);
+            return root;
+        }
+
+        private void ref(Block block, String name) {
+            Ref ref = new Ref(block);
+            block.addChild(ref);
+            ref.target = token(name);
+            ref.start = ref.stop = ref.target;
+            ref.addChild(new TerminalNodeImpl(ref.target));
+        }
+
+        private Token token(String text) {
+            CommonToken tok = new CommonToken(1, text);
+            tok.setStartIndex(pos);
+            tok.setStopIndex(pos + text.length() - 1);
+            tok.setTokenIndex(tokens.size());
+            pos += text.length() + 1;
+            tokens.add(tok);
+            return tok;
+        }
+    }
+
+    static final class Root extends ParserRuleContext {
+    }
+
+    static final class Def extends ParserRuleContext {
+
+        Token name;
+
+        Def(ParserRuleContext parent) {
+            super(parent, 0);
+        }
+    }
+
+    static final class Block extends ParserRuleContext {
+
+        Block(ParserRuleContext parent) {
+            super(parent, 0);
+        }
+    }
+
+    static final class Ref extends ParserRuleContext {
+
+        Token target;
+
+        Ref(ParserRuleContext parent) {
+            super(parent, 0);
+        }
+    }
+}
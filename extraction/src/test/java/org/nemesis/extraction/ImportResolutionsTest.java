@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.nemesis.extraction.FusedTreeWalkTest.Root;
+import static org.nemesis.extraction.FusedTreeWalkTest.extractor;
+import org.nemesis.extraction.FusedTreeWalkTest.TreeBuilder;
+import org.nemesis.source.api.GrammarSource;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ImportResolutionsTest {
+
+    private static final String MIME = "text/x-fused-walk-test";
+    private final Extractor<Root> extractor = extractor(false);
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    public void shutdown() {
+        threads.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneExtraction() throws Exception {
+        Extraction importer = extract(source("a.txt"));
+        GrammarSource<Path> b = source("b.txt");
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Function<GrammarSource<?>, Extraction> run = src -> {
+            runs.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                throw new AssertionError(ex);
+            }
+            return extract(src);
+        };
+        List<Future<Extraction>> futures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            futures.add(threads.submit(() -> importer.resolveExtraction(extractor, b, run)));
+        }
+        Thread.sleep(200);
+        release.countDown();
+        Extraction first = futures.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<Extraction> f : futures) {
+            assertSame(first, f.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, runs.get());
+        assertEquals(b, first.source());
+        // Cached, and shared with the extraction it produced
+        assertSame(first, importer.resolveExtraction(extractor, b, run));
+        assertSame(first, first.resolveExtraction(extractor, b, run));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testDifferentSourcesResolveInParallel() throws Exception {
+        Extraction importer = extract(source("a.txt"));
+        GrammarSource<Path> b = source("b.txt");
+        GrammarSource<Path> c = source("c.txt");
+        // Each extraction waits for the other to start, so this can only
+        // finish if they are not serialized
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        Function<GrammarSource<?>, Extraction> run = src -> {
+            try {
+                barrier.await(10, TimeUnit.SECONDS);
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+            return extract(src);
+        };
+        Future<Extraction> fb = threads.submit(() -> importer.resolveExtraction(extractor, b, run));
+        Future<Extraction> fc = threads.submit(() -> importer.resolveExtraction(extractor, c, run));
+        assertEquals(b, fb.get(10, TimeUnit.SECONDS).source());
+        assertEquals(c, fc.get(10, TimeUnit.SECONDS).source());
+    }
+
+    @Test
+    public void testFailureIsNotCachedAndInterruptedWaiterGivesUp() throws Exception {
+        Extraction importer = extract(source("a.txt"));
+        GrammarSource<Path> b = source("b.txt");
+        assertThrows(IllegalStateException.class, () -> importer.resolveExtraction(extractor, b, src -> {
+            throw new IllegalStateException("cancelled");
+        }));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Extraction> slow = threads.submit(() -> importer.resolveExtraction(extractor, b, src -> {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                throw new AssertionError(ex);
+            }
+            return extract(src);
+        }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        AtomicReference<Extraction> waited = new AtomicReference<>();
+        AtomicReference<Boolean> interrupted = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            waited.set(importer.resolveExtraction(extractor, b, src -> {
+                throw new AssertionError("Should not run a second extraction");
+            }));
+            interrupted.set(Thread.currentThread().isInterrupted());
+        });
+        waiter.start();
+        Thread.sleep(100);
+        waiter.interrupt();
+        waiter.join(10000);
+        assertTrue(waited.get().isPlaceholder());
+        assertTrue(interrupted.get());
+        release.countDown();
+        assertEquals(b, slow.get(10, TimeUnit.SECONDS).source());
+    }
+
+    private Extraction extract(GrammarSource<?> src) {
+        TreeBuilder tb = new TreeBuilder();
+        return extractor.extract(tb.build(3), src, tb.tokens);
+    }
+
+    private GrammarSource<Path> source(String name) throws Exception {
+        Path path = dir.resolve(name);
+        Files.write(path, name.getBytes("UTF-8"));
+        return GrammarSource.find(path, MIME);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.nemesis.extraction.FusedTreeWalkTest.builder;
+import static org.nemesis.extraction.FusedTreeWalkTest.describe;
+import org.nemesis.extraction.FusedTreeWalkTest.Block;
+import org.nemesis.extraction.FusedTreeWalkTest.Def;
+import org.nemesis.extraction.FusedTreeWalkTest.Ref;
+import org.nemesis.extraction.FusedTreeWalkTest.Root;
+import org.nemesis.source.api.GrammarSource;
+
+/**
+ * Applies long sequences of random edits - renames, including to a name
+ * already in use, insertions and deletions of definitions, and added and
+ * removed references - and checks after each that re-extracting from the
+ * previous extraction, both with the edit passed explicitly and with it
+ * inferred by <code>extract()</code>, gives exactly what a full extraction
+ * of the edited document gives.
+ *
+ * @author Tim Boudreau
+ */
+public class IncrementalEquivalenceTest {
+
+    private static final String MIME = "text/x-fused-walk-test";
+    private static final int EDITS = 200;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testIncrementalExtractionMatchesFullAcrossRandomEdits() throws Exception {
+        for (long seed : new long[]{1, 7, 42, 1009, 65537}) {
+            runEdits(seed);
+        }
+    }
+
+    private void runEdits(long seed) throws Exception {
+        Random rnd = new Random(seed);
+        Path path = dir.resolve("doc-" + seed + ".txt");
+        Files.write(path, ("seed " + seed).getBytes("UTF-8"));
+        GrammarSource<Path> src = GrammarSource.find(path, MIME);
+
+        Extractor<Root> full = builder().reusingPreviousExtractions(false).build();
+        Doc doc = Doc.random(rnd, 12);
+        Built built = doc.build();
+        Extraction explicit = full.extract(built.root, GrammarSource.none(), built.tokens);
+        Extraction inferred = builder().reusingPreviousExtractions(true).build()
+                .extract(built.root, src, built.tokens);
+        for (int i = 0; i < EDITS; i++) {
+            Doc edited = doc.edit(rnd);
+            Built next = edited.build();
+            SourceEdit edit = built.diff(next);
+            String context = "seed " + seed + " edit " + i + " " + edit + "\nbefore: "
+                    + built.text + "\nafter:  " + next.text;
+
+            Extraction expected = full.extract(next.root, GrammarSource.none(), next.tokens);
+            String expectedDescription = describe(expected);
+            // A new extractor each time, as generated parsers create
+            explicit = builder().reusingPreviousExtractions(false).build()
+                    .reextract(explicit, edit, next.root, next.tokens);
+            assertEquals(expectedDescription, describe(explicit), "Explicit edit; " + context);
+            assertTrue(explicit.isSameTokensHash(expected), context);
+            inferred = builder().reusingPreviousExtractions(true).build()
+                    .extract(next.root, src, next.tokens);
+            assertEquals(expectedDescription, describe(inferred), "Inferred edit; " + context);
+            assertTrue(inferred.isSameTokensHash(expected), context);
+            doc = edited;
+            built = next;
+        }
+    }
+
+    /**
+     * The definitions of a document, each with the names it refers to.
+     */
+    static final class Doc {
+
+        private final List<String> names;
+        private final List<List<String>> refs;
+
+        Doc(List<String> names, List<List<String>> refs) {
+            this.names = names;
+            this.refs = refs;
+        }
+
+        static Doc random(Random rnd, int defs) {
+            Doc result = new Doc(new ArrayList<>(), new ArrayList<>());
+            for (int i = 0; i < defs; i++) {
+                result.names.add(name(rnd));
+                result.refs.add(new ArrayList<>());
+            }
+            for (List<String> r : result.refs) {
+                for (int j = rnd.nextInt(4); j > 0; j--) {
+                    r.add(result.reference(rnd));
+                }
+            }
+            return result;
+        }
+
+        private static String name(Random rnd) {
+            // A small pool, so renames often create or remove duplicates and
+            // make unknown references resolve or vice versa
+            return "n" + rnd.nextInt(20);
+        }
+
+        private String reference(Random rnd) {
+            return rnd.nextInt(4) == 0 || names.isEmpty() ? name(rnd)
+                    : names.get(rnd.nextInt(names.size()));
+        }
+
+        Doc edit(Random rnd) {
+            Doc result = new Doc(new ArrayList<>(names), new ArrayList<>());
+            for (List<String> r : refs) {
+                result.refs.add(new ArrayList<>(r));
+            }
+            int def = rnd.nextInt(names.size());
+            switch (rnd.nextInt(5)) {
+                case 0:
+                    result.names.set(def, name(rnd));
+                    break;
+                case 1:
+                    List<String> added = new ArrayList<>();
+                    for (int j = rnd.nextInt(3); j > 0; j--) {
+                        added.add(reference(rnd));
+                    }
+                    result.names.add(def, name(rnd));
+                    result.refs.add(def, added);
+                    break;
+                case 2:
+                    if (names.size() > 1) {
+                        result.names.remove(def);
+                        result.refs.remove(def);
+                        break;
+                    }
+                // fall through
+                case 3:
+                    List<String> r = result.refs.get(def);
+                    r.add(rnd.nextInt(r.size() + 1), reference(rnd));
+                    break;
+                default:
+                    List<String> toTrim = result.refs.get(def);
+                    if (!toTrim.isEmpty()) {
+                        toTrim.remove(rnd.nextInt(toTrim.size()));
+                    } else {
+                        result.names.set(def, name(rnd));
+                    }
+                    break;
+            }
+            return result;
+        }
+
+        Built build() {
+            return new Built(this);
+        }
+    }
+
+    /**
+     * A parse tree for text along the lines of
+     * <code>n3 { n5 n1 } n5 { } ...</code>, shaped as FusedTreeWalkTest's.
+     */
+    static final class Built {
+
+        final Root root = new Root();
+        final List<Token> tokens = new ArrayList<>();
+        private final StringBuilder sb = new StringBuilder();
+        final String text;
+
+        Built(Doc doc) {
+            for (int i = 0; i < doc.names.size(); i++) {
+                Def def = new Def(root);
+                root.addChild(def);
+                def.name = token(doc.names.get(i));
+                def.start = def.name;
+                def.addChild(new TerminalNodeImpl(def.name));
+                Block block = new Block(def);
+                def.addChild(block);
+                block.start = token("{");
+                block.addChild(new TerminalNodeImpl(block.start));
+                for (String target : doc.refs.get(i)) {
+                    Ref ref = new Ref(block);
+                    block.addChild(ref);
+                    ref.target = token(target);
+                    ref.start = ref.stop = ref.target;
+                    ref.addChild(new TerminalNodeImpl(ref.target));
+                }
+                block.stop = token("}");
+                block.addChild(new TerminalNodeImpl(block.stop));
+                def.stop = block.stop;
+            }
+            root.start = tokens.get(0);
+            root.stop = tokens.get(tokens.size() - 1);
+            text = sb.toString();
+        }
+
+        private Token token(String tokenText) {
+            int pos = sb.length();
+            CommonToken tok = new CommonToken(1, tokenText);
+            tok.setStartIndex(pos);
+            tok.setStopIndex(pos + tokenText.length() - 1);
+            tok.setTokenIndex(tokens.size());
+            tokens.add(tok);
+            sb.append(tokenText).append(' ');
+            return tok;
+        }
+
+        /**
+         * Compute the smallest single replacement which turns this text into
+         * the passed one.
+         */
+        SourceEdit diff(Built next) {
+            String a = text;
+            String b = next.text;
+            int prefix = 0;
+            int max = Math.min(a.length(), b.length());
+            while (prefix < max && a.charAt(prefix) == b.charAt(prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < max - prefix
+                    && a.charAt(a.length() - 1 - suffix) == b.charAt(b.length() - 1 - suffix)) {
+                suffix++;
+            }
+            return SourceEdit.replacement(prefix, a.length() - prefix - suffix,
+                    b.length() - prefix - suffix);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import static org.nemesis.extraction.FusedTreeWalkTest.builder;
+import static org.nemesis.extraction.FusedTreeWalkTest.describe;
+import org.nemesis.extraction.FusedTreeWalkTest.Root;
+import org.nemesis.extraction.FusedTreeWalkTest.TreeBuilder;
+import org.nemesis.extraction.key.SingletonKey;
+import org.nemesis.source.api.GrammarSource;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ParallelExtractionTest {
+
+    private static final SingletonKey<String> WRAPPED = SingletonKey.create(String.class, "wrapped");
+    private static final ThreadLocal<String> MARK = new ThreadLocal<>();
+
+    @Test
+    public void testParallelExtractionProducesSameExtraction() {
+        TreeBuilder tb = new TreeBuilder();
+        Root root = tb.build(40);
+        String expected = describe(builder().build().extract(root, GrammarSource.none(), tb.tokens));
+        Extractor<Root> parallel = builder().extractingInParallel(true).build();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(expected, describe(parallel.extract(root, GrammarSource.none(), tb.tokens)), "Run " + i);
+        }
+    }
+
+    @Test
+    public void testWrapperRunsAroundEachTask() {
+        TreeBuilder tb = new TreeBuilder();
+        Root root = tb.build(10);
+        Extractor<Root> parallel = builder()
+                .extractingInParallel(true)
+                .wrappingExtractionWith(runner -> {
+                    MARK.set("wrapped");
+                    try {
+                        return runner.get();
+                    } finally {
+                        MARK.remove();
+                    }
+                })
+                .extractingSingletonUnder(WRAPPED)
+                .using(FusedTreeWalkTest.Def.class)
+                .extractingObjectWith(def -> MARK.get())
+                .finishObjectExtraction()
+                .build();
+        Extraction ext = parallel.extract(root, GrammarSource.none(), tb.tokens);
+        SingletonEncounters<String> encounters = ext.singletons(WRAPPED);
+        assertEquals(10, encounters.size(), encounters::toString);
+        for (SingletonEncounters.SingletonEncounter<String> enc : encounters) {
+            assertEquals("wrapped", enc.get(), encounters::toString);
+        }
+    }
+
+    @Test
+    public void testCancelledParallelExtractionAddsNothing() {
+        TreeBuilder tb = new TreeBuilder();
+        Root root = tb.build(5);
+        Extraction ext = builder().extractingInParallel(true).build()
+                .extract(root, GrammarSource.none(), () -> true, tb.tokens);
+        assertTrue(ext.regionsKeys().isEmpty(), ext::toString);
+        assertTrue(ext.singletonKeys().isEmpty(), ext::toString);
+    }
+}
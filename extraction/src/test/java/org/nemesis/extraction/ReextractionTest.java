@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.nemesis.extraction.FusedTreeWalkTest.BOUNDS;
+import static org.nemesis.extraction.FusedTreeWalkTest.NAMES;
+import static org.nemesis.extraction.FusedTreeWalkTest.REFS;
+import static org.nemesis.extraction.FusedTreeWalkTest.builder;
+import static org.nemesis.extraction.FusedTreeWalkTest.describe;
+import org.nemesis.extraction.FusedTreeWalkTest.Def;
+import org.nemesis.extraction.FusedTreeWalkTest.Kinds;
+import org.nemesis.extraction.FusedTreeWalkTest.Ref;
+import org.nemesis.extraction.FusedTreeWalkTest.Root;
+import org.nemesis.extraction.FusedTreeWalkTest.TreeBuilder;
+import org.nemesis.extraction.key.RegionsKey;
+import org.nemesis.source.api.GrammarSource;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ReextractionTest {
+
+    private static final RegionsKey<String> VISITED = RegionsKey.create(String.class, "visited");
+    private final AtomicInteger visits = new AtomicInteger();
+    private final AtomicInteger referenceVisits = new AtomicInteger();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testReextractionMatchesFullExtractionWhenOffsetsShift() {
+        assertEquals(1, assertReextractionMatches(30, 7, "renamedDefinition"),
+                "Only the edited definition should have been visited");
+    }
+
+    @Test
+    public void testReextractionMatchesFullExtractionWithoutShift() {
+        assertEquals(1, assertReextractionMatches(30, 12, "q12"),
+                "Only the edited definition should have been visited");
+    }
+
+    @Test
+    public void testReextractionOfFirstAndLastDefinitions() {
+        assertReextractionMatches(10, 0, "first");
+        assertReextractionMatches(10, 9, "z");
+    }
+
+    @Test
+    public void testReextractionWithoutUsablePreviousIsFullExtraction() {
+        Extractor<Root> ext = extractor();
+        TreeBuilder tb = new TreeBuilder();
+        Root root = tb.build(10);
+        String expected = describe(ext.extract(root, GrammarSource.none(), tb.tokens));
+        visits.set(0);
+        Extraction re = ext.reextract(Extraction.empty("text/x-fused-walk-test"),
+                SourceEdit.insertion(0, 1), root, tb.tokens);
+        assertEquals(expected, describe(re));
+        assertEquals(10, visits.get());
+    }
+
+    @Test
+    public void testNamesAndReferencesAreReextractedIncrementally() {
+        // Each definition refers to the next, so renaming one turns the
+        // reference to it from the previous, reused definition into an
+        // unknown reference, and the reference the renamed one contains
+        // must still resolve
+        for (int edited : new int[]{0, 7, 29}) {
+            Extractor<Root> ext = FusedTreeWalkTest.extractor(false);
+            TreeBuilder oldBuilder = new TreeBuilder();
+            Root oldRoot = oldBuilder.build(30);
+            Extraction previous = ext.extract(oldRoot, GrammarSource.none(), oldBuilder.tokens);
+            TreeBuilder newBuilder = new TreeBuilder().renaming(edited, "renamed" + edited);
+            Root newRoot = newBuilder.build(30);
+            String expected = describe(ext.extract(newRoot, GrammarSource.none(), newBuilder.tokens));
+            Def oldDef = (Def) oldRoot.getChild(edited);
+            SourceEdit edit = SourceEdit.replacement(oldDef.name.getStartIndex(),
+                    oldDef.name.getText().length(), ("renamed" + edited).length());
+            assertEquals(expected, describe(ext.reextract(previous, edit, newRoot, newBuilder.tokens)),
+                    edit::toString);
+        }
+    }
+
+    @Test
+    public void testOnlyEditedDefinitionIsWalkedForNames() {
+        Extractor<Root> ext = namesExtractor();
+        TreeBuilder oldBuilder = new TreeBuilder();
+        Root oldRoot = oldBuilder.build(30);
+        Extraction previous = ext.extract(oldRoot, GrammarSource.none(), oldBuilder.tokens);
+        TreeBuilder newBuilder = new TreeBuilder().renaming(12, "renamed");
+        Root newRoot = newBuilder.build(30);
+        String expected = describe(ext.extract(newRoot, GrammarSource.none(), newBuilder.tokens));
+        Def oldDef = (Def) oldRoot.getChild(12);
+        SourceEdit edit = SourceEdit.replacement(oldDef.name.getStartIndex(),
+                oldDef.name.getText().length(), "renamed".length());
+
+        visits.set(0);
+        referenceVisits.set(0);
+        Extraction re = ext.reextract(previous, edit, newRoot, newBuilder.tokens);
+        assertEquals(expected, describe(re));
+        assertEquals(1, visits.get(), "Only the edited definition's name should have been extracted");
+        assertEquals(2, referenceVisits.get(), "Only the edited definition's references should have been extracted");
+        assertTrue(re.namedRegions(NAMES).contains("renamed"));
+        assertTrue(re.unknowns(REFS).size() > 30, re.unknowns(REFS)::toString);
+    }
+
+    @Test
+    public void testExtractReusesPreviousExtractionOfSameSource() throws Exception {
+        Path path = dir.resolve("reused.txt");
+        Files.write(path, "reused".getBytes("UTF-8"));
+        GrammarSource<Path> src = GrammarSource.find(path, "text/x-fused-walk-test");
+        TreeBuilder oldBuilder = new TreeBuilder();
+        Extraction first = namesExtractor().extract(oldBuilder.build(20), src, oldBuilder.tokens);
+
+        TreeBuilder newBuilder = new TreeBuilder().renaming(5, "somethingElse");
+        Root newRoot = newBuilder.build(20);
+        String expected = describe(namesExtractor(false).extract(newRoot, src, newBuilder.tokens));
+        visits.set(0);
+        // A new extractor, as the parser plumbing creates for each parse
+        Extraction re = namesExtractor().extract(newRoot, src, newBuilder.tokens);
+        assertEquals(expected, describe(re));
+        assertEquals(1, visits.get(), "Unchanged definitions should not have been walked");
+
+        visits.set(0);
+        Extraction unchanged = namesExtractor().extract(newRoot, src, newBuilder.tokens);
+        assertEquals(expected, describe(unchanged));
+        assertEquals(0, visits.get(), "Nothing changed, so nothing should have been walked");
+        assertTrue(first.namedRegions(NAMES).contains("r5"));
+        assertTrue(re.namedRegions(NAMES).contains("somethingElse"));
+    }
+
+    private int assertReextractionMatches(int defs, int edited, String newName) {
+        Extractor<Root> ext = extractor();
+        TreeBuilder oldBuilder = new TreeBuilder();
+        Root oldRoot = oldBuilder.build(defs);
+        Extraction previous = ext.extract(oldRoot, GrammarSource.none(), oldBuilder.tokens);
+
+        Def oldDef = (Def) oldRoot.getChild(edited);
+        SourceEdit edit = SourceEdit.replacement(oldDef.name.getStartIndex(),
+                oldDef.name.getText().length(), newName.length());
+        TreeBuilder newBuilder = new TreeBuilder().renaming(edited, newName);
+        Root newRoot = newBuilder.build(defs);
+        Extraction full = ext.extract(newRoot, GrammarSource.none(), newBuilder.tokens);
+        String expected = describe(full) + "\n" + full.regions(VISITED);
+
+        visits.set(0);
+        Extraction re = ext.reextract(previous, edit, newRoot, newBuilder.tokens);
+        int result = visits.get();
+        assertEquals(expected, describe(re) + "\n" + re.regions(VISITED), edit::toString);
+        assertTrue(re.isSameTokensHash(full));
+        return result;
+    }
+
+    private Extractor<Root> namesExtractor() {
+        return namesExtractor(true);
+    }
+
+    private Extractor<Root> namesExtractor(boolean reusePrevious) {
+        return Extractor.builder(Root.class, "text/x-fused-walk-test")
+                .reusingPreviousExtractions(reusePrevious)
+                .extractNamedRegionsKeyedTo(Kinds.class)
+                .recordingNamePositionUnder(NAMES)
+                .recordingRulePositionUnder(BOUNDS)
+                .whereRuleIs(Def.class)
+                .derivingNameWith(def -> {
+                    visits.incrementAndGet();
+                    return NamedRegionData.create(def.name.getText(), Kinds.RULE,
+                            def.name.getStartIndex(), def.name.getStopIndex() + 1);
+                })
+                .collectingReferencesUnder(REFS)
+                .whereReferenceContainingRuleIs(Ref.class)
+                .derivingReferenceOffsetsFromTokenWith(ref -> {
+                    referenceVisits.incrementAndGet();
+                    return ref.target;
+                })
+                .finishReferenceCollector()
+                .finishNamedRegions()
+                .build();
+    }
+
+    private Extractor<Root> extractor() {
+        return builder()
+                .extractingRegionsUnder(VISITED)
+                .whenRuleType(Def.class)
+                .extractingBoundsFromRuleAndKeyWith(def -> {
+                    visits.incrementAndGet();
+                    return def.name.getText();
+                })
+                .finishRegionExtractor()
+                .build();
+    }
+}
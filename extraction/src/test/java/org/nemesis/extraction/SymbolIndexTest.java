@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.nemesis.extraction.FusedTreeWalkTest.Kinds;
+import static org.nemesis.extraction.FusedTreeWalkTest.NAMES;
+import static org.nemesis.extraction.FusedTreeWalkTest.extractor;
+import org.nemesis.extraction.FusedTreeWalkTest.TreeBuilder;
+import org.nemesis.extraction.attribution.SymbolIndex;
+import org.nemesis.extraction.attribution.SymbolIndex.Symbol;
+import org.nemesis.source.api.GrammarSource;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SymbolIndexTest {
+
+    private static final String MIME = "text/x-fused-walk-test";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testIndexFollowsExtractions() throws Exception {
+        GrammarSource<Path> a = source("a.txt");
+        GrammarSource<Path> b = source("b.txt");
+        SymbolIndex index = SymbolIndex.forMimeType(MIME);
+
+        Extraction extA = extract(a, new TreeBuilder());
+        assertTrue(index.isIndexed(a));
+        assertFalse(index.isIndexed(b));
+        assertSame(extA, index.extraction(a));
+        List<Symbol<Kinds>> found = index.find(NAMES, "r1");
+        assertEquals(1, found.size(), found::toString);
+        assertEquals(a.id(), found.get(0).sourceId());
+        assertEquals(Kinds.RULE, found.get(0).kind());
+        assertEquals(extA.namedRegions(NAMES).regionFor("r1").start(), found.get(0).start());
+
+        extract(b, new TreeBuilder().renaming(1, "other"));
+        assertEquals(2, index.find(NAMES, "r0").size());
+        assertEquals(1, index.find(NAMES, "r1").size());
+        assertEquals(b.id(), index.find(NAMES, "other").get(0).sourceId());
+
+        // Re-extracting replaces what was indexed for the source
+        extract(a, new TreeBuilder().renaming(0, "zed"));
+        found = index.find(NAMES, "r0");
+        assertEquals(1, found.size(), found::toString);
+        assertEquals(b.id(), found.get(0).sourceId());
+        assertEquals(a.id(), index.find(NAMES, "zed").get(0).sourceId());
+        assertNotNull(index.namedRegions(a, NAMES));
+        assertTrue(index.namedRegions(a, NAMES).contains("zed"));
+
+        // Modified since indexed - no longer current
+        Path pa = a.source();
+        Files.setLastModifiedTime(pa, FileTime.fromMillis(Files.getLastModifiedTime(pa).toMillis() + 10000));
+        assertFalse(index.isIndexed(a));
+        assertNull(index.namedRegions(a, NAMES));
+        assertNull(index.extraction(a));
+
+        index.remove(b);
+        assertTrue(index.find(NAMES, "other").isEmpty());
+        assertFalse(index.isIndexed(b));
+    }
+
+    @Test
+    public void testCancelledExtractionIsNotIndexed() throws Exception {
+        GrammarSource<Path> c = source("c.txt");
+        TreeBuilder tb = new TreeBuilder();
+        extractor(false).extract(tb.build(3), c, () -> true, tb.tokens);
+        assertFalse(SymbolIndex.forMimeType(MIME).isIndexed(c));
+    }
+
+    @Test
+    public void testIndexIsBounded() throws Exception {
+        String old = System.getProperty("symbol.index.max.sources");
+        SymbolIndex index;
+        System.setProperty("symbol.index.max.sources", "2");
+        try {
+            index = SymbolIndex.forMimeType("text/x-bounded-index-test");
+        } finally {
+            if (old == null) {
+                System.clearProperty("symbol.index.max.sources");
+            } else {
+                System.setProperty("symbol.index.max.sources", old);
+            }
+        }
+        GrammarSource<Path> d = source("d.txt");
+        GrammarSource<Path> e = source("e.txt");
+        GrammarSource<Path> f = source("f.txt");
+        index.update(extract(d, new TreeBuilder().renaming(0, "dee")));
+        index.update(extract(e, new TreeBuilder().renaming(0, "eee")));
+        assertEquals(2, index.size());
+        // Re-indexing d makes e the least recently indexed
+        index.update(extract(d, new TreeBuilder().renaming(0, "dee")));
+        index.update(extract(f, new TreeBuilder().renaming(0, "eff")));
+        assertEquals(2, index.size());
+        assertTrue(index.isIndexed(d));
+        assertFalse(index.isIndexed(e));
+        assertTrue(index.isIndexed(f));
+        assertTrue(index.find(NAMES, "eee").isEmpty());
+        assertEquals(1, index.find(NAMES, "dee").size());
+    }
+
+    private GrammarSource<Path> source(String name) throws Exception {
+        Path path = dir.resolve(name);
+        Files.write(path, name.getBytes("UTF-8"));
+        return GrammarSource.find(path, MIME);
+    }
+
+    private static Extraction extract(GrammarSource<Path> src, TreeBuilder tb) {
+        return extractor(false).extract(tb.build(3), src, tb.tokens);
+    }
+}
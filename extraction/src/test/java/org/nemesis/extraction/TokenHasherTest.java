@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.extraction;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class TokenHasherTest {
+
+    @Test
+    public void testHashingWhileLexingMatchesHashingText() {
+        String text = "foo  bar\n😀baz qu ux";
+        CharStream stream = CharStreams.fromString(text);
+        TokenHasher whileLexing = new TokenHasher(4);
+        List<Token> tokens = lex(stream, whileLexing);
+        TokenHasher afterwards = new TokenHasher();
+        for (int i = 0; i < tokens.size(); i++) {
+            // The stream is now at EOF, so all but the last token use getText()
+            assertEquals(whileLexing.tokenHash(i), afterwards.add(tokens.get(i)), tokens.get(i)::toString);
+        }
+        assertEquals(whileLexing.hash(), afterwards.hash());
+    }
+
+    @Test
+    public void testHashChangesWithContentAndType() {
+        String a = hash("foo bar baz");
+        assertEquals(a, hash("foo  bar\tbaz"), "Whitespace is not on the default channel");
+        assertNotEquals(a, hash("foo bar bax"));
+        assertNotEquals(a, hash("foo baz bar"));
+        assertNotEquals(a, hash("foo bar"));
+        assertNotEquals(a, hash("foobar baz"));
+    }
+
+    private static String hash(String text) {
+        TokenHasher hasher = new TokenHasher();
+        lex(CharStreams.fromString(text), hasher);
+        return hasher.hash();
+    }
+
+    private static List<Token> lex(CharStream stream, TokenHasher hasher) {
+        // A trivial lexer: runs of whitespace go to the hidden channel, and
+        // words are typed by their length
+        Pair<TokenSource, CharStream> pair = new Pair<>(null, stream);
+        List<Token> result = new ArrayList<>();
+        while (stream.LA(1) != CharStream.EOF) {
+            int start = stream.index();
+            boolean ws = Character.isWhitespace(stream.LA(1));
+            while (stream.LA(1) != CharStream.EOF && Character.isWhitespace(stream.LA(1)) == ws) {
+                stream.consume();
+            }
+            CommonToken tok = new CommonToken(pair, ws ? 1 : 2 + (stream.index() - start),
+                    ws ? Token.HIDDEN_CHANNEL : Token.DEFAULT_CHANNEL, start, stream.index() - 1);
+            tok.setTokenIndex(result.size());
+            hasher.add(tok);
+            result.add(tok);
+        }
+        CommonToken eof = new CommonToken(pair, Token.EOF, Token.DEFAULT_CHANNEL, stream.index(), stream.index() - 1);
+        hasher.add(eof);
+        result.add(eof);
+        return result;
+    }
+}
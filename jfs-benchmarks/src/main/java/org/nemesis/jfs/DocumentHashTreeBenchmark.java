@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.concurrent.TimeUnit;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.PlainDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of keeping a DocumentHashTree's root hash current across a
+ * one-character edit in the middle of the document, against rehashing the
+ * whole document, as the document grows.  In the org.nemesis.jfs package
+ * because the tree is package-private.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentHashTreeBenchmark {
+
+    private static final String LINE = "grammar_rule : FOO bar+ (Baz | quux)* -> skip; // été 😀\n";
+
+    @Param({"500", "5000", "50000"})
+    public int lines;
+
+    private Document document;
+    private DocumentHashTree tree;
+    private boolean inserted;
+
+    @Setup(Level.Trial)
+    public void setup() throws BadLocationException {
+        StringBuilder sb = new StringBuilder(LINE.length() * lines);
+        for (int i = 0; i < lines; i++) {
+            sb.append(i).append(LINE);
+        }
+        document = new PlainDocument();
+        document.insertString(0, sb.toString(), null);
+        tree = new DocumentHashTree(UTF_8);
+        tree.rebuild(document);
+        document.addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                try {
+                    tree.inserted(document, e.getOffset(), e.getLength());
+                } catch (BadLocationException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                try {
+                    tree.removed(document, e.getOffset(), e.getLength());
+                } catch (BadLocationException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                // do nothing
+            }
+        });
+    }
+
+    @Benchmark
+    public byte[] keystroke() throws BadLocationException {
+        int mid = document.getLength() / 2;
+        // Alternately insert and delete, so the size stays constant
+        if (inserted = !inserted) {
+            document.insertString(mid, "q", null);
+        } else {
+            document.remove(mid - 1, 1);
+        }
+        return tree.root();
+    }
+
+    @Benchmark
+    public byte[] fullRehash() throws BadLocationException {
+        tree.rebuild(document);
+        return tree.root();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs.benchmarks;
+
+import com.mastfrog.util.file.FileUtils;
+import com.mastfrog.util.path.UnixPath;
+import java.io.IOException;
+import java.io.InputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+import org.antlr.v4.Tool;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.nemesis.jfs.JFS;
+import org.nemesis.jfs.JFSFileObject;
+import org.nemesis.jfs.javac.CompileResult;
+import org.nemesis.jfs.javac.JFSCompileBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end compilation of the Java sources Antlr generates for a grammar,
+ * from a JFS into the same JFS: from scratch, and (with an incremental
+ * session) after the parser source changes, which is what happens on each
+ * edit of a parser rule.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CompileBenchmark {
+
+    private static final String PKG = "com/foo/sensors/";
+
+    @Param({"HEAP", "OFF_HEAP"})
+    public StorageBenchmark.Storage storage;
+
+    private JFS jfs;
+    private Path dir;
+    private JFSFileObject parser;
+    private String[] parserTexts;
+    private JFSCompileBuilder full;
+    private JFSCompileBuilder incremental;
+    private int rev;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = FileUtils.newTempDir("jfs-compile-bench");
+        Path grammar = dir.resolve("Sensors.g4");
+        try (InputStream in = CompileBenchmark.class.getResourceAsStream("Sensors.g4")) {
+            Files.copy(in, grammar, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Path out = dir.resolve("out");
+        Tool tool = new Tool(new String[]{"-o", out.toString(), "-package", "com.foo.sensors",
+            "-listener", "-visitor", "-encoding", "UTF-8", grammar.toString()});
+        tool.processGrammarsOnCommandLine();
+        if (tool.getNumErrors() > 0) {
+            throw new IllegalStateException("Antlr failed with " + tool.getNumErrors() + " errors");
+        }
+        jfs = storage.configure(JFS.builder().withCharset(UTF_8)).build();
+        try (Stream<Path> generated = Files.walk(out)) {
+            for (Path p : (Iterable<Path>) generated.filter(p -> p.toString().endsWith(".java"))::iterator) {
+                JFSFileObject fo = jfs.create(UnixPath.get(PKG + p.getFileName()), SOURCE_PATH,
+                        new String(Files.readAllBytes(p), UTF_8));
+                if (p.getFileName().toString().equals("SensorsParser.java")) {
+                    parser = fo;
+                }
+            }
+        }
+        String parserText = parser.getCharContent(true).toString();
+        parserTexts = new String[]{parserText, parserText + "\n// edited\n"};
+        full = compileBuilder();
+        incremental = compileBuilder().incremental();
+        check(incremental.compile());
+    }
+
+    private JFSCompileBuilder compileBuilder() {
+        return new JFSCompileBuilder(jfs)
+                .addSourceLocation(SOURCE_PATH)
+                .addToClasspath(ParserRuleContext.class)
+                .runAnnotationProcessors(false)
+                .sourceAndTargetLevel(8);
+    }
+
+    private static CompileResult check(CompileResult res) {
+        if (!res.isUsable()) {
+            throw new IllegalStateException(res.toString());
+        }
+        return res;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        jfs.close();
+        FileUtils.deltree(dir);
+    }
+
+    @Benchmark
+    public CompileResult fullCompile() throws IOException {
+        return check(full.compile());
+    }
+
+    @Benchmark
+    public CompileResult incrementalCompileAfterParserEdit() throws IOException {
+        parser.setTextContent(parserTexts[++rev % 2]);
+        return check(incremental.compile());
+    }
+}
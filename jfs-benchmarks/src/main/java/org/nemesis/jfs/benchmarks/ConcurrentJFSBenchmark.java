@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs.benchmarks;
+
+import com.mastfrog.util.path.UnixPath;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.tools.JavaFileManager.Location;
+import javax.tools.JavaFileObject;
+import static javax.tools.JavaFileObject.Kind.SOURCE;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+import org.nemesis.jfs.JFS;
+import org.nemesis.jfs.JFSFileObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of several threads creating, looking up and listing files in
+ * one JFS at once, as when several grammars in a project regenerate
+ * together, in the default and concurrent modes. The default JFS is only
+ * safe to use this way because every location is created before the threads
+ * start.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ConcurrentJFSBenchmark {
+
+    private static final Location[] LOCATIONS = {SOURCE_PATH, SOURCE_OUTPUT, CLASS_OUTPUT};
+    private static final int FILES_PER_THREAD = 400;
+
+    @Param({"default", "concurrent"})
+    public String mode;
+
+    private JFS jfs;
+    private final AtomicInteger threadIds = new AtomicInteger();
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        JFS.JFSBuilder builder = JFS.builder().withCharset(UTF_8);
+        jfs = "concurrent".equals(mode) ? builder.concurrent().build() : builder.build();
+        for (Location loc : LOCATIONS) {
+            jfs.create(UnixPath.get("Init.java"), loc, "class Init {}");
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        jfs.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+
+        int thread;
+        int file;
+
+        @Setup(Level.Trial)
+        public void setup(ConcurrentJFSBenchmark benchmark) {
+            thread = benchmark.threadIds.getAndIncrement();
+        }
+    }
+
+    @Benchmark
+    public int createLookUpAndList(Writer writer) throws IOException {
+        int i = writer.file++ % FILES_PER_THREAD;
+        Location loc = LOCATIONS[i % LOCATIONS.length];
+        jfs.create(path(writer.thread, i), loc, content(writer.thread, i));
+        // Look up files written by ourselves and others, as javac resolving
+        // symbols would
+        JFSFileObject own = jfs.get(loc, path(writer.thread, i));
+        JFSFileObject other = jfs.get(loc, path(writer.thread + 1, i));
+        int result = own.hashCode() + (other == null ? 0 : other.hashCode());
+        if (i % 50 == 0) {
+            for (JavaFileObject jfo : jfs.list(loc, "com.grammar" + writer.thread, EnumSet.of(SOURCE), false)) {
+                result += jfo.getName().length();
+            }
+        }
+        return result;
+    }
+
+    private static UnixPath path(int thread, int file) {
+        return UnixPath.get("com/grammar" + thread + "/Gen" + file + ".java");
+    }
+
+    private static String content(int thread, int file) {
+        return "package com.grammar" + thread + ";\npublic class Gen" + file + " {}\n";
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs.benchmarks;
+
+import com.mastfrog.util.path.UnixPath;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.concurrent.TimeUnit;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Document;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+import org.nemesis.jfs.JFS;
+import org.nemesis.jfs.JFSFileObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost, per keystroke, of keeping a JFS file that masquerades an editor
+ * document current - a one-character edit followed by what the live preview
+ * does with the file (decode its content, or hash it to check for changes) -
+ * against doing the same by copying the document text into heap storage.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MasqueradeBenchmark {
+
+    private static final UnixPath PATH = UnixPath.get("com/foo/Grammar.g4");
+
+    @Param({"2048", "65536"})
+    public int size;
+
+    private JFS jfs;
+    private Document document;
+    private JFSFileObject masqueraded;
+    private JFSFileObject copied;
+    private boolean inserted;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, BadLocationException {
+        jfs = JFS.builder().withCharset(UTF_8).build();
+        document = new DefaultStyledDocument();
+        document.insertString(0, SampleText.javaSource(size, 'a'), null);
+        masqueraded = jfs.masquerade(document, SOURCE_PATH, PATH);
+        copied = jfs.create(UnixPath.get("com/foo/Copied.g4"), SOURCE_PATH,
+                document.getText(0, document.getLength()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        jfs.close();
+    }
+
+    private void type() throws BadLocationException {
+        int mid = document.getLength() / 2;
+        // Alternately insert and delete, so the size stays constant
+        if (inserted = !inserted) {
+            document.insertString(mid, "x", null);
+        } else {
+            document.remove(mid - 1, 1);
+        }
+    }
+
+    @Benchmark
+    public int typeAndReadMasqueraded() throws IOException, BadLocationException {
+        type();
+        return masqueraded.getCharContent(true).length();
+    }
+
+    @Benchmark
+    public byte[] typeAndHashMasqueraded() throws IOException, BadLocationException {
+        type();
+        return masqueraded.hash();
+    }
+
+    @Benchmark
+    public int typeAndReadCopy() throws IOException, BadLocationException {
+        type();
+        copied.setTextContent(document.getText(0, document.getLength()));
+        return copied.getCharContent(true).length();
+    }
+
+    @Benchmark
+    public byte[] typeAndHashCopy() throws IOException, BadLocationException {
+        type();
+        copied.setTextContent(document.getText(0, document.getLength()));
+        return copied.hash();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs.benchmarks;
+
+import com.mastfrog.util.path.UnixPath;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.concurrent.TimeUnit;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+import org.nemesis.jfs.JFS;
+import org.nemesis.jfs.JFSFileModifications;
+import org.nemesis.jfs.JFSFileObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of JFSFileModifications.changes() against the number of files
+ * tracked: with nothing written, after a write to a file outside the tracked
+ * location, and after rewriting one tracked file; plus the cost of taking the
+ * initial status.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModificationsBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int fileCount;
+
+    private JFS jfs;
+    private JFSFileObject[] files;
+    private String[][] texts;
+    private int[] current;
+    private JFSFileObject unrelated;
+    private JFSFileModifications status;
+    private int rev;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        jfs = JFS.builder().withCharset(UTF_8).build();
+        files = new JFSFileObject[fileCount];
+        texts = new String[fileCount][];
+        current = new int[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            texts[i] = new String[]{SampleText.javaSource(2048, 'a'), SampleText.javaSource(2048, 'b')};
+            files[i] = jfs.create(UnixPath.get("com/foo/p" + (i % 10) + "/File" + i + ".java"),
+                    SOURCE_PATH, texts[i][0]);
+        }
+        unrelated = jfs.create(UnixPath.get("com/foo/Unrelated.class"), CLASS_OUTPUT, "x");
+    }
+
+    @Setup(Level.Invocation)
+    public void takeStatus() {
+        status = jfs.status(SOURCE_PATH);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        jfs.close();
+    }
+
+    @Benchmark
+    public JFSFileModifications status() {
+        return jfs.status(SOURCE_PATH);
+    }
+
+    @Benchmark
+    public boolean unchanged() {
+        return status.changes().isUpToDate();
+    }
+
+    @Benchmark
+    public boolean unrelatedWrite() throws IOException {
+        unrelated.setTextContent(++rev % 2 == 0 ? "x" : "y");
+        return status.changes().isUpToDate();
+    }
+
+    @Benchmark
+    public boolean oneFileRewritten() throws IOException {
+        int ix = ++rev % fileCount;
+        current[ix] ^= 1;
+        files[ix].setTextContent(texts[ix][current[ix]]);
+        return status.changes().isUpToDate();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs.benchmarks;
+
+/**
+ * Generates deterministic, vaguely Java-like text of a given length.
+ *
+ * @author Tim Boudreau
+ */
+final class SampleText {
+
+    private SampleText() {
+        throw new AssertionError();
+    }
+
+    static String javaSource(int length, char variant) {
+        StringBuilder sb = new StringBuilder(length + 80);
+        sb.append("package com.foo;\npublic class Benchmark {\n");
+        for (int i = 0; sb.length() < length; i++) {
+            sb.append("    int ").append(variant).append(i).append(" = ")
+                    .append(i * 31).append("; // field number ").append(i).append('\n');
+        }
+        sb.setLength(length - 2);
+        return sb.append("}\n").toString();
+    }
+}
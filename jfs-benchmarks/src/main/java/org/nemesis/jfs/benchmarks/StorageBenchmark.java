@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs.benchmarks;
+
+import com.mastfrog.util.file.FileUtils;
+import com.mastfrog.util.path.UnixPath;
+import java.io.IOException;
+import java.io.InputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Document;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+import org.nemesis.jfs.JFS;
+import org.nemesis.jfs.JFSFileObject;
+import org.nemesis.jfs.nio.BlockStorageKind;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Write, read and decode throughput of a single file for each kind of storage
+ * a JFS can put it in. Masqueraded files and documents are written through
+ * the file or document they wrap, since that is how they change in practice.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    private static final UnixPath PATH = UnixPath.get("com/foo/Benchmark.java");
+
+    @Param({"HEAP", "DEDUP", "OFF_HEAP", "MAPPED", "MASQUERADED_FILE", "MASQUERADED_DOCUMENT"})
+    public Storage storage;
+
+    @Param({"512", "65536"})
+    public int size;
+
+    private JFS jfs;
+    private JFSFileObject file;
+    private Path tempFile;
+    private Document document;
+    private String[] texts;
+    private byte[][] bytes;
+    private final byte[] readBuffer = new byte[8192];
+    private int rev;
+
+    public enum Storage {
+        HEAP,
+        DEDUP,
+        OFF_HEAP,
+        MAPPED,
+        MASQUERADED_FILE,
+        MASQUERADED_DOCUMENT;
+
+        JFS.JFSBuilder configure(JFS.JFSBuilder bldr) {
+            switch (this) {
+                case DEDUP:
+                    return bldr.deduplicating();
+                case OFF_HEAP:
+                    return bldr.useOffHeapStorage();
+                case MAPPED:
+                    return bldr.useBlockStorage(BlockStorageKind.MAPPED_TEMP_FILE);
+                default:
+                    return bldr;
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, BadLocationException {
+        // Two texts of the same length, so writes alternate between them and
+        // always change the content
+        texts = new String[]{SampleText.javaSource(size, 'a'), SampleText.javaSource(size, 'b')};
+        bytes = new byte[][]{texts[0].getBytes(UTF_8), texts[1].getBytes(UTF_8)};
+        jfs = storage.configure(JFS.builder().withCharset(UTF_8)).build();
+        switch (storage) {
+            case MASQUERADED_FILE:
+                tempFile = FileUtils.newTempFile("jfs-bench-");
+                Files.write(tempFile, bytes[0]);
+                file = jfs.masquerade(tempFile, SOURCE_PATH, PATH, UTF_8);
+                break;
+            case MASQUERADED_DOCUMENT:
+                document = new DefaultStyledDocument();
+                document.insertString(0, texts[0], null);
+                file = jfs.masquerade(document, SOURCE_PATH, PATH);
+                break;
+            default:
+                file = jfs.create(PATH, SOURCE_PATH, bytes[0]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        jfs.close();
+        if (tempFile != null) {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Benchmark
+    public int write() throws IOException, BadLocationException {
+        int ix = ++rev % 2;
+        switch (storage) {
+            case MASQUERADED_FILE:
+                Files.write(tempFile, bytes[ix]);
+                break;
+            case MASQUERADED_DOCUMENT:
+                document.remove(0, document.getLength());
+                document.insertString(0, texts[ix], null);
+                break;
+            default:
+                file.setBytes(bytes[ix], System.currentTimeMillis());
+        }
+        return file.length();
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        long total = 0;
+        try (InputStream in = file.openInputStream()) {
+            for (int count = in.read(readBuffer); count > 0; count = in.read(readBuffer)) {
+                total += count + readBuffer[count - 1];
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int charContent() throws IOException {
+        CharSequence seq = file.getCharContent(true);
+        int len = seq.length();
+        return len == 0 ? 0 : seq.charAt(len - 1) + len;
+    }
+}
@@ -39,6 +39,7 @@ import org.netbeans.modules.editor.NbEditorUtilities;
 import org.openide.cookies.EditorCookie;
 import org.openide.loaders.DataObject;
 import org.openide.util.Exceptions;
+import org.openide.util.RequestProcessor;
 import org.openide.util.WeakListeners;
 import org.openide.util.WeakSet;
 import org.openide.util.lookup.ServiceProvider;
@@ -51,6 +52,9 @@ import org.openide.util.lookup.ServiceProvider;
 @ServiceProvider(service = JFSUtilities.class)
 public class NbJFSUtilities extends JFSUtilities {
 
+    private static final RequestProcessor BACKGROUND
+            = new RequestProcessor("jfs-background", 1, false, false);
+
     @Override
     protected Charset getEncodingFor(Path file) {
         FileObject fo = FileUtil.toFileObject(FileUtil.normalizeFile(file.toFile()));
@@ -122,6 +126,11 @@ public class NbJFSUtilities extends JFSUtilities {
         return null;
     }
 
+    @Override
+    protected void _runInBackground(Runnable work) {
+        BACKGROUND.post(work, 0, Thread.MIN_PRIORITY);
+    }
+
     @Override
     protected boolean doDocumentListenersHavePriority() {
         return true;
@@ -146,4 +155,9 @@ public class NbJFSUtilities extends JFSUtilities {
     protected void _registerMetric(String name, IntSupplier supp, boolean keepStats) {
         Metrics.register(name, supp, keepStats);
     }
+
+    @Override
+    protected void _unregisterMetric(String name) {
+        Metrics.unregister(name);
+    }
 }
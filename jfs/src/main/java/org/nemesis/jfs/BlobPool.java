@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of immutable byte arrays, keyed by their SHA-1 hash, shared by any
+ * number of JFS instances, so that identical files (imported lexer grammars,
+ * generated lexers and their class files, etc.) in different projects are
+ * only stored once.
+ * <p>
+ * Blobs are weakly referenced by the pool and strongly referenced by the
+ * storages using them, so the garbage collector does the reference counting:
+ * a blob is dropped from the pool once no file anywhere holds it, and a JFS
+ * which is abandoned without being closed cannot pin blobs in memory.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class BlobPool {
+
+    static final BlobPool SHARED = new BlobPool();
+    private static final Blob EMPTY = new Blob(new byte[0], sha1(new byte[0]));
+    private final ConcurrentHashMap<Key, BlobReference> blobs = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Blob> queue = new ReferenceQueue<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * Get the shared blob for some bytes, adding it to the pool if no
+     * identical one is present. The pool takes ownership of the passed
+     * array, which must not be modified afterwards.
+     *
+     * @param bytes Some bytes
+     * @return A blob
+     */
+    Blob intern(byte[] bytes) {
+        if (bytes.length == 0) {
+            return EMPTY;
+        }
+        expunge();
+        Key key = new Key(sha1(bytes));
+        Blob[] result = new Blob[1];
+        blobs.compute(key, (k, old) -> {
+            Blob existing = old == null ? null : old.get();
+            if (existing != null && existing.bytes.length == bytes.length) {
+                result[0] = existing;
+                return old;
+            }
+            if (old != null) {
+                // Collected but not yet expunged - replacing it means it
+                // will not be found by expunge(), so uncount it here
+                pooledBytes.addAndGet(-old.length);
+            }
+            Blob nue = result[0] = new Blob(bytes, k.hash);
+            return new BlobReference(k, nue, queue);
+        });
+        if (result[0].bytes == bytes) {
+            misses.increment();
+            pooledBytes.addAndGet(bytes.length);
+        } else {
+            hits.increment();
+        }
+        return result[0];
+    }
+
+    private void expunge() {
+        BlobReference ref;
+        while ((ref = (BlobReference) queue.poll()) != null) {
+            if (blobs.remove(ref.key, ref)) {
+                pooledBytes.addAndGet(-ref.length);
+            }
+        }
+    }
+
+    /**
+     * Number of distinct blobs currently pooled.
+     *
+     * @return A count
+     */
+    int size() {
+        expunge();
+        return blobs.size();
+    }
+
+    /**
+     * Total bytes held by distinct pooled blobs - i.e. the memory actually
+     * used, regardless of how many files share them.
+     *
+     * @return A byte count
+     */
+    long pooledBytes() {
+        expunge();
+        return pooledBytes.get();
+    }
+
+    /**
+     * Number of times content being stored was found to already be in the
+     * pool.
+     *
+     * @return A count
+     */
+    long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of times content being stored was new.
+     *
+     * @return A count
+     */
+    long misses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BlobPool(" + size() + " blobs, " + pooledBytes() + " bytes, "
+                + hits() + " hits, " + misses() + " misses)";
+    }
+
+    static byte[] sha1(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AssertionError("SHA-1 not supported in this JVM", ex);
+        }
+    }
+
+    static final class Blob {
+
+        final byte[] bytes;
+        final byte[] hash;
+
+        Blob(byte[] bytes, byte[] hash) {
+            this.bytes = bytes;
+            this.hash = hash;
+        }
+    }
+
+    private static final class BlobReference extends WeakReference<Blob> {
+
+        final Key key;
+        final int length;
+
+        BlobReference(Key key, Blob referent, ReferenceQueue<Blob> queue) {
+            super(referent, queue);
+            this.key = key;
+            this.length = referent.bytes.length;
+        }
+    }
+
+    private static final class Key {
+
+        final byte[] hash;
+        private final int hashCode;
+
+        Key(byte[] hash) {
+            this.hash = hash;
+            // The hash is already uniformly distributed
+            hashCode = (hash[0] & 0xFF) << 24 | (hash[1] & 0xFF) << 16
+                    | (hash[2] & 0xFF) << 8 | (hash[3] & 0xFF);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o == this || (o instanceof Key && Arrays.equals(hash, ((Key) o).hash));
+        }
+    }
+}
@@ -21,6 +21,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.nemesis.jfs.spi.JFSUtilities;
 
 /**
@@ -72,6 +73,9 @@ public final class Checkpoint {
     static class Checkpoints {
 
         private Set<Checkpoint> live;
+        // Incremented on every write or deletion of any file in the JFS,
+        // so an unchanged count means nothing in the JFS was altered
+        private final AtomicLong modifications = new AtomicLong();
 
         private Checkpoints() {
 
@@ -90,7 +94,19 @@ public final class Checkpoint {
             return result;
         }
 
+        long modificationCount() {
+            return modifications.get();
+        }
+
+        void deleted() {
+            modifications.incrementAndGet();
+        }
+
         void touch(JFSFileObject fo) {
+            long version = modifications.incrementAndGet();
+            if (fo instanceof JFSFileObjectImpl) {
+                ((JFSFileObjectImpl) fo).version = version;
+            }
             Set<Checkpoint> lv = live;
             if (lv == null) {
                 synchronized (this) {
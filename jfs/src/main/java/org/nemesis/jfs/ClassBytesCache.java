@@ -0,0 +1,308 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the classes the last JFSClassLoader over a storage defined, keyed
+ * by name and the hash of their bytes, so that the next loader can adopt the
+ * same Class objects rather than redefining classes whose bytes did not change
+ * (typically the lexer, and the listener and visitor interfaces, when only
+ * parser rules were edited).
+ * <p>
+ * A class is only adopted if every class it refers to resolves to the same
+ * Class through the new loader as it does through the loader that defined it:
+ * other classes in the storage must themselves be adopted, and anything else
+ * must come from the same parent loader. Otherwise a changed class could be
+ * linked against a stale one, and passing instances between them would fail
+ * with a LinkageError.
+ * </p>
+ * <p>
+ * Adopted classes keep the loader that defined them - and with it every class
+ * that loader ever defined - reachable, so a class is only adopted for
+ * <code>MAX_GENERATIONS</code> generations after the one that defined it;
+ * after that it is defined anew, and the old loader can be collected.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class ClassBytesCache {
+
+    private static final Logger LOG = Logger.getLogger(ClassBytesCache.class.getName());
+    static final int MAX_GENERATIONS = Integer.getInteger("jfs.class.reuse.generations", 8);
+    private Map<String, Entry> entries = Collections.emptyMap();
+    private int generation;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Find the classes from the previous generation which a new loader can
+     * adopt.
+     *
+     * @param hashes The hash of the bytes of every class in the storage, by
+     * binary name
+     * @param parent The parent of the new loader
+     * @return The adoptable classes, by binary name
+     */
+    Map<String, Class<?>> reusable(Map<String, byte[]> hashes, ClassLoader parent) {
+        Map<String, Entry> previous;
+        int gen;
+        synchronized (this) {
+            previous = entries;
+            gen = generation;
+        }
+        // Resolving classes through the old and new loaders is done without
+        // holding our lock, since it may call into another JFSClassLoader
+        Map<String, Entry> candidates = new HashMap<>();
+        for (Map.Entry<String, byte[]> e : hashes.entrySet()) {
+            Entry old = previous.get(e.getKey());
+            if (old != null && Arrays.equals(old.hash, e.getValue())
+                    && gen - old.generation < MAX_GENERATIONS) {
+                candidates.put(e.getKey(), old);
+            }
+        }
+        Map<String, Boolean> externalsMatch = new HashMap<>();
+        boolean changed;
+        do {
+            changed = false;
+            for (Iterator<Map.Entry<String, Entry>> it = candidates.entrySet().iterator(); it.hasNext();) {
+                Entry entry = it.next().getValue();
+                for (String ref : entry.references) {
+                    boolean ok;
+                    if (hashes.containsKey(ref)) {
+                        ok = candidates.containsKey(ref);
+                    } else {
+                        ok = externalsMatch.computeIfAbsent(ref, r
+                                -> resolve(r, entry.type.getClassLoader()) == resolve(r, parent));
+                    }
+                    if (!ok) {
+                        it.remove();
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        } while (changed);
+        Map<String, Class<?>> result = new HashMap<>(candidates.size());
+        for (Map.Entry<String, Entry> e : candidates.entrySet()) {
+            result.put(e.getKey(), e.getValue().type);
+        }
+        hits.add(result.size());
+        misses.add(hashes.size() - result.size());
+        LOG.log(Level.FINER, "Reusing {0} of {1} classes: {2}",
+                new Object[]{result.size(), hashes.size(), result.keySet()});
+        return result;
+    }
+
+    private static Class<?> resolve(String name, ClassLoader ldr) {
+        try {
+            return Class.forName(name, false, ldr);
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Replace the cached classes with those of a newly initialized loader.
+     *
+     * @param classes The classes, by binary name
+     * @param hashes The hashes of their bytes
+     * @param bytes Their bytes, for any not already cached with the same hash
+     * @return The loaders which defined classes that were cached before this
+     * call and are not any longer
+     */
+    Set<ClassLoader> update(Map<String, Class<?>> classes, Map<String, byte[]> hashes, Map<String, ByteBuffer> bytes) {
+        Map<String, Entry> nue = new HashMap<>(classes.size());
+        Map<String, Entry> previous;
+        int gen;
+        synchronized (this) {
+            previous = entries;
+            gen = ++generation;
+        }
+        for (Map.Entry<String, Class<?>> e : classes.entrySet()) {
+            String name = e.getKey();
+            byte[] hash = hashes.get(name);
+            if (hash == null || !name.equals(e.getValue().getName())) {
+                continue;
+            }
+            Entry old = previous.get(name);
+            if (old != null && old.type == e.getValue()) {
+                nue.put(name, old);
+            } else if (bytes.containsKey(name)) {
+                try {
+                    nue.put(name, new Entry(hash, e.getValue(), references(bytes.get(name)), gen));
+                } catch (BufferUnderflowException | IllegalArgumentException ex) {
+                    LOG.log(Level.INFO, "Could not read constant pool of " + name, ex);
+                }
+            }
+        }
+        synchronized (this) {
+            entries = nue;
+        }
+        Set<ClassLoader> dropped = new HashSet<>();
+        for (Entry e : previous.values()) {
+            dropped.add(e.type.getClassLoader());
+        }
+        for (Entry e : nue.values()) {
+            dropped.remove(e.type.getClassLoader());
+        }
+        return dropped;
+    }
+
+    /**
+     * Determine if any cached class was defined by the passed loader, so a
+     * later loader may still adopt it.
+     *
+     * @param ldr A classloader
+     * @return true if a cached class was defined by it
+     */
+    synchronized boolean holdsClassesOf(ClassLoader ldr) {
+        for (Entry e : entries.values()) {
+            if (e.type.getClassLoader() == ldr) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void clear() {
+        entries = Collections.emptyMap();
+    }
+
+    ClassReuseStats stats() {
+        return new ClassReuseStats(hits.sum(), misses.sum());
+    }
+
+    /**
+     * Get the binary names of all classes a class file mentions in its
+     * constant pool - as class entries, or in any descriptor or signature.
+     * This is deliberately over-inclusive, since a name referenced only from
+     * a string constant just causes a needless check.
+     *
+     * @param classFile The bytes of a class file
+     * @return A set of names
+     */
+    static Set<String> references(ByteBuffer classFile) {
+        ByteBuffer buf = classFile.duplicate();
+        if (buf.getInt() != 0xCAFEBABE) {
+            throw new IllegalArgumentException("Not a class file");
+        }
+        buf.getInt(); // minor and major versions
+        int count = buf.getShort() & 0xFFFF;
+        String[] utf8 = new String[count];
+        BitSet classNames = new BitSet(count);
+        for (int i = 1; i < count; i++) {
+            int tag = buf.get() & 0xFF;
+            switch (tag) {
+                case 1: // Utf8
+                    byte[] b = new byte[buf.getShort() & 0xFFFF];
+                    buf.get(b);
+                    // Modified UTF-8 only differs from UTF-8 for nulls and
+                    // supplementary characters, which cannot occur in names
+                    utf8[i] = new String(b, StandardCharsets.UTF_8);
+                    break;
+                case 7: // Class
+                    classNames.set(buf.getShort() & 0xFFFF);
+                    break;
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    buf.getShort();
+                    break;
+                case 15: // MethodHandle
+                    buf.get();
+                    buf.getShort();
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    buf.getInt();
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    buf.getLong();
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag + " at " + i);
+            }
+        }
+        Set<String> result = new HashSet<>();
+        for (int i = 1; i < count; i++) {
+            String s = utf8[i];
+            if (s == null) {
+                continue;
+            }
+            if (classNames.get(i) && s.charAt(0) != '[') {
+                result.add(s.replace('/', '.'));
+            } else {
+                descriptorNames(s, result);
+            }
+        }
+        return result;
+    }
+
+    private static void descriptorNames(String s, Set<String> into) {
+        for (int i = s.indexOf('L'); i >= 0; i = s.indexOf('L', i + 1)) {
+            int end = i + 1;
+            while (end < s.length() && isNameChar(s.charAt(end))) {
+                end++;
+            }
+            if (end > i + 1 && end < s.length() && (s.charAt(end) == ';' || s.charAt(end) == '<')) {
+                into.add(s.substring(i + 1, end).replace('/', '.'));
+            }
+        }
+    }
+
+    private static boolean isNameChar(char c) {
+        return c == '/' || Character.isJavaIdentifierPart(c);
+    }
+
+    private static final class Entry {
+
+        final byte[] hash;
+        final Class<?> type;
+        final Set<String> references;
+        final int generation;
+
+        Entry(byte[] hash, Class<?> type, Set<String> references, int generation) {
+            this.hash = hash;
+            this.type = type;
+            this.references = references;
+            this.generation = generation;
+        }
+    }
+}
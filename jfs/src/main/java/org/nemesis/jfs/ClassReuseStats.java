@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+/**
+ * Statistics on how many classes JFSClassLoaders over one location of a JFS
+ * adopted from their predecessors rather than defining them anew.
+ *
+ * @see JFS.JFSBuilder#reusingClasses()
+ * @author Tim Boudreau
+ */
+public final class ClassReuseStats {
+
+    private final long hits;
+    private final long misses;
+
+    ClassReuseStats(long hits, long misses) {
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    /**
+     * The number of classes reused from a previous classloader.
+     *
+     * @return A count
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * The number of classes which had to be defined.
+     *
+     * @return A count
+     */
+    public long misses() {
+        return misses;
+    }
+
+    /**
+     * The fraction of classes loaded which were reused.
+     *
+     * @return A number between 0 and 1
+     */
+    public double hitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "ClassReuseStats(" + hits + " reused, " + misses + " defined, "
+                + Math.round(hitRate() * 100) + "% hit rate)";
+    }
+}
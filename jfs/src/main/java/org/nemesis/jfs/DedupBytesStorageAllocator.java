@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import javax.tools.JavaFileManager;
+import org.nemesis.jfs.BlobPool.Blob;
+
+/**
+ * Allocator whose storages keep their bytes in a content-addressed pool
+ * shared across all JFS instances using it, so identical files are stored
+ * once. Pooled bytes are immutable - writing to a file replaces its blob
+ * rather than altering it - so the arrays returned by <code>asBytes()</code>
+ * must not be modified by callers (as with heap storage).
+ * <p>
+ * Since each blob's hash is computed when it is stored, hashing a file for
+ * JFSFileModifications is free.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class DedupBytesStorageAllocator implements JFSStorageAllocator<DedupBytesStorageAllocator.DedupBytesStorage> {
+
+    static final DedupBytesStorageAllocator INSTANCE = new DedupBytesStorageAllocator(BlobPool.SHARED);
+    private final BlobPool pool;
+
+    DedupBytesStorageAllocator(BlobPool pool) {
+        this.pool = pool;
+    }
+
+    BlobPool pool() {
+        return pool;
+    }
+
+    @Override
+    public DedupBytesStorage allocate(JFSStorage storage, Name name, JavaFileManager.Location location) {
+        return new DedupBytesStorage(storage);
+    }
+
+    final class DedupBytesStorage implements JFSBytesStorage, HashingStorage {
+
+        private final JFSStorage storage;
+        private volatile Blob blob;
+        private volatile long lastModified;
+
+        DedupBytesStorage(JFSStorage storage) {
+            this.storage = storage;
+        }
+
+        @Override
+        public String toString() {
+            Blob b = blob;
+            return "DedupBytesStorage(" + (b == null ? "unallocated" : b.bytes.length) + " bytes)";
+        }
+
+        @Override
+        public JFSStorageKind storageKind() {
+            return JFSStorageKind.HEAP_BYTES;
+        }
+
+        @Override
+        public byte[] asBytes() {
+            Blob b = blob;
+            return b == null ? new byte[0] : b.bytes;
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() {
+            Blob b = blob;
+            return b == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(b.bytes).asReadOnlyBuffer();
+        }
+
+        @Override
+        public boolean hash(MessageDigest into) {
+            // Feed in the blob's hash rather than rehashing its bytes
+            into.update(hash());
+            return true;
+        }
+
+        @Override
+        public byte[] hash() {
+            Blob b = blob;
+            return b == null ? pool.intern(new byte[0]).hash : b.hash;
+        }
+
+        @Override
+        public OutputStream openOutputStream() throws IOException {
+            return new BytesOutput();
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public JFSStorage storage() {
+            return storage;
+        }
+
+        @Override
+        public void discard() {
+            // Dropping our reference is all it takes for the pool to
+            // release the blob once nothing else uses it
+            synchronized (this) {
+                lastModified = 0;
+                blob = null;
+            }
+        }
+
+        @Override
+        public int length() {
+            Blob b = blob;
+            return b == null ? 0 : b.bytes.length;
+        }
+
+        @Override
+        public void setBytes(byte[] bytes, long lastModified) {
+            assert bytes != null : "Bytes null";
+            Blob nue = pool.intern(bytes);
+            synchronized (this) {
+                this.blob = nue;
+                this.lastModified = lastModified;
+            }
+        }
+
+        class BytesOutput extends ByteArrayOutputStream {
+
+            BytesOutput() {
+                super(2048);
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                setBytes(toByteArray(), System.currentTimeMillis());
+            }
+        }
+    }
+}
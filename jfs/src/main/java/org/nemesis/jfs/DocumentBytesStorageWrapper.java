@@ -48,13 +48,19 @@ final class DocumentBytesStorageWrapper implements JFSBytesStorage, DocumentList
     private final Document doc;
     private final Segment segment = new Segment();
     static boolean computeHashes = JFSUtilities.documentListenersHavePriority(); // package private for tests
+    // If true, maintain a chunked hash tree updated per-edit, rather than re-encoding
+    // and re-hashing the entire document on every change
+    static boolean incrementalHashes = Boolean.getBoolean("jfs.incremental.document.hashes"); // package private for tests
     private AtomicReference<byte[][]> cache = new AtomicReference<>();
-
+    private final DocumentHashTree tree;
 
     @SuppressWarnings("LeakingThisInConstructor")
     DocumentBytesStorageWrapper(JFSStorage storage, Document doc) {
         this.storage = notNull("storage", storage);
         this.doc = notNull("doc", doc);
+        tree = computeHashes && incrementalHashes && DocumentHashTree.supports(storage.encoding())
+                ? new DocumentHashTree(storage.encoding())
+                : null;
         // Ensure initialization of the PriorityTimestamp in NbJFSUtilities
         lastModified();
         recomputeHashes();
@@ -62,7 +68,15 @@ final class DocumentBytesStorageWrapper implements JFSBytesStorage, DocumentList
     }
 
     private void recomputeHashes() {
-        if (computeHashes) {
+        if (tree != null) {
+            doc.render(() -> {
+                try {
+                    tree.rebuild(doc);
+                } catch (BadLocationException ex) {
+                    Logger.getLogger(DocumentBytesStorageWrapper.class.getName()).log(Level.INFO, null, ex);
+                }
+            });
+        } else if (computeHashes) {
             doc.render(() -> {
                 doc.render(() -> {
                     int length = doc.getLength();
@@ -100,6 +114,10 @@ final class DocumentBytesStorageWrapper implements JFSBytesStorage, DocumentList
         if (!computeHashes) {
             return false;
         }
+        if (tree != null) {
+            into.update(tree.root());
+            return true;
+        }
         byte[][] cached = cache.get();
         if (cached != null) {
             into.update(cached[0]);
@@ -113,13 +131,18 @@ final class DocumentBytesStorageWrapper implements JFSBytesStorage, DocumentList
         if (!computeHashes) {
             return null;
         }
+        if (tree != null) {
+            return tree.root();
+        }
         byte[][] cached = cache.get();
         return cached == null ? null : cached[1];
     }
 
     @Override
     public CharBuffer asCharBuffer(boolean ignoreEncodingErrors) throws IOException {
-        if (computeHashes) {
+        if (tree != null) {
+            return CharBuffer.wrap(new String(tree.bytes(), storage.encoding()));
+        } else if (computeHashes) {
             byte[][] bts = cache.get();
             if (bts != null) {
                 return CharBuffer.wrap(new String(bts[0], storage.encoding()));
@@ -165,7 +188,9 @@ final class DocumentBytesStorageWrapper implements JFSBytesStorage, DocumentList
 
     @Override
     public ByteBuffer asByteBuffer() throws IOException {
-        if (computeHashes) {
+        if (tree != null) {
+            return ByteBuffer.wrap(tree.bytes());
+        } else if (computeHashes) {
             byte[][] cached = cache.get();
             if (cached != null) {
                 return ByteBuffer.wrap(cached[0]);
@@ -178,7 +203,9 @@ final class DocumentBytesStorageWrapper implements JFSBytesStorage, DocumentList
 
     @Override
     public byte[] asBytes() throws IOException {
-        if (computeHashes) {
+        if (tree != null) {
+            return tree.bytes();
+        } else if (computeHashes) {
             byte[][] cached = cache.get();
             if (cached != null) {
                 return cached[0];
@@ -209,6 +236,9 @@ final class DocumentBytesStorageWrapper implements JFSBytesStorage, DocumentList
 
     @Override
     public int length() {
+        if (tree != null) {
+            return tree.byteLength();
+        }
         return (int) (doc.getLength() * storage.encoding().newEncoder().averageBytesPerChar());
     }
 
@@ -241,12 +271,32 @@ final class DocumentBytesStorageWrapper implements JFSBytesStorage, DocumentList
 
     @Override
     public void insertUpdate(DocumentEvent e) {
-        touch(e);
+        if (tree != null) {
+            // We are called under the document's write lock, so the
+            // text cannot change while we read the damaged region
+            try {
+                tree.inserted(doc, e.getOffset(), e.getLength());
+            } catch (BadLocationException ex) {
+                Logger.getLogger(DocumentBytesStorageWrapper.class.getName()).log(Level.INFO, null, ex);
+                recomputeHashes();
+            }
+        } else {
+            touch(e);
+        }
     }
 
     @Override
     public void removeUpdate(DocumentEvent e) {
-        touch(e);
+        if (tree != null) {
+            try {
+                tree.removed(doc, e.getOffset(), e.getLength());
+            } catch (BadLocationException ex) {
+                Logger.getLogger(DocumentBytesStorageWrapper.class.getName()).log(Level.INFO, null, ex);
+                recomputeHashes();
+            }
+        } else {
+            touch(e);
+        }
     }
 
     @Override
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import java.nio.charset.Charset;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_16;
+import static java.nio.charset.StandardCharsets.UTF_16BE;
+import static java.nio.charset.StandardCharsets.UTF_16LE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * Two-level hash tree over the encoded bytes of a document, so that a document
+ * edit only requires re-encoding and re-hashing the chunks it touched, rather
+ * than the entire document.
+ * <p>
+ * Chunk boundaries are <i>content-defined</i> (a gear hash over the characters
+ * since the start of the chunk, with minimum and maximum chunk sizes), so the
+ * chunking - and therefore the root hash - is a pure function of the document's
+ * text: undoing an edit restores the original root hash. After an edit, chunks
+ * are rescanned from the start of the first damaged chunk until a newly found
+ * boundary coincides with an old boundary past the edit, after which the old
+ * chunks are reused as-is.
+ * </p>
+ * <p>
+ * The root hash is the SHA-1 of the concatenated SHA-1s of the chunks, so it is
+ * <i>not</i> the same value as the SHA-1 of the document's bytes; it is only
+ * usable for comparison with other root hashes.
+ * </p>
+ * <p>
+ * Only usable with encodings for which encoding chunks independently and
+ * concatenating the results produces the same bytes as encoding the whole
+ * text - see <code>supports()</code>.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class DocumentHashTree {
+
+    static final int MIN_CHUNK_CHARS = 512;
+    static final int MAX_CHUNK_CHARS = 8192;
+    // Test the high bits, which are influenced by the last 32 characters;
+    // eleven bits gives an average of ~2K characters past the minimum
+    private static final int BOUNDARY_MASK = 0xFFE0_0000;
+    private static final int READ_BLOCK = 4096;
+    private static final byte[] UTF_16_BOM = new byte[]{(byte) 0xFE, (byte) 0xFF};
+    private static final int[] GEAR = new int[256];
+
+    static {
+        // Fixed seed - chunk boundaries must be stable across JVM instances
+        Random rnd = new Random(1_299_827L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = rnd.nextInt();
+        }
+    }
+    private final List<Chunk> chunks = new ArrayList<>();
+    private final Segment segment = new Segment();
+    private final Charset chunkEncoding;
+    private final byte[] prefix;
+    private final MessageDigest digest;
+    private final char[] chunkChars = new char[MAX_CHUNK_CHARS + 2];
+    private int charCount;
+    private byte[] root;
+    private byte[] bytes;
+    private long chunksHashed;
+
+    DocumentHashTree(Charset encoding) {
+        if (!supports(encoding)) {
+            throw new IllegalArgumentException("Cannot incrementally encode " + encoding);
+        }
+        // Java's UTF-16 encoder emits a big-endian byte-order mark at the
+        // head of the output, so encode chunks as UTF-16BE and prepend it
+        // to the assembled bytes
+        if (UTF_16.equals(encoding)) {
+            chunkEncoding = UTF_16BE;
+            prefix = UTF_16_BOM;
+        } else {
+            chunkEncoding = encoding;
+            prefix = new byte[0];
+        }
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AssertionError("SHA-1 not supported in this JVM", ex);
+        }
+    }
+
+    /**
+     * Determine if the passed encoding is one which can be encoded a chunk at a
+     * time.
+     *
+     * @param encoding An encoding
+     * @return true if it can be used
+     */
+    static boolean supports(Charset encoding) {
+        return UTF_8.equals(encoding) || UTF_16.equals(encoding)
+                || UTF_16BE.equals(encoding) || UTF_16LE.equals(encoding)
+                || US_ASCII.equals(encoding) || ISO_8859_1.equals(encoding);
+    }
+
+    synchronized int chunkCount() {
+        return chunks.size();
+    }
+
+    synchronized int charCount() {
+        return charCount;
+    }
+
+    /**
+     * The number of chunks encoded and hashed over the lifetime of this tree,
+     * for tests to check how much of the document an edit touched.
+     *
+     * @return A count
+     */
+    synchronized long chunksHashed() {
+        return chunksHashed;
+    }
+
+    /**
+     * Discard all state and rehash the entire document. Must be called with
+     * the document at least read-locked.
+     *
+     * @param doc The document
+     * @throws BadLocationException If the document changed out from under us
+     */
+    synchronized void rebuild(Document doc) throws BadLocationException {
+        chunks.clear();
+        charCount = 0;
+        rescan(doc, 0, 0, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Update chunks for an insertion; must be called from within a document
+     * listener, with the document write-locked.
+     *
+     * @param doc The document
+     * @param offset The insertion offset
+     * @param length The number of characters inserted
+     * @throws BadLocationException If the document changed out from under us
+     */
+    synchronized void inserted(Document doc, int offset, int length) throws BadLocationException {
+        update(doc, offset, offset, length);
+    }
+
+    /**
+     * Update chunks for a removal; must be called from within a document
+     * listener, with the document write-locked.
+     *
+     * @param doc The document
+     * @param offset The removal offset
+     * @param length The number of characters removed
+     * @throws BadLocationException If the document changed out from under us
+     */
+    synchronized void removed(Document doc, int offset, int length) throws BadLocationException {
+        update(doc, offset, offset + length, -length);
+    }
+
+    private void update(Document doc, int offset, int oldEditEnd, int delta) throws BadLocationException {
+        if (chunks.isEmpty() || charCount + delta != doc.getLength() || offset > charCount) {
+            // We missed an event, or this is the first text - start over
+            rebuild(doc);
+            return;
+        }
+        // Boundaries preceding the edit depend only on the text preceding
+        // them, so the first chunk that can be affected is the one the
+        // edit starts in
+        int ix = 0;
+        int start = 0;
+        int last = chunks.size() - 1;
+        while (ix < last && start + chunks.get(ix).length <= offset) {
+            start += chunks.get(ix++).length;
+        }
+        rescan(doc, ix, start, oldEditEnd, delta);
+    }
+
+    private void rescan(Document doc, int firstChunk, int start, int oldEditEnd, int delta) throws BadLocationException {
+        int newLength = doc.getLength();
+        List<Chunk> replacements = new ArrayList<>(4);
+        // Walk the old chunk ends, in old coordinates, alongside the scan, so
+        // we can stop as soon as a new boundary lands on an old one past the
+        // edit - everything after that point is unchanged
+        int oldIx = firstChunk;
+        int oldEnd = chunks.isEmpty() ? Integer.MIN_VALUE : start + chunks.get(oldIx).length;
+        int lastOld = chunks.size() - 1;
+        boolean synced = false;
+        int pos = start;
+        int len = 0;
+        int gear = 0;
+        scan:
+        while (pos < newLength) {
+            int count = Math.min(READ_BLOCK, newLength - pos);
+            doc.getText(pos, count, segment);
+            char[] arr = segment.array;
+            int end = segment.offset + segment.count;
+            for (int i = segment.offset; i < end; i++) {
+                char c = arr[i];
+                chunkChars[len++] = c;
+                pos++;
+                gear = (gear << 1) + GEAR[(c ^ (c >>> 8)) & 0xFF];
+                if (isBoundary(c, len, gear)) {
+                    replacements.add(newChunk(len));
+                    len = 0;
+                    gear = 0;
+                    while (oldIx < lastOld && (oldEnd < oldEditEnd || oldEnd + delta < pos)) {
+                        oldEnd += chunks.get(++oldIx).length;
+                    }
+                    if (oldEnd >= oldEditEnd && oldEnd + delta == pos) {
+                        synced = true;
+                        break scan;
+                    }
+                }
+            }
+        }
+        if (len > 0) {
+            replacements.add(newChunk(len));
+        }
+        int replaceThrough = synced ? oldIx + 1 : chunks.size();
+        List<Chunk> replaced = chunks.subList(firstChunk, replaceThrough);
+        replaced.clear();
+        replaced.addAll(replacements);
+        charCount = newLength;
+        root = null;
+        bytes = null;
+    }
+
+    private static boolean isBoundary(char c, int len, int gear) {
+        if (len > MAX_CHUNK_CHARS) {
+            // Malformed text with consecutive high surrogates
+            return true;
+        }
+        if (len < MIN_CHUNK_CHARS || Character.isHighSurrogate(c)) {
+            // Never split a surrogate pair across chunks, or encoding
+            // would replace both halves with '?'
+            return false;
+        }
+        return len >= MAX_CHUNK_CHARS || (gear & BOUNDARY_MASK) == 0;
+    }
+
+    private Chunk newChunk(int len) {
+        chunksHashed++;
+        byte[] encoded = new String(chunkChars, 0, len).getBytes(chunkEncoding);
+        return new Chunk(len, encoded, digest.digest(encoded));
+    }
+
+    /**
+     * Get the root hash, computing it if any chunks have changed since it was
+     * last requested.
+     *
+     * @return The root hash; callers must not modify it
+     */
+    synchronized byte[] root() {
+        if (root == null) {
+            for (Chunk c : chunks) {
+                digest.update(c.hash);
+            }
+            root = digest.digest();
+        }
+        return root;
+    }
+
+    /**
+     * Get the encoded bytes of the entire document, assembling them from the
+     * chunks if any have changed since they were last requested.
+     *
+     * @return The bytes; callers must not modify them
+     */
+    synchronized byte[] bytes() {
+        if (bytes == null) {
+            if (chunks.isEmpty()) {
+                return bytes = new byte[0];
+            }
+            int size = prefix.length;
+            for (Chunk c : chunks) {
+                size += c.bytes.length;
+            }
+            byte[] result = new byte[size];
+            System.arraycopy(prefix, 0, result, 0, prefix.length);
+            int cursor = prefix.length;
+            for (Chunk c : chunks) {
+                System.arraycopy(c.bytes, 0, result, cursor, c.bytes.length);
+                cursor += c.bytes.length;
+            }
+            bytes = result;
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the number of encoded bytes without assembling them.
+     *
+     * @return A byte count
+     */
+    synchronized int byteLength() {
+        if (bytes != null) {
+            return bytes.length;
+        }
+        if (chunks.isEmpty()) {
+            return 0;
+        }
+        int result = prefix.length;
+        for (Chunk c : chunks) {
+            result += c.bytes.length;
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DocumentHashTree(" + chunks.size() + " chunks, " + charCount
+                + " chars, " + chunkEncoding + ")";
+    }
+
+    private static final class Chunk {
+
+        final int length;
+        final byte[] bytes;
+        final byte[] hash;
+
+        Chunk(int length, byte[] bytes, byte[] hash) {
+            this.length = length;
+            this.bytes = bytes;
+            this.hash = hash;
+        }
+    }
+}
@@ -29,7 +29,9 @@ import java.security.MessageDigest;
 interface HashingStorage {
 
     /**
-     * Add the stored contents bytes into the passed MessageDigest. If for some
+     * Add the stored contents bytes into the passed MessageDigest, or, for
+     * storages which maintain a hash tree over their contents or already know
+     * the hash of their contents, the root hash or that hash. If for some
      * reason hashing cannot be performed, returns false and the caller should
      * fall back to the default means of hashing by acquiring the file's bytes.
      *
@@ -41,8 +43,10 @@ interface HashingStorage {
 
     /**
      * Compute a SHA-1 hash of the bytes of this storage at the present time,
-     * optionally returning a cached value where appropriate. Callers are
-     * expected not to alter the returned array.
+     * optionally returning a cached value where appropriate. Storages which
+     * maintain a hash tree over their contents may return its root hash
+     * instead, which is only comparable with other hashes from the same
+     * storage. Callers are expected not to alter the returned array.
      *
      * @return The hash
      * @throws IOException if something goes wrong
@@ -50,6 +50,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiConsumer;
 import java.util.function.Predicate;
@@ -125,12 +126,16 @@ import org.nemesis.jfs.spi.JFSUtilities;
  */
 public final class JFS implements JavaFileManager {
 
-    private final Map<Location, JFSStorage> storageForLocation = new IdentityHashMap<>();
+    private final Map<Location, JFSStorage> storageForLocation;
+    private final boolean concurrent;
     private final String fsid;
     private final JFSStorageAllocator<?> allocator;
     private final BiConsumer<Location, FileObject> listener;
     private final StandardJavaFileManager delegate;
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean reusingClasses;
+    private volatile long lastAccessed = System.currentTimeMillis();
+    private volatile JFSMetrics lastMetrics;
     final Checkpoints checkpoints = Checkpoint.newCheckpoints();
     static final Logger LOG = Logger.getLogger(JFS.class.getName());
 
@@ -157,6 +162,38 @@ public final class JFS implements JavaFileManager {
         this(JFSStorageAllocator.defaultAllocator(), listener);
     }
 
+    /**
+     * Get a counter which is incremented whenever a file in this JFS is
+     * created, written or deleted. Changes to the content of masqueraded
+     * files and documents, which happen outside the JFS, are not counted.
+     *
+     * @return The number of modifications so far
+     */
+    public long modificationCount() {
+        return checkpoints.modificationCount();
+    }
+
+    /**
+     * Collect metrics on the memory used by this JFS.
+     *
+     * @return A snapshot of the current metrics
+     */
+    public JFSMetrics metrics() {
+        return lastMetrics = JFSMetrics.collect(this, storageForLocation, allocator);
+    }
+
+    JFSMetrics metrics(long maxAgeMillis) {
+        JFSMetrics result = lastMetrics;
+        if (result == null || System.currentTimeMillis() - result.timestamp() > maxAgeMillis) {
+            result = metrics();
+        }
+        return result;
+    }
+
+    long lastAccessed() {
+        return lastAccessed;
+    }
+
     public Checkpoint newCheckpoint() {
         return checkpoints.newCheckpoint();
     }
@@ -282,6 +319,14 @@ public final class JFS implements JavaFileManager {
     }
 
     private JFS(JFSStorageAllocator<?> allocator, BiConsumer<Location, FileObject> listener, Locale locale) {
+        this(allocator, listener, locale, false);
+    }
+
+    private JFS(JFSStorageAllocator<?> allocator, BiConsumer<Location, FileObject> listener, Locale locale, boolean concurrent) {
+        this.concurrent = concurrent;
+        // In concurrent mode, lookups never block and storage creation only
+        // contends per-bin, rather than requiring a lock around the whole map
+        this.storageForLocation = concurrent ? new ConcurrentHashMap<>() : new IdentityHashMap<>();
         this.fsid = Integer.toString(System.identityHashCode(this), 36)
                 + "."
                 + Long.toString(System.currentTimeMillis(), 36).toLowerCase();
@@ -290,6 +335,7 @@ public final class JFS implements JavaFileManager {
         this.delegate = ToolProvider.getSystemJavaCompiler().getStandardFileManager(null,
                 locale, allocator.encoding());
         JFSUrlStreamHandlerFactory.register(this);
+        JFSMetrics.register(this);
         LOG.log(Level.FINE, "Created JFS {0}", fsid);
     }
 
@@ -326,6 +372,42 @@ public final class JFS implements JavaFileManager {
         return null;
     }
 
+    /**
+     * Determine if classloaders over this JFS reuse unchanged classes from
+     * their predecessors.
+     *
+     * @return true if this JFS was built with <code>reusingClasses()</code>
+     */
+    public boolean isReusingClasses() {
+        return reusingClasses;
+    }
+
+    /**
+     * Get statistics on how many classes classloaders over a location
+     * reused from their predecessors.
+     *
+     * @param location A location
+     * @return Statistics, all zeros if class reuse is not enabled or no
+     * classloader has been created over the location
+     */
+    public ClassReuseStats classReuseStats(Location location) {
+        JFSStorage storage = storageForLocation(location, false);
+        ClassBytesCache cache = storage == null ? null : storage.classCache();
+        return cache == null ? new ClassReuseStats(0, 0) : cache.stats();
+    }
+
+    /**
+     * Determine if this JFS was created in concurrent mode, where storage for
+     * locations is kept in a concurrent map, files are indexed per-package,
+     * and lookups of files do not block, so multiple threads may generate
+     * and compile into it simultaneously.
+     *
+     * @return true if this JFS is safe for concurrent use
+     */
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
     /**
      * Get the default character set encoding this filesystem <i>returns</i>
      * data in.
@@ -419,6 +501,9 @@ public final class JFS implements JavaFileManager {
         private Charset encoding;
         private final Set<File> classpath = new LinkedHashSet<>();
         private BlockStorageKind storageKind;
+        private boolean concurrent;
+        private boolean deduplicating = Boolean.getBoolean("jfs.dedup");
+        private boolean reusingClasses = Boolean.getBoolean("jfs.reuse.classes");
 
         JFSBuilder() {
 
@@ -524,6 +609,51 @@ public final class JFS implements JavaFileManager {
             return this;
         }
 
+        /**
+         * Create a JFS which is safe for use by multiple threads
+         * simultaneously (e.g. several grammars generating and compiling into
+         * it at once), using a concurrent map for per-location storage and a
+         * per-package index of files, so lookups do not block and listing
+         * files in a package does not scan every file in the location.
+         *
+         * @return this
+         */
+        public JFSBuilder concurrent() {
+            this.concurrent = true;
+            return this;
+        }
+
+        /**
+         * Store file bytes in a content-addressed pool shared by all JFS
+         * instances created this way, so that byte-identical files in
+         * different JFSs (imported grammars, generated lexers and their class
+         * files) are only stored once. Ignored if block storage is also
+         * requested. May also be enabled globally with the system property
+         * <code>jfs.dedup</code>.
+         *
+         * @return this
+         */
+        public JFSBuilder deduplicating() {
+            this.deduplicating = true;
+            return this;
+        }
+
+        /**
+         * Have each JFSClassLoader adopt, rather than redefine, the classes
+         * of the previous classloader over the same location whose bytes are
+         * unchanged, when everything they link against is also unchanged.
+         * This saves defining the classes of a lexer when only parser rules
+         * were edited, and lets the JIT keep its work on them. Reuse only
+         * happens between loaders with the same parent. May also be enabled
+         * globally with the system property <code>jfs.reuse.classes</code>.
+         *
+         * @return this
+         */
+        public JFSBuilder reusingClasses() {
+            this.reusingClasses = true;
+            return this;
+        }
+
         /**
          * Creates an in-memory JavaFileManager for use with javac.
          *
@@ -535,13 +665,16 @@ public final class JFS implements JavaFileManager {
             JFSStorageAllocator<?> alloc;
             if (storageKind != null && storageKind != BlockStorageKind.HEAP) {
                 alloc = NioBytesStorageAllocator.allocator();
+            } else if (deduplicating) {
+                alloc = DedupBytesStorageAllocator.INSTANCE;
             } else {
                 alloc = JFSStorageAllocator.HEAP;
             }
             if (encoding != null) {
                 alloc = alloc.withEncoding(encoding);
             }
-            JFS result = new JFS(alloc, listener, locale);
+            JFS result = new JFS(alloc, listener, locale, concurrent);
+            result.reusingClasses = reusingClasses;
             if (!classpath.isEmpty()) {
                 result.setClasspathTo(classpath);
             }
@@ -622,10 +755,26 @@ public final class JFS implements JavaFileManager {
     public void clear(Location loc) throws IOException {
         JFSStorage stor = storageForLocation.remove(loc);
         if (stor != null) {
+            discarded(stor);
             stor.close();
         }
     }
 
+    /**
+     * Count every live file in a storage that is being dropped from this JFS
+     * as deleted, since closing it may be deferred while a classloader over it
+     * is alive, and would otherwise leave the modification count unchanged.
+     *
+     * @param stor A storage no longer reachable from this JFS
+     */
+    private void discarded(JFSStorage stor) {
+        for (JFSFileObjectImpl fo : stor.files()) {
+            if (!fo.isDeleted()) {
+                checkpoints.deleted();
+            }
+        }
+    }
+
     /**
      * Add JARs or folders to the compile classpath. Note: this delegates to the
      * StandardJavaFileManager and does not copy JARs or their contents into
@@ -671,14 +820,22 @@ public final class JFS implements JavaFileManager {
     }
 
     JFSStorage storageForLocation(Location loc, boolean create) {
+        lastAccessed = System.currentTimeMillis();
         JFSStorage result = storageForLocation.get(loc);
         if (result == null && create) {
             // Ensure we don't have a cached merged storage that does
             // not contain all locations but could be used to resolve
             // urls
             storageForLocation.remove(JFSStorage.MERGED_LOCATION);
-            result = new JFSStorage(loc, this, allocator, listener);
-            storageForLocation.put(loc, result);
+            if (concurrent) {
+                // Two threads must not both create storage for the same
+                // location and have one's files silently vanish
+                result = storageForLocation.computeIfAbsent(loc,
+                        l -> new JFSStorage(l, this, allocator, listener));
+            } else {
+                result = new JFSStorage(loc, this, allocator, listener);
+                storageForLocation.put(loc, result);
+            }
         }
         return result;
     }
@@ -707,6 +864,7 @@ public final class JFS implements JavaFileManager {
         for (Location loc : locations) {
             JFSStorage store = storageForLocation.get(loc);
             if (store != null) {
+                discarded(store);
                 store.close();
                 storageForLocation.remove(loc);
             }
@@ -910,6 +1068,21 @@ public final class JFS implements JavaFileManager {
                 || delegate.hasLocation(location);
     }
 
+    /**
+     * Find the location instance this JFS has storage for under a given name.
+     *
+     * @param locationName A location name
+     * @return A location or null
+     */
+    Location existingLocation(String locationName) {
+        for (Location loc : storageForLocation.keySet()) {
+            if (loc != JFSStorage.MERGED_LOCATION && loc.getName().equals(locationName)) {
+                return loc;
+            }
+        }
+        return null;
+    }
+
     JFSStorage storageForLocation(String locationName) {
         JFSStorage result = null;
         if (result == null && JFSStorage.MERGED_LOCATION.getName().equals(locationName)) {
@@ -1161,6 +1334,7 @@ public final class JFS implements JavaFileManager {
                 LOG.log(Level.FINER, "JFS.close(): empty and no live "
                         + "classloaders - unregistering {0}", fsid);
                 JFSUrlStreamHandlerFactory.unregister(this);
+                JFSMetrics.unregister(this);
                 delegate.close();
                 allocator.destroy();
             } else {
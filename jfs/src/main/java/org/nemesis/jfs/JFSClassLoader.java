@@ -21,6 +21,7 @@ import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -36,6 +37,7 @@ import java.util.logging.Logger;
 import javax.tools.JavaFileObject;
 import org.nemesis.jfs.isolation.ExposedFindClass;
 import org.nemesis.jfs.isolation.Lockless;
+import org.nemesis.jfs.spi.JFSUtilities;
 
 /**
  * A classloader that can load classes from a JFS location or its parent. Note
@@ -63,6 +65,18 @@ public final class JFSClassLoader extends ClassLoader implements Closeable, Auto
     private volatile boolean initializing;
     private final int id;
     private volatile boolean closed;
+    // Set once classes this loader holds are in the class cache, where a
+    // later loader may adopt them
+    private volatile boolean retained;
+    // Set once a closed, retained loader's classes are neither cached nor
+    // adopted by any open loader, and its class table has been dropped
+    private volatile boolean released;
+    // Open loaders which adopted classes this one defined; weak, so one
+    // that is never closed does not keep us retained
+    private final Set<JFSClassLoader> adopters
+            = Collections.synchronizedSet(JFSUtilities.newWeakSet());
+    // Loaders which defined classes this one adopted
+    private final Set<JFSClassLoader> adoptedFrom = new HashSet<>();
 
     JFSClassLoader(JFSStorage storage) throws IOException {
         this(storage, ClassLoader.getSystemClassLoader());
@@ -80,7 +94,9 @@ public final class JFSClassLoader extends ClassLoader implements Closeable, Auto
     }
 
     private synchronized boolean preloadClassesFromJFS() {
-        if (closed) {
+        if (closed && (retained || released)) {
+            return false;
+        } else if (closed) {
             String msg = "Reusing a closed JFSClassLoader-" + id + " "
                     + classes + ": " + this;
             if (debug) {
@@ -121,6 +137,37 @@ public final class JFSClassLoader extends ClassLoader implements Closeable, Auto
                 names.add(file.getName().substring(0, nm.length() - 6));
             }
 
+            ClassBytesCache cache = storage.classCache();
+            Map<String, byte[]> hashes = null;
+            Map<String, JFSFileObjectImpl> byName = null;
+            if (cache != null) {
+                hashes = new HashMap<>(all.size());
+                byName = new HashMap<>(all.size());
+                for (JFSFileObjectImpl file : all) {
+                    String nm = file.name().asClassName();
+                    byName.put(nm, file);
+                    try {
+                        hashes.put(nm, file.hash());
+                    } catch (IOException ex) {
+                        LOG.log(Level.INFO, "Could not hash " + file, ex);
+                    }
+                }
+                Map<String, Class<?>> adopted = cache.reusable(hashes, getParent());
+                for (Iterator<JFSFileObjectImpl> iter = all.iterator(); iter.hasNext();) {
+                    String nm = iter.next().name().asClassName();
+                    Class<?> type = adopted.get(nm);
+                    if (type != null) {
+                        classes.put(nm, type);
+                        iter.remove();
+                        ClassLoader owner = type.getClassLoader();
+                        if (owner instanceof JFSClassLoader && owner != this
+                                && adoptedFrom.add((JFSClassLoader) owner)) {
+                            ((JFSClassLoader) owner).adopters.add(this);
+                        }
+                    }
+                }
+            }
+
             long max = all.size() * all.size();
             for (int i = 0; !all.isEmpty() && i < max + 1; i++) {
                 for (Iterator<JFSFileObjectImpl> iter = all.iterator(); iter.hasNext();) {
@@ -164,6 +211,26 @@ public final class JFSClassLoader extends ClassLoader implements Closeable, Auto
                     }
                 }
             }
+            if (cache != null) {
+                Map<String, ByteBuffer> bytes = new HashMap<>();
+                for (Map.Entry<String, JFSFileObjectImpl> e : byName.entrySet()) {
+                    Class<?> type = classes.get(e.getKey());
+                    if (type != null && type.getClassLoader() == this) {
+                        try {
+                            bytes.put(e.getKey(), e.getValue().asByteBuffer());
+                        } catch (IOException ex) {
+                            LOG.log(Level.INFO, "Could not read " + e.getValue(), ex);
+                        }
+                    }
+                }
+                Set<ClassLoader> dropped = cache.update(classes, hashes, bytes);
+                retained = true;
+                for (ClassLoader ldr : dropped) {
+                    if (ldr instanceof JFSClassLoader && ldr != this) {
+                        ((JFSClassLoader) ldr).releaseIfUnused();
+                    }
+                }
+            }
             return true;
         }
         return false;
@@ -271,7 +338,9 @@ public final class JFSClassLoader extends ClassLoader implements Closeable, Auto
         }
         if (closed) {
             // double check nothing got loaded unexpectedly
-            classes.clear();
+            if (!retained) {
+                classes.clear();
+            }
             if (debug && LOG.isLoggable(Level.FINEST)) {
                 LOG.log(Level.FINEST, "Double-close", new Exception("Second close", closedAt));
             }
@@ -282,8 +351,19 @@ public final class JFSClassLoader extends ClassLoader implements Closeable, Auto
         LOG.log(Level.FINE, "Close JFSClassLoader-{0} with {1} loaded classes: {2}",
                 new Object[]{identifier(), classes.size(), classes.keySet()});
         packages = new Package[0];
-        classes.clear();
+        if (!retained) {
+            classes.clear();
+        }
         storage.classloaderClosed(this);
+        List<JFSClassLoader> predecessors;
+        synchronized (this) {
+            predecessors = new ArrayList<>(adoptedFrom);
+            adoptedFrom.clear();
+        }
+        for (JFSClassLoader pred : predecessors) {
+            pred.adopterClosed(this);
+        }
+        releaseIfUnused();
         ClassLoader parent = this.getParent();
         if (parent instanceof JFSClassLoader && parent != this) {
             LOG.log(Level.FINER, "Also close parent {0}", ((JFSClassLoader) parent).classes.keySet());
@@ -291,6 +371,40 @@ public final class JFSClassLoader extends ClassLoader implements Closeable, Auto
         }
     }
 
+    private void adopterClosed(JFSClassLoader adopter) {
+        adopters.remove(adopter);
+        releaseIfUnused();
+    }
+
+    /**
+     * Drop the class table of a closed loader whose classes were retained for
+     * adoption, once no open loader adopted any of them and the class cache no
+     * longer offers them, so that classes from old generations do not stay
+     * reachable through it.
+     */
+    private void releaseIfUnused() {
+        if (!closed || !retained || !adopters.isEmpty()) {
+            return;
+        }
+        ClassBytesCache cache = storage.classCache();
+        if (cache != null && cache.holdsClassesOf(this)) {
+            return;
+        }
+        synchronized (this) {
+            if (!retained) {
+                return;
+            }
+            released = true;
+            retained = false;
+            classes.clear();
+        }
+        LOG.log(Level.FINER, "Released retained JFSClassLoader-{0}", identifier());
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+
     @Override
     protected Object getClassLoadingLock(String className) {
         // None needed, we already defined all classes we ever will in our
@@ -310,6 +424,12 @@ public final class JFSClassLoader extends ClassLoader implements Closeable, Auto
     }
 
     private Class<?> loadLocal(String className, boolean resolve) {
+        if (closed && (retained || released)) {
+            // A later loader adopted classes this one holds, which may still
+            // need to resolve the classes they link against through it
+            Class<?> result = classes.get(className);
+            return result != null ? result : findLoadedClass(className);
+        }
         preloadClassesFromJFS();
         Class<?> result = findLoadedClass(className);
         if (result != null) {
@@ -47,6 +47,12 @@ import org.nemesis.jfs.result.UpToDateness;
  * Allows for tracking changes to files inside a JFS, including mapped files and
  * documents, using both timestamps and SHA-1 hashes for matching; a file is
  * only considered modified if its actual content has changed.
+ * <p>
+ * If nothing in the JFS has been written or deleted since the last check (per
+ * {@link JFS#modificationCount()}), and no masqueraded file or document
+ * reports a new timestamp, the answer is computed without listing or hashing
+ * anything.
+ * </p>
  *
  * @author Tim Boudreau
  */
@@ -58,6 +64,10 @@ public class JFSFileModifications {
     private final Set<? extends Location> locations;
     private Predicate<UnixPath> filter;
     private FilesInfo info;
+    // The latest JFS modification count at which the files were found to be
+    // unchanged from info, so writes elsewhere in the JFS only cost one full
+    // comparison
+    private long verifiedModCount = -1;
 
     JFSFileModifications() {
         // Empty instance, for use when an error was thrown and there
@@ -94,12 +104,14 @@ public class JFSFileModifications {
         this.jfs = jfs;
         this.filter = old.filter;
         this.locations = old.locations;
-        this.info = old.info;
+        // Another JFS's modification count means nothing to this one
+        this.info = old.info.withoutModificationCount();
     }
 
     @SuppressWarnings("unchecked")
     JFSFileModifications(Collection<? extends JFSCoordinates> coords, JFS jfs) {
         this.jfs = notNull("jfs", jfs);
+        long modCount = jfs.modificationCount();
         Set<Location> locs = new HashSet<>();
         Set<UnixPath> paths = new HashSet<>();
         Map<? extends Location, Map<UnixPath, Long>> stamps = new EnumMap<>(StandardLocation.class);
@@ -138,7 +150,7 @@ public class JFSFileModifications {
                     dig.update((byte) -1);
                 }
             }
-            info = new FilesInfo(stamps, dig.digest());
+            info = new FilesInfo(stamps, dig.digest(), modCount, sorted);
         } catch (NoSuchAlgorithmException err) {
             throw new AssertionError("SHA-1 not supported in this JVM", err);
         }
@@ -288,6 +300,16 @@ public class JFSFileModifications {
         return info;
     }
 
+    /**
+     * Get the combined content hash of the tracked files as of creation or the
+     * last refresh, for persisting alongside derived output.
+     *
+     * @return A hash, or null for the empty instance
+     */
+    synchronized byte[] contentHash() {
+        return jfs == null || info == null ? null : info.hash.clone();
+    }
+
     public JFSFileModifications toNew() {
         if (jfs == null) {
             return this;
@@ -342,6 +364,7 @@ public class JFSFileModifications {
 
     void setInfo(FilesInfo m) {
         info = m;
+        verifiedModCount = -1;
     }
 
     /**
@@ -393,13 +416,18 @@ public class JFSFileModifications {
             FilesInfo current;
             synchronized (status) {
                 initial = status.initialState();
+                if (initial.isCurrent(status.jfs, status.verifiedModCount)) {
+                    // Nothing in the JFS was written or deleted, and no
+                    // masqueraded file's timestamp changed
+                    return EMPTY;
+                }
                 current = status.currentInfo();
-            }
-            if (initial.timestamps.equals(current.timestamps)) {
-                return EMPTY;
-            }
-            if (Arrays.equals(initial.hash, current.hash)) {
-                return EMPTY;
+                boolean sameTimestamps = initial.timestamps.equals(current.timestamps)
+                        && !current.anyWrittenSince(initial.modCount);
+                if (sameTimestamps || Arrays.equals(initial.hash, current.hash)) {
+                    status.verifiedModCount = current.modCount;
+                    return EMPTY;
+                }
             }
             return new Modifications(initial, current, status.filter);
         }
@@ -505,7 +533,10 @@ public class JFSFileModifications {
                         Long newModified = updates.get(ee.getKey());
                         if (newModified == null) {
                             deleted.add(ee.getKey());
-                        } else if ((long) newModified != (long) ee.getValue()) {
+                        } else if ((long) newModified != (long) ee.getValue()
+                                || nue.writtenSince(ee.getKey(), orig.modCount)) {
+                            // The version catches rewrites within the same
+                            // millisecond, which the timestamp cannot
                             modified.add(ee.getKey());
                         }
                     }
@@ -577,6 +608,9 @@ public class JFSFileModifications {
     }
 
     private FilesInfo currentInfo() {
+        // Read before listing, so a write during listing makes the result
+        // stale rather than missed
+        long modCount = jfs.modificationCount();
         boolean closed = jfs.isReallyClosed();
         boolean empty = jfs.isEmpty();
         boolean jfsDead = closed || empty;
@@ -619,7 +653,7 @@ public class JFSFileModifications {
         } catch (NoSuchAlgorithmException | IOException ex) {
             return Exceptions.chuck(ex);
         }
-        return new FilesInfo(timestamps, hash);
+        return new FilesInfo(timestamps, hash, modCount, files);
     }
 
     /**
@@ -682,10 +716,103 @@ public class JFSFileModifications {
 
         final Map<? extends Location, Map<UnixPath, Long>> timestamps;
         final byte[] hash;
+        // The JFS's modification count when this was created, or -1 if
+        // unknown
+        final long modCount;
+        // Masqueraded files can change without the JFS knowing, so their
+        // timestamps still need checking
+        private final JFSFileObject[] external;
+        private final long[] externalTimestamps;
+        // The modification count as of the last write to each file
+        private final Map<UnixPath, Long> versions;
 
         public FilesInfo(Map<? extends Location, Map<UnixPath, Long>> timestamps, byte[] hash) {
             this.timestamps = timestamps;
             this.hash = hash;
+            this.modCount = -1;
+            this.external = new JFSFileObject[0];
+            this.externalTimestamps = new long[0];
+            this.versions = Collections.emptyMap();
+        }
+
+        FilesInfo(Map<? extends Location, Map<UnixPath, Long>> timestamps, byte[] hash,
+                long modCount, Collection<? extends JFSFileObject> files) {
+            this.timestamps = timestamps;
+            this.hash = hash;
+            this.modCount = modCount;
+            List<JFSFileObject> ext = new ArrayList<>(3);
+            versions = new HashMap<>(files.size());
+            for (JFSFileObject fo : files) {
+                if (fo.storageKind().isMasqueraded()) {
+                    ext.add(fo);
+                }
+                if (fo instanceof JFSFileObjectImpl) {
+                    versions.merge(fo.path(), ((JFSFileObjectImpl) fo).version(), Math::max);
+                }
+            }
+            external = ext.toArray(new JFSFileObject[ext.size()]);
+            externalTimestamps = new long[external.length];
+            for (int i = 0; i < external.length; i++) {
+                externalTimestamps[i] = external[i].getLastModified();
+            }
+        }
+
+        private FilesInfo(FilesInfo orig) {
+            this.timestamps = orig.timestamps;
+            this.hash = orig.hash;
+            this.modCount = -1;
+            this.external = orig.external;
+            this.externalTimestamps = orig.externalTimestamps;
+            this.versions = orig.versions;
+        }
+
+        boolean anyWrittenSince(long modCount) {
+            if (modCount >= 0) {
+                for (Long version : versions.values()) {
+                    if (version > modCount) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        boolean writtenSince(UnixPath path, long modCount) {
+            if (modCount < 0) {
+                return false;
+            }
+            Long version = versions.get(path);
+            return version != null && version > modCount;
+        }
+
+        FilesInfo withoutModificationCount() {
+            return modCount < 0 ? this : new FilesInfo(this);
+        }
+
+        /**
+         * Determine, without listing or hashing anything, whether the tracked
+         * files cannot have changed since this was created. A false return
+         * means they may have, not that they have.
+         *
+         * @param jfs The JFS
+         * @param verifiedModCount A later modification count at which the
+         * files were found to be unchanged, or -1
+         * @return true if nothing relevant has changed
+         */
+        boolean isCurrent(JFS jfs, long verifiedModCount) {
+            if (modCount < 0 || jfs == null || jfs.isReallyClosed()) {
+                return false;
+            }
+            long current = jfs.modificationCount();
+            if (current != modCount && current != verifiedModCount) {
+                return false;
+            }
+            for (int i = 0; i < external.length; i++) {
+                if (external[i].getLastModified() != externalTimestamps[i]) {
+                    return false;
+                }
+            }
+            return true;
         }
 
         Long lastModifiedOf(JFSCoordinates coords) {
@@ -51,6 +51,8 @@ class JFSFileObjectImpl implements JFSFileObject {
     private final Name name;
     private final Charset encoding;
     private volatile boolean deleted;
+    // The JFS modification count as of the last write to this file
+    volatile long version;
 
     JFSFileObjectImpl(JFSBytesStorage storage, Location location, Name name, Charset encoding) {
         this.storage = storage;
@@ -64,6 +66,10 @@ class JFSFileObjectImpl implements JFSFileObject {
         return deleted;
     }
 
+    long version() {
+        return version;
+    }
+
     @Override
     public JFSStorageKind storageKind() {
         return storage.storageKind();
@@ -179,6 +185,14 @@ class JFSFileObjectImpl implements JFSFileObject {
     public void setBytes(byte[] bytes, long lastModified) throws IOException {
         checkDeleted();
         storage.setBytes(bytes, lastModified);
+        touch();
+    }
+
+    private void touch() {
+        JFS jfs = storage.storage().jfs();
+        if (jfs != null) {
+            jfs.checkpoints.touch(this);
+        }
     }
 
     @Override
@@ -196,8 +210,50 @@ class JFSFileObjectImpl implements JFSFileObject {
     @Override
     public OutputStream openOutputStream() throws IOException {
         checkDeleted();
-        this.storage.storage().jfs().checkpoints.touch(this);
-        return storage.openOutputStream();
+        touch();
+        return new TouchOnCloseOutputStream(storage.openOutputStream());
+    }
+
+    /**
+     * Content is only replaced when the stream is closed, so touch the file
+     * again then, or a status taken while it was being written would appear
+     * current.
+     */
+    private final class TouchOnCloseOutputStream extends OutputStream {
+
+        private final OutputStream delegate;
+        private boolean closed;
+
+        TouchOnCloseOutputStream(OutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            delegate.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                delegate.close();
+            } finally {
+                if (!closed) {
+                    closed = true;
+                    touch();
+                }
+            }
+        }
     }
 
     @Override
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import javax.tools.JavaFileManager.Location;
+import org.nemesis.jfs.nio.BlockStorage;
+import org.nemesis.jfs.nio.BlockStorageKind;
+import org.nemesis.jfs.spi.JFSUtilities;
+
+/**
+ * A point-in-time picture of the memory a JFS holds - how many bytes in each
+ * location, whether they live on the heap, in direct buffers or in a mapped
+ * file, how fragmented its block storage (if any) is, and how long since it
+ * was last used - for finding which of many live JFSs is responsible for
+ * memory growth, and for deciding which to evict.
+ * <p>
+ * Bytes are those of file content; masqueraded files and documents are
+ * counted, but their bytes are not, since the JFS does not hold them.
+ * </p>
+ * <p>
+ * Where metrics are supported (see
+ * {@link JFSUtilities#areMetricsSupported()}), each live JFS also exports
+ * them, as <code>jfs.<i>id</i>.bytes</code> and so forth, until it is
+ * closed.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class JFSMetrics {
+
+    // Polled metrics are recomputed at most this often
+    private static final long MAX_AGE_MILLIS = 1000;
+    private static final Set<JFS> LIVE
+            = Collections.synchronizedSet(JFSUtilities.newWeakSet());
+    private static final String[] EXPORTED = {"bytes", "files", "heap", "direct",
+        "mapped", "blocks", "fragmentation", "idleSeconds"};
+    private final String id;
+    private final boolean closed;
+    private final long timestamp;
+    private final long lastAccessed;
+    private final Map<Location, Long> bytesByLocation;
+    private final Map<Location, Integer> filesByLocation;
+    private final long heapBytes;
+    private final long directBytes;
+    private final long mappedBytes;
+    private final int masqueradedFiles;
+    private final int blockCount;
+    private final float fragmentation;
+
+    private JFSMetrics(String id, boolean closed, long timestamp, long lastAccessed,
+            Map<Location, Long> bytesByLocation, Map<Location, Integer> filesByLocation,
+            long heapBytes, long directBytes, long mappedBytes, int masqueradedFiles,
+            int blockCount, float fragmentation) {
+        this.id = id;
+        this.closed = closed;
+        this.timestamp = timestamp;
+        this.lastAccessed = lastAccessed;
+        this.bytesByLocation = Collections.unmodifiableMap(bytesByLocation);
+        this.filesByLocation = Collections.unmodifiableMap(filesByLocation);
+        this.heapBytes = heapBytes;
+        this.directBytes = directBytes;
+        this.mappedBytes = mappedBytes;
+        this.masqueradedFiles = masqueradedFiles;
+        this.blockCount = blockCount;
+        this.fragmentation = fragmentation;
+    }
+
+    /**
+     * Collect metrics for every JFS which has not been closed, largest
+     * first.
+     *
+     * @return A list of metrics
+     */
+    public static List<JFSMetrics> all() {
+        List<JFS> live;
+        synchronized (LIVE) {
+            live = new ArrayList<>(LIVE);
+        }
+        List<JFSMetrics> result = new ArrayList<>(live.size());
+        for (JFS jfs : live) {
+            result.add(jfs.metrics());
+        }
+        Collections.sort(result, (a, b) -> Long.compare(b.totalBytes(), a.totalBytes()));
+        return result;
+    }
+
+    static JFSMetrics collect(JFS jfs, Map<Location, JFSStorage> storages, JFSStorageAllocator<?> alloc) {
+        // The storage map of a non-concurrent JFS may be modified while we
+        // iterate; metrics are advisory, so retry rather than lock
+        for (int i = 0;; i++) {
+            try {
+                return collect(jfs, new ArrayList<>(storages.entrySet()), alloc);
+            } catch (ConcurrentModificationException ex) {
+                if (i == 2) {
+                    JFS.LOG.log(Level.FINE, "Gave up collecting metrics for " + jfs.id(), ex);
+                    return collect(jfs, Collections.emptyList(), alloc);
+                }
+            }
+        }
+    }
+
+    private static JFSMetrics collect(JFS jfs, List<Map.Entry<Location, JFSStorage>> storages,
+            JFSStorageAllocator<?> alloc) {
+        BlockStorageKind blockKind = alloc.blockStorageKind();
+        Map<Location, Long> bytes = new LinkedHashMap<>();
+        Map<Location, Integer> files = new LinkedHashMap<>();
+        long heap = 0;
+        long direct = 0;
+        long mapped = 0;
+        int masqueraded = 0;
+        for (Map.Entry<Location, JFSStorage> e : storages) {
+            if (e.getKey() == JFSStorage.MERGED_LOCATION) {
+                // Holds files of other locations, which are counted there
+                continue;
+            }
+            long locBytes = 0;
+            int locFiles = 0;
+            for (JFSFileObjectImpl fo : e.getValue().files()) {
+                JFSStorageKind kind = fo.storageKind();
+                if (kind.isDiscarded()) {
+                    continue;
+                }
+                locFiles++;
+                if (kind.isMasqueraded()) {
+                    masqueraded++;
+                    continue;
+                }
+                int len = fo.length();
+                locBytes += len;
+                if (kind != JFSStorageKind.MAPPED_BYTES || blockKind == BlockStorageKind.HEAP) {
+                    heap += len;
+                } else if (blockKind == BlockStorageKind.OFF_HEAP) {
+                    direct += len;
+                } else {
+                    mapped += len;
+                }
+            }
+            bytes.put(e.getKey(), locBytes);
+            files.put(e.getKey(), locFiles);
+        }
+        BlockStorage blocks = alloc.blockStorage();
+        int blockCount = -1;
+        float fragmentation = 0;
+        if (blocks != null) {
+            blockCount = blocks.blockCount();
+            try {
+                fragmentation = blocks.fragmentation();
+            } catch (IOException ex) {
+                JFS.LOG.log(Level.FINE, "Computing fragmentation of " + jfs.id(), ex);
+            }
+        }
+        return new JFSMetrics(jfs.id(), jfs.isReallyClosed(), System.currentTimeMillis(),
+                jfs.lastAccessed(), bytes, files, heap, direct, mapped, masqueraded,
+                blockCount, fragmentation);
+    }
+
+    static void register(JFS jfs) {
+        LIVE.add(jfs);
+        if (!JFSUtilities.areMetricsSupported()) {
+            return;
+        }
+        // The registry would otherwise keep every JFS ever created alive
+        WeakReference<JFS> ref = new WeakReference<>(jfs);
+        String prefix = "jfs." + jfs.id() + ".";
+        export(prefix + "bytes", ref, JFSMetrics::totalBytes);
+        export(prefix + "files", ref, JFSMetrics::fileCount);
+        export(prefix + "heap", ref, JFSMetrics::heapBytes);
+        export(prefix + "direct", ref, JFSMetrics::directBytes);
+        export(prefix + "mapped", ref, JFSMetrics::mappedBytes);
+        export(prefix + "blocks", ref, JFSMetrics::blockCount);
+        export(prefix + "fragmentation", ref, m -> Math.round(m.fragmentation() * 100));
+        export(prefix + "idleSeconds", ref, m -> m.idleMillis() / 1000);
+    }
+
+    private static void export(String name, WeakReference<JFS> ref, ToLongFunction<JFSMetrics> f) {
+        LongSupplier supp = () -> {
+            JFS jfs = ref.get();
+            return jfs == null ? 0 : f.applyAsLong(jfs.metrics(MAX_AGE_MILLIS));
+        };
+        JFSUtilities.registerMetric(name, supp, false);
+    }
+
+    static void unregister(JFS jfs) {
+        LIVE.remove(jfs);
+        if (JFSUtilities.areMetricsSupported()) {
+            String prefix = "jfs." + jfs.id() + ".";
+            for (String name : EXPORTED) {
+                JFSUtilities.unregisterMetric(prefix + name);
+            }
+        }
+    }
+
+    /**
+     * The id of the JFS.
+     *
+     * @return An id
+     */
+    public String id() {
+        return id;
+    }
+
+    /**
+     * Whether the JFS had been fully closed when these metrics were
+     * collected.
+     *
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * The time these metrics were collected.
+     *
+     * @return A unix timestamp
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * The last time a file in the JFS was looked up, listed or created.
+     *
+     * @return A unix timestamp
+     */
+    public long lastAccessed() {
+        return lastAccessed;
+    }
+
+    /**
+     * The number of milliseconds between the last access to the JFS and the
+     * collection of these metrics.
+     *
+     * @return A duration in milliseconds
+     */
+    public long idleMillis() {
+        return Math.max(0, timestamp - lastAccessed);
+    }
+
+    /**
+     * The locations the JFS has storage for.
+     *
+     * @return A set of locations
+     */
+    public Set<Location> locations() {
+        return bytesByLocation.keySet();
+    }
+
+    /**
+     * The number of bytes of file content held in one location.
+     *
+     * @param location A location
+     * @return A number of bytes
+     */
+    public long bytes(Location location) {
+        Long result = bytesByLocation.get(location);
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * The number of files in one location, including masqueraded ones.
+     *
+     * @param location A location
+     * @return A count
+     */
+    public int fileCount(Location location) {
+        Integer result = filesByLocation.get(location);
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * The number of bytes of file content held in all locations.
+     *
+     * @return A number of bytes
+     */
+    public long totalBytes() {
+        return heapBytes + directBytes + mappedBytes;
+    }
+
+    /**
+     * The number of files in all locations, including masqueraded ones.
+     *
+     * @return A count
+     */
+    public int fileCount() {
+        int result = 0;
+        for (Integer count : filesByLocation.values()) {
+            result += count;
+        }
+        return result;
+    }
+
+    /**
+     * The number of bytes of file content held on the Java heap.
+     *
+     * @return A number of bytes
+     */
+    public long heapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * The number of bytes of file content held in direct buffers.
+     *
+     * @return A number of bytes
+     */
+    public long directBytes() {
+        return directBytes;
+    }
+
+    /**
+     * The number of bytes of file content held in a memory mapped file.
+     *
+     * @return A number of bytes
+     */
+    public long mappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * The number of files which are masqueraded files or documents, whose
+     * bytes the JFS does not hold.
+     *
+     * @return A count
+     */
+    public int masqueradedFiles() {
+        return masqueradedFiles;
+    }
+
+    /**
+     * The number of blocks the JFS's block storage spans, used or free; this
+     * rather than the byte counts reflects how much direct or mapped memory
+     * it has reserved.
+     *
+     * @return A count, or -1 if the JFS does not use block storage
+     */
+    public int blockCount() {
+        return blockCount;
+    }
+
+    /**
+     * The proportion of the blocks of the JFS's block storage which are free
+     * but lie between used ones.
+     *
+     * @return A number between 0 and 1, or 0 if the JFS does not use block
+     * storage
+     */
+    public float fragmentation() {
+        return fragmentation;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("JFSMetrics(").append(id)
+                .append(closed ? " closed" : "")
+                .append(" files=").append(fileCount())
+                .append(" bytes=").append(totalBytes())
+                .append(" heap=").append(heapBytes)
+                .append(" direct=").append(directBytes)
+                .append(" mapped=").append(mappedBytes);
+        if (blockCount >= 0) {
+            sb.append(" blocks=").append(blockCount)
+                    .append(" fragmentation=").append(Math.round(fragmentation * 100)).append('%');
+        }
+        sb.append(" idle=").append(idleMillis()).append("ms");
+        for (Map.Entry<Location, Long> e : bytesByLocation.entrySet()) {
+            sb.append(' ').append(e.getKey().getName()).append('=')
+                    .append(e.getValue()).append('/').append(fileCount(e.getKey()));
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import com.mastfrog.util.path.UnixPath;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import javax.tools.JavaFileManager.Location;
+import javax.tools.StandardLocation;
+import static org.nemesis.jfs.JFS.LOG;
+
+/**
+ * A persistent, memory-mapped copy of the contents of some locations in a JFS
+ * (typically generated sources and compiled classes), tagged with the content
+ * hash of the inputs they were generated from, so that an IDE restart can
+ * restore them instead of regenerating and recompiling.
+ * <p>
+ * Usage: after generating, call <code>save()</code> with a
+ * JFSFileModifications over the inputs. On startup, <code>open()</code> the
+ * snapshot file, and if <code>isUpToDate()</code> returns true for a
+ * JFSFileModifications over the (freshly masqueraded) inputs, call
+ * <code>restoreInto()</code>. Restoring only reads the snapshot's index; file
+ * contents are paged in from the mapped file when first read, and are copied
+ * to the heap when first written.
+ * </p>
+ * <p>
+ * Input hashes are compared as computed by JFSFileModifications, so a snapshot
+ * is only valid for inputs added to the JFS the same way (e.g. a file masqueraded
+ * as a document with incremental hashing enabled hashes differently than one
+ * masqueraded as a file) - a mismatch simply means the snapshot is ignored.
+ * </p>
+ * <p>
+ * Where snapshot files live is up to the caller. The live-execution module
+ * snapshots compiled classes against the Java sources they were compiled
+ * from, so the first build after an IDE restart can skip javac; generation
+ * is not skipped, since an AntlrGenerationResult holds live Tool and Grammar
+ * objects which cannot be restored from bytes.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class JFSSnapshot {
+
+    private static final int MAGIC = 0x4A46_5353; // JFSS
+    private static final int VERSION = 1;
+    private final Path file;
+    private final ByteBuffer mapping;
+    private final Charset encoding;
+    private final byte[] inputsHash;
+    private final List<Entry> entries;
+
+    private JFSSnapshot(Path file, ByteBuffer mapping, Charset encoding, byte[] inputsHash, List<Entry> entries) {
+        this.file = file;
+        this.mapping = mapping;
+        this.encoding = encoding;
+        this.inputsHash = inputsHash;
+        this.entries = entries;
+    }
+
+    /**
+     * Write the contents of the passed locations to a snapshot file,
+     * replacing any existing one. Masqueraded files and documents are skipped,
+     * since their content lives elsewhere.
+     *
+     * @param jfs A JFS
+     * @param file The file to write
+     * @param inputs Modifications over the files the snapshotted locations
+     * were generated from
+     * @param locations The locations to include
+     * @return The snapshot, mapped from the new file
+     * @throws IOException If something goes wrong
+     */
+    public static JFSSnapshot save(JFS jfs, Path file, JFSFileModifications inputs, Location... locations) throws IOException {
+        byte[] hash = inputs.contentHash();
+        if (hash == null) {
+            throw new IllegalArgumentException("Cannot snapshot against empty modifications");
+        }
+        List<JFSFileObject> files = new ArrayList<>();
+        List<Location> fileLocations = new ArrayList<>();
+        for (Location loc : locations) {
+            jfs.list(loc, (location, fo) -> {
+                if (!fo.storageKind().isMasqueraded() && !fo.storageKind().isDiscarded()) {
+                    files.add(fo);
+                    fileLocations.add(location);
+                }
+            });
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null && !Files.exists(dir)) {
+            Files.createDirectories(dir);
+        }
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            // Bytes are collected before writing the header, so the index
+            // cannot disagree with the data if a file changes in between
+            List<byte[]> contents = new ArrayList<>(files.size());
+            for (JFSFileObject fo : files) {
+                contents.add(fo.asBytes());
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp), 65_536))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(jfs.encoding().name(), out);
+                out.writeInt(hash.length);
+                out.write(hash);
+                out.writeInt(files.size());
+                for (int i = 0; i < files.size(); i++) {
+                    JFSFileObject fo = files.get(i);
+                    writeString(fileLocations.get(i).getName(), out);
+                    writeString(fo.path().toString(), out);
+                    out.writeLong(fo.getLastModified());
+                    out.writeInt(contents.get(i).length);
+                }
+                for (byte[] b : contents) {
+                    out.write(b);
+                }
+            }
+            try {
+                Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return open(file);
+    }
+
+    /**
+     * Map an existing snapshot file, reading only its index.
+     *
+     * @param file A file written by <code>save()</code>
+     * @return A snapshot
+     * @throws IOException If the file cannot be read, or is not a snapshot
+     * file of a version this code can read
+     */
+    public static JFSSnapshot open(Path file) throws IOException {
+        ByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            // The mapping remains valid after the channel is closed
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (mapping.getInt() != MAGIC) {
+                throw new IOException("Not a JFS snapshot: " + file);
+            }
+            int version = mapping.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+            }
+            Charset encoding = Charset.forName(readString(mapping));
+            byte[] hash = new byte[mapping.getInt()];
+            mapping.get(hash);
+            int count = mapping.getInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(new Entry(readString(mapping), readString(mapping),
+                        mapping.getLong(), mapping.getInt()));
+            }
+            int offset = mapping.position();
+            for (Entry e : entries) {
+                e.offset = offset;
+                offset += e.length;
+            }
+            if (offset != mapping.limit()) {
+                throw new IOException("Truncated or corrupted snapshot " + file
+                        + ": expected " + offset + " bytes but have " + mapping.limit());
+            }
+            return new JFSSnapshot(file, mapping.asReadOnlyBuffer(), encoding, hash,
+                    Collections.unmodifiableList(entries));
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException ex) {
+            throw new IOException("Corrupted snapshot " + file, ex);
+        }
+    }
+
+    /**
+     * Determine if the inputs this snapshot was generated from have the same
+     * content as the passed ones.
+     *
+     * @param inputs Modifications over the current inputs
+     * @return true if the snapshot can be used in place of regenerating
+     */
+    public boolean isUpToDate(JFSFileModifications inputs) {
+        byte[] hash = inputs.contentHash();
+        return hash != null && Arrays.equals(inputsHash, hash);
+    }
+
+    /**
+     * Add the files in this snapshot to a JFS, replacing any existing files
+     * with the same paths. Locations are resolved by name against the
+     * standard locations and those the JFS already has storage for.
+     *
+     * @param jfs A JFS, whose encoding must match the one the snapshot was
+     * created with
+     * @return The number of files restored
+     * @throws IOException If the encoding does not match, or a location in
+     * the snapshot cannot be resolved
+     */
+    public int restoreInto(JFS jfs) throws IOException {
+        return restoreInto(jfs, new Location[0]);
+    }
+
+    /**
+     * Add the files in this snapshot to a JFS, replacing any existing files
+     * with the same paths. A JFS keys its storage by Location instance, so
+     * files saved from a non-standard location must be restored into the
+     * same instance, or nothing will find them; pass any such locations here.
+     *
+     * @param jfs A JFS, whose encoding must match the one the snapshot was
+     * created with
+     * @param locations Non-standard locations to resolve location names
+     * against, before those the JFS already has storage for
+     * @return The number of files restored
+     * @throws IOException If the encoding does not match, or a location in
+     * the snapshot cannot be resolved
+     */
+    public int restoreInto(JFS jfs, Location... locations) throws IOException {
+        if (!encoding.equals(jfs.encoding())) {
+            throw new IOException("Snapshot " + file + " uses " + encoding.name()
+                    + " but " + jfs + " uses " + jfs.encoding().name());
+        }
+        // Resolve everything before adding anything, so a snapshot with an
+        // unknown location does not leave the JFS half-restored
+        Map<String, Location> resolved = new HashMap<>();
+        for (Entry e : entries) {
+            if (!resolved.containsKey(e.location)) {
+                Location loc = resolveLocation(jfs, e.location, locations);
+                if (loc == null) {
+                    throw new IOException("Snapshot " + file + " contains files in "
+                            + "location '" + e.location + "' which is not a "
+                            + "standard location or one known to " + jfs);
+                }
+                resolved.put(e.location, loc);
+            }
+        }
+        for (Entry e : entries) {
+            ByteBuffer slice = mapping.duplicate();
+            slice.position(e.offset);
+            slice.limit(e.offset + e.length);
+            JFSFileObject fo = jfs.storageForLocation(resolved.get(e.location), true)
+                    .addSnapshotFile(UnixPath.get(e.path), slice.slice(), e.lastModified);
+            jfs.checkpoints.touch(fo);
+        }
+        LOG.log(Level.FINE, "Restored {0} files from snapshot {1} into {2}",
+                new Object[]{entries.size(), file, jfs});
+        return entries.size();
+    }
+
+    private static Location resolveLocation(JFS jfs, String name, Location[] locations) {
+        for (Location loc : locations) {
+            if (name.equals(loc.getName())) {
+                return loc;
+            }
+        }
+        for (StandardLocation loc : StandardLocation.values()) {
+            if (name.equals(loc.getName())) {
+                return loc;
+            }
+        }
+        return jfs.existingLocation(name);
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    public Charset encoding() {
+        return encoding;
+    }
+
+    public int fileCount() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "JFSSnapshot(" + file + ", " + entries.size() + " files, " + encoding.name() + ")";
+    }
+
+    private static void writeString(String s, DataOutputStream out) throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static final class Entry {
+
+        final String location;
+        final String path;
+        final long lastModified;
+        final int length;
+        int offset;
+
+        Entry(String location, String path, long lastModified, int length) {
+            this.location = location;
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
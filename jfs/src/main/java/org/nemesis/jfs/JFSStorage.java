@@ -18,9 +18,11 @@ package org.nemesis.jfs;
 import com.mastfrog.function.throwing.io.IOBiConsumer;
 import com.mastfrog.util.path.UnixPath;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -56,6 +58,9 @@ final class JFSStorage {
 
     private final Location location;
     private final Map<Name, JFSFileObjectImpl> files = new ConcurrentHashMap<>();
+    // In a concurrent JFS, files are additionally indexed by package, so that
+    // javac's package listings do not scan every file in the location
+    private final Map<String, Map<Name, JFSFileObjectImpl>> filesByPackage;
     private final String fileSystemId;
     private final BiConsumer<Location, FileObject> listener;
     private final Set<ClassLoader> liveClassLoaders
@@ -63,6 +68,7 @@ final class JFSStorage {
     private final JFSStorageAllocator<?> alloc;
     private volatile boolean closeWhenPendingClassloadersGone;
     private volatile JFS filesystem;
+    private volatile ClassBytesCache classCache;
     private static final Logger LOG = Logger.getLogger(JFSStorage.class.getName());
 
     JFSStorage(Location location, JFS jfs, BiConsumer<Location, FileObject> listener) {
@@ -75,6 +81,31 @@ final class JFSStorage {
         this.fileSystemId = jfs.id();
         this.filesystem = jfs;
         this.listener = listener;
+        this.filesByPackage = jfs.isConcurrent() ? new ConcurrentHashMap<>() : null;
+    }
+
+    private JFSFileObjectImpl put(Name name, JFSFileObjectImpl fo) {
+        JFSFileObjectImpl old = files.put(name, fo);
+        index(name, fo);
+        return old;
+    }
+
+    private void index(Name name, JFSFileObjectImpl fo) {
+        if (filesByPackage != null) {
+            filesByPackage.computeIfAbsent(name.packageName(),
+                    pk -> new ConcurrentHashMap<>()).put(name, fo);
+        }
+    }
+
+    private JFSFileObjectImpl remove(Name name) {
+        JFSFileObjectImpl result = files.remove(name);
+        if (filesByPackage != null) {
+            Map<Name, JFSFileObjectImpl> pkg = filesByPackage.get(name.packageName());
+            if (pkg != null) {
+                pkg.remove(name);
+            }
+        }
+        return result;
     }
 
     public boolean isEmpty() {
@@ -89,6 +120,10 @@ final class JFSStorage {
         return true;
     }
 
+    Collection<JFSFileObjectImpl> files() {
+        return files.values();
+    }
+
     void forEach(IOBiConsumer<Name, JFSFileObjectImpl> c) throws IOException {
         for (Map.Entry<Name, JFSFileObjectImpl> e : files.entrySet()) {
             c.accept(e.getKey(), e.getValue());
@@ -127,11 +162,34 @@ final class JFSStorage {
             }
         }
         this.files.clear();
+        if (filesByPackage != null) {
+            filesByPackage.clear();
+        }
         // The only reason we keep a reference to the filesystem
         // is so that it cannot be garbage collected (breaking URL
         // resolution of FileObjects) while a classloader that might
         // use it is still alive
         filesystem = null;
+        ClassBytesCache cache = classCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    ClassBytesCache classCache() {
+        ClassBytesCache result = classCache;
+        if (result == null) {
+            JFS fs = filesystem;
+            if (fs != null && fs.isReusingClasses()) {
+                synchronized (this) {
+                    result = classCache;
+                    if (result == null) {
+                        result = classCache = new ClassBytesCache();
+                    }
+                }
+            }
+        }
+        return result;
     }
 
     JFSClassLoader createClassLoader(ClassLoader parent) throws IOException {
@@ -205,7 +263,9 @@ final class JFSStorage {
     }
 
     void mergeInto(JFSStorage other) {
-        other.files.putAll(files);
+        for (Map.Entry<Name, JFSFileObjectImpl> e : files.entrySet()) {
+            other.put(e.getKey(), e.getValue());
+        }
     }
 
     String id() {
@@ -244,7 +304,12 @@ final class JFSStorage {
     public boolean delete(Name name, JFSBytesStorage storage) {
         storage.discard();
         alloc.onDiscard(storage);
-        return files.remove(name) != null;
+        boolean result = remove(name) != null;
+        JFS fs = filesystem;
+        if (result && fs != null) {
+            fs.checkpoints.deleted();
+        }
+        return result;
     }
 
     JFSFileObjectImpl addRealFile(UnixPath localName, Path realFile) {
@@ -259,7 +324,7 @@ final class JFSStorage {
         JFSFileObjectImpl fo
                 = java ? new JFSJavaFileObjectImpl(wrapper, location, name, encoding)
                         : new JFSFileObjectImpl(wrapper, location, name, encoding);
-        JFSFileObjectImpl old = files.put(name, fo);
+        JFSFileObjectImpl old = put(name, fo);
         if (old != null) {
             old.discard();
         }
@@ -276,7 +341,7 @@ final class JFSStorage {
         JFSFileObjectImpl fo
                 = java ? new JFSJavaFileObjectImpl(wrapper, location, name, encoding())
                         : new JFSFileObjectImpl(wrapper, location, name, encoding());
-        JFSFileObjectImpl old = files.put(name, fo);
+        JFSFileObjectImpl old = put(name, fo);
         if (old != null) {
             old.discard();
         }
@@ -286,16 +351,35 @@ final class JFSStorage {
         return fo;
     }
 
-    JFSFileObjectImpl allocate(Name name, boolean java) {
-        JFSBytesStorage storage = alloc.allocate(this, name, location);
+    JFSFileObjectImpl addSnapshotFile(UnixPath asPath, ByteBuffer mapped, long lastModified) {
+        Name name = Name.forPath(asPath);
+        boolean java = shouldBeJavaFileObject(name);
+        SnapshotBytesStorage wrapper = new SnapshotBytesStorage(this, mapped, lastModified);
+        JFSFileObjectImpl fo
+                = java ? new JFSJavaFileObjectImpl(wrapper, location, name, encoding())
+                        : new JFSFileObjectImpl(wrapper, location, name, encoding());
+        JFSFileObjectImpl old = put(name, fo);
+        if (old != null) {
+            old.discard();
+        }
+        if (listener != null) {
+            listener.accept(location, fo);
+        }
+        return fo;
+    }
 
+    JFSFileObjectImpl allocate(Name name, boolean java) {
         JFSFileObjectImpl result = files.computeIfAbsent(name, nm -> {
+            // Only allocate if absent, or the allocator (which may be holding
+            // blocks in a shared buffer) leaks storage for every lookup
+            JFSBytesStorage storage = alloc.allocate(this, name, location);
             JFSFileObjectImpl fo = java || name.kind() == CLASS || name.kind() == SOURCE
                     ? new JFSJavaFileObjectImpl(storage, location, name, alloc.encoding())
                     : new JFSFileObjectImpl(storage, location, name, alloc.encoding());
             if (listener != null) {
                 listener.accept(location, fo);
             }
+            index(name, fo);
             return fo;
         });
         result.undiscard();
@@ -314,7 +398,7 @@ final class JFSStorage {
             checkpoints.touch(result);
         } else if (result != null && java && !(result instanceof JavaFileObject)) {
             result = result.toJavaFileObject();
-            files.put(name, result);
+            put(name, result);
         }
         return result;
 
@@ -326,7 +410,7 @@ final class JFSStorage {
             result = allocate(name, java);
         } else if (result != null && java && !(result instanceof JavaFileObject)) {
             result = result.toJavaFileObject();
-            files.put(name, result);
+            put(name, result);
         }
         return result;
     }
@@ -351,7 +435,7 @@ final class JFSStorage {
         if (result != null) {
             JFSJavaFileObjectImpl jfsFo = result.toJavaFileObject();
             if (jfsFo != result) {
-                files.put(name, jfsFo);
+                put(name, jfsFo);
             }
             return jfsFo;
         } else if (create) {
@@ -371,8 +455,15 @@ final class JFSStorage {
 
     Iterable<JavaFileObject> list(String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) {
         UnixPath path = Name.packageToPath(packageName);
-        List<JavaFileObject> result = new ArrayList<>(files.size());
-        for (Map.Entry<Name, JFSFileObjectImpl> e : files.entrySet()) {
+        Map<Name, JFSFileObjectImpl> candidates = files;
+        if (filesByPackage != null && !recurse) {
+            candidates = filesByPackage.get(packageName == null ? "" : packageName);
+            if (candidates == null) {
+                return Collections.emptyList();
+            }
+        }
+        List<JavaFileObject> result = new ArrayList<>(candidates.size());
+        for (Map.Entry<Name, JFSFileObjectImpl> e : candidates.entrySet()) {
             if (e.getKey().isPackage(path, recurse)) {
                 if (e.getValue() instanceof JavaFileObject) {
                     JavaFileObject jfa = (JavaFileObject) e.getValue();
@@ -18,6 +18,8 @@ package org.nemesis.jfs;
 import java.nio.charset.Charset;
 import static java.nio.charset.StandardCharsets.UTF_16;
 import javax.tools.JavaFileManager.Location;
+import org.nemesis.jfs.nio.BlockStorage;
+import org.nemesis.jfs.nio.BlockStorageKind;
 
 /**
  *
@@ -37,6 +39,25 @@ interface JFSStorageAllocator<T extends JFSBytesStorage> {
 
     }
 
+    /**
+     * For metrics, the block storage this allocator allocates from, if any.
+     *
+     * @return A block storage or null
+     */
+    default BlockStorage blockStorage() {
+        return null;
+    }
+
+    /**
+     * For metrics, the kind of block storage this allocator allocates from,
+     * if any.
+     *
+     * @return A kind or null
+     */
+    default BlockStorageKind blockStorageKind() {
+        return null;
+    }
+
     default Charset encoding() {
         return DEFAULT_ENCODING;
     }
@@ -67,6 +88,28 @@ interface JFSStorageAllocator<T extends JFSBytesStorage> {
             public Charset encoding() {
                 return encoding;
             }
+
+            @Override
+            public void onDiscard(JFSBytesStorage obj) {
+                JFSStorageAllocator.this.onDiscard(obj);
+            }
+
+            @Override
+            public void destroy() {
+                // Without this, block storage allocated for a JFS created
+                // with a charset was never released on close
+                JFSStorageAllocator.this.destroy();
+            }
+
+            @Override
+            public BlockStorage blockStorage() {
+                return JFSStorageAllocator.this.blockStorage();
+            }
+
+            @Override
+            public BlockStorageKind blockStorageKind() {
+                return JFSStorageAllocator.this.blockStorageKind();
+            }
         };
     };
 
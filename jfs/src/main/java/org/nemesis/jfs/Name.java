@@ -16,6 +16,7 @@
 package org.nemesis.jfs;
 
 import com.mastfrog.util.path.UnixPath;
+import java.util.Objects;
 import java.util.logging.Level;
 import javax.tools.JavaFileObject;
 
@@ -156,8 +157,14 @@ final class Name {
         return pn.isEmpty() ? name : pn + "." + name;
     }
 
+    private String packageName;
+
     String packageName() {
-        return prefix.toString('.');
+        String result = packageName;
+        if (result == null) {
+            result = packageName = prefix.toString('.');
+        }
+        return result;
     }
 
     public UnixPath toPath() {
@@ -176,7 +183,14 @@ final class Name {
         } else if (o == null) {
             return false;
         } else if (o instanceof Name) {
-            return toString().equals(o.toString());
+            // Compare components rather than toString(), which allocates -
+            // this is called on every hash collision in file lookups
+            Name other = (Name) o;
+            return hashCode() == other.hashCode()
+                    && name.equals(other.name)
+                    && Objects.equals(extension, other.extension)
+                    && (prefix.equals(other.prefix)
+                    || prefix.toString().equals(other.prefix.toString()));
         }
         return false;
     }
@@ -22,15 +22,26 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.tools.JavaFileManager;
+import org.nemesis.jfs.nio.AllocationPolicy;
 import org.nemesis.jfs.nio.BlockStorage;
 import org.nemesis.jfs.nio.BlockStorage.StoredBytes;
 import org.nemesis.jfs.nio.BlockStorageKind;
+import org.nemesis.jfs.spi.JFSUtilities;
 
 /**
+ * Allocator which stores file bytes in a block storage.
+ * <p>
+ * When created with <code>allocator()</code>, allocation is best-fit, and
+ * when deleting files leaves the storage fragmented past a threshold, it is
+ * compacted on a background thread rather than in the thread that deleted the
+ * file. Since compaction moves bytes around, buffers returned by
+ * <code>asByteBuffer()</code> are copies in that mode.
+ * </p>
  *
  * @author Tim Boudreau
  */
@@ -38,8 +49,12 @@ final class NioBytesStorageAllocator implements JFSStorageAllocator<NioBytesStor
 
     private static final int DEFAULT_BLOCK_SIZE = 256;
     private static final int DEFAULT_INITIAL_BLOCKS = 32;
+    static final float COMPACTION_THRESHOLD = 0.3F;
 
     private final BlockStorage storage;
+    private final BlockStorageKind kind;
+    private final boolean backgroundCompaction;
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
 
     NioBytesStorageAllocator() throws IOException {
         this(DEFAULT_BLOCK_SIZE, DEFAULT_INITIAL_BLOCKS);
@@ -47,7 +62,8 @@ final class NioBytesStorageAllocator implements JFSStorageAllocator<NioBytesStor
 
     static JFSStorageAllocator<?> allocator() {
         try {
-            return new NioBytesStorageAllocator(DEFAULT_BLOCK_SIZE, DEFAULT_INITIAL_BLOCKS, BlockStorageKind.MAPPED_TEMP_FILE);
+            return new NioBytesStorageAllocator(DEFAULT_BLOCK_SIZE, DEFAULT_INITIAL_BLOCKS,
+                    BlockStorageKind.MAPPED_TEMP_FILE, AllocationPolicy.BEST_FIT, true);
         } catch (IOException ex) {
             Logger.getLogger(NioBytesStorageAllocator.class.getName()).log(Level.SEVERE, "Allocating nio storage failed", ex);
             return JFSStorageAllocator.HEAP;
@@ -59,12 +75,60 @@ final class NioBytesStorageAllocator implements JFSStorageAllocator<NioBytesStor
     }
 
     NioBytesStorageAllocator(int blockSize, int initialBlockCount, BlockStorageKind kind) throws IOException {
-        // XXX shouldn't this be kind.create()???
-        storage = kind.create(blockSize, initialBlockCount);
+        this(blockSize, initialBlockCount, kind, AllocationPolicy.FIRST_FIT, false);
     }
 
     NioBytesStorageAllocator(BlockStorageKind kind) throws IOException {
-        storage = kind.create(DEFAULT_BLOCK_SIZE, DEFAULT_INITIAL_BLOCKS);
+        this(DEFAULT_BLOCK_SIZE, DEFAULT_INITIAL_BLOCKS, kind);
+    }
+
+    NioBytesStorageAllocator(int blockSize, int initialBlockCount, BlockStorageKind kind,
+            AllocationPolicy policy, boolean backgroundCompaction) throws IOException {
+        storage = kind.create(blockSize, initialBlockCount, policy);
+        this.kind = kind;
+        this.backgroundCompaction = backgroundCompaction;
+    }
+
+    @Override
+    public BlockStorage blockStorage() {
+        return storage;
+    }
+
+    @Override
+    public BlockStorageKind blockStorageKind() {
+        return kind;
+    }
+
+    boolean isCompactionPending() {
+        return compactionPending.get();
+    }
+
+    private void maybeCompact() throws IOException {
+        // Called with the lock held
+        if (!backgroundCompaction || compactionPending.get()
+                || storage.fragmentation() < COMPACTION_THRESHOLD) {
+            return;
+        }
+        if (compactionPending.compareAndSet(false, true)) {
+            JFSUtilities.runInBackground(this::compact);
+        }
+    }
+
+    private void compact() {
+        try {
+            synchronized (this) {
+                // Re-check - a burst of allocations may have filled the holes
+                // since this was scheduled
+                if (storage.fragmentation() >= COMPACTION_THRESHOLD) {
+                    storage.compact();
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(NioBytesStorageAllocator.class.getName()).log(Level.INFO,
+                    "Exception compacting storage", ex);
+        } finally {
+            compactionPending.set(false);
+        }
     }
 
     Supplier<String> opsSupplier() {
@@ -129,19 +193,21 @@ final class NioBytesStorageAllocator implements JFSStorageAllocator<NioBytesStor
         public ByteBuffer asByteBuffer() throws IOException {
             synchronized (lock) {
                 StoredBytes file = file();
-                return file == null ? ByteBuffer.allocate(0) : file.readBuffer();
+                if (file == null) {
+                    return ByteBuffer.allocate(0);
+                }
+                // A slice of the shared buffer escapes the lock, and its
+                // contents may be moved by compaction at any time
+                return backgroundCompaction ? ByteBuffer.wrap(file.getBytes())
+                        : file.readBuffer();
             }
         }
 
         @Override
         public OutputStream openOutputStream() throws IOException {
-            synchronized (lock) {
-                StoredBytes file = file();
-                if (file != null) {
-                    return file.openOutputStream();
-                }
-                return new InitialContentStream();
-            }
+            // Always use our own stream, so the bytes are written back
+            // while holding the lock
+            return new InitialContentStream();
         }
 
         class InitialContentStream extends ByteArrayOutputStream {
@@ -159,6 +225,7 @@ final class NioBytesStorageAllocator implements JFSStorageAllocator<NioBytesStor
                         } else {
                             file.delete();
                             BytesStorageWrapper.this.file = null;
+                            maybeCompact();
                         }
                     } else {
                         if (bytes.length > 0) {
@@ -211,6 +278,7 @@ final class NioBytesStorageAllocator implements JFSStorageAllocator<NioBytesStor
                         if (!discarded) {
                             file.delete();
                             discarded = true;
+                            maybeCompact();
                         }
                     }
                 }
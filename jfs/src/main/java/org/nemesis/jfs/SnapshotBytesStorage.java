@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import com.mastfrog.util.preconditions.Exceptions;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Storage for a file restored from a JFSSnapshot, which reads from a read-only
+ * slice of the memory-mapped snapshot file until it is first written to, after
+ * which it behaves like heap storage. Nothing is paged in from disk until the
+ * file is actually read.
+ *
+ * @author Tim Boudreau
+ */
+final class SnapshotBytesStorage implements JFSBytesStorage, HashingStorage {
+
+    private final JFSStorage storage;
+    private ByteBuffer mapped;
+    private byte[] bytes;
+    private volatile long lastModified;
+
+    SnapshotBytesStorage(JFSStorage storage, ByteBuffer mapped, long lastModified) {
+        this.storage = storage;
+        this.mapped = mapped;
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public JFSStorageKind storageKind() {
+        return JFSStorageKind.MAPPED_BYTES;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SnapshotBytesStorage(" + (mapped != null ? "mapped " + mapped.remaining()
+                : bytes == null ? "unallocated" : bytes.length) + " bytes)";
+    }
+
+    @Override
+    public synchronized byte[] asBytes() {
+        if (bytes != null) {
+            return bytes;
+        }
+        if (mapped == null) {
+            return new byte[0];
+        }
+        byte[] result = new byte[mapped.remaining()];
+        mapped.duplicate().get(result);
+        return result;
+    }
+
+    @Override
+    public synchronized ByteBuffer asByteBuffer() {
+        if (mapped != null) {
+            // The mapping is read-only, so handing out a view is safe
+            return mapped.duplicate();
+        }
+        return bytes == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(bytes);
+    }
+
+    @Override
+    public synchronized boolean hash(MessageDigest into) {
+        if (mapped != null) {
+            into.update(mapped.duplicate());
+        } else {
+            into.update(bytes == null ? new byte[0] : bytes);
+        }
+        return true;
+    }
+
+    @Override
+    public byte[] hash() {
+        try {
+            MessageDigest dig = MessageDigest.getInstance("SHA-1");
+            hash(dig);
+            return dig.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    @Override
+    public OutputStream openOutputStream() throws IOException {
+        return new BytesOutput();
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public JFSStorage storage() {
+        return storage;
+    }
+
+    @Override
+    public synchronized void discard() {
+        lastModified = 0;
+        mapped = null;
+        bytes = null;
+    }
+
+    @Override
+    public synchronized int length() {
+        if (mapped != null) {
+            return mapped.remaining();
+        }
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    @Override
+    public synchronized void setBytes(byte[] bytes, long lastModified) {
+        assert bytes != null : "Bytes null";
+        this.mapped = null;
+        this.bytes = bytes;
+        this.lastModified = lastModified;
+    }
+
+    class BytesOutput extends ByteArrayOutputStream {
+
+        BytesOutput() {
+            super(2048);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            setBytes(toByteArray(), System.currentTimeMillis());
+        }
+    }
+}
@@ -51,7 +51,6 @@ import static javax.tools.JavaFileObject.Kind.SOURCE;
 import javax.tools.StandardJavaFileManager;
 import javax.tools.StandardLocation;
 import static javax.tools.StandardLocation.SOURCE_PATH;
-import javax.tools.ToolProvider;
 import org.nemesis.jfs.Checkpoint;
 import org.nemesis.jfs.JFS;
 import org.nemesis.jfs.JFSCoordinates;
@@ -169,7 +168,7 @@ public class CompileJavaSources {
                         + " when using JFS compilation - add it to the classpath in your JFSBuilder instead.");
             }
             L diagnosticListener = new L(result);
-            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            JavaCompiler compiler = JavacSession.compiler();
 
             List<String> compilerOptions = this.options.copy().withCharset(jfs.encoding()).options(compiler);
             Iterable<JavaFileObject> toCompile = singleSource != null
@@ -215,6 +214,79 @@ public class CompileJavaSources {
         return result.build();
     }
 
+    /**
+     * Compile the sources in a JFS, using a session which retains what it
+     * needs to know about the previous compile to recompile only those
+     * sources which have changed since then, and the sources which depend on
+     * them.
+     *
+     * @param compilerOutput A writer for compiler output, or null
+     * @param jfs A JFS
+     * @param session A session, which should only be used with one JFS and
+     * one set of source locations
+     * @param sourceLocations The set of source locations to compile - if
+     * empty, StandardLocation.SOURCE_PATH is used
+     * @return A compile result whose input and output files are those of all
+     * the sources in the passed locations, not just the recompiled ones
+     */
+    public CompileResult compile(Writer compilerOutput, JFS jfs, JavacSession session, Location... sourceLocations) {
+        if (!jfs.encoding().equals(options.encoding())) {
+            LOG.log(Level.WARNING, "JFS encoding {0} does not match the encoding set for this compile, {1}.  Setting it based on the JFS.",
+                    new Object[]{jfs.encoding(), options.encoding()});
+            options.withCharset(jfs.encoding());
+        }
+        Location[] locations = sourceLocations.length == 0
+                ? new Location[]{StandardLocation.SOURCE_PATH}
+                : sourceLocations;
+        CompileResult.Builder result = CompileResult.builder(Paths.get(""));
+        result.setInitialFileStatus(jfs.status(setOf(locations)));
+        synchronized (session) {
+            try {
+                if (includedCodeBaseOf != null) {
+                    throw new IllegalStateException("Cannot include the codebase of " + includedCodeBaseOf.getName()
+                            + " when using JFS compilation - add it to the classpath in your JFSBuilder instead.");
+                }
+                JavaCompiler compiler = JavacSession.compiler();
+                List<String> compilerOptions = this.options.copy().withCharset(jfs.encoding()).options(compiler);
+                JavacSession.Plan plan = session.plan(jfs, compilerOptions, locations);
+                List<Path> paths = new ArrayList<>(plan.toCompile.size());
+                for (JavaFileObject jfo : plan.toCompile) {
+                    LOG.log(Level.FINER, "Compile {0}", jfo);
+                    paths.add(((JFSFileObject) jfo).path());
+                    result.addSource(jfo);
+                }
+                boolean javacResult = true;
+                Set<JFSCoordinates> written = Collections.emptySet();
+                long elapsed = 0;
+                if (!plan.isEmpty()) {
+                    JavaCompiler.CompilationTask task = compiler.getTask(compilerOutput,
+                            jfs, new L(result), compilerOptions, null, plan.toCompile);
+                    Checkpoint checkpoint = jfs.newCheckpoint();
+                    long then = System.currentTimeMillis();
+                    javacResult = task.call();
+                    elapsed = System.currentTimeMillis() - then;
+                    written = checkpoint.updatedFiles();
+                }
+                Set<JFSCoordinates> outputFiles = session.compiled(jfs, compilerOptions,
+                        plan, javacResult, written);
+                result.withOutputFiles(outputFiles);
+                result.setOutputFileStatus(JFSFileModifications.of(jfs, outputFiles));
+                result.setInitialFileStatus(JFSFileModifications.of(jfs, plan.inputs));
+                result.withInputFiles(plan.inputs);
+                result.withJavacResult(javacResult);
+                result.withFiles(paths);
+                result.elapsed(elapsed);
+                LOG.log(Level.FINE, "{0} compile of {1} sources took {2}ms. Ok? {3}",
+                        new Object[]{plan.full ? "Full" : "Incremental", paths.size(), elapsed, javacResult});
+            } catch (Exception e) {
+                LOG.log(Level.INFO, "Virtual compilation threw", e);
+                session.reset();
+                result.thrown(e);
+            }
+        }
+        return result.build();
+    }
+
     public CompileResult compile(Path sourceRoot, Path output, Path[] classpath) {
         return compile(UTF_8, sourceRoot, output, classpath);
     }
@@ -230,7 +302,7 @@ public class CompileJavaSources {
                 result.thrown(new IOException("Source root does not exist: " + sourceRoot));
                 return result.build();
             }
-            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            JavaCompiler compiler = JavacSession.compiler();
 
             L diagnosticListener = new L(result);
 
@@ -46,6 +46,7 @@ public class JFSCompileBuilder {
     private final JavacOptions options = new JavacOptions();
     private final Set<Location> locationsToCompile = new HashSet<>();
     private Writer compilerOutputWriter;
+    private JavacSession session;
 
     public JFSCompileBuilder(JFS jfs) {
         this(() -> jfs);
@@ -167,6 +168,25 @@ public class JFSCompileBuilder {
         return this;
     }
 
+    /**
+     * Keep a JavacSession between calls to <code>compile()</code>, so that
+     * after the first successful compile, only sources which have changed
+     * (and those that refer to them) are recompiled. Copies made with
+     * <code>withJFS()</code> get their own session.
+     *
+     * @return this
+     */
+    public JFSCompileBuilder incremental() {
+        if (session == null) {
+            session = new JavacSession();
+        }
+        return this;
+    }
+
+    JavacSession session() {
+        return session;
+    }
+
     public JFSCompileBuilder abortOnBadClassFile() {
         options.abortOnBadClassFile();
         return this;
@@ -201,8 +221,11 @@ public class JFSCompileBuilder {
         options.withCharset(jfs.encoding());
         CompileJavaSources compiler = new CompileJavaSources(options);
         jfs.setClasspathTo(classpath());
-        return compiler.compile(compilerOutputWriter, jfs, locationsToCompile.toArray(
-                new Location[locationsToCompile.size()]));
+        Location[] locations = locationsToCompile.toArray(new Location[locationsToCompile.size()]);
+        if (session != null) {
+            return compiler.compile(compilerOutputWriter, jfs, session, locations);
+        }
+        return compiler.compile(compilerOutputWriter, jfs, locations);
     }
 
     static abstract class ClasspathEntry {
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs.javac;
+
+import com.mastfrog.util.path.UnixPath;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager.Location;
+import javax.tools.JavaFileObject;
+import static javax.tools.JavaFileObject.Kind.SOURCE;
+import javax.tools.ToolProvider;
+import org.nemesis.jfs.JFS;
+import org.nemesis.jfs.JFSCoordinates;
+import org.nemesis.jfs.JFSFileModifications;
+import org.nemesis.jfs.JFSFileModifications.FileChanges;
+import org.nemesis.jfs.JFSFileObject;
+
+/**
+ * State kept between compiles of the same sources in the same JFS, so that
+ * after a successful compile, subsequent ones only recompile those sources
+ * which were added or whose content changed, plus any unchanged sources which
+ * mention the name of a changed type; everything else is resolved from the
+ * class files the previous compile left in CLASS_OUTPUT. That avoids
+ * reparsing and reattributing every generated source on every grammar edit.
+ * <p>
+ * A full compile is done the first time, after a failed compile, when sources
+ * are deleted, when a class file from the last compile no longer exists, or
+ * when the JFS, its classpath, the compiler options or the set of source
+ * locations differ from the last compile.
+ * </p>
+ * <p>
+ * Dependents are found by name only, non-transitively - sufficient for
+ * generated Antlr sources, but a compile-time constant changed in one file and
+ * re-exported through a second by a third will not be seen by the third.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class JavacSession {
+
+    private static final Logger LOG = Logger.getLogger(JavacSession.class.getName());
+    private static JavaCompiler compiler;
+    private String jfsId;
+    private String classpath;
+    private List<String> options;
+    private Set<Location> locations;
+    private JFSFileModifications sourceStatus;
+    private final Map<UnixPath, byte[]> sourceHashes = new HashMap<>();
+    private final Set<JFSCoordinates> outputs = new HashSet<>();
+    private int fullCompiles;
+    private int incrementalCompiles;
+
+    /**
+     * Get the system Java compiler, looking it up only once.
+     *
+     * @return The compiler
+     */
+    static synchronized JavaCompiler compiler() {
+        if (compiler == null) {
+            compiler = ToolProvider.getSystemJavaCompiler();
+        }
+        return compiler;
+    }
+
+    /**
+     * Discard all state, so the next compile is a full one.
+     */
+    public synchronized void reset() {
+        sourceStatus = null;
+        sourceHashes.clear();
+        outputs.clear();
+    }
+
+    /**
+     * The number of successful compiles which compiled all sources.
+     *
+     * @return A count
+     */
+    public synchronized int fullCompiles() {
+        return fullCompiles;
+    }
+
+    /**
+     * The number of successful compiles which compiled a subset of the
+     * sources (including ones that compiled nothing because nothing changed).
+     *
+     * @return A count
+     */
+    public synchronized int incrementalCompiles() {
+        return incrementalCompiles;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "JavacSession(" + jfsId + " full=" + fullCompiles + " incremental="
+                + incrementalCompiles + " outputs=" + outputs.size() + ")";
+    }
+
+    synchronized Plan plan(JFS jfs, List<String> options, Location... locations) throws IOException {
+        Set<Location> locs = new HashSet<>(Arrays.asList(locations));
+        // Take the status before listing, so anything modified while we
+        // compile shows up as changed next time
+        JFSFileModifications status = jfs.status(locs, JavacSession::isJavaSource);
+        Map<UnixPath, JFSFileObject> sources = new LinkedHashMap<>();
+        Set<JFSCoordinates> inputs = new HashSet<>();
+        for (Location loc : locations) {
+            for (JavaFileObject jfo : jfs.list(loc, "", EnumSet.of(SOURCE), true)) {
+                JFSFileObject fo = (JFSFileObject) jfo;
+                sources.putIfAbsent(fo.path(), fo);
+                inputs.add(fo.toCoordinates());
+            }
+        }
+        String reason = fullCompileReason(jfs, options, locs);
+        FileChanges changes = null;
+        if (reason == null) {
+            changes = sourceStatus.changes();
+            if (!changes.deleted().isEmpty()) {
+                reason = "sources deleted: " + changes.deleted();
+            }
+        }
+        if (reason != null) {
+            LOG.log(Level.FINE, "Full compile of {0}: {1}", new Object[]{jfs.id(), reason});
+            return new Plan(true, new ArrayList<>(sources.values()), inputs, locs, status);
+        }
+        Map<UnixPath, JFSFileObject> changed = new LinkedHashMap<>();
+        for (UnixPath path : changes.added()) {
+            JFSFileObject fo = sources.get(path);
+            if (fo != null) {
+                changed.put(path, fo);
+            }
+        }
+        for (UnixPath path : changes.modified()) {
+            JFSFileObject fo = sources.get(path);
+            // Antlr rewrites every file it generates, whether or not its
+            // content changed, so the timestamp alone is not enough
+            if (fo != null && !Arrays.equals(sourceHashes.get(path), fo.hash())) {
+                changed.put(path, fo);
+            }
+        }
+        List<JavaFileObject> toCompile = new ArrayList<>(changed.values());
+        if (!changed.isEmpty()) {
+            Set<String> changedTypes = new HashSet<>();
+            for (UnixPath path : changed.keySet()) {
+                changedTypes.add(path.rawName());
+            }
+            for (Map.Entry<UnixPath, JFSFileObject> e : sources.entrySet()) {
+                if (!changed.containsKey(e.getKey())
+                        && mentionsAny(e.getValue().getCharContent(true), changedTypes)) {
+                    toCompile.add(e.getValue());
+                }
+            }
+        }
+        LOG.log(Level.FINE, "Incremental compile of {0}: {1} of {2} sources",
+                new Object[]{jfs.id(), toCompile.size(), sources.size()});
+        return new Plan(false, toCompile, inputs, locs, status);
+    }
+
+    private String fullCompileReason(JFS jfs, List<String> options, Set<Location> locations) {
+        if (sourceStatus == null) {
+            return "no previous successful compile";
+        } else if (!jfs.id().equals(jfsId)) {
+            return "different JFS";
+        } else if (!jfs.currentClasspath().equals(classpath)) {
+            return "classpath changed";
+        } else if (!options.equals(this.options)) {
+            return "options changed";
+        } else if (!locations.equals(this.locations)) {
+            return "source locations changed";
+        }
+        // Unchanged sources are only skipped because their class files are
+        // still there; if the output location was cleared (ErrorUpdater does
+        // that before regenerating), they must be compiled again
+        for (JFSCoordinates out : outputs) {
+            if (out.resolve(jfs) == null) {
+                return "output missing: " + out;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record the outcome of compiling a plan.
+     *
+     * @param jfs The JFS
+     * @param options The options the plan was created with
+     * @param plan The plan
+     * @param success Whether javac succeeded
+     * @param written The files javac wrote
+     * @return The full set of output files of the sources the session
+     * tracks
+     * @throws IOException If hashing a source fails
+     */
+    synchronized Set<JFSCoordinates> compiled(JFS jfs, List<String> options, Plan plan,
+            boolean success, Set<JFSCoordinates> written) throws IOException {
+        if (!success) {
+            reset();
+            return written;
+        }
+        if (plan.full) {
+            sourceHashes.clear();
+            outputs.clear();
+            fullCompiles++;
+        } else {
+            incrementalCompiles++;
+        }
+        for (JavaFileObject jfo : plan.toCompile) {
+            JFSFileObject fo = (JFSFileObject) jfo;
+            sourceHashes.put(fo.path(), fo.hash());
+        }
+        outputs.addAll(written);
+        for (Iterator<JFSCoordinates> it = outputs.iterator(); it.hasNext();) {
+            if (it.next().resolve(jfs) == null) {
+                it.remove();
+            }
+        }
+        jfsId = jfs.id();
+        classpath = jfs.currentClasspath();
+        this.options = new ArrayList<>(options);
+        locations = plan.locations;
+        sourceStatus = plan.status;
+        return new HashSet<>(outputs);
+    }
+
+    private static boolean isJavaSource(UnixPath path) {
+        return path.toString().endsWith(".java");
+    }
+
+    static boolean mentionsAny(CharSequence text, Set<String> identifiers) {
+        for (String id : identifiers) {
+            for (int ix = indexOf(text, id, 0); ix >= 0; ix = indexOf(text, id, ix + 1)) {
+                int end = ix + id.length();
+                if ((ix == 0 || !Character.isJavaIdentifierPart(text.charAt(ix - 1)))
+                        && (end == text.length() || !Character.isJavaIdentifierPart(text.charAt(end)))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(CharSequence text, String what, int from) {
+        int max = text.length() - what.length();
+        outer:
+        for (int i = from; i <= max; i++) {
+            for (int j = 0; j < what.length(); j++) {
+                if (text.charAt(i + j) != what.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    static final class Plan {
+
+        final boolean full;
+        final List<JavaFileObject> toCompile;
+        final Set<JFSCoordinates> inputs;
+        final Set<Location> locations;
+        final JFSFileModifications status;
+
+        Plan(boolean full, List<JavaFileObject> toCompile, Set<JFSCoordinates> inputs,
+                Set<Location> locations, JFSFileModifications status) {
+            this.full = full;
+            this.toCompile = Collections.unmodifiableList(toCompile);
+            this.inputs = inputs;
+            this.locations = locations;
+            this.status = status;
+        }
+
+        boolean isEmpty() {
+            return toCompile.isEmpty();
+        }
+    }
+}
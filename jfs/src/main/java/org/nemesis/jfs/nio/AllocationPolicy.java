@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs.nio;
+
+/**
+ * How a block storage chooses where to place a new allocation.
+ *
+ * @author Tim Boudreau
+ */
+public enum AllocationPolicy {
+    /**
+     * Scan the block bitmap from the start for the first free run large
+     * enough. Cheap for small stores, but allocation cost grows with the
+     * number of blocks, and churn leaves small holes near the head that
+     * every later allocation must skip over.
+     */
+    FIRST_FIT,
+    /**
+     * Keep an index of free runs ordered by size and use the smallest one
+     * that fits, so large free runs are not split up by small files, and
+     * allocation cost is logarithmic in the number of free runs.
+     */
+    BEST_FIT
+}
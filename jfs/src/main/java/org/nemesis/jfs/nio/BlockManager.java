@@ -38,13 +38,24 @@ final class BlockManager {
     private final Listener listener;
     private ExpansionAlgorithm expansionAlgorithm;
     private final int initialBlockCount;
+    private final FreeRegionIndex free;
 
     BlockManager(int initialBlockCount, Listener phys) {
+        this(initialBlockCount, phys, AllocationPolicy.FIRST_FIT);
+    }
+
+    BlockManager(int initialBlockCount, Listener phys, AllocationPolicy policy) {
         this.blockCount = initialBlockCount;
         this.initialBlockCount = initialBlockCount;
         expansionAlgorithm = new DefaultExpansionAlgorithm();
         used = new BitSet(blockCount);
         this.listener = phys;
+        free = policy == AllocationPolicy.BEST_FIT
+                ? new FreeRegionIndex(initialBlockCount) : null;
+    }
+
+    AllocationPolicy policy() {
+        return free == null ? AllocationPolicy.FIRST_FIT : AllocationPolicy.BEST_FIT;
     }
 
     public int blockCount() {
@@ -105,7 +116,11 @@ final class BlockManager {
         int newSize = expansionAlgorithm.computeNewBlockCount(initialBlockCount, blockCount, minimumBlocks);
         int lastUsedBlock = used.previousSetBit(blockCount);
         listener.onBeforeExpand(blockCount, newSize, lastUsedBlock);
+        int oldSize = blockCount;
         int result = blockCount = newSize;
+        if (free != null && newSize > oldSize) {
+            free.freed(used, blockCount, oldSize, newSize - oldSize);
+        }
         return result;
     }
 
@@ -195,6 +210,9 @@ final class BlockManager {
         if (blocks == 0) {
             throw new IllegalArgumentException("Allocating 0 is silly");
         }
+        if (free != null) {
+            return allocateBestFit(blocks);
+        }
         if (used.isEmpty()) {
             if (blocks > blockCount) {
                 _expand(blocks);
@@ -227,6 +245,20 @@ final class BlockManager {
         return start;
     }
 
+    private int allocateBestFit(int blocks) throws IOException {
+        int start = free.bestFit(blocks);
+        if (start < 0) {
+            // Expansion appends a free run which merges with any free
+            // run at the tail, so there is always a fit afterwards
+            _expand(blockCount + blocks);
+            start = free.bestFit(blocks);
+            assert start >= 0 : "No fit for " + blocks + " after expansion: " + free;
+        }
+        markAllocated(blocks, start);
+        listener.onAllocate(start, blocks);
+        return start;
+    }
+
     public int lastUsedBlock() {
         return used.previousSetBit(blockCount);
     }
@@ -243,21 +275,33 @@ final class BlockManager {
     void set(int ix) {
         assert ix >= 0 && ix < blockCount : ix;
         used.set(ix);
+        if (free != null) {
+            free.allocated(ix, 1);
+        }
     }
 
     void unset(int ix) {
         assert ix >= 0 && ix < blockCount : ix;
         used.clear(ix);
+        if (free != null) {
+            free.freed(used, blockCount, ix, 1);
+        }
     }
 
     private void markAllocated(int blocks, int at) {
         assert at >= 0 && at + (blocks - 1) < blockCount : at + ":" + blocks;
         used.set(at, at + blocks);
+        if (free != null) {
+            free.allocated(at, blocks);
+        }
     }
 
     private void markUnallocated(int blocks, int at) {
         assert at >= 0 && at + (blocks - 1) < blockCount : at + ":" + blocks;
         used.clear(at, at + blocks);
+        if (free != null) {
+            free.freed(used, blockCount, at, blocks);
+        }
     }
 
     int findContigiuousUnallocated(int blocks) {
@@ -330,24 +374,24 @@ final class BlockManager {
             List<? extends IntRange<?>> l = old.nonOverlap(nue);
             for (IntRange<?> ir : l) {
                 if (!nue.overlaps(ir)) {
-                    used.clear(ir.start(), ir.end());
+                    markUnallocated(ir.size(), ir.start());
                     // should subtract sub regions?
                     listener.onDeallocate(ir.start(), ir.size());
                 } else {
                     List<? extends IntRange<?>> subregions = ir.subtracting(nue);
                     for (IntRange<?> sub : subregions) {
-                        used.clear(sub.start(), sub.end());
+                        markUnallocated(sub.size(), sub.start());
                         listener.onDeallocate(sub.start(), sub.size());
                     }
                 }
             }
 
-            used.set(newStart, newStart + newBlockCount);
+            markAllocated(newBlockCount, newStart);
             return newStart + newBlockCount;
         } else {
             // Simple migration of non-overlapping content
-            used.clear(firstBlock, firstBlock + blockCount);
-            used.set(newStart, newStart + newBlockCount);
+            markUnallocated(blockCount, firstBlock);
+            markAllocated(newBlockCount, newStart);
             listener.onDeallocate(firstBlock, blockCount);
             return newStart + newBlockCount;
         }
@@ -426,6 +470,9 @@ final class BlockManager {
     }
 
     public int fragmentedBlocks() throws IOException {
+        if (free != null) {
+            return free.fragmentedBlocks(blockCount);
+        }
         int[] count = new int[1];
         regions(false, false, (a, b) -> {
 //            System.out.println("test " + a + "," + b);
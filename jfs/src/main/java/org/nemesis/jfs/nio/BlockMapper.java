@@ -59,12 +59,24 @@ final class BlockMapper implements BlockStorage {
         this(new BlockToBytesConverter(blockSize), initialBlocks, kind, ops);
     }
 
+    BlockMapper(int blockSize, int initialBlocks, BlockStorageKind kind, Ops ops, AllocationPolicy policy) throws IOException {
+        this(new BlockToBytesConverter(blockSize), initialBlocks, kind, ops, policy);
+    }
+
     BlockMapper(BlockToBytesConverter mapper, int initialBlocks, BlockStorageKind kind, Ops ops) throws IOException {
-        this(mapper, new ByteBufferMapper(mapper, initialBlocks, kind.createBufferAllocator(mapper, initialBlocks, ops), ops), initialBlocks, ops);
+        this(mapper, initialBlocks, kind, ops, AllocationPolicy.FIRST_FIT);
+    }
+
+    BlockMapper(BlockToBytesConverter mapper, int initialBlocks, BlockStorageKind kind, Ops ops, AllocationPolicy policy) throws IOException {
+        this(mapper, new ByteBufferMapper(mapper, initialBlocks, kind.createBufferAllocator(mapper, initialBlocks, ops), ops), initialBlocks, ops, policy);
     }
 
     BlockMapper(BlockToBytesConverter bytes, ByteBufferMapper buffers, int initialBlocks, Ops ops) {
-        this.man = new BlockManager(initialBlocks, lis);
+        this(bytes, buffers, initialBlocks, ops, AllocationPolicy.FIRST_FIT);
+    }
+
+    BlockMapper(BlockToBytesConverter bytes, ByteBufferMapper buffers, int initialBlocks, Ops ops, AllocationPolicy policy) {
+        this.man = new BlockManager(initialBlocks, lis, policy);
         this.bytesConverter = bytes;
         this.bufferMapper = buffers;
         this.ops = ops;
@@ -76,6 +88,21 @@ final class BlockMapper implements BlockStorage {
         bufferMapper.close();
     }
 
+    @Override
+    public float fragmentation() throws IOException {
+        return man.fragmentation();
+    }
+
+    @Override
+    public void compact() throws IOException {
+        man.fullDefrag();
+    }
+
+    @Override
+    public int blockCount() {
+        return man.blockCount();
+    }
+
     BlockManager blockManager() {
         return man;
     }
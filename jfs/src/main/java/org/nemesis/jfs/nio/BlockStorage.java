@@ -57,6 +57,37 @@ public interface BlockStorage extends AutoCloseable {
 
     }
 
+    /**
+     * Get the proportion of blocks which are free but lie between allocated
+     * blocks, and so can only be reclaimed by compaction.
+     *
+     * @return A number between 0 and 1
+     * @throws IOException If something goes wrong
+     */
+    default float fragmentation() throws IOException {
+        return 0;
+    }
+
+    /**
+     * Move all allocated regions to the head of the storage, so that all free
+     * space is contiguous at the tail. Callers must ensure no buffers
+     * obtained from StoredBytes.readBuffer() are in use while this runs.
+     *
+     * @throws IOException If something goes wrong
+     */
+    default void compact() throws IOException {
+
+    }
+
+    /**
+     * Get the number of blocks the storage currently spans, used or not.
+     *
+     * @return The block count, or -1 if unknown
+     */
+    default int blockCount() {
+        return -1;
+    }
+
     public interface StoredBytes {
 
         int size();
@@ -45,7 +45,11 @@ public enum BlockStorageKind {
     }
 
     public BlockStorage create(int blockSize, int initialBlocks) throws IOException {
-        return new BlockMapper(blockSize, initialBlocks, this, new Ops(20));
+        return create(blockSize, initialBlocks, AllocationPolicy.FIRST_FIT);
+    }
+
+    public BlockStorage create(int blockSize, int initialBlocks, AllocationPolicy policy) throws IOException {
+        return new BlockMapper(blockSize, initialBlocks, this, new Ops(20), policy);
     }
 
     ByteBufferAllocator createBufferAllocator(BlockToBytesConverter bytesMapper, int initialBlockCount, Ops ops) throws IOException {
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs.nio;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Index of the maximal runs of unallocated blocks in a BlockManager, ordered
+ * both by position and by size, so that a best-fit region can be found in
+ * logarithmic time rather than by scanning the bit set, and the number of free
+ * and fragmented blocks is known without scanning at all.
+ * <p>
+ * The BlockManager calls <code>allocated()</code> or <code>freed()</code>
+ * immediately after every change to its bit set; the index does not look at
+ * the bit set other than to find the boundaries of a freed region's
+ * neighbors.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class FreeRegionIndex {
+
+    // start -> length
+    private final TreeMap<Integer, Integer> byStart = new TreeMap<>();
+    // (length << 32) | start - ordered by length, then position, so the
+    // ceiling of (blocks << 32) is the lowest-addressed smallest fit
+    private final TreeSet<Long> bySize = new TreeSet<>();
+    private int freeBlocks;
+
+    FreeRegionIndex(int blockCount) {
+        if (blockCount > 0) {
+            add(0, blockCount);
+        }
+    }
+
+    /**
+     * Find the start of the smallest free run of at least the passed number of
+     * blocks.
+     *
+     * @param blocks The number of blocks needed
+     * @return The start of a run, or -1 if there is none large enough
+     */
+    int bestFit(int blocks) {
+        Long key = bySize.ceiling(((long) blocks) << 32);
+        return key == null ? -1 : (int) (key & 0xFFFF_FFFFL);
+    }
+
+    /**
+     * Update the index to reflect that a range of blocks was just marked as
+     * used.
+     *
+     * @param start The first block
+     * @param blocks The number of blocks
+     */
+    void allocated(int start, int blocks) {
+        int end = start + blocks;
+        Integer key = byStart.floorKey(start);
+        if (key == null || key + byStart.get(key) <= start) {
+            key = byStart.higherKey(start);
+        }
+        while (key != null && key < end) {
+            int len = byStart.get(key);
+            remove(key, len);
+            if (key < start) {
+                add(key, start - key);
+            }
+            if (key + len > end) {
+                add(end, (key + len) - end);
+            }
+            key = byStart.higherKey(key);
+        }
+    }
+
+    /**
+     * Update the index to reflect that a range of blocks was just marked as
+     * unused (or added to the end of the block space by expansion), merging it
+     * with any free neighbors.
+     *
+     * @param used The bit set of used blocks, already updated
+     * @param blockCount The total number of blocks
+     * @param start The first block
+     * @param blocks The number of blocks
+     */
+    void freed(BitSet used, int blockCount, int start, int blocks) {
+        int runStart = used.previousSetBit(start - 1) + 1;
+        int runEnd = used.nextSetBit(start + blocks);
+        if (runEnd < 0 || runEnd > blockCount) {
+            runEnd = blockCount;
+        }
+        Integer key = byStart.ceilingKey(runStart);
+        while (key != null && key < runEnd) {
+            remove(key, byStart.get(key));
+            key = byStart.higherKey(key);
+        }
+        if (runEnd > runStart) {
+            add(runStart, runEnd - runStart);
+        }
+    }
+
+    int freeBlocks() {
+        return freeBlocks;
+    }
+
+    int regionCount() {
+        return byStart.size();
+    }
+
+    /**
+     * Get the number of free blocks which are not in a run at the head or
+     * tail of the block space - i.e. those which could be reclaimed by
+     * compaction.
+     *
+     * @param blockCount The total number of blocks
+     * @return A count of blocks
+     */
+    int fragmentedBlocks(int blockCount) {
+        if (byStart.isEmpty()) {
+            return 0;
+        }
+        int result = freeBlocks;
+        Map.Entry<Integer, Integer> first = byStart.firstEntry();
+        boolean headRun = first.getKey() == 0;
+        if (headRun) {
+            result -= first.getValue();
+        }
+        Map.Entry<Integer, Integer> last = byStart.lastEntry();
+        boolean sameRun = last.getKey().equals(first.getKey());
+        if (!(headRun && sameRun) && last.getKey() + last.getValue() >= blockCount) {
+            result -= last.getValue();
+        }
+        return result;
+    }
+
+    private void add(int start, int len) {
+        byStart.put(start, len);
+        bySize.add((((long) len) << 32) | start);
+        freeBlocks += len;
+    }
+
+    private void remove(int start, int len) {
+        byStart.remove(start);
+        bySize.remove((((long) len) << 32) | start);
+        freeBlocks -= len;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("free:");
+        for (Map.Entry<Integer, Integer> e : byStart.entrySet()) {
+            sb.append('[').append(e.getKey()).append(':')
+                    .append(e.getKey() + e.getValue() - 1).append(']');
+        }
+        return sb.toString();
+    }
+}
@@ -25,6 +25,8 @@ import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
@@ -261,6 +263,27 @@ public abstract class JFSUtilities {
 
     }
 
+    /**
+     * Remove a statistic registered with one of the
+     * <code>registerMetric()</code> methods, for statistics about objects
+     * which have been disposed.
+     *
+     * @param name The name of the statistic
+     */
+    public static void unregisterMetric(String name) {
+        getDefault()._unregisterMetric(name);
+    }
+
+    /**
+     * Remove a statistic registered with one of the
+     * <code>registerMetric()</code> methods.
+     *
+     * @param name The name of the statistic
+     */
+    protected void _unregisterMetric(String name) {
+
+    }
+
     public static boolean areMetricsSupported() {
         return getDefault()._areMetricsSupported();
     }
@@ -269,6 +292,41 @@ public abstract class JFSUtilities {
         return false;
     }
 
+    /**
+     * Run some low-priority housekeeping work, such as compacting storage,
+     * on a background thread.
+     *
+     * @param work The work
+     */
+    public static void runInBackground(Runnable work) {
+        getDefault()._runInBackground(work);
+    }
+
+    private static ExecutorService backgroundThread;
+
+    /**
+     * Run some low-priority housekeeping work on a background thread; the
+     * default implementation uses a single daemon thread. Override to use a
+     * platform-provided thread pool.
+     *
+     * @param work The work
+     */
+    protected void _runInBackground(Runnable work) {
+        ExecutorService svc;
+        synchronized (JFSUtilities.class) {
+            if (backgroundThread == null) {
+                backgroundThread = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "jfs-background");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                });
+            }
+            svc = backgroundThread;
+        }
+        svc.submit(work);
+    }
+
     /**
      * Get the encoding for a file on disk, which may be project-specific or (in
      * cases like XML), file-specific.
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import com.mastfrog.util.path.UnixPath;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.nemesis.jfs.javac.CompileResult;
+import org.nemesis.jfs.javac.JFSCompileBuilder;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ClassReuseTest {
+
+    private static final UnixPath LEXER = UnixPath.get("com/foo/FooLexer.java");
+    private static final UnixPath PARSER = UnixPath.get("com/foo/FooParser.java");
+    private static final UnixPath LISTENER = UnixPath.get("com/foo/FooListener.java");
+    private JFS jfs;
+    private JFSCompileBuilder compiler;
+
+    @Test
+    public void testUnchangedClassesAreAdopted() throws Throwable {
+        ClassLoader parent = ClassReuseTest.class.getClassLoader();
+        Class<?> lexer1;
+        Class<?> parser1;
+        try (JFSClassLoader first = jfs.getClassLoader(CLASS_OUTPUT, parent)) {
+            lexer1 = first.loadClass("com.foo.FooLexer");
+            parser1 = first.loadClass("com.foo.FooParser");
+            assertEquals("hello", message(first));
+        }
+        assertEquals(0, jfs.classReuseStats(CLASS_OUTPUT).hits());
+        assertEquals(4, jfs.classReuseStats(CLASS_OUTPUT).misses());
+
+        Thread.sleep(5);
+        jfs.create(PARSER, SOURCE_PATH, parser("goodbye"));
+        compile();
+        try (JFSClassLoader second = jfs.getClassLoader(CLASS_OUTPUT, parent)) {
+            Class<?> lexer2 = second.loadClass("com.foo.FooLexer");
+            assertSame(lexer1, lexer2);
+            assertNotSame(parser1, second.loadClass("com.foo.FooParser"));
+            assertEquals("goodbye", message(second));
+            // The lexer's nested class is resolved lazily through the loader
+            // that defined it, which is closed by now
+            Object tok = lexer2.getMethod("token").invoke(null);
+            assertSame(lexer1.getClassLoader(), tok.getClass().getClassLoader());
+        }
+        ClassReuseStats stats = jfs.classReuseStats(CLASS_OUTPUT);
+        assertEquals(stats.toString(), 2, stats.hits());
+        assertEquals(stats.toString(), 6, stats.misses());
+        assertTrue(stats.hitRate() > 0.2);
+    }
+
+    @Test
+    public void testOldGenerationsAreReleased() throws Throwable {
+        ClassLoader parent = ClassReuseTest.class.getClassLoader();
+        JFSClassLoader first = jfs.getClassLoader(CLASS_OUTPUT, parent);
+        Class<?> lexer1 = first.loadClass("com.foo.FooLexer");
+        first.close();
+        assertFalse(first.isReleased());
+        Class<?> lexer = lexer1;
+        for (int i = 0; i <= ClassBytesCache.MAX_GENERATIONS; i++) {
+            try (JFSClassLoader ldr = jfs.getClassLoader(CLASS_OUTPUT, parent)) {
+                lexer = ldr.loadClass("com.foo.FooLexer");
+                if (i < ClassBytesCache.MAX_GENERATIONS) {
+                    assertSame("Redefined in generation " + (i + 2), lexer1, lexer);
+                    assertFalse("Released while adopted in generation " + (i + 2),
+                            first.isReleased());
+                }
+            }
+        }
+        assertNotSame("Still adopted after " + ClassBytesCache.MAX_GENERATIONS
+                + " generations", lexer1, lexer);
+        assertTrue("Not released once nothing adopts its classes", first.isReleased());
+    }
+
+    @Test
+    public void testReferencesAreRead() throws Exception {
+        JFSFileObject fo = jfs.get(CLASS_OUTPUT, UnixPath.get("com/foo/FooListener.class"));
+        assertTrue(ClassBytesCache.references(fo.asByteBuffer()).contains("com.foo.FooParser"));
+        assertTrue(ClassBytesCache.references(fo.asByteBuffer()).contains("java.lang.String"));
+    }
+
+    private static String message(ClassLoader ldr) throws Exception {
+        return (String) ldr.loadClass("com.foo.FooListener").getMethod("message").invoke(null);
+    }
+
+    private void compile() throws IOException {
+        CompileResult res = compiler.compile();
+        assertTrue(res.toString(), res.isUsable());
+    }
+
+    private static String parser(String msg) {
+        return "package com.foo;\npublic class FooParser {\n"
+                + "  public static String message() { return \"" + msg + "\"; }\n}\n";
+    }
+
+    @Before
+    public void setup() throws IOException {
+        jfs = JFS.builder().withCharset(UTF_8).reusingClasses().build();
+        jfs.create(LEXER, SOURCE_PATH, "package com.foo;\npublic class FooLexer {\n"
+                + "  public static Object token() { return new Tok(); }\n"
+                + "  static class Tok {}\n}\n");
+        jfs.create(PARSER, SOURCE_PATH, parser("hello"));
+        jfs.create(LISTENER, SOURCE_PATH, "package com.foo;\npublic class FooListener {\n"
+                + "  public static String message() { return FooParser.message(); }\n}\n");
+        compiler = new JFSCompileBuilder(jfs)
+                .addSourceLocation(SOURCE_PATH)
+                .runAnnotationProcessors(false)
+                .sourceAndTargetLevel(8)
+                .incremental();
+        compile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (jfs != null) {
+            jfs.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import com.mastfrog.util.path.UnixPath;
+import java.io.OutputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayList;
+import java.util.List;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_OUTPUT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.nemesis.jfs.BlobPool.Blob;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class DedupBytesStorageTest {
+
+    private static final UnixPath LEXER = UnixPath.get("com/foo/FooLexer.java");
+
+    @Test
+    public void testIdenticalContentIsInterned() {
+        BlobPool pool = new BlobPool();
+        Blob a = pool.intern("hello world".getBytes(UTF_8));
+        Blob b = pool.intern("hello world".getBytes(UTF_8));
+        Blob c = pool.intern("goodbye world".getBytes(UTF_8));
+        assertSame(a, b);
+        assertNotSame(a, c);
+        assertEquals(2, pool.size());
+        assertEquals(1, pool.hits());
+        assertEquals(2, pool.misses());
+        assertEquals("hello world".length() + "goodbye world".length(), pool.pooledBytes());
+        assertArrayEquals(BlobPool.sha1("hello world".getBytes(UTF_8)), a.hash);
+    }
+
+    @Test
+    public void testUnreferencedBlobsAreReleased() throws Exception {
+        BlobPool pool = new BlobPool();
+        Blob kept = pool.intern(new byte[]{1, 2, 3});
+        for (int i = 0; i < 100; i++) {
+            pool.intern(("garbage-" + i).getBytes(UTF_8));
+        }
+        for (int i = 0; i < 50 && pool.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.size());
+        assertEquals(3, pool.pooledBytes());
+        assertSame(kept, pool.intern(new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    public void testFilesAreSharedAcrossJFSInstancesAndCopiedOnWrite() throws Exception {
+        String lexer = "package com.foo;\npublic class FooLexer {}\n";
+        List<JFS> all = new ArrayList<>();
+        try {
+            for (int i = 0; i < 10; i++) {
+                JFS jfs = JFS.builder().withCharset(UTF_8).deduplicating().build();
+                all.add(jfs);
+                jfs.create(LEXER, SOURCE_OUTPUT, lexer);
+                jfs.create(UnixPath.get("com/foo/FooLexer.class"), CLASS_OUTPUT, new byte[]{(byte) 0xCA, (byte) 0xFE, 7});
+            }
+            byte[] first = all.get(0).get(SOURCE_OUTPUT, LEXER).asBytes();
+            for (JFS jfs : all) {
+                assertSame("Content not shared", first, jfs.get(SOURCE_OUTPUT, LEXER).asBytes());
+            }
+            JFSFileObject modified = all.get(3).get(SOURCE_OUTPUT, LEXER);
+            try (OutputStream out = modified.openOutputStream()) {
+                out.write("class Modified {}".getBytes(UTF_8));
+            }
+            assertEquals("class Modified {}", modified.getCharContent(false).toString());
+            for (int i = 0; i < all.size(); i++) {
+                if (i != 3) {
+                    assertEquals(lexer, all.get(i).get(SOURCE_OUTPUT, LEXER).getCharContent(false).toString());
+                }
+            }
+            JFSFileObject other = all.get(4).get(SOURCE_OUTPUT, LEXER);
+            assertArrayEquals(BlobPool.sha1(lexer.getBytes(UTF_8)), other.hash());
+            // Modification tracking must still see a write as a change
+            JFSFileModifications mods = all.get(4).status(SOURCE_OUTPUT);
+            Thread.sleep(5);
+            try (OutputStream out = other.openOutputStream()) {
+                out.write("class Other {}".getBytes(UTF_8));
+            }
+            assertTrue(mods.changes().modified().contains(LEXER));
+        } finally {
+            for (JFS jfs : all) {
+                jfs.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import java.nio.charset.Charset;
+import static java.nio.charset.StandardCharsets.UTF_16;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Random;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.PlainDocument;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class DocumentHashTreeTest {
+
+    private static final int MAX_CHUNKS_PER_EDIT = 8;
+    private static final String LINE = "grammar_rule : FOO bar+ (Baz | quux)* -> skip; // \u00e9t\u00e9 \uD83D\uDE00\n";
+
+    @Test
+    public void testRandomEditsMatchFullRebuild() throws Exception {
+        testRandomEdits(UTF_8);
+        testRandomEdits(UTF_16);
+    }
+
+    private void testRandomEdits(Charset encoding) throws Exception {
+        Random rnd = new Random(23);
+        Document doc = document(2000);
+        DocumentHashTree tree = attach(doc, encoding);
+        assertTrue(tree.chunkCount() > 1);
+        for (int i = 0; i < 500; i++) {
+            int len = doc.getLength();
+            if (len > 0 && rnd.nextBoolean()) {
+                int start = rnd.nextInt(len);
+                int count = Math.min(len - start, 1 + rnd.nextInt(i % 10 == 0 ? 20000 : 10));
+                doc.remove(start, count);
+            } else {
+                int at = len == 0 ? 0 : rnd.nextInt(len);
+                doc.insertString(at, i % 10 == 0 ? text(rnd.nextInt(300)) : "x" + i, null);
+            }
+            String txt = doc.getText(0, doc.getLength());
+            assertArrayEquals("Bytes differ after edit " + i, txt.getBytes(encoding), tree.bytes());
+            assertEquals(txt.getBytes(encoding).length, tree.byteLength());
+            DocumentHashTree fresh = new DocumentHashTree(encoding);
+            fresh.rebuild(doc);
+            assertArrayEquals("Incremental root differs from rebuilt root after edit "
+                    + i + " in " + tree, fresh.root(), tree.root());
+        }
+    }
+
+    @Test
+    public void testUndoingAnEditRestoresTheRootHash() throws Exception {
+        Document doc = document(1000);
+        DocumentHashTree tree = attach(doc, UTF_8);
+        byte[] orig = tree.root().clone();
+        doc.insertString(12345, "hello", null);
+        assertFalse(java.util.Arrays.equals(orig, tree.root()));
+        doc.remove(12345, 5);
+        assertArrayEquals(orig, tree.root());
+    }
+
+    @Test
+    public void testEmptyDocumentHashesAsEmptyBytes() throws Exception {
+        Document doc = new PlainDocument();
+        DocumentHashTree tree = attach(doc, UTF_16);
+        assertArrayEquals(DocumentBytesStorageWrapper.EMPTY_BYTE_ARRAY_SHA_1, tree.root());
+        assertEquals(0, tree.bytes().length);
+        doc.insertString(0, "abc", null);
+        assertArrayEquals("abc".getBytes(UTF_16), tree.bytes());
+        doc.remove(0, 3);
+        assertArrayEquals(DocumentBytesStorageWrapper.EMPTY_BYTE_ARRAY_SHA_1, tree.root());
+    }
+
+    @Test
+    public void testChunksRehashedPerKeystrokeAreIndependentOfDocumentSize() throws Exception {
+        // Timings live in jfs-benchmarks' DocumentHashTreeBenchmark; here
+        // just check that an edit touches a bounded number of chunks however
+        // large the document is, rather than rehashing all of them
+        for (int lines : new int[]{500, 5000, 50000}) {
+            Document doc = document(lines);
+            DocumentHashTree tree = attach(doc, UTF_8);
+            assertEquals(tree.chunkCount(), tree.chunksHashed());
+            Random rnd = new Random(lines);
+            for (int i = 0; i < 500; i++) {
+                int at = rnd.nextInt(doc.getLength());
+                long before = tree.chunksHashed();
+                doc.insertString(at, "q", null);
+                long inserted = tree.chunksHashed() - before;
+                before = tree.chunksHashed();
+                doc.remove(at, 1);
+                long removed = tree.chunksHashed() - before;
+                assertTrue("Inserting at " + at + " in " + tree + " rehashed "
+                        + inserted + " chunks", inserted >= 1 && inserted <= MAX_CHUNKS_PER_EDIT);
+                assertTrue("Removing at " + at + " in " + tree + " rehashed "
+                        + removed + " chunks", removed >= 1 && removed <= MAX_CHUNKS_PER_EDIT);
+            }
+        }
+    }
+
+    private static String text(int lines) {
+        StringBuilder sb = new StringBuilder(LINE.length() * lines);
+        for (int i = 0; i < lines; i++) {
+            sb.append(i).append(LINE);
+        }
+        return sb.toString();
+    }
+
+    private static Document document(int lines) throws BadLocationException {
+        Document doc = new PlainDocument();
+        doc.insertString(0, text(lines), null);
+        return doc;
+    }
+
+    private static DocumentHashTree attach(Document doc, Charset encoding) throws BadLocationException {
+        DocumentHashTree tree = new DocumentHashTree(encoding);
+        tree.rebuild(doc);
+        doc.addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                try {
+                    tree.inserted(doc, e.getOffset(), e.getLength());
+                } catch (BadLocationException ex) {
+                    throw new AssertionError(ex);
+                }
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                try {
+                    tree.removed(doc, e.getOffset(), e.getLength());
+                } catch (BadLocationException ex) {
+                    throw new AssertionError(ex);
+                }
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                // do nothing
+            }
+        });
+        return tree;
+    }
+}
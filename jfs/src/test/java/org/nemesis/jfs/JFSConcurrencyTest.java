@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import com.mastfrog.util.path.UnixPath;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.tools.JavaFileManager.Location;
+import javax.tools.JavaFileObject;
+import static javax.tools.JavaFileObject.Kind.SOURCE;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Stress test for concurrent-mode JFS - many threads simultaneously creating,
+ * looking up and listing files across several locations, as happens when
+ * several grammars in a project regenerate at once.
+ *
+ * @author Tim Boudreau
+ */
+public class JFSConcurrencyTest {
+
+    private static final Location[] LOCATIONS = {SOURCE_PATH, SOURCE_OUTPUT, CLASS_OUTPUT};
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final int FILES_PER_THREAD = 400;
+
+    @Test
+    public void testConcurrentModeIsConsistentUnderContention() throws Throwable {
+        JFS jfs = JFS.builder().withCharset(UTF_8).concurrent().build();
+        try {
+            assertTrue(jfs.isConcurrent());
+            // Do not pre-create the locations - storage creation races are
+            // part of what is being tested
+            run(jfs);
+            for (int t = 0; t < THREADS; t++) {
+                for (int i = 0; i < FILES_PER_THREAD; i++) {
+                    Location loc = LOCATIONS[i % LOCATIONS.length];
+                    JFSFileObject fo = jfs.get(loc, path(t, i));
+                    assertNotNull("Lost " + path(t, i) + " in " + loc, fo);
+                    assertEquals(content(t, i), fo.getCharContent(false).toString());
+                }
+                for (Location loc : LOCATIONS) {
+                    int expected = 0;
+                    for (int i = 0; i < FILES_PER_THREAD; i++) {
+                        if (LOCATIONS[i % LOCATIONS.length] == loc) {
+                            expected++;
+                        }
+                    }
+                    int count = 0;
+                    for (JavaFileObject jfo : jfs.list(loc, pkg(t), EnumSet.of(SOURCE), false)) {
+                        count++;
+                    }
+                    assertEquals("Wrong package listing for " + pkg(t) + " in " + loc,
+                            expected, count);
+                }
+            }
+        } finally {
+            jfs.close();
+        }
+    }
+
+    @Test
+    public void testPackageListingDoesNotIncludeSubpackages() throws Throwable {
+        JFS jfs = JFS.builder().withCharset(UTF_8).concurrent().build();
+        try {
+            jfs.create(UnixPath.get("com/foo/A.java"), SOURCE_PATH, "package com.foo; class A {}");
+            jfs.create(UnixPath.get("com/foo/bar/B.java"), SOURCE_PATH, "package com.foo.bar; class B {}");
+            jfs.create(UnixPath.get("C.java"), SOURCE_PATH, "class C {}");
+            assertEquals(1, count(jfs.list(SOURCE_PATH, "com.foo", EnumSet.of(SOURCE), false)));
+            assertEquals(2, count(jfs.list(SOURCE_PATH, "com.foo", EnumSet.of(SOURCE), true)));
+            assertEquals(1, count(jfs.list(SOURCE_PATH, "", EnumSet.of(SOURCE), false)));
+            assertEquals(3, count(jfs.list(SOURCE_PATH, "", EnumSet.of(SOURCE), true)));
+            assertTrue(jfs.get(SOURCE_PATH, UnixPath.get("com/foo/A.java")).delete());
+            assertEquals(0, count(jfs.list(SOURCE_PATH, "com.foo", EnumSet.of(SOURCE), false)));
+        } finally {
+            jfs.close();
+        }
+    }
+
+    private static int count(Iterable<?> it) {
+        int result = 0;
+        for (Object o : it) {
+            result++;
+        }
+        return result;
+    }
+
+    private static void run(JFS jfs) throws Throwable {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            Thread th = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < FILES_PER_THREAD; i++) {
+                        Location loc = LOCATIONS[i % LOCATIONS.length];
+                        jfs.create(path(thread, i), loc, content(thread, i));
+                        // Look up files written by ourselves and others, as
+                        // javac resolving symbols would
+                        assertNotNull(jfs.get(loc, path(thread, i)));
+                        jfs.get(loc, path((thread + 1) % THREADS, i));
+                        if (i % 50 == 0) {
+                            for (JavaFileObject jfo : jfs.list(loc, pkg(thread), EnumSet.of(SOURCE), false)) {
+                                assertFalse(jfo.getName().isEmpty());
+                            }
+                        }
+                    }
+                } catch (Throwable ex) {
+                    failure.compareAndSet(null, ex);
+                } finally {
+                    done.countDown();
+                }
+            }, "jfs-stress-" + t);
+            threads.add(th);
+            th.start();
+        }
+        start.countDown();
+        done.await();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static String pkg(int thread) {
+        return "com.grammar" + thread;
+    }
+
+    private static UnixPath path(int thread, int file) {
+        return UnixPath.get("com/grammar" + thread + "/Gen" + file + ".java");
+    }
+
+    private static String content(int thread, int file) {
+        return "package com.grammar" + thread + ";\npublic class Gen" + file + " {}\n";
+    }
+}
@@ -19,6 +19,7 @@ import com.mastfrog.function.throwing.io.IOConsumer;
 import com.mastfrog.util.file.FileUtils;
 import com.mastfrog.util.path.UnixPath;
 import java.io.IOException;
+import java.io.Writer;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -344,6 +345,82 @@ public class JFSFileModificationsTest {
         assertFalse(ch.isUpToDate());
     }
 
+    @Test
+    public void testModificationCountTracksWritesAndDeletes() throws Exception {
+        JFSFileModifications mods = jfs.status(StandardLocation.SOURCE_PATH);
+        long count = jfs.modificationCount();
+        assertTrue(mods.changes().isUpToDate());
+        assertEquals("Checking status should not modify anything", count, jfs.modificationCount());
+
+        // Writes elsewhere defeat the fast path once, but not the result
+        jfs.create(UnixPath.get("x/Unrelated.txt"), StandardLocation.CLASS_OUTPUT, "unrelated");
+        assertTrue(count < jfs.modificationCount());
+        assertTrue(mods.changes().isUpToDate());
+        assertTrue(mods.changes().isUpToDate());
+
+        JFSFileObject fo = jfs.get(StandardLocation.SOURCE_PATH, PATH_2);
+        long before = jfs.modificationCount();
+        Thread.sleep(5);
+        try (Writer w = fo.openWriter()) {
+            w.write("Written through a stream");
+        }
+        assertTrue(before < jfs.modificationCount());
+        FileChanges ch = mods.changes();
+        assertTrue(ch.toString(), ch.modified().contains(PATH_2));
+
+        mods.refresh();
+        assertTrue(mods.changes().isUpToDate());
+        before = jfs.modificationCount();
+        assertTrue(fo.delete());
+        assertTrue(before < jfs.modificationCount());
+        assertTrue(mods.changes().deleted().contains(PATH_2));
+    }
+
+    @Test
+    public void testClearingALocationIsSeenAsDeletion() throws Exception {
+        JFSFileModifications mods = jfs.status(StandardLocation.SOURCE_PATH);
+        assertTrue(mods.changes().isUpToDate());
+        long before = jfs.modificationCount();
+        jfs.clear(StandardLocation.SOURCE_PATH);
+        assertTrue("Clearing a location did not change the modification count",
+                before < jfs.modificationCount());
+        FileChanges ch = mods.changes();
+        assertFalse(ch.toString(), ch.isUpToDate());
+        for (UnixPath p : VIRTUAL_PATHS) {
+            assertTrue(p + " not deleted in " + ch, ch.deleted().contains(p));
+        }
+    }
+
+    @Test
+    public void testClosingALocationWithALiveClassLoaderIsSeenAsDeletion() throws Exception {
+        jfs.create(UnixPath.get("x/Unrelated.txt"), StandardLocation.CLASS_OUTPUT, "unrelated");
+        JFSFileModifications mods = jfs.status(StandardLocation.CLASS_OUTPUT);
+        assertTrue(mods.changes().isUpToDate());
+        try (JFSClassLoader ldr = jfs.getClassLoader(StandardLocation.CLASS_OUTPUT,
+                getClass().getClassLoader())) {
+            assertNotNull(ldr);
+            long before = jfs.modificationCount();
+            // The storage close is deferred until the classloader is closed
+            jfs.closeLocations(StandardLocation.CLASS_OUTPUT);
+            assertTrue("Closing a location did not change the modification count",
+                    before < jfs.modificationCount());
+            FileChanges ch = mods.changes();
+            assertTrue(ch.toString(), ch.deleted().contains(UnixPath.get("x/Unrelated.txt")));
+        }
+    }
+
+    @Test
+    public void testMasqueradedChangesSeenWithoutModificationCountChange() throws Exception {
+        JFSFileModifications mods = jfs.status(StandardLocation.SOURCE_OUTPUT);
+        assertTrue(mods.changes().isUpToDate());
+        long count = jfs.modificationCount();
+        Thread.sleep(5);
+        doc.insertString(0, "Changed ", null);
+        assertEquals(count, jfs.modificationCount());
+        FileChanges ch = mods.changes();
+        assertTrue(ch.toString(), ch.modified().contains(DOC_PATH));
+    }
+
     @Before
     public void before() throws IOException, BadLocationException {
         startTs = System.currentTimeMillis();
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import com.mastfrog.util.path.UnixPath;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Document;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class JFSMetricsTest {
+
+    @Test
+    public void testHeapMetrics() throws Exception {
+        JFS jfs = JFS.builder().withCharset(UTF_8).build();
+        try {
+            jfs.create(UnixPath.get("com/foo/A.java"), SOURCE_PATH, "0123456789");
+            jfs.create(UnixPath.get("com/foo/B.java"), SOURCE_PATH, "01234");
+            jfs.create(UnixPath.get("com/foo/A.class"), CLASS_OUTPUT, "abc");
+            Document doc = new DefaultStyledDocument();
+            doc.insertString(0, "Some document text", null);
+            jfs.masquerade(doc, SOURCE_PATH, UnixPath.get("com/foo/Doc.g4"));
+
+            JFSMetrics m = jfs.metrics();
+            assertEquals(m.toString(), jfs.id(), m.id());
+            assertEquals(m.toString(), 15, m.bytes(SOURCE_PATH));
+            assertEquals(m.toString(), 3, m.bytes(CLASS_OUTPUT));
+            assertEquals(m.toString(), 3, m.fileCount(SOURCE_PATH));
+            assertEquals(m.toString(), 4, m.fileCount());
+            assertEquals(m.toString(), 1, m.masqueradedFiles());
+            assertEquals(m.toString(), 18, m.heapBytes());
+            assertEquals(m.toString(), 18, m.totalBytes());
+            assertEquals(m.toString(), 0, m.directBytes() + m.mappedBytes());
+            assertEquals(m.toString(), -1, m.blockCount());
+            assertFalse(m.isClosed());
+
+            boolean found = false;
+            for (JFSMetrics other : JFSMetrics.all()) {
+                found |= other.id().equals(jfs.id());
+            }
+            assertTrue("Live JFS missing from " + JFSMetrics.all(), found);
+        } finally {
+            jfs.close();
+        }
+        for (JFSMetrics other : JFSMetrics.all()) {
+            assertFalse("Closed JFS still listed: " + other, other.id().equals(jfs.id()));
+        }
+    }
+
+    @Test
+    public void testBlockStorageMetrics() throws Exception {
+        JFS jfs = JFS.builder().withCharset(UTF_8).useOffHeapStorage().build();
+        try {
+            for (int i = 0; i < 20; i++) {
+                jfs.create(UnixPath.get("com/foo/F" + i + ".java"), SOURCE_PATH,
+                        "class F" + i + " { /* some padding to take a block */ }");
+            }
+            JFSMetrics m = jfs.metrics();
+            assertTrue(m.toString(), m.blockCount() > 0);
+            assertEquals(m.toString(), 20, m.fileCount());
+            assertEquals(m.toString(), 0, m.heapBytes());
+            assertEquals(m.toString(), m.totalBytes(), m.directBytes() + m.mappedBytes());
+            assertTrue(m.toString(), m.totalBytes() > 0);
+            assertTrue(m.toString(), m.fragmentation() >= 0 && m.fragmentation() <= 1);
+            assertTrue(m.toString(), m.idleMillis() >= 0);
+        } finally {
+            jfs.close();
+        }
+    }
+}
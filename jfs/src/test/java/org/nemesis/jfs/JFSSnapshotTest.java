@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs;
+
+import com.mastfrog.util.path.UnixPath;
+import java.io.IOException;
+import java.io.OutputStream;
+import static java.nio.charset.StandardCharsets.UTF_16;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.tools.JavaFileManager.Location;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class JFSSnapshotTest {
+
+    private static final UnixPath GRAMMAR = UnixPath.get("com/foo/Foo.g4");
+    private static final UnixPath PARSER = UnixPath.get("com/foo/FooParser.java");
+    private static final UnixPath PARSER_CLASS = UnixPath.get("com/foo/FooParser.class");
+    private static final byte[] CLASS_BYTES = new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0, 0, 52};
+    private Path dir;
+    private Path snapshotFile;
+
+    @Test
+    public void testSnapshotRoundTrip() throws Throwable {
+        JFS original = populated("grammar Foo; foo : 'x';");
+        long parserModified = original.get(SOURCE_OUTPUT, PARSER).getLastModified();
+        JFSSnapshot saved = JFSSnapshot.save(original, snapshotFile,
+                original.status(SOURCE_PATH), SOURCE_OUTPUT, CLASS_OUTPUT);
+        assertEquals(2, saved.fileCount());
+        original.close();
+
+        JFSSnapshot snapshot = JFSSnapshot.open(snapshotFile);
+        assertEquals(2, snapshot.fileCount());
+        assertEquals(UTF_8, snapshot.encoding());
+
+        JFS restarted = inputsOnly("grammar Foo; foo : 'x';");
+        try {
+            assertTrue(snapshot.isUpToDate(restarted.status(SOURCE_PATH)));
+            assertEquals(2, snapshot.restoreInto(restarted));
+            JFSFileObject parser = restarted.get(SOURCE_OUTPUT, PARSER);
+            assertNotNull(parser);
+            assertTrue(parser instanceof JFSJavaFileObject);
+            assertEquals(parserSource(), parser.getCharContent(false).toString());
+            assertEquals(parserModified, parser.getLastModified());
+            assertArrayEquals(CLASS_BYTES, restarted.get(CLASS_OUTPUT, PARSER_CLASS).asBytes());
+
+            // Restored files must be writable, and writes must not touch the snapshot
+            try (OutputStream out = parser.openOutputStream()) {
+                out.write("class FooParser {}".getBytes(UTF_8));
+            }
+            assertEquals("class FooParser {}", parser.getCharContent(false).toString());
+        } finally {
+            restarted.close();
+        }
+        JFS again = inputsOnly("grammar Foo; foo : 'x';");
+        try {
+            JFSSnapshot.open(snapshotFile).restoreInto(again);
+            assertEquals(parserSource(), again.get(SOURCE_OUTPUT, PARSER).getCharContent(false).toString());
+        } finally {
+            again.close();
+        }
+    }
+
+    @Test
+    public void testSnapshotIsStaleWhenInputsChange() throws Throwable {
+        JFS original = populated("grammar Foo; foo : 'x';");
+        JFSSnapshot.save(original, snapshotFile, original.status(SOURCE_PATH), SOURCE_OUTPUT, CLASS_OUTPUT);
+        original.close();
+        JFS restarted = inputsOnly("grammar Foo; foo : 'y';");
+        try {
+            assertFalse(JFSSnapshot.open(snapshotFile).isUpToDate(restarted.status(SOURCE_PATH)));
+            assertFalse(JFSSnapshot.open(snapshotFile).isUpToDate(JFSFileModifications.empty()));
+        } finally {
+            restarted.close();
+        }
+    }
+
+    @Test
+    public void testSavingReplacesAndOnlyIncludesRequestedLocations() throws Throwable {
+        JFS original = populated("grammar Foo; foo : 'x';");
+        try {
+            JFSSnapshot.save(original, snapshotFile, original.status(SOURCE_PATH), SOURCE_OUTPUT, CLASS_OUTPUT);
+            JFSSnapshot second = JFSSnapshot.save(original, snapshotFile,
+                    original.status(SOURCE_PATH), CLASS_OUTPUT);
+            assertEquals(1, second.fileCount());
+            JFS restarted = inputsOnly("grammar Foo; foo : 'x';");
+            try {
+                second.restoreInto(restarted);
+                assertNull(restarted.get(SOURCE_OUTPUT, PARSER));
+                assertNotNull(restarted.get(CLASS_OUTPUT, PARSER_CLASS));
+            } finally {
+                restarted.close();
+            }
+        } finally {
+            original.close();
+        }
+    }
+
+    @Test
+    public void testEncodingMismatchAndCorruptFilesAreRejected() throws Throwable {
+        JFS original = populated("grammar Foo; foo : 'x';");
+        JFSSnapshot.save(original, snapshotFile, original.status(SOURCE_PATH), SOURCE_OUTPUT);
+        original.close();
+        JFS utf16 = JFS.builder().withCharset(UTF_16).build();
+        try {
+            JFSSnapshot.open(snapshotFile).restoreInto(utf16);
+            fail("Restoring into a JFS with a different encoding should fail");
+        } catch (IOException ex) {
+            // ok
+        } finally {
+            utf16.close();
+        }
+        byte[] bytes = Files.readAllBytes(snapshotFile);
+        Files.write(snapshotFile, java.util.Arrays.copyOf(bytes, bytes.length - 3));
+        try {
+            JFSSnapshot.open(snapshotFile);
+            fail("Truncated snapshot should not open");
+        } catch (IOException ex) {
+            // ok
+        }
+        Files.write(snapshotFile, "not a snapshot".getBytes(UTF_8));
+        try {
+            JFSSnapshot.open(snapshotFile);
+            fail("Garbage should not open");
+        } catch (IOException ex) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testNonStandardLocationsAreRestoredIntoTheSameInstance() throws Throwable {
+        Location custom = new CustomLocation("GENERATED_GRAMMARS");
+        JFS original = inputsOnly("grammar Foo; foo : 'x';");
+        original.create(PARSER, custom, parserSource());
+        JFSSnapshot.save(original, snapshotFile, original.status(SOURCE_PATH), custom);
+        original.close();
+
+        JFS unknown = inputsOnly("grammar Foo; foo : 'x';");
+        try {
+            JFSSnapshot.open(snapshotFile).restoreInto(unknown);
+            fail("Restoring a location the JFS does not know should fail");
+        } catch (IOException ex) {
+            // ok
+        } finally {
+            unknown.close();
+        }
+
+        JFS restarted = inputsOnly("grammar Foo; foo : 'x';");
+        try {
+            assertEquals(1, JFSSnapshot.open(snapshotFile).restoreInto(restarted, custom));
+            JFSFileObject parser = restarted.get(custom, PARSER);
+            assertNotNull(parser);
+            assertEquals(parserSource(), parser.getCharContent(false).toString());
+        } finally {
+            restarted.close();
+        }
+    }
+
+    static final class CustomLocation implements Location {
+
+        private final String name;
+
+        CustomLocation(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isOutputLocation() {
+            return true;
+        }
+    }
+
+    private static String parserSource() {
+        return "package com.foo;\npublic class FooParser { /* \u00e9 */ }\n";
+    }
+
+    private static JFS inputsOnly(String grammar) throws IOException {
+        JFS jfs = JFS.builder().withCharset(UTF_8).build();
+        jfs.create(GRAMMAR, SOURCE_PATH, grammar);
+        return jfs;
+    }
+
+    private static JFS populated(String grammar) throws IOException {
+        JFS jfs = inputsOnly(grammar);
+        jfs.create(PARSER, SOURCE_OUTPUT, parserSource());
+        jfs.create(PARSER_CLASS, CLASS_OUTPUT, CLASS_BYTES);
+        return jfs;
+    }
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("JFSSnapshotTest");
+        snapshotFile = dir.resolve("snapshots").resolve("foo.jfss");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (dir != null) {
+            Files.deleteIfExists(snapshotFile);
+            Files.deleteIfExists(snapshotFile.getParent());
+            Files.deleteIfExists(dir);
+        }
+    }
+}
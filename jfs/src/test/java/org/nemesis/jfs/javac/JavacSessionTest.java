@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs.javac;
+
+import com.mastfrog.util.path.UnixPath;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Arrays;
+import java.util.HashSet;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.nemesis.jfs.JFS;
+import org.nemesis.jfs.JFSClassLoader;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class JavacSessionTest {
+
+    private static final UnixPath LEXER = UnixPath.get("com/foo/FooLexer.java");
+    private static final UnixPath PARSER = UnixPath.get("com/foo/FooParser.java");
+    private static final UnixPath LISTENER = UnixPath.get("com/foo/FooListener.java");
+    private static final UnixPath LEXER_CLASS = UnixPath.get("com/foo/FooLexer.class");
+    private JFS jfs;
+    private JFSCompileBuilder bldr;
+
+    @Test
+    public void testOnlyChangedSourcesAndDependentsAreRecompiled() throws Throwable {
+        CompileResult first = compile();
+        assertTrue(first.toString(), first.isUsable());
+        assertEquals(3, first.sources().size());
+        assertEquals(3, first.outputFiles().size());
+        assertEquals(1, bldr.session().fullCompiles());
+        long lexerCompiled = jfs.get(CLASS_OUTPUT, LEXER_CLASS).getLastModified();
+
+        CompileResult unchanged = compile();
+        assertTrue(unchanged.toString(), unchanged.isUsable());
+        assertTrue(unchanged.sources().isEmpty());
+        assertEquals(3, unchanged.inputFiles().size());
+        assertEquals(3, unchanged.outputFiles().size());
+        assertTrue(unchanged.areOutputFilesPresentIn(jfs));
+
+        // Regenerating a file with identical content should not recompile it
+        Thread.sleep(5);
+        jfs.create(LEXER, SOURCE_PATH, lexer());
+        assertTrue(compile().sources().isEmpty());
+
+        // The listener refers to the parser by name; the lexer does not
+        Thread.sleep(5);
+        jfs.create(PARSER, SOURCE_PATH, parser("goodbye"));
+        CompileResult incremental = compile();
+        assertTrue(incremental.toString(), incremental.isUsable());
+        assertEquals(new HashSet<>(Arrays.asList(PARSER, LISTENER)), new HashSet<>(incremental.sources()));
+        assertEquals(3, incremental.outputFiles().size());
+        assertEquals(lexerCompiled, jfs.get(CLASS_OUTPUT, LEXER_CLASS).getLastModified());
+        assertEquals(1, bldr.session().fullCompiles());
+        assertEquals(3, bldr.session().incrementalCompiles());
+        assertEquals("goodbye", invokeListener());
+    }
+
+    @Test
+    public void testFailureAndDeletionForceFullCompile() throws Throwable {
+        assertTrue(compile().isUsable());
+        Thread.sleep(5);
+        jfs.create(PARSER, SOURCE_PATH, "package com.foo;\npublic class FooParser { garbage }\n");
+        CompileResult broken = compile();
+        assertFalse(broken.isUsable());
+        Thread.sleep(5);
+        jfs.create(PARSER, SOURCE_PATH, parser("fixed"));
+        CompileResult fixed = compile();
+        assertTrue(fixed.toString(), fixed.isUsable());
+        assertEquals(3, fixed.sources().size());
+        assertEquals(2, bldr.session().fullCompiles());
+        assertEquals("fixed", invokeListener());
+
+        assertTrue(jfs.get(SOURCE_PATH, LEXER).delete());
+        CompileResult afterDelete = compile();
+        assertTrue(afterDelete.toString(), afterDelete.isUsable());
+        assertEquals(2, afterDelete.sources().size());
+        assertEquals(3, bldr.session().fullCompiles());
+    }
+
+    @Test
+    public void testClearedOutputForcesFullCompile() throws Throwable {
+        assertTrue(compile().isUsable());
+        assertEquals(1, bldr.session().fullCompiles());
+        // Clear the output and regenerate identical sources, as
+        // ErrorUpdater does
+        jfs.clear(CLASS_OUTPUT);
+        Thread.sleep(5);
+        jfs.create(LEXER, SOURCE_PATH, lexer());
+        jfs.create(PARSER, SOURCE_PATH, parser("hello"));
+        jfs.create(LISTENER, SOURCE_PATH, listener());
+        CompileResult afterClear = compile();
+        assertTrue(afterClear.toString(), afterClear.isUsable());
+        assertEquals(3, afterClear.sources().size());
+        assertEquals(2, bldr.session().fullCompiles());
+        assertNotNull(jfs.get(CLASS_OUTPUT, LEXER_CLASS));
+        assertTrue(afterClear.areOutputFilesPresentIn(jfs));
+        assertEquals("hello", invokeListener());
+    }
+
+    @Test
+    public void testMentions() {
+        assertTrue(JavacSession.mentionsAny("class X { FooParser p; }",
+                new HashSet<>(Arrays.asList("FooParser"))));
+        assertFalse(JavacSession.mentionsAny("class X { FooParserListener p; }",
+                new HashSet<>(Arrays.asList("FooParser"))));
+        assertFalse(JavacSession.mentionsAny("class X { MyFooParser p; }",
+                new HashSet<>(Arrays.asList("FooParser"))));
+        assertTrue(JavacSession.mentionsAny("FooParser",
+                new HashSet<>(Arrays.asList("Bar", "FooParser"))));
+    }
+
+    private String invokeListener() throws Exception {
+        try (JFSClassLoader ldr = jfs.getClassLoader(CLASS_OUTPUT)) {
+            Class<?> type = Class.forName("com.foo.FooListener", true, ldr);
+            Method method = type.getMethod("message");
+            return (String) method.invoke(null);
+        }
+    }
+
+    private CompileResult compile() throws IOException {
+        return bldr.compile();
+    }
+
+    private static String lexer() {
+        return "package com.foo;\npublic class FooLexer {\n"
+                + "  public static int tokenCount() { return 3; }\n}\n";
+    }
+
+    private static String parser(String msg) {
+        return "package com.foo;\npublic class FooParser {\n"
+                + "  public static String message() { return \"" + msg + "\"; }\n}\n";
+    }
+
+    private static String listener() {
+        return "package com.foo;\npublic class FooListener {\n"
+                + "  public static String message() { return FooParser.message(); }\n}\n";
+    }
+
+    @Before
+    public void setup() throws IOException {
+        jfs = JFS.builder().withCharset(UTF_8).build();
+        jfs.create(LEXER, SOURCE_PATH, lexer());
+        jfs.create(PARSER, SOURCE_PATH, parser("hello"));
+        jfs.create(LISTENER, SOURCE_PATH, listener());
+        bldr = new JFSCompileBuilder(jfs)
+                .addSourceLocation(SOURCE_PATH)
+                .runAnnotationProcessors(false)
+                .sourceAndTargetLevel(8)
+                .incremental();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (jfs != null) {
+            jfs.close();
+        }
+    }
+}
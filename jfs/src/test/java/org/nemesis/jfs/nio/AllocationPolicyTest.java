@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016-2019 Tim Boudreau, Frédéric Yvon Vinet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nemesis.jfs.nio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Churns a block storage with a mix of file sizes resembling generated
+ * sources and class files, under each allocation policy, checking contents
+ * survive and reporting footprint and allocation latency.
+ *
+ * @author Tim Boudreau
+ */
+public class AllocationPolicyTest {
+
+    private static final int LIVE_FILES = 400;
+    private static final int ROUNDS = 20000;
+
+    @Test
+    public void testBestFitIndexSurvivesChurnAndCompaction() throws Throwable {
+        Random rnd = new Random(5_023_117L);
+        BlockMapper storage = (BlockMapper) BlockStorageKind.HEAP.create(256, 32, AllocationPolicy.BEST_FIT);
+        try {
+            List<BlockMapper.MappedBytes> files = new ArrayList<>();
+            List<byte[]> contents = new ArrayList<>();
+            for (int i = 0; i < ROUNDS / 10; i++) {
+                churn(rnd, storage, files, contents);
+                if (i % 97 == 0) {
+                    storage.compact();
+                    assertEquals(0F, storage.fragmentation(), 0.0001F);
+                    assertEquals("Compaction should leave one allocated region: "
+                            + storage.blockManager(), files.isEmpty() ? 0 : 1,
+                            storage.blockManager().regionCount(true));
+                }
+            }
+            for (int i = 0; i < files.size(); i++) {
+                assertArrayEquals("Contents of " + i + " corrupted", contents.get(i), files.get(i).getBytes());
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void testCompareFootprintAndLatency() throws Throwable {
+        // Not a rigorous benchmark
+        for (AllocationPolicy policy : AllocationPolicy.values()) {
+            Random rnd = new Random(5_023_117L);
+            BlockMapper storage = (BlockMapper) BlockStorageKind.HEAP.create(256, 32, policy);
+            try {
+                List<BlockMapper.MappedBytes> files = new ArrayList<>();
+                List<byte[]> contents = new ArrayList<>();
+                long allocationNanos = 0;
+                int allocations = 0;
+                for (int i = 0; i < ROUNDS; i++) {
+                    long then = System.nanoTime();
+                    boolean allocated = churn(rnd, storage, files, contents);
+                    if (allocated) {
+                        allocationNanos += System.nanoTime() - then;
+                        allocations++;
+                    }
+                }
+                for (int i = 0; i < files.size(); i++) {
+                    assertArrayEquals(policy + ": contents of " + i + " corrupted",
+                            contents.get(i), files.get(i).getBytes());
+                }
+                BlockManager man = storage.blockManager();
+                assertTrue(man.usedBlocks() <= man.blockCount());
+                System.out.println(policy + ": " + man.blockCount() + " blocks for "
+                        + man.usedBlocks() + " used (" + (man.blockCount() * 256 / 1024)
+                        + "Kb), fragmentation " + man.fragmentation() + ", "
+                        + (allocationNanos / Math.max(1, allocations)) + "ns per allocation");
+            } finally {
+                storage.close();
+            }
+        }
+    }
+
+    private static boolean churn(Random rnd, BlockMapper storage, List<BlockMapper.MappedBytes> files,
+            List<byte[]> contents) throws IOException {
+        if (files.size() >= LIVE_FILES || (!files.isEmpty() && rnd.nextInt(3) == 0)) {
+            int ix = rnd.nextInt(files.size());
+            files.remove(ix).delete();
+            contents.remove(ix);
+            return false;
+        }
+        byte[] bytes = new byte[size(rnd)];
+        rnd.nextBytes(bytes);
+        files.add(storage.allocate(bytes));
+        contents.add(bytes);
+        return true;
+    }
+
+    private static int size(Random rnd) {
+        // Mostly small class files and sources, with the occasional
+        // generated parser
+        switch (rnd.nextInt(10)) {
+            case 0:
+                return 20_000 + rnd.nextInt(60_000);
+            case 1:
+            case 2:
+                return 2_000 + rnd.nextInt(8_000);
+            default:
+                return 1 + rnd.nextInt(1_500);
+        }
+    }
+}